@@ -1,21 +1,38 @@
 package sysmon.collector;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.ObjectMessage;
 import javax.jms.TextMessage;
+import javax.jms.Topic;
 
-import sysmon.collector.alert.CpuUsageAlert;
+import org.apache.activemq.command.ActiveMQMessage;
+
+import sysmon.collector.alert.AlertDispatcher;
+import sysmon.collector.alert.AlertEvent;
+import sysmon.collector.alert.AlertRegistry;
+import sysmon.collector.anomaly.AnomalyDetector;
 import sysmon.common.InitiativeCommandHandler;
 import sysmon.common.PassiveCommandHandler;
+import sysmon.common.StageLatencies;
+import sysmon.common.SubscriptionFilter;
 import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.sketch.QuantileSketch;
 import sysmon.util.GlobalParameters;
 import sysmon.util.IPUtil;
 import sysmon.util.Out;
+import sysmon.util.ThreadFactories;
 
 import com.espertech.esper.client.Configuration;
 import com.espertech.esper.client.EPServiceProvider;
@@ -38,9 +55,19 @@ public class Collector {
   private String collectorIPAddress;
   private String collectorCommandBrokerAddress;
   private Map<String, MonitorProfile> monitorsAddresses;
+  // the same profiles, indexed by the ids the manager assigned
+  private volatile MonitorProfile[] profilesById;
+  private Map<String, Subscription> subscriptions;
   private CollectorCommandSender commandSender;
   private CollectorCommandReceiver commandReceiver;
   private CEPStream cepStream;
+  private volatile QuantileStore quantileStore;
+  private JsonObject quantileConfig;
+  private volatile JsonObject aggregationConfig;
+  private FileSystemCatalog fileSystemCatalog;
+  private StageLatencies stageLatencies;
+  private IngestStats ingestStats;
+  private ThreadFactory threadFactory;
 
   public Collector(String managerBrokerAddress, int capacity) {
     this.out = new Out();
@@ -49,46 +76,240 @@ public class Collector {
     this.collectorCommandBrokerAddress = "tcp://" + this.collectorIPAddress
         + ":" + GlobalParameters.COLLECTOR_COMMAND_PORT;
     this.managerBrokerAddress = managerBrokerAddress;
-    this.monitorsAddresses = new HashMap<String, MonitorProfile>();
+    this.monitorsAddresses = new ConcurrentHashMap<String, MonitorProfile>();
+    this.profilesById = new MonitorProfile[16];
+    // concurrent, so no lock is held while publishing
+    this.subscriptions = new ConcurrentHashMap<String, Subscription>();
+    this.fileSystemCatalog = new FileSystemCatalog();
+    this.stageLatencies = new StageLatencies();
+    this.ingestStats = new IngestStats(System.currentTimeMillis());
+    this.threadFactory = ThreadFactories.getDefault();
     this.commandSender = new CollectorCommandSender(this.managerBrokerAddress);
     this.commandReceiver = new CollectorCommandReceiver(
         GlobalParameters.COLLECTOR_COMMAND_PORT);
   }
 
+  /**
+   * Set the factory of the CEP and alert delivery threads, see
+   * ThreadFactories; call before start().
+   * 
+   * @param threadFactory
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
   public void start() {
     commandSender.registerToManager();
     out.println("Registered to manager. Start service at "
         + collectorCommandBrokerAddress);
+    try {
+      StatsHttpServer statsServer = new StatsHttpServer(
+          Integer.parseInt(GlobalParameters.COLLECTOR_STATS_HTTP_PORT),
+          new Callable<String>() {
+            @Override
+            public String call() {
+              return IngestStats.toText(
+                  getIngestJson(System.currentTimeMillis()),
+                  stageLatencies.getSummaryJson());
+            }
+          });
+      statsServer.start();
+    } catch (IOException e) {
+      out.error("Cannot serve the stats on port "
+          + GlobalParameters.COLLECTOR_STATS_HTTP_PORT + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Get the load of the collector: the counters of IngestStats, plus the
+   * monitors enrolled, the subscriptions, the alerts waiting for delivery,
+   * and the CPU (in percent
+   * of one core, -1 if unknown), heap and threads of the process.
+   * 
+   * @param nowMillis
+   * @return
+   */
+  JsonObject getIngestJson(long nowMillis) {
+    JsonObject ingestJson = ingestStats.getJson(nowMillis);
+    ingestJson.addProperty("enrolledMonitors", monitorsAddresses.size());
+    ingestJson.addProperty("subscriptions", subscriptions.size());
+    CEPStream stream = cepStream;
+    if (stream != null) {
+      ingestJson.addProperty("alertQueueSize",
+          stream.alertDispatcher.getQueueSize());
+      ingestJson.addProperty("alertsDropped",
+          stream.alertDispatcher.getDroppedCount());
+    }
+    OperatingSystemMXBean osBean = ManagementFactory
+        .getOperatingSystemMXBean();
+    double processCpuPercent = -1;
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      double load = ((com.sun.management.OperatingSystemMXBean) osBean)
+          .getProcessCpuLoad();
+      if (load >= 0) {
+        processCpuPercent = 100 * load * osBean.getAvailableProcessors();
+      }
+    }
+    ingestJson.addProperty("processCpuPercent", processCpuPercent);
+    ingestJson.addProperty("heapUsedBytes", ManagementFactory
+        .getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    ingestJson.addProperty("threads", ManagementFactory.getThreadMXBean()
+        .getThreadCount());
+    return ingestJson;
   }
 
   /**
    * Receive the collector response information from manager. Initialize all the
    * alert monitors.
    * 
-   * @param collectorResponseJson
+   * @param alertsConfig
+   * @param alertOutputConfig
+   *          The config of the alert output stage, may be null.
+   * @param anomalyConfig
+   *          The config of the anomaly detection, may be null.
    */
-  private void initAlertMonitors(JsonArray alertsConfig) {
-    this.cepStream = new CEPStream(alertsConfig);
-    Thread cepThread = new Thread(cepStream);
+  private void initAlertMonitors(JsonArray alertsConfig,
+      JsonObject alertOutputConfig, JsonObject anomalyConfig) {
+    this.cepStream = new CEPStream(alertsConfig, alertOutputConfig);
+    cepStream.setAnomalyDetection(anomalyConfig);
+    Thread cepThread = ThreadFactories.newThread(threadFactory, cepStream,
+        "cep-stream", false);
     cepThread.start();
   }
 
+  /**
+   * Start or replace the quantile sketches. The sketches are kept if the config
+   * is unchanged.
+   * 
+   * @param config
+   *          {enabled: "true", ...}, see QuantileStore.fromJson().
+   */
+  private void setQuantileSketches(JsonObject config) {
+    if (config == null || !config.has("enabled")
+        || !config.get("enabled").getAsString().equals("true")) {
+      quantileStore = null;
+      quantileConfig = null;
+      return;
+    }
+    if (config.equals(quantileConfig)) {
+      return;
+    }
+    try {
+      quantileStore = QuantileStore.fromJson(config);
+      quantileConfig = config;
+      out.println("Apply quantile sketches " + config + ".");
+    } catch (RuntimeException e) {
+      out.error("Skip quantile sketches " + config + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Get a json object member, null if it is missing or not an object.
+   * 
+   * @param jsonObj
+   * @param memberName
+   * @return
+   */
+  private static JsonObject getJsonObject(JsonObject jsonObj,
+      String memberName) {
+    JsonElement element = jsonObj.get(memberName);
+    if (element == null || !element.isJsonObject()) {
+      return null;
+    }
+    return element.getAsJsonObject();
+  }
+
   /**
    * Records the detailed information about a monitor.
    * 
    */
   class MonitorProfile {
     public String monitorIPAddress;
+    public int machineId; // assigned by the manager, -1 if none
     // public String monitorCommandBrokerAddress;
     public String staticMetadata;
-    public long secondSinceLastAccess;
+    public volatile long lastAccessMillis; // the last metadata received
+    // where the sampling hints go, null for the monitors that take none
+    public Destination hintsDestination;
 
-    public MonitorProfile(String monitorIPAddress, String staticMetadata) {
+    public MonitorProfile(String monitorIPAddress, int machineId,
+        String staticMetadata, Destination hintsDestination) {
       super();
       this.monitorIPAddress = monitorIPAddress;
+      this.machineId = machineId;
       // this.monitorCommandBrokerAddress = monitorCommandBrokerAddress;
       this.staticMetadata = staticMetadata;
-      this.secondSinceLastAccess = 0;
+      this.lastAccessMillis = System.currentTimeMillis();
+      this.hintsDestination = hintsDestination;
+    }
+
+    public long getSecondSinceLastAccess(long nowMillis) {
+      return Math.max(0, nowMillis - lastAccessMillis) / 1000;
+    }
+
+  }
+
+  /**
+   * Index the profile by its id, if the monitor has one.
+   * 
+   * @param monitorProfile
+   */
+  private synchronized void putProfileById(MonitorProfile monitorProfile) {
+    int machineId = monitorProfile.machineId;
+    if (machineId < 0) {
+      return;
+    }
+    MonitorProfile[] profiles = profilesById;
+    if (machineId >= profiles.length) {
+      profiles = Arrays.copyOf(profiles, Math.max(machineId + 1,
+          2 * profiles.length));
+    }
+    profiles[machineId] = monitorProfile;
+    profilesById = profiles;
+  }
+
+  /**
+   * Get the profile of the monitor of the metadata, by its id if it has one,
+   * else by its address.
+   * 
+   * @param machineMetadata
+   * @return null if the monitor did not enroll.
+   */
+  private MonitorProfile getProfile(MachineMetadata machineMetadata) {
+    int machineId = machineMetadata.getMachineId();
+    MonitorProfile[] profiles = profilesById;
+    if (machineId >= 0 && machineId < profiles.length) {
+      MonitorProfile monitorProfile = profiles[machineId];
+      if (monitorProfile != null
+          && monitorProfile.monitorIPAddress.equals(machineMetadata
+              .getMachineIP())) {
+        return monitorProfile;
+      }
+    }
+    return monitorsAddresses.get(machineMetadata.getMachineIP());
+  }
+
+  /**
+   * A filtered subscription registered by a subscriber. The matching metadata
+   * is published to the topic "subscription.{id}".
+   * 
+   */
+  class Subscription {
+    public String subscriptionId;
+    public SubscriptionFilter filter;
+    public Topic topic;
+
+    public Subscription(String subscriptionId, SubscriptionFilter filter,
+        Topic topic) {
+      super();
+      this.subscriptionId = subscriptionId;
+      this.filter = filter;
+      this.topic = topic;
     }
 
   }
@@ -103,6 +324,141 @@ public class Collector {
       super(servicePort);
     }
 
+    /**
+     * Register a filtered subscription, {type: "subscribe", subscriptionId:
+     * id, filter: {...}}.
+     * 
+     * @param jsonObj
+     * @throws JMSException
+     */
+    private void handleSubscribe(JsonObject jsonObj) throws JMSException {
+      String subscriptionId = jsonObj.get("subscriptionId").getAsString();
+      SubscriptionFilter filter = SubscriptionFilter.fromJson(jsonObj.get(
+          "filter").getAsJsonObject());
+      Topic topic = commandServiceSession.createTopic("subscription."
+          + subscriptionId);
+      subscriptions.put(subscriptionId, new Subscription(subscriptionId,
+          filter, topic));
+      out.println("Subscription [" + subscriptionId + "] registered with filter "
+          + filter);
+    }
+
+    /**
+     * Answer {type: "quantile-query", metric: m, group: g, seconds: n} with
+     * {type: "quantile-query-response", sketch: {...}}, the sketch of the
+     * metric over the last seconds, to be merged by the manager.
+     * 
+     * @param jsonObj
+     * @param commandMessage
+     * @throws JMSException
+     */
+    private void handleQuantileQuery(JsonObject jsonObj,
+        Message commandMessage) throws JMSException {
+      JsonObject responseJson = new JsonObject();
+      responseJson.addProperty("type", "quantile-query-response");
+      QuantileStore store = quantileStore;
+      if (store != null) {
+        String group = jsonObj.has("group") ? jsonObj.get("group")
+            .getAsString() : QuantileStore.ALL;
+        QuantileSketch sketch = store.query(group, jsonObj.get("metric")
+            .getAsString(), jsonObj.get("seconds").getAsLong());
+        responseJson.add("sketch", sketch.getJson());
+      }
+      if (commandMessage.getJMSReplyTo() == null) {
+        return;
+      }
+      TextMessage responseMessage = commandServiceSession.createTextMessage();
+      responseMessage.setJMSCorrelationID(commandMessage.getJMSCorrelationID());
+      responseMessage.setText(responseJson.toString());
+      commandProducer.send(commandMessage.getJMSReplyTo(), responseMessage);
+    }
+
+    /**
+     * Answer {type: "stats"} with {type: "stats-response", stages: {stage:
+     * {count, p50, p99, p999, max}}, recorders: {stage: recorder}}, the
+     * latencies in microseconds, see StageLatencies; the recorders can be
+     * merged with the ones of the other collectors.
+     * 
+     * @param commandMessage
+     * @throws JMSException
+     */
+    private void handleStats(Message commandMessage) throws JMSException {
+      JsonObject responseJson = new JsonObject();
+      responseJson.addProperty("type", "stats-response");
+      responseJson.add("stages", stageLatencies.getSummaryJson());
+      responseJson.add("recorders", stageLatencies.getJson());
+      responseJson.add("ingest", getIngestJson(System.currentTimeMillis()));
+      if (commandMessage.getJMSReplyTo() == null) {
+        out.println("Stage latencies: " + responseJson.get("stages"));
+        return;
+      }
+      TextMessage responseMessage = commandServiceSession.createTextMessage();
+      responseMessage.setJMSCorrelationID(commandMessage.getJMSCorrelationID());
+      responseMessage.setText(responseJson.toString());
+      commandProducer.send(commandMessage.getJMSReplyTo(), responseMessage);
+    }
+
+    /**
+     * Send {type: "sampling-hints", hints: [...]}, the thresholds of the alert
+     * rules, to the monitor, so that it samples faster near them.
+     * 
+     * @param monitorProfile
+     * @throws JMSException
+     */
+    private void sendSamplingHints(MonitorProfile monitorProfile)
+        throws JMSException {
+      if (monitorProfile.hintsDestination == null || cepStream == null) {
+        return;
+      }
+      JsonObject hintsJson = new JsonObject();
+      hintsJson.addProperty("type", "sampling-hints");
+      hintsJson.add("hints", cepStream.alertRegistry.getSamplingHints());
+      TextMessage hintsMessage = commandServiceSession.createTextMessage();
+      hintsMessage.setText(hintsJson.toString());
+      commandProducer.send(monitorProfile.hintsDestination, hintsMessage);
+    }
+
+    /**
+     * Send {type: "aggregation-config", config: {...}} to the monitor, so
+     * that it sends summaries of the configured metrics instead of every
+     * sample.
+     * 
+     * @param monitorProfile
+     * @throws JMSException
+     */
+    private void sendAggregationConfig(MonitorProfile monitorProfile)
+        throws JMSException {
+      JsonObject config = aggregationConfig;
+      if (monitorProfile.hintsDestination == null || config == null) {
+        return;
+      }
+      JsonObject configJson = new JsonObject();
+      configJson.addProperty("type", "aggregation-config");
+      configJson.add("config", config);
+      TextMessage configMessage = commandServiceSession.createTextMessage();
+      configMessage.setText(configJson.toString());
+      commandProducer.send(monitorProfile.hintsDestination, configMessage);
+    }
+
+    /**
+     * Publish the metadata to the subscriptions whose filter matches.
+     * 
+     * @param machineMetadata
+     * @throws JMSException
+     */
+    private void publishToSubscriptions(MachineMetadata machineMetadata)
+        throws JMSException {
+      for (Subscription subscription : subscriptions.values()) {
+        MachineMetadata projected = subscription.filter.apply(machineMetadata);
+        if (projected == null) {
+          continue;
+        }
+        ObjectMessage message = commandServiceSession.createObjectMessage();
+        message.setObject(projected);
+        commandProducer.send(subscription.topic, message);
+      }
+    }
+
     @Override
     public void onMessage(Message commandMessage) {
       if (commandMessage instanceof TextMessage) {
@@ -118,9 +474,45 @@ public class Collector {
             JsonObject staticMetadataObj = jsonObj.get("staticMetadata")
                 .getAsJsonObject();
             out.println("Static meta-data:" + staticMetadataObj.toString());
+            int machineId = jsonObj.has("machineId") ? jsonObj.get(
+                "machineId").getAsInt() : -1;
             MonitorProfile monitorProfile = new MonitorProfile(
-                enrollMonitorIPAddress, staticMetadataObj.toString());
+                enrollMonitorIPAddress, machineId,
+                staticMetadataObj.toString(), commandMessage.getJMSReplyTo());
             monitorsAddresses.put(enrollMonitorIPAddress, monitorProfile);
+            putProfileById(monitorProfile);
+            sendSamplingHints(monitorProfile);
+            sendAggregationConfig(monitorProfile);
+          } else if (type.equals("alerts-config-update")) {
+            if (cepStream != null) {
+              JsonObject outputConfig = getJsonObject(jsonObj,
+                  "alertOutputConfig");
+              if (outputConfig != null) {
+                cepStream.alertDispatcher.configure(outputConfig);
+              }
+              cepStream.setAlertMonitors(jsonObj.get("alertsConfig")
+                  .getAsJsonArray());
+              cepStream.setAnomalyDetection(getJsonObject(jsonObj,
+                  "anomalyConfig"));
+              for (MonitorProfile monitorProfile : monitorsAddresses.values()) {
+                sendSamplingHints(monitorProfile);
+              }
+            }
+            setQuantileSketches(getJsonObject(jsonObj, "quantileConfig"));
+            aggregationConfig = getJsonObject(jsonObj, "aggregationConfig");
+            for (MonitorProfile monitorProfile : monitorsAddresses.values()) {
+              sendAggregationConfig(monitorProfile);
+            }
+          } else if (type.equals("subscribe")) {
+            handleSubscribe(jsonObj);
+          } else if (type.equals("quantile-query")) {
+            handleQuantileQuery(jsonObj, commandMessage);
+          } else if (type.equals("stats")) {
+            handleStats(commandMessage);
+          } else if (type.equals("unsubscribe")) {
+            String subscriptionId = jsonObj.get("subscriptionId").getAsString();
+            subscriptions.remove(subscriptionId);
+            out.println("Subscription [" + subscriptionId + "] removed.");
           }
           // else if(type.equals("metadata")) { // receive metadata from monitor
           // String monitorName = jsonObj.get("machineIPAddress").getAsString();
@@ -131,11 +523,72 @@ public class Collector {
           e.printStackTrace();
         }
       } else if (commandMessage instanceof ObjectMessage) { // receive metadata
-        ObjectMessage objMessage = (ObjectMessage) commandMessage;
+        long receiveMillis = System.currentTimeMillis();
+        long receiveNanos = System.nanoTime();
+        ingestStats.onMessage(commandMessage instanceof ActiveMQMessage
+            ? ((ActiveMQMessage) commandMessage).getSize() : 0);
+        MachineMetadata machineMetadata;
         try {
-          MachineMetadata machineMetadata = (MachineMetadata) objMessage
+          machineMetadata = (MachineMetadata) ((ObjectMessage) commandMessage)
               .getObject();
-          cepStream.cepService.getEPRuntime().sendEvent(machineMetadata);
+        } catch (JMSException e) {
+          ingestStats.onDecodeError();
+          out.error("Cannot decode metadata: " + e.getMessage());
+          return;
+        } catch (ClassCastException e) {
+          ingestStats.onDecodeError();
+          out.error("Cannot decode metadata: " + e.getMessage());
+          return;
+        }
+        if (machineMetadata == null) {
+          ingestStats.onDecodeError();
+          return;
+        }
+        ingestStats.onMonitorSeen(machineMetadata.getMachineId(),
+            machineMetadata.getMachineIP(), receiveMillis);
+        MonitorProfile monitorProfile = getProfile(machineMetadata);
+        if (monitorProfile != null) {
+          monitorProfile.lastAccessMillis = receiveMillis;
+        }
+        try {
+          long decodedNanos = System.nanoTime();
+          stageLatencies.recordMonitorStages(machineMetadata, receiveMillis);
+          stageLatencies.record(StageLatencies.DECODE,
+              (decodedNanos - receiveNanos) / 1000);
+          AlertDispatcher alertDispatcher = cepStream.alertDispatcher;
+          long publishedAlerts = alertDispatcher.getPublishedCount();
+          fileSystemCatalog.resolve(machineMetadata);
+          cepStream.alertRegistry.evaluateRules(machineMetadata);
+          AnomalyDetector anomalyDetector = cepStream.anomalyDetector;
+          if (anomalyDetector != null) {
+            anomalyDetector.onSample(machineMetadata);
+          }
+          QuantileStore store = quantileStore;
+          if (store != null) {
+            store.onSample(machineMetadata);
+          }
+          long enqueuedNanos = System.nanoTime();
+          stageLatencies.record(StageLatencies.ENQUEUE,
+              (enqueuedNanos - decodedNanos) / 1000);
+          if (cepStream.alertRegistry.getStatementCount() > 0) {
+            cepStream.cepService.getEPRuntime().sendEvent(
+                MachineSample.flatten(machineMetadata),
+                MachineSample.EVENT_TYPE);
+            long cepNanos = System.nanoTime() - enqueuedNanos;
+            ingestStats.onCepEvent(cepNanos);
+            stageLatencies.record(StageLatencies.CEP, cepNanos / 1000);
+          }
+          long crawlMillis = machineMetadata.getCrawlMillis();
+          if (crawlMillis > 0
+              && alertDispatcher.getPublishedCount() > publishedAlerts) {
+            stageLatencies.record(StageLatencies.ALERT_EMIT,
+                (System.currentTimeMillis() - crawlMillis) * 1000);
+          }
+          publishToSubscriptions(machineMetadata);
+          if (crawlMillis > 0) {
+            stageLatencies.record(StageLatencies.END_TO_END,
+                (System.currentTimeMillis() - crawlMillis) * 1000);
+          }
         } catch (JMSException e) {
           e.printStackTrace();
         }
@@ -197,8 +650,12 @@ public class Collector {
             JsonElement configElement = jsonObj.get("alertsConfig");
             if (configElement != null) {
               JsonArray configJsonArray = configElement.getAsJsonArray();
-              initAlertMonitors(configJsonArray);
+              initAlertMonitors(configJsonArray,
+                  getJsonObject(jsonObj, "alertOutputConfig"),
+                  getJsonObject(jsonObj, "anomalyConfig"));
             }
+            setQuantileSketches(getJsonObject(jsonObj, "quantileConfig"));
+            aggregationConfig = getJsonObject(jsonObj, "aggregationConfig");
             out.println("Registration successfully.");
           }
         } catch (JMSException e) {
@@ -215,36 +672,75 @@ public class Collector {
    */
   class CEPStream implements Runnable {
     private EPServiceProvider cepService;
+    private AlertDispatcher alertDispatcher;
+    private AlertRegistry alertRegistry;
+    private volatile AnomalyDetector anomalyDetector;
+    private JsonObject anomalyConfig;
 
-    CEPStream(JsonArray alertsConfig) {
+    CEPStream(JsonArray alertsConfig, JsonObject alertOutputConfig) {
       Configuration config = new Configuration();
       config.addEventTypeAutoName("sysmon.common.metadata");
+      config.addEventType(MachineSample.EVENT_TYPE,
+          MachineSample.getPropertyNames(), MachineSample.getPropertyTypes());
       cepService = EPServiceProviderManager.getDefaultProvider(config);
+      alertDispatcher = AlertDispatcher.fromJson(alertOutputConfig,
+          collectorCommandBrokerAddress);
+      alertDispatcher.start(threadFactory);
+      alertRegistry = new AlertRegistry(cepService, alertDispatcher);
       setAlertMonitors(alertsConfig);
     }
 
     /**
-     * Set the alerts based on the received alert configuration.
+     * Set the alerts based on the received alert configuration. The
+     * statements of the unchanged alerts are kept.
      * 
-     * @param collectorRegisterResponse
+     * @param alertsConfig
      */
     private void setAlertMonitors(JsonArray alertsConfig) {
-      for (JsonElement alert : alertsConfig) {
-        JsonObject alertJson = (JsonObject) alert;
-        String alertName = alertJson.get("type").getAsString();
-        JsonObject parameters = alertJson.get("parameters").getAsJsonObject();
-        if (alertName.equals("CpuUsageAlert")) {
-          String timeWindowStr = parameters.get("timeWindow").getAsJsonObject()
-              .get("value").getAsString();
-          String idleTimeAlertThresholdStr = parameters
-              .get("idleTimeAlertThreshold").getAsJsonObject().get("value")
-              .getAsString();
-          new CpuUsageAlert(cepService, Integer.parseInt(timeWindowStr),
-              Float.parseFloat(idleTimeAlertThresholdStr));
-        }
-        out.println("Add alert [" + alertJson.get("type").getAsString() + "].");
-      }
+      alertRegistry.apply(alertsConfig);
+      out.println("Apply alerts config, "
+          + alertRegistry.getFastEngine().getRuleCount() + " rules, "
+          + alertRegistry.getStatementCount() + " statements.");
+    }
 
+    /**
+     * Start, replace or stop the anomaly detection. The baselines are kept if
+     * the config is unchanged.
+     * 
+     * @param config
+     *          {enabled: "true", ...}, see AnomalyDetector.fromJson().
+     */
+    private void setAnomalyDetection(JsonObject config) {
+      if (config == null || !config.has("enabled")
+          || !config.get("enabled").getAsString().equals("true")) {
+        anomalyDetector = null;
+        anomalyConfig = null;
+        return;
+      }
+      if (config.equals(anomalyConfig)) {
+        return;
+      }
+      AnomalyDetector detector;
+      try {
+        detector = AnomalyDetector.fromJson(config);
+      } catch (RuntimeException e) {
+        out.error("Skip anomaly detection " + config + ": " + e.getMessage());
+        return;
+      }
+      detector.setAnomalyHandler(new AnomalyDetector.AnomalyHandler() {
+        @Override
+        public void onAnomaly(String machineIP, String metric,
+            boolean anomalous, double value, double baseline, double sigma,
+            long timestampMillis) {
+          alertDispatcher.publish(new AlertEvent("Anomaly." + metric,
+              machineIP, anomalous, "[Anomaly] "
+                  + AnomalyDetector.format(machineIP, metric, anomalous,
+                      value, baseline, sigma), value, timestampMillis));
+        }
+      });
+      anomalyDetector = detector;
+      anomalyConfig = config;
+      out.println("Apply anomaly detection " + config + ".");
     }
 
     @Override
@@ -276,6 +772,7 @@ public class Collector {
 
     Collector c = new Collector(managerBrokerAddress, capacity);
     c.start();
+    ThreadFactories.keepAlive(c.getThreadFactory());
   }
 
 }
@@ -0,0 +1,63 @@
+package sysmon.collector;
+
+import java.util.Arrays;
+
+import sysmon.common.MachineSlots;
+import sysmon.common.metadata.DiskMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+/**
+ * FileSystemCatalog keeps the last file system infos received from each
+ * machine, and attaches them to the disk sections of the same version that
+ * come without them. The infos are kept in an array indexed by the slot of
+ * the machine, see MachineSlots.
+ * 
+ */
+public class FileSystemCatalog {
+
+  private MachineSlots slots;
+  private DiskMetadata[] latestInfos;
+  private int machineCount;
+
+  public FileSystemCatalog() {
+    this.slots = new MachineSlots();
+    this.latestInfos = new DiskMetadata[16];
+    this.machineCount = 0;
+  }
+
+  /**
+   * Record the file system infos of the metadata, or attach the known ones.
+   * 
+   * @param metadata
+   * @return false if the disk section refers to infos that are not known yet.
+   */
+  public synchronized boolean resolve(MachineMetadata metadata) {
+    DiskMetadata disk = metadata.getDisk();
+    if (disk == null) {
+      return true;
+    }
+    if (disk.getFileSystemInfos() != null) {
+      int slot = slots.slotOf(metadata);
+      if (slot >= latestInfos.length) {
+        latestInfos = Arrays.copyOf(latestInfos, 2 * latestInfos.length);
+      }
+      if (latestInfos[slot] == null) {
+        ++machineCount;
+      }
+      latestInfos[slot] = disk;
+      return true;
+    }
+    int slot = slots.find(metadata);
+    DiskMetadata known = slot < 0 ? null : latestInfos[slot];
+    if (known == null || known.getVersion() != disk.getVersion()) {
+      return false;
+    }
+    disk.setFileSystemInfos(known.getFileSystemInfos());
+    return true;
+  }
+
+  public synchronized int getMachineCount() {
+    return machineCount;
+  }
+
+}
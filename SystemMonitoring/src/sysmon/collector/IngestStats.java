@@ -0,0 +1,340 @@
+package sysmon.collector;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * IngestStats counts the load of the collector: the messages and bytes
+ * received, the decode errors and the samples handed to the CEP engine with
+ * the time spent in it, in striped counters (LongAdder) so that the ingest
+ * threads do not contend on them, and the last time each monitor was seen,
+ * so that no global lock is taken per message: in an atomic array indexed by
+ * the id the manager assigned to the monitor, or, for a monitor without an
+ * id, in a concurrent map of atomic timestamps keyed by address.
+ * 
+ * The rates are over the interval between two reads of getJson() at least
+ * RATE_INTERVAL_MILLIS apart, so several readers do not shorten it. The CEP
+ * engine evaluates a sample within sendEvent(), on the ingest thread, so the
+ * share of the interval spent in it (cepBusyPercent) is how close the CEP is
+ * to stall the ingest: near 100, the samples queue up in the broker.
+ * 
+ */
+public class IngestStats {
+
+  public static final long RATE_INTERVAL_MILLIS = 10000;
+
+  private LongAdder messages;
+  private LongAdder bytes;
+  private LongAdder decodeErrors;
+  private LongAdder cepEvents;
+  private LongAdder cepNanos;
+  private ConcurrentMap<String, AtomicLong> lastSeenMillis;
+  private volatile SeenById seenById;
+
+  private long rateStartMillis;
+  private long rateStartMessages;
+  private long rateStartBytes;
+  private long rateStartCepNanos;
+  private double messagesPerSec;
+  private double bytesPerSec;
+  private double cepBusyPercent;
+
+  public IngestStats(long nowMillis) {
+    this.messages = new LongAdder();
+    this.bytes = new LongAdder();
+    this.decodeErrors = new LongAdder();
+    this.cepEvents = new LongAdder();
+    this.cepNanos = new LongAdder();
+    this.lastSeenMillis = new ConcurrentHashMap<String, AtomicLong>();
+    this.seenById = new SeenById(16);
+    this.rateStartMillis = nowMillis;
+  }
+
+  /**
+   * The last seen times of the monitors with an id, replaced as a whole when
+   * it grows.
+   * 
+   */
+  private static class SeenById {
+    final String[] machineIPs;
+    final AtomicLongArray millis;
+
+    SeenById(int capacity) {
+      this.machineIPs = new String[capacity];
+      this.millis = new AtomicLongArray(capacity);
+    }
+  }
+
+  /**
+   * Count a message.
+   * 
+   * @param size
+   *          The size of the message in bytes, 0 if unknown.
+   */
+  public void onMessage(long size) {
+    messages.increment();
+    bytes.add(size);
+  }
+
+  /**
+   * Record that the monitor was seen.
+   * 
+   * @param machineIP
+   * @param nowMillis
+   */
+  public void onMonitorSeen(String machineIP, long nowMillis) {
+    AtomicLong lastSeen = lastSeenMillis.get(machineIP);
+    if (lastSeen == null) {
+      AtomicLong newLastSeen = new AtomicLong();
+      lastSeen = lastSeenMillis.putIfAbsent(machineIP, newLastSeen);
+      if (lastSeen == null) {
+        lastSeen = newLastSeen;
+      }
+    }
+    lastSeen.set(nowMillis);
+  }
+
+  /**
+   * Record that the monitor was seen, by its id, without hashing its
+   * address.
+   * 
+   * @param machineId
+   *          The id assigned by the manager, -1 if none.
+   * @param machineIP
+   * @param nowMillis
+   */
+  public void onMonitorSeen(int machineId, String machineIP, long nowMillis) {
+    if (machineId < 0) {
+      onMonitorSeen(machineIP, nowMillis);
+      return;
+    }
+    SeenById seen = seenById;
+    if (machineId < seen.machineIPs.length
+        && machineIP.equals(seen.machineIPs[machineId])) {
+      seen.millis.set(machineId, nowMillis);
+      return;
+    }
+    synchronized (this) {
+      seen = seenById;
+      if (machineId >= seen.machineIPs.length) {
+        // a time set on the old array meanwhile is lost until the next one
+        SeenById grown = new SeenById(Math.max(machineId + 1,
+            2 * seen.machineIPs.length));
+        for (int id = 0; id < seen.machineIPs.length; ++id) {
+          grown.machineIPs[id] = seen.machineIPs[id];
+          grown.millis.set(id, seen.millis.get(id));
+        }
+        seen = grown;
+        seenById = grown;
+      }
+      String previousIP = seen.machineIPs[machineId];
+      if (previousIP != null && !previousIP.equals(machineIP)) {
+        // the id was given to another monitor by a restarted manager
+        lastSeenMillis.put(previousIP,
+            new AtomicLong(seen.millis.get(machineId)));
+      }
+      lastSeenMillis.remove(machineIP);
+      seen.machineIPs[machineId] = machineIP;
+      seen.millis.set(machineId, nowMillis);
+    }
+  }
+
+  public void onDecodeError() {
+    decodeErrors.increment();
+  }
+
+  /**
+   * Count a sample handed to the CEP engine.
+   * 
+   * @param nanos
+   *          The time spent in sendEvent().
+   */
+  public void onCepEvent(long nanos) {
+    cepEvents.increment();
+    cepNanos.add(nanos);
+  }
+
+  public long getMessages() {
+    return messages.sum();
+  }
+
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  public long getDecodeErrors() {
+    return decodeErrors.sum();
+  }
+
+  /**
+   * @return The number of samples handed to the CEP engine.
+   */
+  public long getCepEvents() {
+    return cepEvents.sum();
+  }
+
+  /**
+   * @return The total time spent in the CEP engine, in nanoseconds.
+   */
+  public long getCepNanos() {
+    return cepNanos.sum();
+  }
+
+  /**
+   * @param machineIP
+   * @return The last time the monitor was seen, 0 if never.
+   */
+  public long getLastSeenMillis(String machineIP) {
+    AtomicLong lastSeen = lastSeenMillis.get(machineIP);
+    if (lastSeen != null) {
+      return lastSeen.get();
+    }
+    SeenById seen = seenById;
+    for (int id = 0; id < seen.machineIPs.length; ++id) {
+      if (machineIP.equals(seen.machineIPs[id])) {
+        return seen.millis.get(id);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Forget a monitor, e.g. one that left.
+   * 
+   * @param machineIP
+   */
+  public void removeMonitor(String machineIP) {
+    lastSeenMillis.remove(machineIP);
+    synchronized (this) {
+      SeenById seen = seenById;
+      for (int id = 0; id < seen.machineIPs.length; ++id) {
+        if (machineIP.equals(seen.machineIPs[id])) {
+          seen.machineIPs[id] = null;
+          seen.millis.set(id, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param nowMillis
+   * @return {messages, bytes, decodeErrors, cepEvents, cepMillis,
+   *         messagesPerSec, bytesPerSec, cepBusyPercent, monitors: {ip:
+   *         {lastSeenMillis, secondsSinceLastSeen}}}
+   */
+  public JsonObject getJson(long nowMillis) {
+    long currentMessages = getMessages();
+    long currentBytes = getBytes();
+    long currentCepNanos = getCepNanos();
+    JsonObject statsJson = new JsonObject();
+    statsJson.addProperty("messages", currentMessages);
+    statsJson.addProperty("bytes", currentBytes);
+    statsJson.addProperty("decodeErrors", getDecodeErrors());
+    statsJson.addProperty("cepEvents", getCepEvents());
+    statsJson.addProperty("cepMillis", currentCepNanos / 1000000);
+    synchronized (this) {
+      long elapsed = nowMillis - rateStartMillis;
+      if (elapsed >= RATE_INTERVAL_MILLIS) {
+        messagesPerSec = (currentMessages - rateStartMessages) * 1000.0
+            / elapsed;
+        bytesPerSec = (currentBytes - rateStartBytes) * 1000.0 / elapsed;
+        cepBusyPercent = (currentCepNanos - rateStartCepNanos) / 1e4
+            / elapsed;
+        rateStartMillis = nowMillis;
+        rateStartMessages = currentMessages;
+        rateStartBytes = currentBytes;
+        rateStartCepNanos = currentCepNanos;
+      }
+      statsJson.addProperty("messagesPerSec", messagesPerSec);
+      statsJson.addProperty("bytesPerSec", bytesPerSec);
+      statsJson.addProperty("cepBusyPercent", cepBusyPercent);
+    }
+    Map<String, Long> monitors = new TreeMap<String, Long>();
+    for (Map.Entry<String, AtomicLong> entry : lastSeenMillis.entrySet()) {
+      monitors.put(entry.getKey(), entry.getValue().get());
+    }
+    SeenById seen = seenById;
+    for (int id = 0; id < seen.machineIPs.length; ++id) {
+      if (seen.machineIPs[id] != null) {
+        monitors.put(seen.machineIPs[id], seen.millis.get(id));
+      }
+    }
+    JsonObject monitorsJson = new JsonObject();
+    for (Map.Entry<String, Long> entry : monitors.entrySet()) {
+      long lastSeen = entry.getValue();
+      JsonObject monitorJson = new JsonObject();
+      monitorJson.addProperty("lastSeenMillis", lastSeen);
+      monitorJson.addProperty("secondsSinceLastSeen",
+          Math.max(0, nowMillis - lastSeen) / 1000.0);
+      monitorsJson.add(entry.getKey(), monitorJson);
+    }
+    statsJson.add("monitors", monitorsJson);
+    return statsJson;
+  }
+
+  /**
+   * Render the stats of the collector as plain text, one "name value" line
+   * per number (the Prometheus text exposition format): the numbers of
+   * statsJson become sysmon_collector_{name}, the monitors a labelled
+   * sysmon_collector_monitor_seconds_since_last_seen, and the stages of
+   * StageLatencies a labelled sysmon_collector_stage_micros per quantile.
+   * 
+   * @param statsJson
+   *          The json of getJson(), with other numbers if needed.
+   * @param stagesJson
+   *          StageLatencies.getSummaryJson(), may be null.
+   * @return
+   */
+  public static String toText(JsonObject statsJson, JsonObject stagesJson) {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, JsonElement> entry : statsJson.entrySet()) {
+      JsonElement value = entry.getValue();
+      if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+        sb.append("sysmon_collector_").append(toSnakeCase(entry.getKey()))
+            .append(' ').append(value.getAsString()).append('\n');
+      }
+    }
+    if (statsJson.has("monitors")) {
+      for (Map.Entry<String, JsonElement> entry : statsJson.get("monitors")
+          .getAsJsonObject().entrySet()) {
+        sb.append("sysmon_collector_monitor_seconds_since_last_seen{monitor=\"")
+            .append(entry.getKey()).append("\"} ")
+            .append(entry.getValue().getAsJsonObject()
+                .get("secondsSinceLastSeen").getAsString()).append('\n');
+      }
+    }
+    if (stagesJson != null) {
+      for (Map.Entry<String, JsonElement> entry : stagesJson.entrySet()) {
+        for (Map.Entry<String, JsonElement> quantile : entry.getValue()
+            .getAsJsonObject().entrySet()) {
+          sb.append("sysmon_collector_stage_micros{stage=\"")
+              .append(entry.getKey()).append("\",stat=\"")
+              .append(quantile.getKey()).append("\"} ")
+              .append(quantile.getValue().getAsString()).append('\n');
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String toSnakeCase(String name) {
+    StringBuilder sb = new StringBuilder();
+    for (char c : name.toCharArray()) {
+      if (Character.isUpperCase(c)) {
+        sb.append('_').append(Character.toLowerCase(c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,90 @@
+package sysmon.collector;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+/**
+ * MachineSample is the flat, object-array representation of MachineMetadata
+ * that is fed into the CEP engine. Every property is a column, so EPL like
+ * "avg(cpuIdle)" reads an array slot instead of walking the bean graph.
+ * 
+ * Columns: timestamp, machineIP, one double column per
+ * MachineMetadata.METRIC_NAMES (NaN if the section is absent), the per
+ * core idle and combined time arrays, and machineId, the id the manager
+ * assigned to the machine (-1 if none), which the EPL can group by instead
+ * of the address.
+ * 
+ */
+public class MachineSample {
+
+  public static final String EVENT_TYPE = "MachineSample";
+
+  public static final int TIMESTAMP = 0;
+  public static final int MACHINE_IP = 1;
+  public static final int FIRST_METRIC = 2;
+  public static final int CORE_IDLE = FIRST_METRIC
+      + MachineMetadata.METRIC_NAMES.length;
+  public static final int CORE_COMBINED = CORE_IDLE + 1;
+  public static final int MACHINE_ID = CORE_COMBINED + 1;
+
+  private static final String[] PROPERTY_NAMES;
+  private static final Object[] PROPERTY_TYPES;
+
+  static {
+    int columns = MACHINE_ID + 1;
+    PROPERTY_NAMES = new String[columns];
+    PROPERTY_TYPES = new Object[columns];
+    PROPERTY_NAMES[TIMESTAMP] = "timestamp";
+    PROPERTY_TYPES[TIMESTAMP] = Long.class;
+    PROPERTY_NAMES[MACHINE_IP] = "machineIP";
+    PROPERTY_TYPES[MACHINE_IP] = String.class;
+    for (int i = 0; i < MachineMetadata.METRIC_NAMES.length; ++i) {
+      PROPERTY_NAMES[FIRST_METRIC + i] = MachineMetadata.METRIC_NAMES[i];
+      PROPERTY_TYPES[FIRST_METRIC + i] = Double.class;
+    }
+    PROPERTY_NAMES[CORE_IDLE] = "coreIdle";
+    PROPERTY_TYPES[CORE_IDLE] = double[].class;
+    PROPERTY_NAMES[CORE_COMBINED] = "coreCombined";
+    PROPERTY_TYPES[CORE_COMBINED] = double[].class;
+    PROPERTY_NAMES[MACHINE_ID] = "machineId";
+    PROPERTY_TYPES[MACHINE_ID] = Integer.class;
+  }
+
+  public static String[] getPropertyNames() {
+    return PROPERTY_NAMES.clone();
+  }
+
+  public static Object[] getPropertyTypes() {
+    return PROPERTY_TYPES.clone();
+  }
+
+  /**
+   * Flatten the metadata into an event of type MachineSample.
+   * 
+   * @param metadata
+   * @return
+   */
+  public static Object[] flatten(MachineMetadata metadata) {
+    Object[] sample = new Object[PROPERTY_NAMES.length];
+    sample[TIMESTAMP] = metadata.getTimestamp();
+    sample[MACHINE_IP] = metadata.getMachineIP();
+    sample[MACHINE_ID] = metadata.getMachineId();
+    for (int i = 0; i < MachineMetadata.METRIC_NAMES.length; ++i) {
+      sample[FIRST_METRIC + i] = metadata.getMetricValue(i);
+    }
+    CpuMetadata cpu = metadata.getCpu();
+    if (cpu != null) {
+      CpuMetadata.Core[] cores = cpu.getCores();
+      double[] coreIdle = new double[cores.length];
+      double[] coreCombined = new double[cores.length];
+      for (int i = 0; i < cores.length; ++i) {
+        coreIdle[i] = cores[i].getIdleTime();
+        coreCombined[i] = cores[i].getCombinedTime();
+      }
+      sample[CORE_IDLE] = coreIdle;
+      sample[CORE_COMBINED] = coreCombined;
+    }
+    return sample;
+  }
+
+}
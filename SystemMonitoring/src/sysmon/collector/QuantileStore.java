@@ -0,0 +1,282 @@
+package sysmon.collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sysmon.common.MachineSlots;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.sketch.QuantileSketch;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * QuantileStore keeps a QuantileSketch per (group of machines, metric, time
+ * window), so that the percentiles over the fleet can be answered without
+ * shipping the samples. The windows are tumbling windows of windowSeconds in
+ * a ring of windowCount, and a query merges the windows that cover the
+ * requested period. The group "all" has every machine, the other groups the
+ * machines whose IP starts with the group prefix.
+ * 
+ * The memory is bounded by groups * metrics * windows * maxBins, whatever the
+ * number of machines.
+ * 
+ * A sample weighs the time since the previous sample of its machine, in units
+ * of the usual interval of that machine, the fractions being carried over to
+ * the next sample. So a machine sampled at a fixed interval adds each sample
+ * once, and an adaptive monitor that samples ten times faster during an
+ * incident only adds one sample in ten, instead of skewing the percentiles
+ * toward it. The usual interval follows the intervals seen (each up to
+ * MAX_INTERVAL_MILLIS) with a time decay of INTERVAL_DECAY_MILLIS: an
+ * incident of minutes or a single long gap barely moves it, a lasting change
+ * of the interval is followed within the hour. A sample not newer than the
+ * previous one of its machine (resent or duplicated) is not counted.
+ * 
+ * The per machine state, the sample times and the groups the machine is in,
+ * is kept in arrays indexed by the slot of the machine (see MachineSlots),
+ * the groups being matched once, when the machine is first seen.
+ * 
+ */
+public class QuantileStore {
+
+  public static final String ALL = "all";
+  public static final long MAX_INTERVAL_MILLIS = 60 * 1000;
+  public static final long INTERVAL_DECAY_MILLIS = 3600 * 1000;
+
+  private long windowSeconds;
+  private int windowCount;
+  private double relativeAccuracy;
+  private int[] metrics;
+  private String[] groupNames;
+  private String[] groupPrefixes;
+  private long[] windowIds;
+  private QuantileSketch[][][] sketches;
+  private long latestWindowId;
+  private MachineSlots machineSlots;
+  // {last time, usual interval, carried weight} per machine slot
+  private double[][] sampleTimes;
+  // whether the machine of the slot is in each group
+  private boolean[][] memberships;
+
+  /**
+   * @param windowSeconds
+   * @param windowCount
+   * @param relativeAccuracy
+   * @param metrics
+   *          The names of the metrics, see MachineMetadata.METRIC_NAMES.
+   * @param groups
+   *          The groups besides "all", as {name, IP prefix} pairs.
+   */
+  public QuantileStore(long windowSeconds, int windowCount,
+      double relativeAccuracy, String[] metrics, List<String[]> groups) {
+    this.windowSeconds = windowSeconds;
+    this.windowCount = windowCount;
+    this.relativeAccuracy = relativeAccuracy;
+    this.metrics = new int[metrics.length];
+    for (int i = 0; i < metrics.length; ++i) {
+      this.metrics[i] = MachineMetadata.indexOfMetric(metrics[i]);
+      if (this.metrics[i] < 0) {
+        throw new IllegalArgumentException("Unknown metric [" + metrics[i]
+            + "].");
+      }
+    }
+    this.groupNames = new String[groups.size() + 1];
+    this.groupPrefixes = new String[groups.size() + 1];
+    groupNames[0] = ALL;
+    groupPrefixes[0] = "";
+    for (int i = 0; i < groups.size(); ++i) {
+      groupNames[i + 1] = groups.get(i)[0];
+      groupPrefixes[i + 1] = groups.get(i)[1];
+    }
+    this.windowIds = new long[windowCount];
+    Arrays.fill(windowIds, -1);
+    this.sketches = new QuantileSketch[groupNames.length][metrics.length][windowCount];
+    this.latestWindowId = -1;
+    this.machineSlots = new MachineSlots();
+    this.sampleTimes = new double[16][];
+    this.memberships = new boolean[16][];
+  }
+
+  /**
+   * Create the store from the config, {windowSeconds: n, windows: n,
+   * relativeAccuracy: a, metrics: "m1,m2", groups: [{name: g, prefix: p}]}.
+   * The defaults are 60 windows of 60 seconds, 1% accuracy and all the
+   * metrics.
+   * 
+   * @param config
+   * @return
+   */
+  public static QuantileStore fromJson(JsonObject config) {
+    long windowSeconds = config.has("windowSeconds") ? config.get(
+        "windowSeconds").getAsLong() : 60;
+    int windowCount = config.has("windows") ? config.get("windows")
+        .getAsInt() : 60;
+    double relativeAccuracy = config.has("relativeAccuracy") ? config.get(
+        "relativeAccuracy").getAsDouble() : 0.01;
+    String[] metrics = MachineMetadata.METRIC_NAMES;
+    if (config.has("metrics")) {
+      metrics = config.get("metrics").getAsString().split("\\s*,\\s*");
+    }
+    List<String[]> groups = new ArrayList<String[]>();
+    if (config.has("groups")) {
+      for (JsonElement group : config.get("groups").getAsJsonArray()) {
+        JsonObject groupJson = group.getAsJsonObject();
+        groups.add(new String[] { groupJson.get("name").getAsString(),
+            groupJson.get("prefix").getAsString() });
+      }
+    }
+    return new QuantileStore(windowSeconds, windowCount, relativeAccuracy,
+        metrics, groups);
+  }
+
+  /**
+   * Add the metrics of the sample to the sketches of its window.
+   * 
+   * @param metadata
+   */
+  public synchronized void onSample(MachineMetadata metadata) {
+    long windowId = metadata.getTimestamp() / windowSeconds;
+    if (windowId <= latestWindowId - windowCount) {
+      return; // too old
+    }
+    latestWindowId = Math.max(latestWindowId, windowId);
+    int slot = (int) (windowId % windowCount);
+    if (windowIds[slot] != windowId) {
+      // the slot is reused for a new window
+      for (QuantileSketch[][] groupSketches : sketches) {
+        for (QuantileSketch[] metricSketches : groupSketches) {
+          if (metricSketches[slot] != null) {
+            metricSketches[slot].clear();
+          }
+        }
+      }
+      windowIds[slot] = windowId;
+    }
+    int machine = machineSlotOf(metadata);
+    long weight = weightOf(machine, metadata.getTimestampMillis());
+    if (weight == 0) {
+      return;
+    }
+    boolean[] membership = memberships[machine];
+    for (int g = 0; g < groupNames.length; ++g) {
+      if (!membership[g]) {
+        continue;
+      }
+      for (int m = 0; m < metrics.length; ++m) {
+        double value = metadata.getMetricValue(metrics[m]);
+        if (Double.isNaN(value)) {
+          continue;
+        }
+        QuantileSketch sketch = sketches[g][m][slot];
+        if (sketch == null) {
+          sketch = new QuantileSketch(relativeAccuracy);
+          sketches[g][m][slot] = sketch;
+        }
+        sketch.add(value, weight);
+      }
+    }
+  }
+
+  /**
+   * Get the slot of the machine, allocate one for a new machine and match it
+   * against the group prefixes.
+   * 
+   * @param metadata
+   * @return
+   */
+  private int machineSlotOf(MachineMetadata metadata) {
+    int machine = machineSlots.find(metadata);
+    if (machine >= 0) {
+      return machine;
+    }
+    machine = machineSlots.slotOf(metadata);
+    if (machine == sampleTimes.length) {
+      sampleTimes = Arrays.copyOf(sampleTimes, 2 * machine);
+      memberships = Arrays.copyOf(memberships, 2 * machine);
+    }
+    String machineIP = metadata.getMachineIP();
+    boolean[] membership = new boolean[groupNames.length];
+    for (int g = 0; g < groupNames.length; ++g) {
+      membership[g] = machineIP.startsWith(groupPrefixes[g]);
+    }
+    memberships[machine] = membership;
+    return machine;
+  }
+
+  /**
+   * The weight of a sample: the time since the previous sample of the
+   * machine in units of its usual interval, plus the fraction carried over.
+   * 
+   * @param machine
+   *          The slot of the machine.
+   * @param timeMillis
+   * @return The whole part, 0 if the sample is skipped.
+   */
+  private long weightOf(int machine, long timeMillis) {
+    double[] times = sampleTimes[machine];
+    if (times == null) {
+      sampleTimes[machine] = new double[] { timeMillis, 0, 0 };
+      return 1;
+    }
+    double elapsed = Math.min(timeMillis - times[0], MAX_INTERVAL_MILLIS);
+    if (elapsed <= 0) {
+      return 0; // a resent or duplicated sample
+    }
+    times[0] = timeMillis;
+    if (times[1] == 0) {
+      times[1] = elapsed;
+    } else {
+      times[1] += (elapsed - times[1])
+          * Math.min(1, elapsed / INTERVAL_DECAY_MILLIS);
+    }
+    times[2] += elapsed / times[1];
+    long weight = (long) (times[2] + 1e-9);
+    times[2] -= weight;
+    return weight;
+  }
+
+  /**
+   * Merge the sketches of the windows covering the last seconds, up to the
+   * latest sample.
+   * 
+   * @param group
+   * @param metric
+   * @param seconds
+   * @return The merged sketch, empty if nothing matches.
+   */
+  public synchronized QuantileSketch query(String group, String metric,
+      long seconds) {
+    QuantileSketch merged = new QuantileSketch(relativeAccuracy);
+    int g = indexOf(groupNames, group);
+    int metricIndex = MachineMetadata.indexOfMetric(metric);
+    int m = -1;
+    for (int i = 0; i < metrics.length; ++i) {
+      if (metrics[i] == metricIndex) {
+        m = i;
+      }
+    }
+    if (g < 0 || m < 0) {
+      return merged;
+    }
+    long windows = Math.min(windowCount, (seconds + windowSeconds - 1)
+        / windowSeconds);
+    for (int slot = 0; slot < windowCount; ++slot) {
+      if (windowIds[slot] > latestWindowId - windows
+          && sketches[g][m][slot] != null) {
+        merged.merge(sketches[g][m][slot]);
+      }
+    }
+    return merged;
+  }
+
+  private static int indexOf(String[] names, String name) {
+    for (int i = 0; i < names.length; ++i) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+}
@@ -0,0 +1,74 @@
+package sysmon.collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server, bound to the loopback interface, that serves the
+ * stats of the collector as plain text on /metrics, for the local scrapers.
+ * It uses the HTTP server of the JDK, with one thread.
+ * 
+ */
+public class StatsHttpServer {
+
+  private HttpServer server;
+
+  /**
+   * @param port
+   *          0 for any free port.
+   * @param text
+   *          Renders the stats on each request.
+   * @throws IOException
+   *           If the port cannot be bound.
+   */
+  public StatsHttpServer(int port, final Callable<String> text)
+      throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(
+        InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body;
+        int status = 200;
+        try {
+          body = text.call().getBytes("UTF-8");
+        } catch (Exception e) {
+          body = (e.toString() + "\n").getBytes("UTF-8");
+          status = 500;
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+            "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream os = exchange.getResponseBody();
+        try {
+          os.write(body);
+        } finally {
+          os.close();
+        }
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  /**
+   * @return The bound port.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+}
@@ -0,0 +1,191 @@
+package sysmon.collector.alert;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * AlertDefinition is an alert described in the config file: an EPL template
+ * with ${parameter} placeholders, the parameters, and the action taken by the
+ * listener when the statement produces events.
+ * 
+ * A simple threshold alert can be given as a rule instead of EPL, it is then
+ * evaluated by the FastThresholdEngine (see ThresholdRule for the attributes).
+ * 
+ */
+public class AlertDefinition {
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+  private String name;
+  private String eplTemplate;
+  private Map<String, String> parameters;
+  private Map<String, String> action;
+  private Map<String, String> rule;
+
+  public AlertDefinition(String name, String eplTemplate,
+      Map<String, String> parameters, Map<String, String> action) {
+    this.name = name;
+    this.eplTemplate = eplTemplate;
+    this.parameters = parameters;
+    this.action = action;
+  }
+
+  public AlertDefinition(String name, Map<String, String> parameters,
+      Map<String, String> rule) {
+    this.name = name;
+    this.parameters = parameters;
+    this.rule = rule;
+  }
+
+  /**
+   * Create the definition from the json generated by
+   * ConfigReader.getAlertsConfig().
+   * 
+   * @param alertJson
+   * @return
+   */
+  public static AlertDefinition fromJson(JsonObject alertJson) {
+    String name = alertJson.get("type").getAsString();
+    if (!alertJson.has("epl") && !alertJson.has("rule")) {
+      throw new IllegalArgumentException("Alert [" + name
+          + "] has neither epl nor rule.");
+    }
+    Map<String, String> parameters = new LinkedHashMap<String, String>();
+    if (alertJson.has("parameters")) {
+      for (Map.Entry<String, JsonElement> entry : alertJson.get("parameters")
+          .getAsJsonObject().entrySet()) {
+        parameters.put(entry.getKey(), entry.getValue().getAsJsonObject()
+            .get("value").getAsString());
+      }
+    }
+    if (alertJson.has("rule")) {
+      return new AlertDefinition(name, parameters, expandAttributes(
+          alertJson.get("rule").getAsJsonObject(), parameters));
+    }
+    String eplTemplate = alertJson.get("epl").getAsString();
+    Map<String, String> action = new LinkedHashMap<String, String>();
+    if (alertJson.has("action")) {
+      action = expandAttributes(alertJson.get("action").getAsJsonObject(),
+          parameters);
+    }
+    if (!action.containsKey("type")) {
+      action.put("type", "log");
+    }
+    return new AlertDefinition(name, eplTemplate, parameters, action);
+  }
+
+  /**
+   * Expand the parameters used in the attributes, other placeholders are left
+   * for the listener.
+   * 
+   * @param attributesJson
+   * @param parameters
+   * @return
+   */
+  private static Map<String, String> expandAttributes(
+      JsonObject attributesJson, Map<String, String> parameters) {
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, JsonElement> entry : attributesJson.entrySet()) {
+      attributes.put(entry.getKey(),
+          expand(entry.getValue().getAsString(), parameters, false));
+    }
+    return attributes;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public Map<String, String> getParameters() {
+    return parameters;
+  }
+
+  public Map<String, String> getAction() {
+    return action;
+  }
+
+  /**
+   * Whether the alert is a simple rule instead of EPL.
+   * 
+   * @return
+   */
+  public boolean isRule() {
+    return rule != null;
+  }
+
+  /**
+   * Compile the rule of the definition.
+   * 
+   * @return
+   */
+  public ThresholdRule getThresholdRule() {
+    return ThresholdRule.fromDefinition(name, rule);
+  }
+
+  /**
+   * Get the EPL with all the placeholders replaced by the parameter values.
+   * 
+   * @return
+   */
+  public String getEpl() {
+    return expand(eplTemplate, parameters);
+  }
+
+  /**
+   * The key of the listener, identical definitions share the same listener.
+   * 
+   * @return
+   */
+  public String getListenerKey() {
+    return getEpl() + "\n" + action;
+  }
+
+  /**
+   * Replace the ${name} placeholders in the template with the given values.
+   * 
+   * @param template
+   * @param values
+   * @return
+   */
+  public static String expand(String template, Map<String, String> values) {
+    return expand(template, values, true);
+  }
+
+  /**
+   * Replace the ${name} placeholders in the template with the given values.
+   * 
+   * @param template
+   * @param values
+   * @param strict
+   *          Whether a placeholder without value is an error, otherwise it is
+   *          left as it is.
+   * @return
+   */
+  private static String expand(String template, Map<String, String> values,
+      boolean strict) {
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    StringBuffer buffer = new StringBuffer();
+    while (matcher.find()) {
+      String value = values.get(matcher.group(1));
+      if (value == null && strict) {
+        throw new IllegalArgumentException("No value for placeholder ["
+            + matcher.group(1) + "].");
+      }
+      matcher.appendReplacement(buffer,
+          Matcher.quoteReplacement(value != null ? value : matcher.group()));
+    }
+    matcher.appendTail(buffer);
+    return buffer.toString().trim();
+  }
+
+  @Override
+  public String toString() {
+    return isRule() ? getThresholdRule().toString() : name + ": " + getEpl();
+  }
+
+}
@@ -0,0 +1,415 @@
+package sysmon.collector.alert;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sysmon.collector.alert.sink.AlertSink;
+import sysmon.collector.alert.sink.FileAlertSink;
+import sysmon.collector.alert.sink.JmsAlertSink;
+import sysmon.collector.alert.sink.LogAlertSink;
+import sysmon.collector.alert.sink.WebhookAlertSink;
+import sysmon.util.Out;
+import sysmon.util.ThreadFactories;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * AlertDispatcher is the output stage of the alerts. The listeners publish
+ * the alert events into a bounded queue without blocking (the events are
+ * dropped and counted when the queue is full), and a delivery thread passes
+ * them through:
+ * 
+ * dedup: per (alert, machine), a clear without a raise and a repeated raise
+ * are dropped; a repeated raise is delivered again as a reminder once the
+ * suppression window has passed.
+ * 
+ * flapping: a (alert, machine) changing state flapThreshold times within the
+ * flapping window gets a single "flapping" notification, and its changes are
+ * dropped until a change arrives after a quiet window.
+ * 
+ * grouping: the events arriving within the grouping window are grouped by
+ * alert and kind, so an alert raised on many machines is one notification.
+ * 
+ * The notifications are then delivered to every sink. New sinks set by
+ * configure() are handed to the delivery thread, which swaps them in and
+ * closes the old ones, so a sink is never closed while it delivers.
+ * 
+ */
+public class AlertDispatcher implements Runnable {
+
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+  // how long the delivery thread may leave new sinks waiting when idle
+  static final long SINK_SWAP_MILLIS = 1000;
+
+  private Out out;
+  private String brokerAddress;
+  private BlockingQueue<AlertEvent> queue;
+  private AtomicLong droppedCount;
+  private AtomicLong publishedCount;
+  private long suppressedCount;
+
+  private volatile long groupWindowMillis;
+  private volatile long suppressMillis;
+  private volatile long flapWindowMillis;
+  private volatile int flapThreshold;
+  private volatile List<AlertSink> sinks;
+  private Object sinkLock;
+  private List<AlertSink> pendingSinks; // guarded by sinkLock
+  private boolean started; // guarded by sinkLock
+
+  private Map<String, KeyState> states;
+
+  /**
+   * @param queueCapacity
+   * @param brokerAddress
+   *          The broker used by the jms sinks.
+   */
+  public AlertDispatcher(int queueCapacity, String brokerAddress) {
+    this.out = new Out();
+    this.brokerAddress = brokerAddress;
+    this.queue = new ArrayBlockingQueue<AlertEvent>(queueCapacity);
+    this.droppedCount = new AtomicLong();
+    this.publishedCount = new AtomicLong();
+    this.groupWindowMillis = 1000;
+    this.suppressMillis = 300 * 1000;
+    this.flapWindowMillis = 600 * 1000;
+    this.flapThreshold = 5;
+    this.sinks = new ArrayList<AlertSink>();
+    this.sinks.add(new LogAlertSink());
+    this.sinkLock = new Object();
+    this.states = new HashMap<String, KeyState>();
+  }
+
+  /**
+   * The delivered state of an (alert, machine).
+   * 
+   */
+  static class KeyState {
+    boolean alerting;
+    boolean flapping;
+    long lastDelivered;
+    ArrayDeque<Long> changeTimes = new ArrayDeque<Long>();
+  }
+
+  /**
+   * Create the dispatcher from the alert output config, {queueCapacity: n,
+   * ...}, see configure() for the rest.
+   * 
+   * @param outputConfig
+   *          The config, or null for the defaults.
+   * @param brokerAddress
+   * @return
+   */
+  public static AlertDispatcher fromJson(JsonObject outputConfig,
+      String brokerAddress) {
+    int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    if (outputConfig != null && outputConfig.has("queueCapacity")) {
+      queueCapacity = outputConfig.get("queueCapacity").getAsInt();
+    }
+    AlertDispatcher dispatcher = new AlertDispatcher(queueCapacity,
+        brokerAddress);
+    if (outputConfig != null) {
+      dispatcher.configure(outputConfig);
+    }
+    return dispatcher;
+  }
+
+  /**
+   * Apply the alert output config: {groupWindowMillis: n, suppressSeconds: n,
+   * flapWindowSeconds: n, flapThreshold: n, sinks: [{type: "log"}, {type:
+   * "file", path: p}, {type: "jms", topic: t}, {type: "webhook", url: u}]}.
+   * The missing settings are kept, the queue capacity only applies when the
+   * dispatcher is created.
+   * 
+   * @param outputConfig
+   */
+  public void configure(JsonObject outputConfig) {
+    if (outputConfig.has("groupWindowMillis")) {
+      groupWindowMillis = outputConfig.get("groupWindowMillis").getAsLong();
+    }
+    if (outputConfig.has("suppressSeconds")) {
+      suppressMillis = outputConfig.get("suppressSeconds").getAsLong() * 1000;
+    }
+    if (outputConfig.has("flapWindowSeconds")) {
+      flapWindowMillis = outputConfig.get("flapWindowSeconds").getAsLong() * 1000;
+    }
+    if (outputConfig.has("flapThreshold")) {
+      flapThreshold = outputConfig.get("flapThreshold").getAsInt();
+    }
+    if (outputConfig.has("sinks")) {
+      List<AlertSink> newSinks = new ArrayList<AlertSink>();
+      for (JsonElement sinkElement : outputConfig.get("sinks").getAsJsonArray()) {
+        try {
+          newSinks.add(createSink(sinkElement.getAsJsonObject()));
+        } catch (RuntimeException e) {
+          out.error("Skip alert sink " + sinkElement + ": " + e.getMessage());
+        }
+      }
+      setSinks(newSinks);
+    }
+  }
+
+  /**
+   * Replace the sinks. Once the delivery thread runs, the new sinks are
+   * handed to it, and it closes the old ones.
+   * 
+   * @param newSinks
+   */
+  void setSinks(List<AlertSink> newSinks) {
+    List<AlertSink> unused;
+    synchronized (sinkLock) {
+      if (started) {
+        // never used by the delivery thread if it did not take them yet
+        unused = pendingSinks;
+        pendingSinks = newSinks;
+      } else {
+        unused = sinks;
+        sinks = newSinks;
+      }
+    }
+    if (unused != null) {
+      for (AlertSink sink : unused) {
+        sink.close();
+      }
+    }
+  }
+
+  /**
+   * Swap in the sinks set by setSinks(), from the delivery thread.
+   */
+  private void swapSinks() {
+    List<AlertSink> newSinks;
+    synchronized (sinkLock) {
+      newSinks = pendingSinks;
+      pendingSinks = null;
+    }
+    if (newSinks != null) {
+      List<AlertSink> oldSinks = sinks;
+      sinks = newSinks;
+      for (AlertSink sink : oldSinks) {
+        sink.close();
+      }
+    }
+  }
+
+  private AlertSink createSink(JsonObject sinkJson) {
+    String type = sinkJson.get("type").getAsString();
+    if (type.equals("log")) {
+      return new LogAlertSink();
+    } else if (type.equals("file")) {
+      return new FileAlertSink(sinkJson.get("path").getAsString());
+    } else if (type.equals("jms")) {
+      String topic = sinkJson.has("topic") ? sinkJson.get("topic")
+          .getAsString() : "alert";
+      return new JmsAlertSink(brokerAddress, topic);
+    } else if (type.equals("webhook")) {
+      return new WebhookAlertSink(sinkJson.get("url").getAsString());
+    }
+    throw new IllegalArgumentException("Unknown sink type [" + type + "].");
+  }
+
+  /**
+   * Queue the event for delivery, never blocks.
+   * 
+   * @param event
+   * @return false if the queue is full and the event is dropped.
+   */
+  public boolean publish(AlertEvent event) {
+    publishedCount.incrementAndGet();
+    if (queue.offer(event)) {
+      return true;
+    }
+    droppedCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * The number of events waiting for delivery.
+   * 
+   * @return
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * The number of events published, including the dropped ones.
+   * 
+   * @return
+   */
+  public long getPublishedCount() {
+    return publishedCount.get();
+  }
+
+  /**
+   * The number of events dropped because the queue was full.
+   * 
+   * @return
+   */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  /**
+   * The number of events dropped by dedup, suppression and flapping.
+   * 
+   * @return
+   */
+  public synchronized long getSuppressedCount() {
+    return suppressedCount;
+  }
+
+  /**
+   * Start the delivery thread.
+   */
+  public void start() {
+    start(ThreadFactories.getDefault());
+  }
+
+  /**
+   * Start the delivery thread from the factory, see ThreadFactories.
+   * 
+   * @param threadFactory
+   */
+  public void start(ThreadFactory threadFactory) {
+    synchronized (sinkLock) {
+      started = true;
+    }
+    Thread deliveryThread = ThreadFactories.newThread(threadFactory, this,
+        "alert-dispatcher", true);
+    deliveryThread.start();
+  }
+
+  @Override
+  public void run() {
+    List<AlertEvent> batch = new ArrayList<AlertEvent>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        AlertEvent first = queue.poll(SINK_SWAP_MILLIS, TimeUnit.MILLISECONDS);
+        swapSinks();
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.currentTimeMillis() + groupWindowMillis;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+          AlertEvent event = queue.poll(remaining, TimeUnit.MILLISECONDS);
+          if (event == null) {
+            break;
+          }
+          batch.add(event);
+          queue.drainTo(batch);
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+      deliver(process(batch, System.currentTimeMillis()));
+      batch.clear();
+    }
+    swapSinks();
+    for (AlertSink sink : sinks) {
+      sink.close();
+    }
+  }
+
+  private void deliver(List<AlertNotification> notifications) {
+    List<AlertSink> currentSinks = sinks;
+    for (AlertNotification notification : notifications) {
+      for (AlertSink sink : currentSinks) {
+        try {
+          sink.deliver(notification);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Dedup, suppress and group a batch of events.
+   * 
+   * @param batch
+   * @param now
+   * @return The notifications to deliver.
+   */
+  synchronized List<AlertNotification> process(List<AlertEvent> batch,
+      long now) {
+    Map<String, AlertNotification> groups = new LinkedHashMap<String, AlertNotification>();
+    for (AlertEvent event : batch) {
+      String kind = filter(event, now);
+      if (kind == null) {
+        ++suppressedCount;
+        continue;
+      }
+      String groupKey = event.getAlertName() + "\u0000" + kind;
+      AlertNotification notification = groups.get(groupKey);
+      if (notification == null) {
+        notification = new AlertNotification(event.getAlertName(), kind);
+        groups.put(groupKey, notification);
+      }
+      notification.add(event);
+    }
+    return new ArrayList<AlertNotification>(groups.values());
+  }
+
+  /**
+   * Decide what to deliver for the event.
+   * 
+   * @param event
+   * @param now
+   * @return The notification kind, or null if the event is dropped.
+   */
+  private String filter(AlertEvent event, long now) {
+    String key = event.getAlertName() + "\u0000" + event.getMachineIP();
+    KeyState state = states.get(key);
+    if (state == null) {
+      state = new KeyState();
+      states.put(key, state);
+    }
+
+    if (event.isAlerting() == state.alerting) {
+      if (!event.isAlerting() || state.flapping
+          || now - state.lastDelivered < suppressMillis) {
+        return null;
+      }
+      state.lastDelivered = now;
+      return AlertNotification.RAISED; // reminder
+    }
+
+    state.alerting = event.isAlerting();
+    while (!state.changeTimes.isEmpty()
+        && now - state.changeTimes.peekFirst() >= flapWindowMillis) {
+      state.changeTimes.pollFirst();
+    }
+    state.changeTimes.addLast(now);
+    if (state.changeTimes.size() >= flapThreshold) {
+      if (state.flapping) {
+        return null;
+      }
+      state.flapping = true;
+      state.lastDelivered = now;
+      return AlertNotification.FLAPPING;
+    }
+    if (state.flapping && state.changeTimes.size() > 1) {
+      return null; // not quiet yet
+    }
+    state.flapping = false;
+    if (!state.alerting) {
+      return AlertNotification.CLEARED;
+    }
+    state.lastDelivered = now;
+    return AlertNotification.RAISED;
+  }
+
+}
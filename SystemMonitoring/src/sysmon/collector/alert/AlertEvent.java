@@ -0,0 +1,66 @@
+package sysmon.collector.alert;
+
+/**
+ * AlertEvent is an alert raised or cleared for a machine, as produced by the
+ * alert listeners and the FastThresholdEngine before it goes through the
+ * AlertDispatcher.
+ * 
+ */
+public class AlertEvent {
+
+  private String alertName;
+  private String machineIP;
+  private boolean alerting;
+  private String message;
+  private double value;
+  private long timestampMillis;
+
+  public AlertEvent(String alertName, String machineIP, boolean alerting,
+      String message, double value, long timestampMillis) {
+    this.alertName = alertName;
+    this.machineIP = machineIP;
+    this.alerting = alerting;
+    this.message = message;
+    this.value = value;
+    this.timestampMillis = timestampMillis;
+  }
+
+  public String getAlertName() {
+    return alertName;
+  }
+
+  /**
+   * @return the machine, or null if the alert is not about a single machine.
+   */
+  public String getMachineIP() {
+    return machineIP;
+  }
+
+  /**
+   * @return true if the alert is raised, false if it is cleared.
+   */
+  public boolean isAlerting() {
+    return alerting;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  /**
+   * @return the value that triggered the alert, NaN if unknown.
+   */
+  public double getValue() {
+    return value;
+  }
+
+  public long getTimestampMillis() {
+    return timestampMillis;
+  }
+
+  @Override
+  public String toString() {
+    return message;
+  }
+
+}
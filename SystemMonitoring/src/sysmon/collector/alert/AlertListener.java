@@ -0,0 +1,130 @@
+package sysmon.collector.alert;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import sysmon.util.Out;
+
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.UpdateListener;
+
+/**
+ * AlertListener performs the action of an alert definition for each event
+ * produced by the alert statement. The "log" action writes the message
+ * template with the ${property} placeholders replaced by the event
+ * properties; the "state-change" action is handled by
+ * StateChangeAlertListener.
+ * 
+ * The messages go to the AlertDispatcher if there is one, otherwise they are
+ * logged directly.
+ * 
+ */
+public class AlertListener implements UpdateListener {
+
+  private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{(\\w+)\\}");
+
+  protected Out out;
+  protected String alertName;
+  protected String messageTemplate;
+  protected String keyProperty;
+  protected AlertDispatcher dispatcher;
+
+  public AlertListener(AlertDefinition definition) {
+    this.out = new Out();
+    this.alertName = definition.getName();
+    String message = definition.getAction().get("message");
+    this.messageTemplate = message != null ? message : "Alert ["
+        + alertName + "] is triggered.";
+    this.keyProperty = definition.getAction().containsKey("key") ? definition
+        .getAction().get("key") : "machineIP";
+  }
+
+  public void setDispatcher(AlertDispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  /**
+   * Create the listener for the action type of the definition.
+   * 
+   * @param definition
+   * @param dispatcher
+   *          Where the messages go, null to log them.
+   * @return
+   */
+  public static AlertListener create(AlertDefinition definition,
+      AlertDispatcher dispatcher) {
+    String actionType = definition.getAction().get("type");
+    AlertListener listener;
+    if (actionType.equals("state-change")) {
+      listener = new StateChangeAlertListener(definition);
+    } else {
+      listener = new AlertListener(definition);
+    }
+    listener.setDispatcher(dispatcher);
+    return listener;
+  }
+
+  /**
+   * Fill the ${property} placeholders of the template with the properties of
+   * the event.
+   * 
+   * @param event
+   * @param template
+   * @return
+   */
+  protected String format(EventBean event, String template) {
+    Matcher matcher = PLACEHOLDER.matcher(template);
+    StringBuffer buffer = new StringBuffer("[" + alertName + "] ");
+    while (matcher.find()) {
+      matcher.appendReplacement(buffer,
+          Matcher.quoteReplacement(String.valueOf(event.get(matcher.group(1)))));
+    }
+    matcher.appendTail(buffer);
+    return buffer.toString();
+  }
+
+  /**
+   * Hand the message over to the dispatcher.
+   * 
+   * @param event
+   * @param alerting
+   * @param value
+   * @param message
+   */
+  protected void emit(EventBean event, boolean alerting, double value,
+      String message) {
+    if (dispatcher == null) {
+      out.println(message);
+      return;
+    }
+    Object key = getProperty(event, keyProperty);
+    dispatcher.publish(new AlertEvent(alertName, key == null ? null : key
+        .toString(), alerting, message, value, System.currentTimeMillis()));
+  }
+
+  /**
+   * Get the property of the event, null if the statement does not select it.
+   * 
+   * @param event
+   * @param property
+   * @return
+   */
+  protected static Object getProperty(EventBean event, String property) {
+    try {
+      return event.get(property);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void update(EventBean[] newEvents, EventBean[] oldEvents) {
+    if (newEvents == null) {
+      return;
+    }
+    for (EventBean event : newEvents) {
+      emit(event, true, Double.NaN, format(event, messageTemplate));
+    }
+  }
+
+}
@@ -0,0 +1,86 @@
+package sysmon.collector.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * AlertNotification is what the sinks deliver: the alert events of the same
+ * alert and kind that passed the AlertDispatcher within one grouping window,
+ * so that an alert raised on many machines is a single notification.
+ * 
+ */
+public class AlertNotification {
+
+  public static final String RAISED = "raised";
+  public static final String CLEARED = "cleared";
+  public static final String FLAPPING = "flapping";
+
+  private String alertName;
+  private String kind;
+  private List<AlertEvent> events;
+
+  public AlertNotification(String alertName, String kind) {
+    this.alertName = alertName;
+    this.kind = kind;
+    this.events = new ArrayList<AlertEvent>();
+  }
+
+  void add(AlertEvent event) {
+    events.add(event);
+  }
+
+  public String getAlertName() {
+    return alertName;
+  }
+
+  /**
+   * @return RAISED, CLEARED or FLAPPING.
+   */
+  public String getKind() {
+    return kind;
+  }
+
+  public List<AlertEvent> getEvents() {
+    return events;
+  }
+
+  public JsonObject getJson() {
+    JsonObject notificationJson = new JsonObject();
+    notificationJson.addProperty("alert", alertName);
+    notificationJson.addProperty("kind", kind);
+    JsonArray eventsJson = new JsonArray();
+    for (AlertEvent event : events) {
+      JsonObject eventJson = new JsonObject();
+      eventJson.addProperty("machineIP", event.getMachineIP());
+      eventJson.addProperty("message", event.getMessage());
+      if (!Double.isNaN(event.getValue())) {
+        eventJson.addProperty("value", event.getValue());
+      }
+      eventJson.addProperty("timestamp", event.getTimestampMillis());
+      eventsJson.add(eventJson);
+    }
+    notificationJson.add("events", eventsJson);
+    return notificationJson;
+  }
+
+  /**
+   * A single event is shown as its message, a group as a summary line
+   * followed by the messages.
+   */
+  @Override
+  public String toString() {
+    if (events.size() == 1 && !kind.equals(FLAPPING)) {
+      return events.get(0).getMessage();
+    }
+    StringBuilder builder = new StringBuilder("[" + alertName + "] " + kind
+        + " on " + events.size() + " machine(s)");
+    for (AlertEvent event : events) {
+      builder.append("\n\t").append(event.getMessage());
+    }
+    return builder.toString();
+  }
+
+}
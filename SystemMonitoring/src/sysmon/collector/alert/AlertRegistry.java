@@ -0,0 +1,201 @@
+package sysmon.collector.alert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.util.Out;
+
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPStatement;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * AlertRegistry keeps the alert statements of the CEP engine and the rules of
+ * the FastThresholdEngine in sync with the alert definitions. Simple rules are
+ * evaluated natively, only EPL alerts go to the CEP engine.
+ * 
+ * Each distinct EPL is compiled once, and the definitions with the same EPL
+ * share the statement. When a new configuration is applied, the statements
+ * whose EPL is unchanged are kept as they are (so their windows are not
+ * dropped), only the listeners are updated; the statements that are no longer
+ * defined are destroyed.
+ * 
+ */
+public class AlertRegistry {
+
+  private Out out;
+  private EPServiceProvider cepService;
+  private Map<String, RegisteredStatement> statements;
+  private FastThresholdEngine fastEngine;
+  private AlertDispatcher dispatcher;
+
+  /**
+   * @param cepService
+   * @param dispatcher
+   *          Where the alerts go, null to log them directly.
+   */
+  public AlertRegistry(EPServiceProvider cepService,
+      final AlertDispatcher dispatcher) {
+    this.out = new Out();
+    this.cepService = cepService;
+    this.statements = new HashMap<String, RegisteredStatement>();
+    this.fastEngine = new FastThresholdEngine();
+    this.dispatcher = dispatcher;
+    if (dispatcher != null) {
+      fastEngine.setStateChangeHandler(new FastThresholdEngine.StateChangeHandler() {
+        @Override
+        public void onStateChange(ThresholdRule rule, String machineIP,
+            boolean alerting, double value, long timestampMillis) {
+          dispatcher.publish(new AlertEvent(rule.getName(), machineIP,
+              alerting, "[" + rule.getName() + "] "
+                  + rule.formatMessage(alerting, machineIP, value), value,
+              timestampMillis));
+        }
+      });
+    }
+  }
+
+  public FastThresholdEngine getFastEngine() {
+    return fastEngine;
+  }
+
+  /**
+   * A compiled statement and the listeners attached to it.
+   * 
+   */
+  static class RegisteredStatement {
+    EPStatement statement;
+    Map<String, AlertListener> listeners;
+
+    RegisteredStatement(EPStatement statement) {
+      this.statement = statement;
+      this.listeners = new HashMap<String, AlertListener>();
+    }
+  }
+
+  /**
+   * Apply the alerts configuration, replacing the previous one.
+   * 
+   * @param alertsConfig
+   */
+  public synchronized void apply(JsonArray alertsConfig) {
+    Map<String, Map<String, AlertDefinition>> wanted = new HashMap<String, Map<String, AlertDefinition>>();
+    List<ThresholdRule> rules = new ArrayList<ThresholdRule>();
+    for (JsonElement alert : alertsConfig) {
+      try {
+        AlertDefinition definition = AlertDefinition.fromJson(alert
+            .getAsJsonObject());
+        if (definition.isRule()) {
+          rules.add(definition.getThresholdRule());
+          out.println("Add alert rule [" + definition + "].");
+          continue;
+        }
+        String epl = definition.getEpl();
+        Map<String, AlertDefinition> definitions = wanted.get(epl);
+        if (definitions == null) {
+          definitions = new HashMap<String, AlertDefinition>();
+          wanted.put(epl, definitions);
+        }
+        definitions.put(definition.getListenerKey(), definition);
+      } catch (RuntimeException e) {
+        out.error("Skip alert " + alert + ": " + e.getMessage());
+      }
+    }
+
+    fastEngine.setRules(rules);
+
+    // destroy the statements no longer defined
+    for (String epl : statements.keySet().toArray(new String[0])) {
+      if (!wanted.containsKey(epl)) {
+        statements.remove(epl).statement.destroy();
+        out.println("Remove alert statement [" + epl + "].");
+      }
+    }
+
+    for (Map.Entry<String, Map<String, AlertDefinition>> entry : wanted
+        .entrySet()) {
+      String epl = entry.getKey();
+      RegisteredStatement registered = statements.get(epl);
+      if (registered == null) {
+        try {
+          registered = new RegisteredStatement(cepService.getEPAdministrator()
+              .createEPL(epl));
+        } catch (RuntimeException e) {
+          out.error("Cannot compile alert statement [" + epl + "]: "
+              + e.getMessage());
+          continue;
+        }
+        statements.put(epl, registered);
+      }
+      updateListeners(registered, entry.getValue());
+    }
+  }
+
+  /**
+   * Attach the listeners of the wanted definitions, keeping the ones that are
+   * unchanged.
+   * 
+   * @param registered
+   * @param definitions
+   */
+  private void updateListeners(RegisteredStatement registered,
+      Map<String, AlertDefinition> definitions) {
+    if (registered.listeners.keySet().equals(definitions.keySet())) {
+      return;
+    }
+    registered.statement.removeAllListeners();
+    Map<String, AlertListener> listeners = new HashMap<String, AlertListener>();
+    for (Map.Entry<String, AlertDefinition> entry : definitions.entrySet()) {
+      AlertListener listener = registered.listeners.get(entry.getKey());
+      if (listener == null) {
+        listener = AlertListener.create(entry.getValue(), dispatcher);
+        out.println("Add alert [" + entry.getValue() + "].");
+      }
+      listeners.put(entry.getKey(), listener);
+      registered.statement.addListener(listener);
+    }
+    registered.listeners = listeners;
+  }
+
+  /**
+   * Evaluate the native rules against the sample.
+   * 
+   * @param metadata
+   */
+  public void evaluateRules(MachineMetadata metadata) {
+    fastEngine.onSample(metadata);
+  }
+
+  /**
+   * The sampling hints for the monitors, [{metric: m, threshold: t}], one per
+   * native rule: an adaptive monitor samples faster near these thresholds.
+   * 
+   * @return
+   */
+  public JsonArray getSamplingHints() {
+    JsonArray hints = new JsonArray();
+    for (ThresholdRule rule : fastEngine.getRules()) {
+      JsonObject hint = new JsonObject();
+      hint.addProperty("metric",
+          MachineMetadata.METRIC_NAMES[rule.getMetricIndex()]);
+      hint.addProperty("threshold", rule.getThreshold().getValue());
+      hints.add(hint);
+    }
+    return hints;
+  }
+
+  /**
+   * The number of compiled statements.
+   * 
+   * @return
+   */
+  public synchronized int getStatementCount() {
+    return statements.size();
+  }
+
+}
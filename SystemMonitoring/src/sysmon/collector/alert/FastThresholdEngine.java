@@ -0,0 +1,380 @@
+package sysmon.collector.alert;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sysmon.common.MachineSlots;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.util.Out;
+
+/**
+ * FastThresholdEngine evaluates the ThresholdRules without the CEP engine.
+ * 
+ * Each machine gets a slot (see MachineSlots), and each rule keeps its per
+ * machine window in primitive arrays indexed by slot: a ring of (time, value)
+ * samples, the running sum for avg, and a monotonic deque of ring positions
+ * for min/max.
+ * Each sample updates every rule in a single pass with amortized O(1) work
+ * and no allocation, but when a ring is allocated or grows.
+ * 
+ * The avg is weighted by time: each sample stands for the time since the
+ * previous sample of the machine, so an adaptive monitor that samples ten
+ * times faster during an incident does not weigh the incident ten times
+ * more. With a fixed interval, it is the plain mean.
+ * 
+ * The ring of a machine starts with windowCapacity samples, and doubles when
+ * the machine fills it within the window (e.g. a 30 s window sampled every
+ * 100 ms), up to maxWindowCapacity; past that, the oldest samples are
+ * evicted early. Each ring grows on its own, so a machine sampling fast does
+ * not grow the rings of the other machines.
+ * 
+ */
+public class FastThresholdEngine {
+
+  public static final int DEFAULT_WINDOW_CAPACITY = 128;
+  public static final int DEFAULT_MAX_WINDOW_CAPACITY = 8192;
+
+  // the weight of the first sample of a machine, in milliseconds
+  private static final long FIRST_WEIGHT_MILLIS = 1000;
+
+  /**
+   * Receive the alerts raised and cleared by the engine.
+   * 
+   */
+  public interface StateChangeHandler {
+    void onStateChange(ThresholdRule rule, String machineIP, boolean alerting,
+        double value, long timestampMillis);
+  }
+
+  private Out out;
+  private int windowCapacity;
+  private int maxWindowCapacity;
+  private MachineSlots slots;
+  private int slotCapacity;
+  private RuleState[] ruleStates;
+  private StateChangeHandler handler;
+
+  public FastThresholdEngine() {
+    this(DEFAULT_WINDOW_CAPACITY);
+  }
+
+  public FastThresholdEngine(int windowCapacity) {
+    this(windowCapacity, Math.max(windowCapacity,
+        DEFAULT_MAX_WINDOW_CAPACITY));
+  }
+
+  /**
+   * @param windowCapacity
+   *          The initial number of samples of a window per machine.
+   * @param maxWindowCapacity
+   *          The number of samples of a window per machine the rings grow to.
+   */
+  public FastThresholdEngine(int windowCapacity, int maxWindowCapacity) {
+    this.out = new Out();
+    this.windowCapacity = windowCapacity;
+    this.maxWindowCapacity = Math.max(windowCapacity, maxWindowCapacity);
+    this.slots = new MachineSlots();
+    this.slotCapacity = 16;
+    this.ruleStates = new RuleState[0];
+    this.handler = new StateChangeHandler() {
+      @Override
+      public void onStateChange(ThresholdRule rule, String machineIP,
+          boolean alerting, double value, long timestampMillis) {
+        out.println("[" + rule.getName() + "] "
+            + rule.formatMessage(alerting, machineIP, value));
+      }
+    };
+  }
+
+  public synchronized void setStateChangeHandler(StateChangeHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * The window state of one rule for all the machines. Each machine has its
+   * own ring, allocated on its first sample, which grows on its own.
+   * 
+   */
+  class RuleState {
+    ThresholdRule rule;
+    double[][] values;
+    long[][] times;
+    long[][] weights;
+    int[][] deque;
+    int[] head;
+    int[] size;
+    int[] dequeHead;
+    int[] dequeSize;
+    double[] sum;
+    long[] weightSum;
+    long[] lastTime;
+    boolean[] alerting;
+
+    RuleState(ThresholdRule rule) {
+      this.rule = rule;
+      this.values = new double[slotCapacity][];
+      this.times = new long[slotCapacity][];
+      this.weights = new long[slotCapacity][];
+      this.deque = new int[slotCapacity][];
+      this.head = new int[slotCapacity];
+      this.size = new int[slotCapacity];
+      this.dequeHead = new int[slotCapacity];
+      this.dequeSize = new int[slotCapacity];
+      this.sum = new double[slotCapacity];
+      this.weightSum = new long[slotCapacity];
+      this.lastTime = new long[slotCapacity];
+      this.alerting = new boolean[slotCapacity];
+    }
+
+    void grow(int newSlotCapacity) {
+      values = Arrays.copyOf(values, newSlotCapacity);
+      times = Arrays.copyOf(times, newSlotCapacity);
+      weights = Arrays.copyOf(weights, newSlotCapacity);
+      deque = Arrays.copyOf(deque, newSlotCapacity);
+      head = Arrays.copyOf(head, newSlotCapacity);
+      size = Arrays.copyOf(size, newSlotCapacity);
+      dequeHead = Arrays.copyOf(dequeHead, newSlotCapacity);
+      dequeSize = Arrays.copyOf(dequeSize, newSlotCapacity);
+      sum = Arrays.copyOf(sum, newSlotCapacity);
+      weightSum = Arrays.copyOf(weightSum, newSlotCapacity);
+      lastTime = Arrays.copyOf(lastTime, newSlotCapacity);
+      alerting = Arrays.copyOf(alerting, newSlotCapacity);
+    }
+
+    /**
+     * The capacity of the ring of the machine, 0 before its first sample.
+     * 
+     * @param slot
+     * @return
+     */
+    int capacityOf(int slot) {
+      return values[slot] == null ? 0 : values[slot].length;
+    }
+
+    /**
+     * Allocate the ring of the machine, or double it, copied to the start of
+     * the new ring.
+     * 
+     * @param slot
+     */
+    void growWindow(int slot) {
+      int capacity = capacityOf(slot);
+      int newCapacity = capacity == 0 ? windowCapacity : Math.min(
+          2 * capacity, maxWindowCapacity);
+      double[] newValues = new double[newCapacity];
+      long[] newTimes = new long[newCapacity];
+      long[] newWeights = new long[newCapacity];
+      int[] newDeque = new int[newCapacity];
+      for (int i = 0; i < size[slot]; ++i) {
+        int from = (head[slot] + i) % capacity;
+        newValues[i] = values[slot][from];
+        newTimes[i] = times[slot][from];
+        newWeights[i] = weights[slot][from];
+      }
+      for (int i = 0; i < dequeSize[slot]; ++i) {
+        int position = deque[slot][(dequeHead[slot] + i) % capacity];
+        newDeque[i] = (position - head[slot] + capacity) % capacity;
+      }
+      head[slot] = 0;
+      dequeHead[slot] = 0;
+      values[slot] = newValues;
+      times[slot] = newTimes;
+      weights[slot] = newWeights;
+      deque[slot] = newDeque;
+    }
+  }
+
+  /**
+   * Replace the rules. The window and alert state of the rules that evaluate
+   * the same way is kept.
+   * 
+   * @param rules
+   */
+  public synchronized void setRules(List<ThresholdRule> rules) {
+    Map<String, RuleState> previous = new HashMap<String, RuleState>();
+    for (RuleState state : ruleStates) {
+      previous.put(state.rule.getKey(), state);
+    }
+    RuleState[] newStates = new RuleState[rules.size()];
+    for (int i = 0; i < rules.size(); ++i) {
+      RuleState state = previous.get(rules.get(i).getKey());
+      if (state == null) {
+        state = new RuleState(rules.get(i));
+      }
+      state.rule = rules.get(i); // the messages may have changed
+      newStates[i] = state;
+    }
+    this.ruleStates = newStates;
+  }
+
+  /**
+   * @param ruleIndex
+   * @param machineId
+   * @param machineIP
+   * @return The capacity of the ring of the machine for the rule, 0 if none.
+   */
+  synchronized int getWindowCapacity(int ruleIndex, int machineId,
+      String machineIP) {
+    int slot = slots.find(machineId, machineIP);
+    return slot < 0 ? 0 : ruleStates[ruleIndex].capacityOf(slot);
+  }
+
+  public synchronized int getRuleCount() {
+    return ruleStates.length;
+  }
+
+  /**
+   * @return The rules, in the order they were set.
+   */
+  public synchronized List<ThresholdRule> getRules() {
+    List<ThresholdRule> rules = new ArrayList<ThresholdRule>();
+    for (RuleState state : ruleStates) {
+      rules.add(state.rule);
+    }
+    return rules;
+  }
+
+  /**
+   * Get the slot of the machine, allocate one for a new machine.
+   * 
+   * @param metadata
+   * @return
+   */
+  private int slotOf(MachineMetadata metadata) {
+    int slot = slots.find(metadata);
+    if (slot >= 0) {
+      return slot;
+    }
+    slot = slots.slotOf(metadata);
+    if (slot == slotCapacity) {
+      slotCapacity *= 2;
+      for (RuleState state : ruleStates) {
+        state.grow(slotCapacity);
+      }
+    }
+    return slot;
+  }
+
+  /**
+   * Evaluate all the rules against the sample.
+   * 
+   * @param metadata
+   */
+  public synchronized void onSample(MachineMetadata metadata) {
+    if (ruleStates.length == 0) {
+      return;
+    }
+    String machineIP = metadata.getMachineIP();
+    int slot = slotOf(metadata);
+    long time = metadata.getTimestampMillis();
+    for (RuleState state : ruleStates) {
+      double value = metadata.getMetricValue(state.rule.getMetricIndex());
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      update(state, slot, machineIP, time, value);
+    }
+  }
+
+  private void update(RuleState state, int slot, String machineIP, long time,
+      double value) {
+    ThresholdRule rule = state.rule;
+    long windowStart = time - rule.getWindowMillis();
+    if (state.values[slot] == null) {
+      state.growWindow(slot);
+    } else if (state.size[slot] == state.capacityOf(slot)
+        && state.capacityOf(slot) < maxWindowCapacity
+        && state.times[slot][state.head[slot]] > windowStart) {
+      state.growWindow(slot); // the full ring is all within the window
+    }
+    double[] values = state.values[slot];
+    long[] times = state.times[slot];
+    long[] weights = state.weights[slot];
+    int[] deque = state.deque[slot];
+    int capacity = values.length;
+    int head = state.head[slot];
+    int size = state.size[slot];
+    int dequeHead = state.dequeHead[slot];
+    int dequeSize = state.dequeSize[slot];
+    double sum = state.sum[slot];
+    long weightSum = state.weightSum[slot];
+
+    // evict the expired samples, and the oldest one if the ring is full
+    while (size > 0 && (size == capacity || times[head] <= windowStart)) {
+      sum -= values[head] * weights[head];
+      weightSum -= weights[head];
+      if (dequeSize > 0 && deque[dequeHead] == head) {
+        dequeHead = (dequeHead + 1) % capacity;
+        --dequeSize;
+      }
+      head = (head + 1) % capacity;
+      --size;
+    }
+    if (size == 0) {
+      sum = 0; // avoid the drift of the running sum
+      weightSum = 0;
+    }
+
+    // the sample stands for the time since the previous one
+    long lastTime = state.lastTime[slot];
+    long weight = lastTime == 0 ? FIRST_WEIGHT_MILLIS : Math.max(1,
+        Math.min(time - lastTime, rule.getWindowMillis()));
+    state.lastTime[slot] = time;
+
+    int position = (head + size) % capacity;
+    values[position] = value;
+    times[position] = time;
+    weights[position] = weight;
+    sum += value * weight;
+    weightSum += weight;
+    ++size;
+
+    int aggregate = rule.getAggregate();
+    if (aggregate == ThresholdRule.MIN || aggregate == ThresholdRule.MAX) {
+      boolean isMin = aggregate == ThresholdRule.MIN;
+      while (dequeSize > 0) {
+        double back = values[deque[(dequeHead + dequeSize - 1) % capacity]];
+        if (isMin ? back >= value : back <= value) {
+          --dequeSize;
+        } else {
+          break;
+        }
+      }
+      deque[(dequeHead + dequeSize) % capacity] = position;
+      ++dequeSize;
+    }
+
+    state.head[slot] = head;
+    state.size[slot] = size;
+    state.dequeHead[slot] = dequeHead;
+    state.dequeSize[slot] = dequeSize;
+    state.sum[slot] = sum;
+    state.weightSum[slot] = weightSum;
+
+    double aggregated;
+    switch (aggregate) {
+    case ThresholdRule.AVG:
+      aggregated = sum / weightSum;
+      break;
+    case ThresholdRule.LAST:
+      aggregated = value;
+      break;
+    default:
+      aggregated = values[deque[dequeHead]];
+    }
+
+    if (!state.alerting[slot]) {
+      if (rule.getThreshold().isBreached(aggregated)) {
+        state.alerting[slot] = true;
+        handler.onStateChange(rule, machineIP, true, aggregated, time);
+      }
+    } else if (rule.getClearThreshold().isBreached(aggregated)) {
+      state.alerting[slot] = false;
+      handler.onStateChange(rule, machineIP, false, aggregated, time);
+    }
+  }
+
+}
@@ -0,0 +1,65 @@
+package sysmon.collector.alert;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.espertech.esper.client.EventBean;
+
+/**
+ * StateChangeAlertListener only reports when a machine enters or leaves the
+ * alert state, instead of reporting every window update.
+ * 
+ * Action attributes: "value" is the property compared with the threshold
+ * (default "avg"), "comparator" and "threshold" define the alert state, "key"
+ * is the property identifying the machine (default "machineIP"), "message"
+ * and "clearMessage" are written when the alert is raised and cleared.
+ * 
+ * The engine calls the listener from the thread sending the events, so the
+ * state is not synchronized.
+ * 
+ */
+public class StateChangeAlertListener extends AlertListener {
+
+  private String valueProperty;
+  private Threshold threshold;
+  private String clearMessage;
+  private Map<Object, Boolean> alertStates;
+
+  public StateChangeAlertListener(AlertDefinition definition) {
+    super(definition);
+    Map<String, String> action = definition.getAction();
+    this.valueProperty = action.containsKey("value") ? action.get("value")
+        : "avg";
+    if (!action.containsKey("comparator") || !action.containsKey("threshold")) {
+      throw new IllegalArgumentException("Alert [" + alertName
+          + "] needs comparator and threshold for state-change action.");
+    }
+    this.threshold = new Threshold(action.get("comparator"),
+        Double.parseDouble(action.get("threshold")));
+    this.clearMessage = action.containsKey("clearMessage") ? action
+        .get("clearMessage") : "Machine [${" + keyProperty + "}] recovered.";
+    this.alertStates = new HashMap<Object, Boolean>();
+  }
+
+  @Override
+  public void update(EventBean[] newEvents, EventBean[] oldEvents) {
+    if (newEvents == null) {
+      return;
+    }
+    for (EventBean event : newEvents) {
+      Object value = event.get(valueProperty);
+      if (!(value instanceof Number)) {
+        continue;
+      }
+      double doubleValue = ((Number) value).doubleValue();
+      boolean breached = threshold.isBreached(doubleValue);
+      Object key = event.get(keyProperty);
+      Boolean previous = alertStates.put(key, breached);
+      if (previous == null ? breached : previous.booleanValue() != breached) {
+        emit(event, breached, doubleValue,
+            format(event, breached ? messageTemplate : clearMessage));
+      }
+    }
+  }
+
+}
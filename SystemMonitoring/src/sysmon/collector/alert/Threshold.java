@@ -0,0 +1,76 @@
+package sysmon.collector.alert;
+
+/**
+ * Threshold is a comparison "value comparator threshold", e.g. "< 0.2".
+ * 
+ */
+public class Threshold {
+
+  public static final int LESS = 0;
+  public static final int LESS_OR_EQUAL = 1;
+  public static final int GREATER = 2;
+  public static final int GREATER_OR_EQUAL = 3;
+
+  private final int comparator;
+  private final double value;
+
+  public Threshold(String comparator, double value) {
+    this.comparator = parseComparator(comparator);
+    this.value = value;
+  }
+
+  /**
+   * Parse "<", "<=", ">", ">=" (or "lt", "le", "gt", "ge", which are easier to
+   * write in xml attributes).
+   * 
+   * @param comparator
+   * @return
+   */
+  public static int parseComparator(String comparator) {
+    if (comparator.equals("<") || comparator.equals("lt")) {
+      return LESS;
+    } else if (comparator.equals("<=") || comparator.equals("le")) {
+      return LESS_OR_EQUAL;
+    } else if (comparator.equals(">") || comparator.equals("gt")) {
+      return GREATER;
+    } else if (comparator.equals(">=") || comparator.equals("ge")) {
+      return GREATER_OR_EQUAL;
+    }
+    throw new IllegalArgumentException("Unknown comparator [" + comparator
+        + "].");
+  }
+
+  public int getComparator() {
+    return comparator;
+  }
+
+  public double getValue() {
+    return value;
+  }
+
+  /**
+   * Whether the given value breaches the threshold. NaN never does.
+   * 
+   * @param current
+   * @return
+   */
+  public boolean isBreached(double current) {
+    switch (comparator) {
+    case LESS:
+      return current < value;
+    case LESS_OR_EQUAL:
+      return current <= value;
+    case GREATER:
+      return current > value;
+    default:
+      return current >= value;
+    }
+  }
+
+  @Override
+  public String toString() {
+    String[] symbols = { "<", "<=", ">", ">=" };
+    return symbols[comparator] + " " + value;
+  }
+
+}
@@ -0,0 +1,179 @@
+package sysmon.collector.alert;
+
+import java.util.Map;
+
+import sysmon.common.metadata.MachineMetadata;
+
+/**
+ * ThresholdRule is a simple alert rule "aggregate(metric) over the last window
+ * seconds comparator threshold", evaluated by FastThresholdEngine instead of
+ * the CEP engine.
+ * 
+ * The alert is raised when the threshold is breached, and cleared when the
+ * aggregate is back on the other side of the threshold by more than the
+ * hysteresis.
+ * 
+ */
+public class ThresholdRule {
+
+  public static final int AVG = 0;
+  public static final int MIN = 1;
+  public static final int MAX = 2;
+  public static final int LAST = 3;
+
+  private String name;
+  private int metricIndex;
+  private int aggregate;
+  private long windowMillis;
+  private Threshold threshold;
+  private Threshold clearThreshold;
+  private String message;
+  private String clearMessage;
+
+  public ThresholdRule(String name, String metric, String aggregate,
+      long windowSeconds, String comparator, double threshold,
+      double hysteresis) {
+    this.name = name;
+    this.metricIndex = MachineMetadata.indexOfMetric(metric);
+    if (metricIndex < 0) {
+      throw new IllegalArgumentException("Unknown metric [" + metric + "].");
+    }
+    this.aggregate = parseAggregate(aggregate);
+    this.windowMillis = windowSeconds * 1000;
+    this.threshold = new Threshold(comparator, threshold);
+    // cleared when the opposite comparison holds with the hysteresis margin
+    switch (this.threshold.getComparator()) {
+    case Threshold.LESS:
+      this.clearThreshold = new Threshold(">=", threshold + hysteresis);
+      break;
+    case Threshold.LESS_OR_EQUAL:
+      this.clearThreshold = new Threshold(">", threshold + hysteresis);
+      break;
+    case Threshold.GREATER:
+      this.clearThreshold = new Threshold("<=", threshold - hysteresis);
+      break;
+    default:
+      this.clearThreshold = new Threshold("<", threshold - hysteresis);
+    }
+    this.message = "Machine [${machineIP}], " + this.toString() + ", value: ${value}";
+    this.clearMessage = "Machine [${machineIP}], " + name + " recovered, value: ${value}";
+  }
+
+  /**
+   * Create the rule from the "rule" attributes of an alert definition:
+   * metric, aggregate (default avg), window (seconds), comparator, threshold,
+   * hysteresis (default 0), message and clearMessage.
+   * 
+   * @param name
+   * @param rule
+   * @return
+   */
+  public static ThresholdRule fromDefinition(String name,
+      Map<String, String> rule) {
+    String[] required = { "metric", "window", "comparator", "threshold" };
+    for (String attribute : required) {
+      if (!rule.containsKey(attribute)) {
+        throw new IllegalArgumentException("Rule of alert [" + name
+            + "] has no " + attribute + ".");
+      }
+    }
+    ThresholdRule thresholdRule = new ThresholdRule(name, rule.get("metric"),
+        rule.containsKey("aggregate") ? rule.get("aggregate") : "avg",
+        Long.parseLong(rule.get("window")), rule.get("comparator"),
+        Double.parseDouble(rule.get("threshold")),
+        rule.containsKey("hysteresis") ? Double.parseDouble(rule
+            .get("hysteresis")) : 0);
+    if (rule.containsKey("message")) {
+      thresholdRule.message = rule.get("message");
+    }
+    if (rule.containsKey("clearMessage")) {
+      thresholdRule.clearMessage = rule.get("clearMessage");
+    }
+    return thresholdRule;
+  }
+
+  private static int parseAggregate(String aggregate) {
+    if (aggregate.equals("avg")) {
+      return AVG;
+    } else if (aggregate.equals("min")) {
+      return MIN;
+    } else if (aggregate.equals("max")) {
+      return MAX;
+    } else if (aggregate.equals("last")) {
+      return LAST;
+    }
+    throw new IllegalArgumentException("Unknown aggregate [" + aggregate
+        + "].");
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getMetricIndex() {
+    return metricIndex;
+  }
+
+  public int getAggregate() {
+    return aggregate;
+  }
+
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+
+  public Threshold getThreshold() {
+    return threshold;
+  }
+
+  public Threshold getClearThreshold() {
+    return clearThreshold;
+  }
+
+  /**
+   * The message written when the alert is raised, ${machineIP} and ${value}
+   * are replaced.
+   * 
+   * @return
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  public String getClearMessage() {
+    return clearMessage;
+  }
+
+  /**
+   * Fill the ${machineIP} and ${value} placeholders of the message or the
+   * clear message.
+   * 
+   * @param alerting
+   * @param machineIP
+   * @param value
+   * @return
+   */
+  public String formatMessage(boolean alerting, String machineIP, double value) {
+    return (alerting ? message : clearMessage).replace("${machineIP}",
+        machineIP).replace("${value}", String.valueOf(value));
+  }
+
+  /**
+   * Rules with the same key evaluate the same way, so their state can be kept
+   * when the rules are reloaded.
+   * 
+   * @return
+   */
+  public String getKey() {
+    return toString() + ", clear " + clearThreshold;
+  }
+
+  @Override
+  public String toString() {
+    String[] aggregates = { "avg", "min", "max", "last" };
+    return name + ": " + aggregates[aggregate] + "("
+        + MachineMetadata.METRIC_NAMES[metricIndex] + ") over "
+        + (windowMillis / 1000) + "s " + threshold;
+  }
+
+}
@@ -0,0 +1,25 @@
+package sysmon.collector.alert.sink;
+
+import sysmon.collector.alert.AlertNotification;
+
+/**
+ * AlertSink delivers the alert notifications somewhere. The sinks are called
+ * from the delivery thread of the AlertDispatcher only, so they do not need to
+ * be thread safe, and a slow sink does not block the alert evaluation.
+ * 
+ */
+public interface AlertSink {
+
+  /**
+   * Deliver the notification. Failures are reported by the sink itself.
+   * 
+   * @param notification
+   */
+  void deliver(AlertNotification notification);
+
+  /**
+   * Release the resources of the sink.
+   */
+  void close();
+
+}
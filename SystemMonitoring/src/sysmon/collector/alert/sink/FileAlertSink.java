@@ -0,0 +1,53 @@
+package sysmon.collector.alert.sink;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+
+import sysmon.collector.alert.AlertNotification;
+import sysmon.util.Out;
+
+/**
+ * Append the notifications to a local file, one json object per line.
+ * 
+ */
+public class FileAlertSink implements AlertSink {
+
+  private Out out;
+  private String path;
+  private BufferedWriter writer;
+
+  public FileAlertSink(String path) {
+    this.out = new Out();
+    this.path = path;
+  }
+
+  @Override
+  public void deliver(AlertNotification notification) {
+    try {
+      if (writer == null) {
+        writer = new BufferedWriter(new FileWriter(path, true));
+      }
+      writer.write(new Date() + "\t" + notification.getJson());
+      writer.newLine();
+      writer.flush();
+    } catch (IOException e) {
+      out.error("Cannot write alert to [" + path + "]: " + e.getMessage());
+      close();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      writer = null;
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+package sysmon.collector.alert.sink;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import sysmon.collector.alert.AlertNotification;
+import sysmon.util.Out;
+
+/**
+ * Publish the notifications as json text messages to a topic, so that
+ * subscribers can receive the alerts. The sink has its own connection because
+ * the sessions of the command handlers belong to their threads.
+ * 
+ */
+public class JmsAlertSink implements AlertSink {
+
+  private Out out;
+  private String brokerAddress;
+  private String topicName;
+  private Connection connection;
+  private Session session;
+  private MessageProducer producer;
+
+  public JmsAlertSink(String brokerAddress, String topicName) {
+    this.out = new Out();
+    this.brokerAddress = brokerAddress;
+    this.topicName = topicName;
+  }
+
+  private void connect() throws JMSException {
+    ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
+        brokerAddress);
+    connection = connectionFactory.createConnection();
+    connection.start();
+    session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    producer = session.createProducer(session.createTopic(topicName));
+    producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+  }
+
+  @Override
+  public void deliver(AlertNotification notification) {
+    try {
+      if (connection == null) {
+        connect();
+      }
+      TextMessage message = session.createTextMessage();
+      message.setText(notification.getJson().toString());
+      producer.send(message);
+    } catch (JMSException e) {
+      out.error("Cannot publish alert to [" + brokerAddress + "/" + topicName
+          + "]: " + e.getMessage());
+      close(); // reconnect on the next notification
+    }
+  }
+
+  @Override
+  public void close() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        e.printStackTrace();
+      }
+      connection = null;
+    }
+  }
+
+}
@@ -0,0 +1,27 @@
+package sysmon.collector.alert.sink;
+
+import sysmon.collector.alert.AlertNotification;
+import sysmon.util.Out;
+
+/**
+ * Write the notifications to the log.
+ * 
+ */
+public class LogAlertSink implements AlertSink {
+
+  private Out out;
+
+  public LogAlertSink() {
+    this.out = new Out();
+  }
+
+  @Override
+  public void deliver(AlertNotification notification) {
+    out.println(notification.toString());
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,58 @@
+package sysmon.collector.alert.sink;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import sysmon.collector.alert.AlertNotification;
+import sysmon.util.Out;
+
+/**
+ * POST the notifications as json to a webhook url. There is no retry, a
+ * notification that cannot be delivered is logged and dropped.
+ * 
+ */
+public class WebhookAlertSink implements AlertSink {
+
+  private static final int TIMEOUT_MILLIS = 5000;
+
+  private Out out;
+  private String url;
+
+  public WebhookAlertSink(String url) {
+    this.out = new Out();
+    this.url = url;
+  }
+
+  @Override
+  public void deliver(AlertNotification notification) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) new URL(url).openConnection();
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setDoOutput(true);
+      OutputStream body = connection.getOutputStream();
+      body.write(notification.getJson().toString().getBytes("UTF-8"));
+      body.close();
+      int status = connection.getResponseCode();
+      if (status >= 300) {
+        out.error("Webhook [" + url + "] answered " + status + ".");
+      }
+    } catch (IOException e) {
+      out.error("Cannot post alert to [" + url + "]: " + e.getMessage());
+    } finally {
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
@@ -0,0 +1,298 @@
+package sysmon.collector.anomaly;
+
+import java.util.Arrays;
+
+import sysmon.common.MachineSlots;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.util.Out;
+
+import com.google.gson.JsonObject;
+
+/**
+ * AnomalyDetector flags the samples that are far from the usual behavior of
+ * the same machine, so that no threshold has to be tuned for each kind of
+ * host.
+ * 
+ * Each (machine, metric) series keeps an exponentially weighted mean and
+ * variance, and one more per season bucket (e.g. hour of the day) as the
+ * seasonal baseline. A sample is anomalous when it is more than k standard
+ * deviations from the baseline: the seasonal one once its bucket has seen
+ * minSamples samples, the overall one before that. Nothing is reported
+ * before the series has seen minSamples samples.
+ * 
+ * The state is kept in primitive arrays indexed by (machine slot, metric),
+ * so the memory per series is constant, about 16 * (seasonBuckets + 1)
+ * bytes, and each sample is evaluated inline without allocation. Only the
+ * transitions between normal and anomalous are reported.
+ * 
+ * alpha is the weight of a sample at the usual interval of its machine (the
+ * longest interval seen, up to MAX_INTERVAL_MILLIS); a sample that comes
+ * sooner, e.g. from an adaptive monitor during an incident, weighs less, so
+ * the baselines move at the same pace whatever the sampling rate.
+ * 
+ */
+public class AnomalyDetector {
+
+  /**
+   * Receive the anomalies raised and cleared by the detector.
+   * 
+   */
+  public interface AnomalyHandler {
+    void onAnomaly(String machineIP, String metric, boolean anomalous,
+        double value, double baseline, double sigma, long timestampMillis);
+  }
+
+  public static final long MAX_INTERVAL_MILLIS = 60 * 1000;
+
+  private Out out;
+  private double alpha;
+  private double k;
+  private int minSamples;
+  private int seasonBuckets;
+  private long seasonSeconds;
+  private double minSigma;
+  private int[] metrics;
+
+  private MachineSlots slots;
+  private int slotCapacity;
+  private double[] mean;
+  private double[] variance;
+  private int[] count;
+  private boolean[] anomalous;
+  private double[] seasonMean;
+  private double[] seasonVariance;
+  private int[] seasonCount;
+  private long[] lastMillis;
+  private long[] usualIntervalMillis;
+  private AnomalyHandler handler;
+
+  /**
+   * @param alpha
+   *          The weight of a new sample in the moving mean and variance.
+   * @param k
+   *          The number of standard deviations from the baseline that is
+   *          anomalous.
+   * @param minSamples
+   *          The samples a baseline needs before it is used.
+   * @param seasonBuckets
+   *          The number of season buckets, 0 for no seasonal baseline.
+   * @param seasonSeconds
+   *          The length of a season, e.g. 86400 for a daily pattern.
+   * @param metrics
+   *          The names of the metrics to watch, see
+   *          MachineMetadata.METRIC_NAMES.
+   */
+  public AnomalyDetector(double alpha, double k, int minSamples,
+      int seasonBuckets, long seasonSeconds, String[] metrics) {
+    this.out = new Out();
+    this.alpha = alpha;
+    this.k = k;
+    this.minSamples = minSamples;
+    this.seasonBuckets = seasonBuckets;
+    this.seasonSeconds = seasonSeconds;
+    this.minSigma = 1e-3;
+    this.metrics = new int[metrics.length];
+    for (int i = 0; i < metrics.length; ++i) {
+      this.metrics[i] = MachineMetadata.indexOfMetric(metrics[i]);
+      if (this.metrics[i] < 0) {
+        throw new IllegalArgumentException("Unknown metric [" + metrics[i]
+            + "].");
+      }
+    }
+    this.slots = new MachineSlots();
+    this.slotCapacity = 0;
+    grow(64);
+    this.handler = new AnomalyHandler() {
+      @Override
+      public void onAnomaly(String machineIP, String metric,
+          boolean anomalous, double value, double baseline, double sigma,
+          long timestampMillis) {
+        out.println(format(machineIP, metric, anomalous, value, baseline,
+            sigma));
+      }
+    };
+  }
+
+  /**
+   * Create the detector from the anomaly detection config, {alpha: a, k: k,
+   * minSamples: n, seasonBuckets: n, seasonSeconds: n, metrics: "m1,m2"}. The
+   * missing attributes take the defaults: 0.05, 4, 30, 24, 86400 and all the
+   * metrics.
+   * 
+   * @param config
+   * @return
+   */
+  public static AnomalyDetector fromJson(JsonObject config) {
+    double alpha = config.has("alpha") ? config.get("alpha").getAsDouble()
+        : 0.05;
+    double k = config.has("k") ? config.get("k").getAsDouble() : 4;
+    int minSamples = config.has("minSamples") ? config.get("minSamples")
+        .getAsInt() : 30;
+    int seasonBuckets = config.has("seasonBuckets") ? config.get(
+        "seasonBuckets").getAsInt() : 24;
+    long seasonSeconds = config.has("seasonSeconds") ? config.get(
+        "seasonSeconds").getAsLong() : 86400;
+    String[] metrics = MachineMetadata.METRIC_NAMES;
+    if (config.has("metrics")) {
+      metrics = config.get("metrics").getAsString().split("\\s*,\\s*");
+    }
+    return new AnomalyDetector(alpha, k, minSamples, seasonBuckets,
+        seasonSeconds, metrics);
+  }
+
+  public synchronized void setAnomalyHandler(AnomalyHandler handler) {
+    this.handler = handler;
+  }
+
+  /**
+   * Describe an anomaly.
+   * 
+   * @param machineIP
+   * @param metric
+   * @param anomalous
+   * @param value
+   * @param baseline
+   * @param sigma
+   * @return
+   */
+  public static String format(String machineIP, String metric,
+      boolean anomalous, double value, double baseline, double sigma) {
+    if (!anomalous) {
+      return "Machine [" + machineIP + "], " + metric + " is back to normal: "
+          + value;
+    }
+    return String.format("Machine [%s], %s is anomalous: %.4g, baseline %.4g"
+        + " +- %.4g (%.1f sigma)", machineIP, metric, value, baseline, sigma,
+        Math.abs(value - baseline) / sigma);
+  }
+
+  private void grow(int newSlotCapacity) {
+    int series = newSlotCapacity * metrics.length;
+    mean = Arrays.copyOf(mean == null ? new double[0] : mean, series);
+    variance = Arrays.copyOf(variance == null ? new double[0] : variance,
+        series);
+    count = Arrays.copyOf(count == null ? new int[0] : count, series);
+    anomalous = Arrays.copyOf(anomalous == null ? new boolean[0] : anomalous,
+        series);
+    int seasonal = series * seasonBuckets;
+    seasonMean = Arrays.copyOf(seasonMean == null ? new double[0]
+        : seasonMean, seasonal);
+    seasonVariance = Arrays.copyOf(seasonVariance == null ? new double[0]
+        : seasonVariance, seasonal);
+    seasonCount = Arrays.copyOf(seasonCount == null ? new int[0]
+        : seasonCount, seasonal);
+    lastMillis = Arrays.copyOf(lastMillis == null ? new long[0] : lastMillis,
+        newSlotCapacity);
+    usualIntervalMillis = Arrays.copyOf(usualIntervalMillis == null
+        ? new long[0] : usualIntervalMillis, newSlotCapacity);
+    slotCapacity = newSlotCapacity;
+  }
+
+  private int slotOf(MachineMetadata metadata) {
+    int slot = slots.find(metadata);
+    if (slot >= 0) {
+      return slot;
+    }
+    slot = slots.slotOf(metadata);
+    if (slot == slotCapacity) {
+      grow(slotCapacity * 2);
+    }
+    return slot;
+  }
+
+  public synchronized int getMachineCount() {
+    return slots.size();
+  }
+
+  /**
+   * The weight of a sample of the machine: alpha at the usual interval, less
+   * for a sample that comes sooner.
+   * 
+   * @param slot
+   * @param timeMillis
+   * @return
+   */
+  private double sampleAlpha(int slot, long timeMillis) {
+    long elapsed = timeMillis - lastMillis[slot];
+    boolean first = lastMillis[slot] == 0;
+    lastMillis[slot] = Math.max(lastMillis[slot], timeMillis);
+    if (first || elapsed <= 0) {
+      return alpha;
+    }
+    if (elapsed <= MAX_INTERVAL_MILLIS) {
+      usualIntervalMillis[slot] = Math.max(usualIntervalMillis[slot], elapsed);
+    }
+    if (usualIntervalMillis[slot] == 0 || elapsed >= usualIntervalMillis[slot]) {
+      return alpha;
+    }
+    return 1 - Math.pow(1 - alpha, (double) elapsed
+        / usualIntervalMillis[slot]);
+  }
+
+  /**
+   * Evaluate the sample against the baselines of its machine, then update the
+   * baselines with it.
+   * 
+   * @param metadata
+   */
+  public synchronized void onSample(MachineMetadata metadata) {
+    int slot = slotOf(metadata);
+    long timestamp = metadata.getTimestamp();
+    double sampleAlpha = sampleAlpha(slot, metadata.getTimestampMillis());
+    int bucket = 0;
+    if (seasonBuckets > 0) {
+      long phase = (timestamp % seasonSeconds + seasonSeconds) % seasonSeconds;
+      bucket = (int) (phase * seasonBuckets / seasonSeconds);
+    }
+    for (int i = 0; i < metrics.length; ++i) {
+      double value = metadata.getMetricValue(metrics[i]);
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      int series = slot * metrics.length + i;
+      int seasonal = series * seasonBuckets + bucket;
+
+      // the baseline, seasonal if it has warmed up
+      double baseline;
+      double var;
+      if (seasonBuckets > 0 && seasonCount[seasonal] >= minSamples) {
+        baseline = seasonMean[seasonal];
+        var = seasonVariance[seasonal];
+      } else {
+        baseline = mean[series];
+        var = variance[series];
+      }
+      if (count[series] >= minSamples) {
+        double sigma = Math.max(Math.sqrt(var),
+            Math.max(minSigma, Math.abs(baseline) * 0.01));
+        boolean isAnomalous = Math.abs(value - baseline) > k * sigma;
+        if (isAnomalous != anomalous[series]) {
+          anomalous[series] = isAnomalous;
+          handler.onAnomaly(metadata.getMachineIP(),
+              MachineMetadata.METRIC_NAMES[metrics[i]], isAnomalous, value,
+              baseline, sigma, timestamp * 1000);
+        }
+      }
+
+      // Welford while warming up, exponentially weighted afterwards
+      ++count[series];
+      double weight = Math.max(sampleAlpha, 1.0 / count[series]);
+      double diff = value - mean[series];
+      mean[series] += weight * diff;
+      variance[series] = (1 - weight) * (variance[series] + weight * diff
+          * diff);
+      if (seasonBuckets > 0) {
+        ++seasonCount[seasonal];
+        weight = Math.max(sampleAlpha, 1.0 / seasonCount[seasonal]);
+        diff = value - seasonMean[seasonal];
+        seasonMean[seasonal] += weight * diff;
+        seasonVariance[seasonal] = (1 - weight)
+            * (seasonVariance[seasonal] + weight * diff * diff);
+      }
+      if (count[series] == Integer.MAX_VALUE) {
+        count[series] = minSamples; // any warmed up count will do
+      }
+    }
+  }
+
+}
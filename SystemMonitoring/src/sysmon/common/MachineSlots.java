@@ -0,0 +1,127 @@
+package sysmon.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import sysmon.common.metadata.MachineMetadata;
+
+/**
+ * MachineSlots maps the machines to dense slots, 0, 1, 2..., in the order
+ * they are first seen, so that the per machine state of the collector can
+ * live in arrays indexed by slot.
+ * 
+ * A machine is looked up by the id the manager assigned at the registration,
+ * through an array, without hashing the address of each sample; a machine
+ * without an id (a monitor that registered with an older manager) falls back
+ * to a map keyed by address.
+ * 
+ * The address of the slot is still compared, as a manager that lost its state
+ * (see ManagerStateStore) gives the ids from 0 again: the id then moves to the
+ * slot of the new machine, and the machine that held it is found by address.
+ * 
+ * Not thread safe: the owner guards it with its own lock.
+ * 
+ */
+public class MachineSlots {
+
+  private int[] slotById;
+  private Map<String, Integer> slotByIP;
+  private String[] machineIPs;
+  private int size;
+
+  public MachineSlots() {
+    this.slotById = new int[16];
+    Arrays.fill(slotById, -1);
+    this.slotByIP = new HashMap<String, Integer>();
+    this.machineIPs = new String[16];
+    this.size = 0;
+  }
+
+  /**
+   * @param machineId
+   *          The id assigned by the manager, -1 if none.
+   * @param machineIP
+   * @return The slot of the machine, -1 if it has none yet.
+   */
+  public int find(int machineId, String machineIP) {
+    if (machineId >= 0) {
+      int slot = machineId < slotById.length ? slotById[machineId] : -1;
+      if (slot >= 0 && machineIPs[slot].equals(machineIP)) {
+        return slot;
+      }
+      // none yet, or the id was given to another machine
+    }
+    Integer slot = slotByIP.get(machineIP);
+    return slot == null ? -1 : slot;
+  }
+
+  public int find(MachineMetadata metadata) {
+    return find(metadata.getMachineId(), metadata.getMachineIP());
+  }
+
+  /**
+   * Get the slot of the machine, allocate the next one for a new machine.
+   * 
+   * @param machineId
+   *          The id assigned by the manager, -1 if none.
+   * @param machineIP
+   * @return
+   */
+  public int slotOf(int machineId, String machineIP) {
+    int slot = find(machineId, machineIP);
+    boolean allocated = slot < 0;
+    if (allocated) {
+      slot = size++;
+      if (slot == machineIPs.length) {
+        machineIPs = Arrays.copyOf(machineIPs, 2 * slot);
+      }
+      machineIPs[slot] = machineIP;
+    }
+    if (machineId < 0) {
+      if (allocated) {
+        slotByIP.put(machineIP, slot);
+      }
+      return slot;
+    }
+    if (machineId >= slotById.length) {
+      int length = slotById.length;
+      slotById = Arrays.copyOf(slotById, Math.max(machineId + 1, 2 * length));
+      Arrays.fill(slotById, length, slotById.length, -1);
+    }
+    int previous = slotById[machineId];
+    if (previous == slot) {
+      return slot;
+    }
+    if (previous < 0) {
+      // a new machine, or one that got an id since: looked up by id from now
+      slotById[machineId] = slot;
+      slotByIP.remove(machineIP);
+    } else if (allocated) {
+      // the id moves to this machine, the previous one keeps its slot
+      slotByIP.put(machineIPs[previous], previous);
+      slotById[machineId] = slot;
+    }
+    return slot;
+  }
+
+  public int slotOf(MachineMetadata metadata) {
+    return slotOf(metadata.getMachineId(), metadata.getMachineIP());
+  }
+
+  /**
+   * @return The number of slots allocated.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param slot
+   * @return The address of the machine of the slot.
+   */
+  public String getMachineIP(int slot) {
+    return machineIPs[slot];
+  }
+
+}
@@ -46,7 +46,8 @@ public abstract class PassiveCommandHandler extends CommandHandler {
    */
   private void createCommandServiceBroker() {
     broker = new BrokerService();
-    broker.setBrokerName("commandBroker");
+    // unique per port, so that several handlers can run in one JVM
+    broker.setBrokerName("commandBroker-" + servicePort);
     try {
       broker.setPersistent(false);
       broker.setUseJmx(false);
@@ -0,0 +1,132 @@
+package sysmon.common;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.sketch.LatencyRecorder;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * StageLatencies records, in microseconds, where the time goes between a
+ * sample being crawled on a monitor and an alert being emitted:
+ * 
+ * crawl-to-send: from the end of the crawl to the sending, on the monitor.
+ * send-to-receive: from the sending to the collector receiving the message,
+ * across machines, so it includes their clock skew.
+ * decode: the deserialization of the message.
+ * enqueue: from the decoding to the sample being handed to the CEP engine
+ * (file systems, fast rules, anomaly detection, quantiles).
+ * cep: the CEP engine processing the sample.
+ * alert-emit: from the crawl to an alert being emitted, for the samples that
+ * raised or cleared an alert.
+ * end-to-end: from the crawl to the end of the processing.
+ * 
+ * The stages of all the collectors can be merged through getJson() and
+ * merge().
+ * 
+ */
+public class StageLatencies {
+
+  public static final String[] STAGES = { "crawl-to-send", "send-to-receive",
+      "decode", "enqueue", "cep", "alert-emit", "end-to-end" };
+  public static final int CRAWL_TO_SEND = 0;
+  public static final int SEND_TO_RECEIVE = 1;
+  public static final int DECODE = 2;
+  public static final int ENQUEUE = 3;
+  public static final int CEP = 4;
+  public static final int ALERT_EMIT = 5;
+  public static final int END_TO_END = 6;
+
+  private LatencyRecorder[] recorders;
+
+  public StageLatencies() {
+    this.recorders = new LatencyRecorder[STAGES.length];
+    for (int i = 0; i < recorders.length; ++i) {
+      recorders[i] = new LatencyRecorder();
+    }
+  }
+
+  /**
+   * @param stage
+   *          One of CRAWL_TO_SEND ... END_TO_END.
+   * @param micros
+   */
+  public void record(int stage, long micros) {
+    recorders[stage].record(micros);
+  }
+
+  /**
+   * Record the stages stamped by the monitor, if it did stamp them.
+   * 
+   * @param machineMetadata
+   * @param receiveMillis
+   */
+  public void recordMonitorStages(MachineMetadata machineMetadata,
+      long receiveMillis) {
+    long crawlMillis = machineMetadata.getCrawlMillis();
+    long sentMillis = machineMetadata.getSentMillis();
+    if (crawlMillis > 0 && sentMillis > 0) {
+      record(CRAWL_TO_SEND, (sentMillis - crawlMillis) * 1000);
+    }
+    if (sentMillis > 0) {
+      record(SEND_TO_RECEIVE, (receiveMillis - sentMillis) * 1000);
+    }
+  }
+
+  public LatencyRecorder getRecorder(int stage) {
+    return recorders[stage];
+  }
+
+  /**
+   * Add the stages of another collector.
+   * 
+   * @param other
+   */
+  public void merge(StageLatencies other) {
+    for (int i = 0; i < recorders.length; ++i) {
+      recorders[i].merge(other.recorders[i]);
+    }
+  }
+
+  /**
+   * @return {stage: {count, p50, p99, p999, max}}, in microseconds.
+   */
+  public JsonObject getSummaryJson() {
+    JsonObject summaryJson = new JsonObject();
+    for (int i = 0; i < recorders.length; ++i) {
+      summaryJson.add(STAGES[i], recorders[i].getSummaryJson());
+    }
+    return summaryJson;
+  }
+
+  /**
+   * @return {stage: recorder}, see LatencyRecorder.getJson().
+   */
+  public JsonObject getJson() {
+    JsonObject stagesJson = new JsonObject();
+    for (int i = 0; i < recorders.length; ++i) {
+      stagesJson.add(STAGES[i], recorders[i].getJson());
+    }
+    return stagesJson;
+  }
+
+  /**
+   * Rebuild the stages from the json generated by getJson(), the missing
+   * stages are empty.
+   * 
+   * @param stagesJson
+   * @return
+   */
+  public static StageLatencies fromJson(JsonObject stagesJson) {
+    StageLatencies stages = new StageLatencies();
+    for (int i = 0; i < STAGES.length; ++i) {
+      JsonElement recorderJson = stagesJson.get(STAGES[i]);
+      if (recorderJson != null && recorderJson.isJsonObject()) {
+        stages.recorders[i] = LatencyRecorder.fromJson(recorderJson
+            .getAsJsonObject());
+      }
+    }
+    return stages;
+  }
+
+}
@@ -0,0 +1,223 @@
+package sysmon.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import sysmon.common.metadata.MachineMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * SubscriptionFilter describes which metadata a subscriber is interested in.
+ * It is shipped to the collectors so that only the matching and projected
+ * metadata leaves the collector.
+ * 
+ * A filter is stateful: it remembers when each machine was last forwarded in
+ * order to enforce the sampling interval.
+ * 
+ * @author Yexi Jiang (http://users.cs.fiu.edu/~yjian004)
+ * 
+ */
+public class SubscriptionFilter {
+
+  private Set<String> machines;
+  private Set<String> sections;
+  private long minIntervalSeconds;
+  private List<Predicate> predicates;
+  private Map<String, Long> lastForwarded;
+
+  public SubscriptionFilter() {
+    this.machines = new HashSet<String>();
+    this.sections = new HashSet<String>();
+    this.minIntervalSeconds = 0;
+    this.predicates = new ArrayList<Predicate>();
+    this.lastForwarded = new HashMap<String, Long>();
+  }
+
+  /**
+   * Only forward the metadata of the given machine. If no machine is added, all
+   * machines are forwarded.
+   * 
+   * @param machineIP
+   */
+  public SubscriptionFilter addMachine(String machineIP) {
+    this.machines.add(machineIP);
+    return this;
+  }
+
+  /**
+   * Only forward the given section ("cpu", "memory", "disk", "process",
+   * "network", "diskio", "containers", "jvm", "summary", "self"). If no
+   * section is added, the whole metadata is forwarded.
+   * 
+   * @param section
+   */
+  public SubscriptionFilter addSection(String section) {
+    this.sections.add(section);
+    return this;
+  }
+
+  /**
+   * Forward at most one metadata per machine within the given interval.
+   * 
+   * @param seconds
+   */
+  public SubscriptionFilter setMinIntervalSeconds(long seconds) {
+    this.minIntervalSeconds = seconds;
+    return this;
+  }
+
+  /**
+   * Only forward the metadata that satisfies "metric comparator threshold",
+   * e.g. "cpuIdle < 0.2". All the predicates have to be satisfied.
+   * 
+   * @param metric
+   *          One of MachineMetadata.METRIC_NAMES.
+   * @param comparator
+   *          One of "<", "<=", ">", ">=".
+   * @param threshold
+   */
+  public SubscriptionFilter addPredicate(String metric, String comparator,
+      double threshold) {
+    this.predicates.add(new Predicate(metric, comparator, threshold));
+    return this;
+  }
+
+  /**
+   * Check whether the metadata should be forwarded, and if so, return the
+   * projected metadata.
+   * 
+   * @param metadata
+   * @return The projected metadata, or null if it should not be forwarded.
+   */
+  public MachineMetadata apply(MachineMetadata metadata) {
+    String machineIP = metadata.getMachineIP();
+    if (!machines.isEmpty() && !machines.contains(machineIP)) {
+      return null;
+    }
+    for (Predicate predicate : predicates) {
+      if (!predicate.test(metadata)) {
+        return null;
+      }
+    }
+    if (minIntervalSeconds > 0) {
+      Long last = lastForwarded.get(machineIP);
+      if (last != null && metadata.getTimestamp() - last < minIntervalSeconds) {
+        return null;
+      }
+      lastForwarded.put(machineIP, metadata.getTimestamp());
+    }
+    if (sections.isEmpty()) {
+      return metadata;
+    }
+    return metadata.project(sections);
+  }
+
+  public JsonObject getJson() {
+    JsonObject filterJson = new JsonObject();
+    JsonArray machinesJson = new JsonArray();
+    for (String machine : machines) {
+      machinesJson.add(new JsonPrimitive(machine));
+    }
+    filterJson.add("machines", machinesJson);
+    JsonArray sectionsJson = new JsonArray();
+    for (String section : sections) {
+      sectionsJson.add(new JsonPrimitive(section));
+    }
+    filterJson.add("sections", sectionsJson);
+    filterJson.addProperty("minIntervalSeconds", minIntervalSeconds);
+    JsonArray predicatesJson = new JsonArray();
+    for (Predicate predicate : predicates) {
+      JsonObject predicateJson = new JsonObject();
+      predicateJson.addProperty("metric", predicate.metric);
+      predicateJson.addProperty("comparator", predicate.comparator);
+      predicateJson.addProperty("threshold", predicate.threshold);
+      predicatesJson.add(predicateJson);
+    }
+    filterJson.add("predicates", predicatesJson);
+    return filterJson;
+  }
+
+  /**
+   * Rebuild the filter from the json generated by getJson().
+   * 
+   * @param filterJson
+   * @return
+   */
+  public static SubscriptionFilter fromJson(JsonObject filterJson) {
+    SubscriptionFilter filter = new SubscriptionFilter();
+    if (filterJson.has("machines")) {
+      for (JsonElement machine : filterJson.get("machines").getAsJsonArray()) {
+        filter.addMachine(machine.getAsString());
+      }
+    }
+    if (filterJson.has("sections")) {
+      for (JsonElement section : filterJson.get("sections").getAsJsonArray()) {
+        filter.addSection(section.getAsString());
+      }
+    }
+    if (filterJson.has("minIntervalSeconds")) {
+      filter.setMinIntervalSeconds(filterJson.get("minIntervalSeconds")
+          .getAsLong());
+    }
+    if (filterJson.has("predicates")) {
+      for (JsonElement element : filterJson.get("predicates").getAsJsonArray()) {
+        JsonObject predicateJson = element.getAsJsonObject();
+        filter.addPredicate(predicateJson.get("metric").getAsString(),
+            predicateJson.get("comparator").getAsString(),
+            predicateJson.get("threshold").getAsDouble());
+      }
+    }
+    return filter;
+  }
+
+  @Override
+  public String toString() {
+    return getJson().toString();
+  }
+
+  /**
+   * A threshold predicate on a single metric.
+   * 
+   */
+  static class Predicate {
+    private String metric;
+    private String comparator;
+    private double threshold;
+
+    public Predicate(String metric, String comparator, double threshold) {
+      if (!(comparator.equals("<") || comparator.equals("<=")
+          || comparator.equals(">") || comparator.equals(">="))) {
+        throw new IllegalArgumentException("Unknown comparator [" + comparator
+            + "].");
+      }
+      this.metric = metric;
+      this.comparator = comparator;
+      this.threshold = threshold;
+    }
+
+    public boolean test(MachineMetadata metadata) {
+      double value = metadata.getMetricValue(metric);
+      if (Double.isNaN(value)) {
+        return false;
+      }
+      if (comparator.equals("<")) {
+        return value < threshold;
+      } else if (comparator.equals("<=")) {
+        return value <= threshold;
+      } else if (comparator.equals(">")) {
+        return value > threshold;
+      } else {
+        return value >= threshold;
+      }
+    }
+  }
+
+}
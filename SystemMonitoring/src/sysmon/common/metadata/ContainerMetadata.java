@@ -0,0 +1,120 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The container section: the resource usage of the containers found in the
+ * cgroup hierarchy, keyed by their short container id, kept in one flat array
+ * of FIELDS.length values per container, in the order of FIELDS. Only the
+ * busiest containers are kept when there are more than the crawler limit;
+ * containerCount is the number of containers found.
+ * 
+ */
+public class ContainerMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String[] FIELDS = { "cpuPercent", "memoryBytes",
+      "memoryLimitBytes", "ioReadBytesPerSec", "ioWriteBytesPerSec",
+      "ioReadOpsPerSec", "ioWriteOpsPerSec" };
+  public static final int CPU_PERCENT = 0;
+  public static final int MEMORY_BYTES = 1;
+  public static final int MEMORY_LIMIT_BYTES = 2;
+  public static final int IO_READ_BYTES_PER_SEC = 3;
+  public static final int IO_WRITE_BYTES_PER_SEC = 4;
+  public static final int IO_READ_OPS_PER_SEC = 5;
+  public static final int IO_WRITE_OPS_PER_SEC = 6;
+
+  private String type;
+  private int containerCount;
+  private String[] ids;
+  private double[] values;
+
+  /**
+   * @param containerCount
+   *          The number of containers found.
+   * @param ids
+   *          The ids of the containers kept.
+   * @param values
+   *          FIELDS.length values per container kept, the memory limit is 0
+   *          if there is none.
+   */
+  public ContainerMetadata(int containerCount, String[] ids, double[] values) {
+    super();
+    this.type = "containers";
+    this.containerCount = containerCount;
+    this.ids = ids;
+    this.values = values;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getContainerCount() {
+    return containerCount;
+  }
+
+  public String[] getIds() {
+    return ids;
+  }
+
+  /**
+   * @param id
+   * @return The index of the container, or -1 if it is not kept.
+   */
+  public int indexOf(String id) {
+    for (int i = 0; i < ids.length; ++i) {
+      if (ids[i].equals(id)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get a value of a container.
+   * 
+   * @param containerIndex
+   * @param field
+   *          One of CPU_PERCENT ... IO_WRITE_OPS_PER_SEC.
+   * @return
+   */
+  public double getValue(int containerIndex, int field) {
+    return values[containerIndex * FIELDS.length + field];
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    metadata.addProperty("containerCount", containerCount);
+    JsonArray fieldsJson = new JsonArray();
+    for (String field : FIELDS) {
+      fieldsJson.add(new JsonPrimitive(field));
+    }
+    metadata.add("fields", fieldsJson);
+    JsonObject containersJson = new JsonObject();
+    for (int i = 0; i < ids.length; ++i) {
+      JsonArray valuesJson = new JsonArray();
+      for (int j = 0; j < FIELDS.length; ++j) {
+        valuesJson.add(new JsonPrimitive(values[i * FIELDS.length + j]));
+      }
+      containersJson.add(ids[i], valuesJson);
+    }
+    metadata.add("containers", containersJson);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
@@ -8,6 +8,9 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 public class CpuMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
   private String type;
   private double userTime;
   private double sysTime;
@@ -88,6 +91,9 @@ public class CpuMetadata implements Serializable {
   }
 
   public static class Core implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
     private double userTime;
     private double sysTime;
     private double combinedTime;
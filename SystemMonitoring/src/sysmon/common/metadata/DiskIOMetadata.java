@@ -0,0 +1,127 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The disk I/O section: the throughput and latency of each block device, kept
+ * in one flat array of FIELDS.length values per device, in the order of
+ * FIELDS.
+ * 
+ */
+public class DiskIOMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String[] FIELDS = { "readIops", "writeIops",
+      "readBytesPerSec", "writeBytesPerSec", "queueDepth", "utilization",
+      "avgWaitMillis", "inProgress" };
+  public static final int READ_IOPS = 0;
+  public static final int WRITE_IOPS = 1;
+  public static final int READ_BYTES_PER_SEC = 2;
+  public static final int WRITE_BYTES_PER_SEC = 3;
+  public static final int QUEUE_DEPTH = 4;
+  public static final int UTILIZATION = 5;
+  public static final int AVG_WAIT_MILLIS = 6;
+  public static final int IN_PROGRESS = 7;
+
+  private String type;
+  private String[] devices;
+  private double[] values;
+
+  /**
+   * @param devices
+   * @param values
+   *          FIELDS.length values per device.
+   */
+  public DiskIOMetadata(String[] devices, double[] values) {
+    super();
+    this.type = "diskio";
+    this.devices = devices;
+    this.values = values;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String[] getDevices() {
+    return devices;
+  }
+
+  /**
+   * Get a value of a device.
+   * 
+   * @param deviceIndex
+   * @param field
+   *          One of READ_IOPS ... IN_PROGRESS.
+   * @return
+   */
+  public double getValue(int deviceIndex, int field) {
+    return values[deviceIndex * FIELDS.length + field];
+  }
+
+  /**
+   * Get the sum of a value over the devices.
+   * 
+   * @param field
+   * @return
+   */
+  public double getTotal(int field) {
+    double total = 0;
+    for (int i = 0; i < devices.length; ++i) {
+      total += values[i * FIELDS.length + field];
+    }
+    return total;
+  }
+
+  /**
+   * Get the maximum of a value over the devices, the busiest device is what
+   * saturates first.
+   * 
+   * @param field
+   * @return The maximum, NaN if there is no device.
+   */
+  public double getMax(int field) {
+    double max = Double.NaN;
+    for (int i = 0; i < devices.length; ++i) {
+      double value = values[i * FIELDS.length + field];
+      if (Double.isNaN(max) || value > max) {
+        max = value;
+      }
+    }
+    return max;
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    JsonArray fieldsJson = new JsonArray();
+    for (String field : FIELDS) {
+      fieldsJson.add(new JsonPrimitive(field));
+    }
+    metadata.add("fields", fieldsJson);
+    JsonObject devicesJson = new JsonObject();
+    for (int i = 0; i < devices.length; ++i) {
+      JsonArray valuesJson = new JsonArray();
+      for (int j = 0; j < FIELDS.length; ++j) {
+        valuesJson.add(new JsonPrimitive(values[i * FIELDS.length + j]));
+      }
+      devicesJson.add(devices[i], valuesJson);
+    }
+    metadata.add("devices", devicesJson);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
@@ -1,5 +1,6 @@
 package sysmon.common.metadata;
 
+import java.io.Serializable;
 import java.util.List;
 
 import com.google.gson.Gson;
@@ -7,18 +8,74 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-public class DiskMetadata {
+/**
+ * The disk section. The static description of the file systems (device,
+ * mount point, types) is an FSInfo per file system, identified by a small
+ * id; it only changes with the mount table, so it is only sent when it
+ * changes (and now and then for the receivers that missed it). The usage of
+ * every file system is sent each time as an FS that refers to its FSInfo by
+ * id. The version is a hash of the FSInfos, so a receiver can keep the last
+ * FSInfos of each machine and attach them to the usages of the same version.
+ * 
+ */
+public class DiskMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
 
   private String type;
+  private long version;
+  private FSInfo[] fileSystemInfos;
   private FS[] fileSystems;
 
-  public DiskMetadata(List<FS> fileSystems) {
+  /**
+   * @param version
+   *          The version of the file system infos.
+   * @param fileSystemInfos
+   *          The file system infos, or null if they are not sent.
+   * @param fileSystems
+   */
+  public DiskMetadata(long version, FSInfo[] fileSystemInfos,
+      List<FS> fileSystems) {
     this.type = "disk";
+    this.version = version;
+    this.fileSystemInfos = fileSystemInfos;
     this.fileSystems = new FS[fileSystems.size()];
     for (int i = 0; i < fileSystems.size(); ++i)
       this.fileSystems[i] = fileSystems.get(i);
   }
 
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return The file system infos, or null if they are not known.
+   */
+  public FSInfo[] getFileSystemInfos() {
+    return fileSystemInfos;
+  }
+
+  /**
+   * Attach the file system infos of the version, e.g. the ones received
+   * earlier from the same machine.
+   * 
+   * @param fileSystemInfos
+   */
+  public void setFileSystemInfos(FSInfo[] fileSystemInfos) {
+    this.fileSystemInfos = fileSystemInfos;
+  }
+
+  /**
+   * @param id
+   * @return The info of the file system, or null if it is not known.
+   */
+  public FSInfo getFileSystemInfo(int id) {
+    if (fileSystemInfos == null || id < 0 || id >= fileSystemInfos.length) {
+      return null;
+    }
+    return fileSystemInfos[id];
+  }
+
   public FS[] getFileSystems() {
     return fileSystems;
   }
@@ -27,11 +84,44 @@ public class DiskMetadata {
     this.fileSystems = fileSystems;
   }
 
+  /**
+   * Compute the version of the file system infos, a hash (FNV-1a) of their
+   * fields in order.
+   * 
+   * @param fileSystemInfos
+   * @return
+   */
+  public static long computeVersion(FSInfo[] fileSystemInfos) {
+    long hash = 0xcbf29ce484222325L;
+    for (FSInfo info : fileSystemInfos) {
+      String[] fields = { info.devName, info.dirName, info.typeName,
+          info.sysTypeName };
+      for (String field : fields) {
+        String value = field == null ? "" : field;
+        for (int i = 0; i < value.length(); ++i) {
+          hash ^= value.charAt(i);
+          hash *= 0x100000001b3L;
+        }
+        hash ^= 0xff; // separator
+        hash *= 0x100000001b3L;
+      }
+    }
+    return hash;
+  }
+
   public JsonObject getJson() {
     JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    metadata.addProperty("version", version);
     JsonArray fileSystemArr = new JsonArray();
-    for (FS fs : fileSystems)
-      fileSystemArr.add(fs.getJson());
+    for (FS fs : fileSystems) {
+      JsonObject fsObj = fs.getJson();
+      FSInfo info = getFileSystemInfo(fs.getId());
+      if (info != null) {
+        info.addTo(fsObj);
+      }
+      fileSystemArr.add(fsObj);
+    }
     metadata.add("file-systems", fileSystemArr);
     return metadata;
   }
@@ -43,61 +133,89 @@ public class DiskMetadata {
   }
 
   /**
-   * The file system metadata.
+   * The static description of a file system.
    * 
-   * @author yexijiang
    */
-  public static class FS {
+  public static class FSInfo implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int id;
     private String devName;
     private String dirName;
     private String typeName;
     private String sysTypeName;
-    private long totalMB;
-    private long usedMB;
-    private double usedPercentage;
 
-    public FS(String devName, String dirName, String typeName,
-        String sysTypeName, long totalMB, long usedMB, double usedPercentage) {
+    public FSInfo(int id, String devName, String dirName, String typeName,
+        String sysTypeName) {
       super();
+      this.id = id;
       this.devName = devName;
       this.dirName = dirName;
       this.typeName = typeName;
       this.sysTypeName = sysTypeName;
-      this.totalMB = totalMB;
-      this.usedMB = usedMB;
-      this.usedPercentage = usedPercentage;
     }
 
-    public String getDevName() {
-      return devName;
+    public int getId() {
+      return id;
     }
 
-    public void setDevName(String devName) {
-      this.devName = devName;
+    public String getDevName() {
+      return devName;
     }
 
     public String getDirName() {
       return dirName;
     }
 
-    public void setDirName(String dirName) {
-      this.dirName = dirName;
-    }
-
     public String getTypeName() {
       return typeName;
     }
 
-    public void setTypeName(String typeName) {
-      this.typeName = typeName;
-    }
-
     public String getSysTypeName() {
       return sysTypeName;
     }
 
-    public void setSysTypeName(String sysTypeName) {
-      this.sysTypeName = sysTypeName;
+    void addTo(JsonObject fsObj) {
+      fsObj.addProperty("devName", devName);
+      fsObj.addProperty("dirName", dirName);
+      fsObj.addProperty("typeName", typeName);
+      fsObj.addProperty("sysTypeName", sysTypeName);
+    }
+
+  }
+
+  /**
+   * The usage of a file system.
+   * 
+   * @author yexijiang
+   */
+  public static class FS implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private int id;
+    private long totalMB;
+    private long usedMB;
+    private double usedPercentage;
+
+    /**
+     * @param id
+     *          The id of the FSInfo of the file system.
+     * @param totalMB
+     * @param usedMB
+     * @param usedPercentage
+     */
+    public FS(int id, long totalMB, long usedMB, double usedPercentage) {
+      super();
+      this.id = id;
+      this.totalMB = totalMB;
+      this.usedMB = usedMB;
+      this.usedPercentage = usedPercentage;
+    }
+
+    public int getId() {
+      return id;
     }
 
     public long getTotalMB() {
@@ -126,10 +244,7 @@ public class DiskMetadata {
 
     public JsonObject getJson() {
       JsonObject fsObj = new JsonObject();
-      fsObj.addProperty("devName", devName);
-      fsObj.addProperty("dirName", dirName);
-      fsObj.addProperty("typeName", typeName);
-      fsObj.addProperty("sysTypeName", sysTypeName);
+      fsObj.addProperty("id", id);
       fsObj.addProperty("totalMB", totalMB / 1024);
       fsObj.addProperty("usedMB", usedMB / 1024);
       fsObj.addProperty("usedPercentage", usedPercentage);
@@ -0,0 +1,140 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The jvm section: the GC, heap and thread counters of the JVMs running on
+ * the machine, keyed by pid, kept in one flat array of FIELDS.length values
+ * per JVM, in the order of FIELDS. The GC counts and times are the totals
+ * since the JVM started; gcTimeRatio is the fraction of the last interval
+ * spent in GC.
+ * 
+ */
+public class JvmMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String[] FIELDS = { "youngGcCount", "youngGcMillis",
+      "oldGcCount", "oldGcMillis", "gcTimeRatio", "heapUsedBytes",
+      "heapCapacityBytes", "heapMaxBytes", "liveThreads", "daemonThreads" };
+  public static final int YOUNG_GC_COUNT = 0;
+  public static final int YOUNG_GC_MILLIS = 1;
+  public static final int OLD_GC_COUNT = 2;
+  public static final int OLD_GC_MILLIS = 3;
+  public static final int GC_TIME_RATIO = 4;
+  public static final int HEAP_USED_BYTES = 5;
+  public static final int HEAP_CAPACITY_BYTES = 6;
+  public static final int HEAP_MAX_BYTES = 7;
+  public static final int LIVE_THREADS = 8;
+  public static final int DAEMON_THREADS = 9;
+
+  private String type;
+  private int[] pids;
+  private String[] names;
+  private double[] values;
+
+  /**
+   * @param pids
+   * @param names
+   *          The main class or jar of each JVM.
+   * @param values
+   *          FIELDS.length values per JVM.
+   */
+  public JvmMetadata(int[] pids, String[] names, double[] values) {
+    super();
+    this.type = "jvm";
+    this.pids = pids;
+    this.names = names;
+    this.values = values;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getJvmCount() {
+    return pids.length;
+  }
+
+  public int[] getPids() {
+    return pids;
+  }
+
+  public String[] getNames() {
+    return names;
+  }
+
+  /**
+   * @param pid
+   * @return The index of the JVM, or -1 if there is no such JVM.
+   */
+  public int indexOf(int pid) {
+    for (int i = 0; i < pids.length; ++i) {
+      if (pids[i] == pid) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get a value of a JVM.
+   * 
+   * @param jvmIndex
+   * @param field
+   *          One of YOUNG_GC_COUNT ... DAEMON_THREADS.
+   * @return
+   */
+  public double getValue(int jvmIndex, int field) {
+    return values[jvmIndex * FIELDS.length + field];
+  }
+
+  /**
+   * @param field
+   * @return The maximum of the field over the JVMs, 0 if there is none.
+   */
+  public double getMax(int field) {
+    double max = 0;
+    for (int i = 0; i < pids.length; ++i) {
+      max = Math.max(max, values[i * FIELDS.length + field]);
+    }
+    return max;
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    JsonArray fieldsJson = new JsonArray();
+    for (String field : FIELDS) {
+      fieldsJson.add(new JsonPrimitive(field));
+    }
+    metadata.add("fields", fieldsJson);
+    JsonArray jvmsJson = new JsonArray();
+    for (int i = 0; i < pids.length; ++i) {
+      JsonObject jvmJson = new JsonObject();
+      jvmJson.addProperty("pid", pids[i]);
+      jvmJson.addProperty("name", names[i]);
+      JsonArray valuesJson = new JsonArray();
+      for (int j = 0; j < FIELDS.length; ++j) {
+        valuesJson.add(new JsonPrimitive(values[i * FIELDS.length + j]));
+      }
+      jvmJson.add("values", valuesJson);
+      jvmsJson.add(jvmJson);
+    }
+    metadata.add("jvms", jvmsJson);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
@@ -1,8 +1,7 @@
 package sysmon.common.metadata;
 
 import java.io.Serializable;
-
-import sysmon.monitor.crawler.MemoryCrawler;
+import java.util.Collection;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -10,19 +9,120 @@ import com.google.gson.JsonObject;
 
 public class MachineMetadata implements Serializable {
 
+  private static final long serialVersionUID = 1L;
+
+  /*
+   * The indexes of the scalar metrics, in METRIC_NAMES and for
+   * getMetricValue(int).
+   */
+  public static final int CPU_USER = 0;
+  public static final int CPU_SYS = 1;
+  public static final int CPU_COMBINED = 2;
+  public static final int CPU_IDLE = 3;
+  public static final int MEM_USED = 4;
+  public static final int MEM_ACTUAL_USED = 5;
+  public static final int MEM_FREE = 6;
+  public static final int MEM_ACTUAL_FREE = 7;
+  public static final int MEM_TOTAL = 8;
+  public static final int MEM_USED_PCT = 9;
+  public static final int MEM_FREE_PCT = 10;
+  public static final int MEM_FREE_RATIO = 11;
+  public static final int DISK_MAX_USED_PCT = 12;
+  public static final int PROCESS_COUNT = 13;
+  public static final int NET_RX_BYTES_RATE = 14;
+  public static final int NET_TX_BYTES_RATE = 15;
+  public static final int NET_RX_PACKETS_RATE = 16;
+  public static final int NET_TX_PACKETS_RATE = 17;
+  public static final int NET_ERRORS_RATE = 18;
+  public static final int NET_DROPS_RATE = 19;
+  public static final int DISK_READ_IOPS = 20;
+  public static final int DISK_WRITE_IOPS = 21;
+  public static final int DISK_READ_BYTES_RATE = 22;
+  public static final int DISK_WRITE_BYTES_RATE = 23;
+  public static final int DISK_MAX_QUEUE_DEPTH = 24;
+  public static final int DISK_MAX_UTILIZATION = 25;
+  public static final int DISK_MAX_WAIT_MILLIS = 26;
+  public static final int CONTAINER_COUNT = 27;
+  public static final int JVM_COUNT = 28;
+  public static final int JVM_MAX_GC_TIME_RATIO = 29;
+  public static final int MONITOR_CPU_PERCENT = 30;
+  public static final int MONITOR_HEAP_USED_BYTES = 31;
+  public static final int METRIC_COUNT = 32;
+
+  /**
+   * The scalar metrics that can be looked up by name, e.g. in subscription
+   * filters, by index.
+   */
+  public static final String[] METRIC_NAMES = new String[METRIC_COUNT];
+
+  static {
+    METRIC_NAMES[CPU_USER] = "cpuUser";
+    METRIC_NAMES[CPU_SYS] = "cpuSys";
+    METRIC_NAMES[CPU_COMBINED] = "cpuCombined";
+    METRIC_NAMES[CPU_IDLE] = "cpuIdle";
+    METRIC_NAMES[MEM_USED] = "memUsed";
+    METRIC_NAMES[MEM_ACTUAL_USED] = "memActualUsed";
+    METRIC_NAMES[MEM_FREE] = "memFree";
+    METRIC_NAMES[MEM_ACTUAL_FREE] = "memActualFree";
+    METRIC_NAMES[MEM_TOTAL] = "memTotal";
+    METRIC_NAMES[MEM_USED_PCT] = "memUsedPct";
+    METRIC_NAMES[MEM_FREE_PCT] = "memFreePct";
+    METRIC_NAMES[MEM_FREE_RATIO] = "memFreeRatio";
+    METRIC_NAMES[DISK_MAX_USED_PCT] = "diskMaxUsedPct";
+    METRIC_NAMES[PROCESS_COUNT] = "processCount";
+    METRIC_NAMES[NET_RX_BYTES_RATE] = "netRxBytesRate";
+    METRIC_NAMES[NET_TX_BYTES_RATE] = "netTxBytesRate";
+    METRIC_NAMES[NET_RX_PACKETS_RATE] = "netRxPacketsRate";
+    METRIC_NAMES[NET_TX_PACKETS_RATE] = "netTxPacketsRate";
+    METRIC_NAMES[NET_ERRORS_RATE] = "netErrorsRate";
+    METRIC_NAMES[NET_DROPS_RATE] = "netDropsRate";
+    METRIC_NAMES[DISK_READ_IOPS] = "diskReadIops";
+    METRIC_NAMES[DISK_WRITE_IOPS] = "diskWriteIops";
+    METRIC_NAMES[DISK_READ_BYTES_RATE] = "diskReadBytesRate";
+    METRIC_NAMES[DISK_WRITE_BYTES_RATE] = "diskWriteBytesRate";
+    METRIC_NAMES[DISK_MAX_QUEUE_DEPTH] = "diskMaxQueueDepth";
+    METRIC_NAMES[DISK_MAX_UTILIZATION] = "diskMaxUtilization";
+    METRIC_NAMES[DISK_MAX_WAIT_MILLIS] = "diskMaxWaitMillis";
+    METRIC_NAMES[CONTAINER_COUNT] = "containerCount";
+    METRIC_NAMES[JVM_COUNT] = "jvmCount";
+    METRIC_NAMES[JVM_MAX_GC_TIME_RATIO] = "jvmMaxGcTimeRatio";
+    METRIC_NAMES[MONITOR_CPU_PERCENT] = "monitorCpuPercent";
+    METRIC_NAMES[MONITOR_HEAP_USED_BYTES] = "monitorHeapUsedBytes";
+  }
+
   private long timestamp;
+  private long timestampMillis;
+  private long crawlMillis;
+  private long sentMillis;
   private String machineIP;
+  private int machineId;
   private CpuMetadata cpu;
   private MemoryMetadata memory;
   private DiskMetadata disk;
+  private ProcessMetadata process;
+  private NetworkMetadata network;
+  private DiskIOMetadata diskIO;
+  private ContainerMetadata containers;
+  private JvmMetadata jvm;
+  private SummaryMetadata summary;
+  private SelfMetadata self;
 
   public MachineMetadata(long timestamp, String machineIP) {
     super();
     this.timestamp = timestamp;
+    this.timestampMillis = timestamp * 1000;
     this.machineIP = machineIP;
+    this.machineId = -1;
     this.cpu = null;
     this.memory = null;
     this.disk = null;
+    this.process = null;
+    this.network = null;
+    this.diskIO = null;
+    this.containers = null;
+    this.jvm = null;
+    this.summary = null;
+    this.self = null;
   }
 
   public long getTimestamp() {
@@ -31,6 +131,53 @@ public class MachineMetadata implements Serializable {
 
   public void setTimestamp(long timestamp) {
     this.timestamp = timestamp;
+    this.timestampMillis = timestamp * 1000;
+  }
+
+  /**
+   * The time of the sample in milliseconds; the samples of an adaptive
+   * monitor can be less than a second apart.
+   * 
+   * @return
+   */
+  public long getTimestampMillis() {
+    return timestampMillis;
+  }
+
+  /**
+   * Set the time of the sample, and the timestamp in seconds.
+   * 
+   * @param timestampMillis
+   */
+  public void setTimestampMillis(long timestampMillis) {
+    this.timestampMillis = timestampMillis;
+    this.timestamp = timestampMillis / 1000;
+  }
+
+  /**
+   * The end of the latest crawl in the message, 0 if not stamped.
+   * 
+   * @return
+   */
+  public long getCrawlMillis() {
+    return crawlMillis;
+  }
+
+  public void setCrawlMillis(long crawlMillis) {
+    this.crawlMillis = crawlMillis;
+  }
+
+  /**
+   * The time the monitor sent the message, 0 if not stamped.
+   * 
+   * @return
+   */
+  public long getSentMillis() {
+    return sentMillis;
+  }
+
+  public void setSentMillis(long sentMillis) {
+    this.sentMillis = sentMillis;
   }
 
   public String getMachineIP() {
@@ -41,6 +188,20 @@ public class MachineMetadata implements Serializable {
     this.machineIP = machineIP;
   }
 
+  /**
+   * The dense id the manager assigned to the machine at the registration,
+   * the key of the per-machine arrays of the collector, see MachineSlots.
+   * 
+   * @return The id, -1 if none was assigned.
+   */
+  public int getMachineId() {
+    return machineId;
+  }
+
+  public void setMachineId(int machineId) {
+    this.machineId = machineId;
+  }
+
   public CpuMetadata getCpu() {
     return cpu;
   }
@@ -65,13 +226,334 @@ public class MachineMetadata implements Serializable {
     this.disk = disk;
   }
 
+  public ProcessMetadata getProcess() {
+    return process;
+  }
+
+  public void setProcess(ProcessMetadata process) {
+    this.process = process;
+  }
+
+  public NetworkMetadata getNetwork() {
+    return network;
+  }
+
+  public void setNetwork(NetworkMetadata network) {
+    this.network = network;
+  }
+
+  public DiskIOMetadata getDiskIO() {
+    return diskIO;
+  }
+
+  public void setDiskIO(DiskIOMetadata diskIO) {
+    this.diskIO = diskIO;
+  }
+
+  public ContainerMetadata getContainers() {
+    return containers;
+  }
+
+  public void setContainers(ContainerMetadata containers) {
+    this.containers = containers;
+  }
+
+  public JvmMetadata getJvm() {
+    return jvm;
+  }
+
+  public void setJvm(JvmMetadata jvm) {
+    this.jvm = jvm;
+  }
+
+  public SummaryMetadata getSummary() {
+    return summary;
+  }
+
+  /**
+   * Set the summary of the metrics aggregated by the monitor, whose sections
+   * may then be absent.
+   * 
+   * @param summary
+   */
+  public void setSummary(SummaryMetadata summary) {
+    this.summary = summary;
+  }
+
+  public SelfMetadata getSelf() {
+    return self;
+  }
+
+  public void setSelf(SelfMetadata self) {
+    this.self = self;
+  }
+
+  /**
+   * Set the section matching the type of the metadata object of a crawler.
+   * 
+   * @param section
+   *          A CpuMetadata, MemoryMetadata, ... JvmMetadata, other objects
+   *          are ignored.
+   */
+  public void setSection(Object section) {
+    if (section instanceof CpuMetadata) {
+      cpu = (CpuMetadata) section;
+    } else if (section instanceof MemoryMetadata) {
+      memory = (MemoryMetadata) section;
+    } else if (section instanceof DiskMetadata) {
+      disk = (DiskMetadata) section;
+    } else if (section instanceof ProcessMetadata) {
+      process = (ProcessMetadata) section;
+    } else if (section instanceof NetworkMetadata) {
+      network = (NetworkMetadata) section;
+    } else if (section instanceof DiskIOMetadata) {
+      diskIO = (DiskIOMetadata) section;
+    } else if (section instanceof ContainerMetadata) {
+      containers = (ContainerMetadata) section;
+    } else if (section instanceof JvmMetadata) {
+      jvm = (JvmMetadata) section;
+    } else if (section instanceof SelfMetadata) {
+      self = (SelfMetadata) section;
+    }
+  }
+
+  /**
+   * Get the index of the named metric in METRIC_NAMES.
+   * 
+   * @param metricName
+   * @return the index, or -1 if the metric is unknown.
+   */
+  public static int indexOfMetric(String metricName) {
+    for (int i = 0; i < METRIC_NAMES.length; ++i) {
+      if (METRIC_NAMES[i].equals(metricName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get the value of a named scalar metric (see METRIC_NAMES).
+   * 
+   * @param metricName
+   * @return the value, or NaN if the metric is unknown or its section is
+   *         absent.
+   */
+  public double getMetricValue(String metricName) {
+    return getMetricValue(indexOfMetric(metricName));
+  }
+
+  /**
+   * Get the value of a scalar metric by its index in METRIC_NAMES, which
+   * avoids the name lookup on hot paths.
+   * 
+   * If the section is absent but the metric is in the summary, the value is
+   * the avg of the summary.
+   * 
+   * @param metricIndex
+   * @return the value, or NaN if the index is unknown or the section is
+   *         absent.
+   */
+  public double getMetricValue(int metricIndex) {
+    double value = getSectionMetricValue(metricIndex);
+    if (Double.isNaN(value) && summary != null) {
+      int i = summary.indexOf(metricIndex);
+      if (i >= 0) {
+        return summary.getAvg(i);
+      }
+    }
+    return value;
+  }
+
+  private double getSectionMetricValue(int metricIndex) {
+    switch (metricIndex) {
+    case CPU_USER:
+      return cpu == null ? Double.NaN : cpu.getUserTime();
+    case CPU_SYS:
+      return cpu == null ? Double.NaN : cpu.getSysTime();
+    case CPU_COMBINED:
+      return cpu == null ? Double.NaN : cpu.getCombinedTime();
+    case CPU_IDLE:
+      return cpu == null ? Double.NaN : cpu.getIdleTime();
+    case MEM_USED:
+      return memory == null ? Double.NaN : memory.getUsed();
+    case MEM_ACTUAL_USED:
+      return memory == null ? Double.NaN : memory.getActualUsed();
+    case MEM_FREE:
+      return memory == null ? Double.NaN : memory.getFree();
+    case MEM_ACTUAL_FREE:
+      return memory == null ? Double.NaN : memory.getActualFree();
+    case MEM_TOTAL:
+      return memory == null ? Double.NaN : memory.getTotal();
+    case MEM_USED_PCT:
+      return memory == null ? Double.NaN : memory.getUsedPercent();
+    case MEM_FREE_PCT:
+      return memory == null ? Double.NaN : memory.getFreePercent();
+    case MEM_FREE_RATIO:
+      return memory == null || memory.getTotal() == 0 ? Double.NaN
+          : (double) memory.getActualFree() / memory.getTotal();
+    case DISK_MAX_USED_PCT:
+      if (disk == null) {
+        return Double.NaN;
+      }
+      double max = Double.NaN;
+      for (DiskMetadata.FS fs : disk.getFileSystems()) {
+        if (Double.isNaN(max) || fs.getUsedPercentage() > max) {
+          max = fs.getUsedPercentage();
+        }
+      }
+      return max;
+    case PROCESS_COUNT:
+      return process == null ? Double.NaN : process.getProcessCount();
+    case NET_RX_BYTES_RATE:
+      return getNetworkRate(NetworkMetadata.RX_BYTES, -1);
+    case NET_TX_BYTES_RATE:
+      return getNetworkRate(NetworkMetadata.TX_BYTES, -1);
+    case NET_RX_PACKETS_RATE:
+      return getNetworkRate(NetworkMetadata.RX_PACKETS, -1);
+    case NET_TX_PACKETS_RATE:
+      return getNetworkRate(NetworkMetadata.TX_PACKETS, -1);
+    case NET_ERRORS_RATE:
+      return getNetworkRate(NetworkMetadata.RX_ERRORS,
+          NetworkMetadata.TX_ERRORS);
+    case NET_DROPS_RATE:
+      return getNetworkRate(NetworkMetadata.RX_DROPS, NetworkMetadata.TX_DROPS);
+    case DISK_READ_IOPS:
+      return diskIO == null ? Double.NaN : diskIO
+          .getTotal(DiskIOMetadata.READ_IOPS);
+    case DISK_WRITE_IOPS:
+      return diskIO == null ? Double.NaN : diskIO
+          .getTotal(DiskIOMetadata.WRITE_IOPS);
+    case DISK_READ_BYTES_RATE:
+      return diskIO == null ? Double.NaN : diskIO
+          .getTotal(DiskIOMetadata.READ_BYTES_PER_SEC);
+    case DISK_WRITE_BYTES_RATE:
+      return diskIO == null ? Double.NaN : diskIO
+          .getTotal(DiskIOMetadata.WRITE_BYTES_PER_SEC);
+    case DISK_MAX_QUEUE_DEPTH:
+      return diskIO == null ? Double.NaN : diskIO
+          .getMax(DiskIOMetadata.QUEUE_DEPTH);
+    case DISK_MAX_UTILIZATION:
+      return diskIO == null ? Double.NaN : diskIO
+          .getMax(DiskIOMetadata.UTILIZATION);
+    case DISK_MAX_WAIT_MILLIS:
+      return diskIO == null ? Double.NaN : diskIO
+          .getMax(DiskIOMetadata.AVG_WAIT_MILLIS);
+    case CONTAINER_COUNT:
+      return containers == null ? Double.NaN : containers.getContainerCount();
+    case JVM_COUNT:
+      return jvm == null ? Double.NaN : jvm.getJvmCount();
+    case JVM_MAX_GC_TIME_RATIO:
+      return jvm == null ? Double.NaN : jvm.getMax(JvmMetadata.GC_TIME_RATIO);
+    case MONITOR_CPU_PERCENT:
+      return self == null ? Double.NaN : self.getCpuPercent();
+    case MONITOR_HEAP_USED_BYTES:
+      return self == null ? Double.NaN : self.getHeapUsedBytes();
+    default:
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * Get the total rate of a network metric, plus the one of another metric.
+   * 
+   * @param metric
+   * @param otherMetric
+   *          -1 for none.
+   * @return NaN if the network section is absent.
+   */
+  private double getNetworkRate(int metric, int otherMetric) {
+    if (network == null) {
+      return Double.NaN;
+    }
+    double rate = network.getTotalRate(metric);
+    if (otherMetric >= 0) {
+      rate += network.getTotalRate(otherMetric);
+    }
+    return rate;
+  }
+
+  /**
+   * Create a copy that only keeps the given sections ("cpu", "memory",
+   * "disk"). The sections themselves are shared, not copied.
+   * 
+   * @param sections
+   * @return
+   */
+  public MachineMetadata project(Collection<String> sections) {
+    MachineMetadata projected = new MachineMetadata(timestamp, machineIP);
+    projected.timestampMillis = timestampMillis;
+    projected.crawlMillis = crawlMillis;
+    projected.sentMillis = sentMillis;
+    projected.machineId = machineId;
+    if (sections.contains("cpu")) {
+      projected.cpu = cpu;
+    }
+    if (sections.contains("memory")) {
+      projected.memory = memory;
+    }
+    if (sections.contains("disk")) {
+      projected.disk = disk;
+    }
+    if (sections.contains("process")) {
+      projected.process = process;
+    }
+    if (sections.contains("network")) {
+      projected.network = network;
+    }
+    if (sections.contains("diskio")) {
+      projected.diskIO = diskIO;
+    }
+    if (sections.contains("containers")) {
+      projected.containers = containers;
+    }
+    if (sections.contains("jvm")) {
+      projected.jvm = jvm;
+    }
+    if (sections.contains("summary")) {
+      projected.summary = summary;
+    }
+    if (sections.contains("self")) {
+      projected.self = self;
+    }
+    return projected;
+  }
+
   public JsonObject getJson() {
     JsonObject metadata = new JsonObject();
 
     metadata.addProperty("timestamp", timestamp);
     metadata.addProperty("machineIP", machineIP);
-    metadata.add("cpu", cpu.getJson());
-    metadata.add("memory", memory.getJson());
+    if (machineId >= 0) {
+      metadata.addProperty("machineId", machineId);
+    }
+    if (cpu != null) {
+      metadata.add("cpu", cpu.getJson());
+    }
+    if (memory != null) {
+      metadata.add("memory", memory.getJson());
+    }
+    if (process != null) {
+      metadata.add("process", process.getJson());
+    }
+    if (network != null) {
+      metadata.add("network", network.getJson());
+    }
+    if (diskIO != null) {
+      metadata.add("diskio", diskIO.getJson());
+    }
+    if (containers != null) {
+      metadata.add("containers", containers.getJson());
+    }
+    if (jvm != null) {
+      metadata.add("jvm", jvm.getJson());
+    }
+    if (summary != null) {
+      metadata.add("summary", summary.getJson());
+    }
+    if (self != null) {
+      metadata.add("self", self.getJson());
+    }
 
     return metadata;
   }
@@ -7,6 +7,9 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 public class MemoryMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
   private String type;
   private long used;
   private long actualUsed;
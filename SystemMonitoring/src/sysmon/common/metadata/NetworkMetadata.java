@@ -0,0 +1,117 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The network section: the per second rates of each interface, kept in one
+ * flat array of FIELDS.length values per interface, in the order of FIELDS.
+ * 
+ */
+public class NetworkMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  public static final String[] FIELDS = { "rxBytes", "txBytes", "rxPackets",
+      "txPackets", "rxErrors", "txErrors", "rxDrops", "txDrops" };
+  public static final int RX_BYTES = 0;
+  public static final int TX_BYTES = 1;
+  public static final int RX_PACKETS = 2;
+  public static final int TX_PACKETS = 3;
+  public static final int RX_ERRORS = 4;
+  public static final int TX_ERRORS = 5;
+  public static final int RX_DROPS = 6;
+  public static final int TX_DROPS = 7;
+
+  private String type;
+  private String[] interfaces;
+  private boolean[] loopback;
+  private double[] rates;
+
+  /**
+   * @param interfaces
+   *          The interface names.
+   * @param loopback
+   *          Whether each interface is a loopback, they are left out of the
+   *          totals.
+   * @param rates
+   *          FIELDS.length rates per interface.
+   */
+  public NetworkMetadata(String[] interfaces, boolean[] loopback,
+      double[] rates) {
+    super();
+    this.type = "network";
+    this.interfaces = interfaces;
+    this.loopback = loopback;
+    this.rates = rates;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String[] getInterfaces() {
+    return interfaces;
+  }
+
+  /**
+   * Get the rate of an interface.
+   * 
+   * @param interfaceIndex
+   * @param field
+   *          One of RX_BYTES ... TX_DROPS.
+   * @return
+   */
+  public double getRate(int interfaceIndex, int field) {
+    return rates[interfaceIndex * FIELDS.length + field];
+  }
+
+  /**
+   * Get the sum of a rate over the interfaces that are not loopbacks.
+   * 
+   * @param field
+   *          One of RX_BYTES ... TX_DROPS.
+   * @return
+   */
+  public double getTotalRate(int field) {
+    double total = 0;
+    for (int i = 0; i < interfaces.length; ++i) {
+      if (!loopback[i]) {
+        total += rates[i * FIELDS.length + field];
+      }
+    }
+    return total;
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    JsonArray fieldsJson = new JsonArray();
+    for (String field : FIELDS) {
+      fieldsJson.add(new JsonPrimitive(field));
+    }
+    metadata.add("fields", fieldsJson);
+    JsonObject interfacesJson = new JsonObject();
+    for (int i = 0; i < interfaces.length; ++i) {
+      JsonArray ratesJson = new JsonArray();
+      for (int j = 0; j < FIELDS.length; ++j) {
+        ratesJson.add(new JsonPrimitive(rates[i * FIELDS.length + j]));
+      }
+      interfacesJson.add(interfaces[i], ratesJson);
+    }
+    metadata.add("interfaces", interfacesJson);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
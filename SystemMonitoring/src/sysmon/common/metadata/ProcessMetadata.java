@@ -0,0 +1,175 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The process section: the number of processes, the top processes by CPU and
+ * by memory, and the processes started and exited since the previous crawl.
+ * The full process table stays on the monitor.
+ * 
+ */
+public class ProcessMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private String type;
+  private int processCount;
+  private int startedCount;
+  private int exitedCount;
+  private Process[] topCpu;
+  private Process[] topMemory;
+  private Process[] started;
+  private Process[] exited;
+
+  public ProcessMetadata(int processCount, Process[] topCpu,
+      Process[] topMemory, Process[] started, int startedCount,
+      Process[] exited, int exitedCount) {
+    super();
+    this.type = "process";
+    this.processCount = processCount;
+    this.topCpu = topCpu;
+    this.topMemory = topMemory;
+    this.started = started;
+    this.startedCount = startedCount;
+    this.exited = exited;
+    this.exitedCount = exitedCount;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getProcessCount() {
+    return processCount;
+  }
+
+  public Process[] getTopCpu() {
+    return topCpu;
+  }
+
+  public Process[] getTopMemory() {
+    return topMemory;
+  }
+
+  /**
+   * The processes started since the previous crawl, at most the event limit
+   * of the crawler.
+   * 
+   * @return
+   */
+  public Process[] getStarted() {
+    return started;
+  }
+
+  /**
+   * The number of processes started since the previous crawl, including the
+   * ones beyond the event limit.
+   * 
+   * @return
+   */
+  public int getStartedCount() {
+    return startedCount;
+  }
+
+  public Process[] getExited() {
+    return exited;
+  }
+
+  public int getExitedCount() {
+    return exitedCount;
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    metadata.addProperty("processCount", processCount);
+    metadata.add("topCpu", toJson(topCpu));
+    metadata.add("topMemory", toJson(topMemory));
+    metadata.addProperty("startedCount", startedCount);
+    metadata.add("started", toJson(started));
+    metadata.addProperty("exitedCount", exitedCount);
+    metadata.add("exited", toJson(exited));
+    return metadata;
+  }
+
+  private static JsonArray toJson(Process[] processes) {
+    JsonArray processesJson = new JsonArray();
+    for (Process process : processes) {
+      processesJson.add(process.getJson());
+    }
+    return processesJson;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+  public static class Process implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private long pid;
+    private String name;
+    private double cpuPercent;
+    private long rss;
+    private long rssDelta;
+
+    /**
+     * @param pid
+     * @param name
+     * @param cpuPercent
+     *          The CPU time since the previous crawl, in percent of one core.
+     * @param rss
+     *          The resident memory in bytes.
+     * @param rssDelta
+     *          The change of the resident memory since the previous crawl.
+     */
+    public Process(long pid, String name, double cpuPercent, long rss,
+        long rssDelta) {
+      super();
+      this.pid = pid;
+      this.name = name;
+      this.cpuPercent = cpuPercent;
+      this.rss = rss;
+      this.rssDelta = rssDelta;
+    }
+
+    public long getPid() {
+      return pid;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public double getCpuPercent() {
+      return cpuPercent;
+    }
+
+    public long getRss() {
+      return rss;
+    }
+
+    public long getRssDelta() {
+      return rssDelta;
+    }
+
+    public JsonObject getJson() {
+      JsonObject processJson = new JsonObject();
+      processJson.addProperty("pid", pid);
+      processJson.addProperty("name", name);
+      processJson.addProperty("cpuPercent", cpuPercent);
+      processJson.addProperty("rss", rss);
+      processJson.addProperty("rssDelta", rssDelta);
+      return processJson;
+    }
+
+  }
+}
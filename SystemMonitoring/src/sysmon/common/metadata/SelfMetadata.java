@@ -0,0 +1,188 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The self section: the overhead of the monitor itself over the last
+ * interval, the CPU of its threads (in percent of one core), its allocation
+ * rate and heap, and per crawler its CPU, the number of crawls and the
+ * latency quantiles of a crawl. backoffFactor is how many times slower than
+ * configured the crawlers run to stay within the CPU budget, and the
+ * disabled crawlers are the ones stopped for the same reason.
+ * 
+ */
+public class SelfMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private String type;
+  private double cpuPercent;
+  private double cpuBudgetPercent;
+  private double allocatedBytesPerSec;
+  private long heapUsedBytes;
+  private long heapMaxBytes;
+  private int threadCount;
+  private int backoffFactor;
+  private String[] crawlerNames;
+  private double[] crawlerCpuPercent;
+  private long[] crawls;
+  private double[] p50Millis;
+  private double[] p99Millis;
+  private double[] maxMillis;
+  private boolean[] disabled;
+
+  public SelfMetadata(double cpuPercent, double cpuBudgetPercent,
+      double allocatedBytesPerSec, long heapUsedBytes, long heapMaxBytes,
+      int threadCount, int backoffFactor) {
+    super();
+    this.type = "self";
+    this.cpuPercent = cpuPercent;
+    this.cpuBudgetPercent = cpuBudgetPercent;
+    this.allocatedBytesPerSec = allocatedBytesPerSec;
+    this.heapUsedBytes = heapUsedBytes;
+    this.heapMaxBytes = heapMaxBytes;
+    this.threadCount = threadCount;
+    this.backoffFactor = backoffFactor;
+    this.crawlerNames = new String[0];
+  }
+
+  /**
+   * Set the per crawler statistics, one entry per crawler in each array.
+   * 
+   * @param crawlerNames
+   * @param crawlerCpuPercent
+   *          -1 when the thread of the crawler cannot be measured, e.g. a
+   *          virtual thread.
+   * @param crawls
+   *          The number of crawls in the interval.
+   * @param p50Millis
+   *          The median crawl latency, NaN without crawl.
+   * @param p99Millis
+   * @param maxMillis
+   * @param disabled
+   */
+  public void setCrawlers(String[] crawlerNames, double[] crawlerCpuPercent,
+      long[] crawls, double[] p50Millis, double[] p99Millis,
+      double[] maxMillis, boolean[] disabled) {
+    this.crawlerNames = crawlerNames;
+    this.crawlerCpuPercent = crawlerCpuPercent;
+    this.crawls = crawls;
+    this.p50Millis = p50Millis;
+    this.p99Millis = p99Millis;
+    this.maxMillis = maxMillis;
+    this.disabled = disabled;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public double getCpuPercent() {
+    return cpuPercent;
+  }
+
+  public double getCpuBudgetPercent() {
+    return cpuBudgetPercent;
+  }
+
+  public double getAllocatedBytesPerSec() {
+    return allocatedBytesPerSec;
+  }
+
+  public long getHeapUsedBytes() {
+    return heapUsedBytes;
+  }
+
+  public long getHeapMaxBytes() {
+    return heapMaxBytes;
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  public int getBackoffFactor() {
+    return backoffFactor;
+  }
+
+  public String[] getCrawlerNames() {
+    return crawlerNames;
+  }
+
+  /**
+   * @param crawlerName
+   * @return The index of the crawler, or -1 if there is no such crawler.
+   */
+  public int indexOf(String crawlerName) {
+    for (int i = 0; i < crawlerNames.length; ++i) {
+      if (crawlerNames[i].equals(crawlerName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public double getCrawlerCpuPercent(int crawlerIndex) {
+    return crawlerCpuPercent[crawlerIndex];
+  }
+
+  public long getCrawls(int crawlerIndex) {
+    return crawls[crawlerIndex];
+  }
+
+  public double getP50Millis(int crawlerIndex) {
+    return p50Millis[crawlerIndex];
+  }
+
+  public double getP99Millis(int crawlerIndex) {
+    return p99Millis[crawlerIndex];
+  }
+
+  public double getMaxMillis(int crawlerIndex) {
+    return maxMillis[crawlerIndex];
+  }
+
+  public boolean isDisabled(int crawlerIndex) {
+    return disabled[crawlerIndex];
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    metadata.addProperty("cpuPercent", cpuPercent);
+    metadata.addProperty("cpuBudgetPercent", cpuBudgetPercent);
+    metadata.addProperty("allocatedBytesPerSec", allocatedBytesPerSec);
+    metadata.addProperty("heapUsedBytes", heapUsedBytes);
+    metadata.addProperty("heapMaxBytes", heapMaxBytes);
+    metadata.addProperty("threadCount", threadCount);
+    metadata.addProperty("backoffFactor", backoffFactor);
+    JsonArray crawlersJson = new JsonArray();
+    for (int i = 0; i < crawlerNames.length; ++i) {
+      JsonObject crawlerJson = new JsonObject();
+      crawlerJson.addProperty("name", crawlerNames[i]);
+      crawlerJson.addProperty("cpuPercent", crawlerCpuPercent[i]);
+      crawlerJson.addProperty("crawls", crawls[i]);
+      if (crawls[i] > 0) {
+        crawlerJson.addProperty("p50Millis", p50Millis[i]);
+        crawlerJson.addProperty("p99Millis", p99Millis[i]);
+        crawlerJson.addProperty("maxMillis", maxMillis[i]);
+      }
+      crawlerJson.addProperty("disabled", disabled[i]);
+      crawlersJson.add(crawlerJson);
+    }
+    metadata.add("crawlers", crawlersJson);
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
@@ -0,0 +1,139 @@
+package sysmon.common.metadata;
+
+import java.io.Serializable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * The summary section: the min, max, time weighted avg and last value of
+ * some metrics (see MachineMetadata.METRIC_NAMES) over a window, computed by
+ * the monitor from the samples it crawled, so that only the summary is sent
+ * instead of every sample. The metrics are in flat arrays, in the order of
+ * metrics.
+ * 
+ */
+public class SummaryMetadata implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private String type;
+  private long windowStartMillis;
+  private long windowEndMillis;
+  private int[] metrics;
+  private int[] counts;
+  private double[] min;
+  private double[] max;
+  private double[] avg;
+  private double[] last;
+
+  /**
+   * @param windowStartMillis
+   * @param windowEndMillis
+   * @param metrics
+   *          The indexes of the metrics in MachineMetadata.METRIC_NAMES.
+   * @param counts
+   *          The number of samples of each metric in the window.
+   * @param min
+   * @param max
+   * @param avg
+   * @param last
+   */
+  public SummaryMetadata(long windowStartMillis, long windowEndMillis,
+      int[] metrics, int[] counts, double[] min, double[] max, double[] avg,
+      double[] last) {
+    super();
+    this.type = "summary";
+    this.windowStartMillis = windowStartMillis;
+    this.windowEndMillis = windowEndMillis;
+    this.metrics = metrics;
+    this.counts = counts;
+    this.min = min;
+    this.max = max;
+    this.avg = avg;
+    this.last = last;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public long getWindowStartMillis() {
+    return windowStartMillis;
+  }
+
+  public long getWindowEndMillis() {
+    return windowEndMillis;
+  }
+
+  public int[] getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * @param metricIndex
+   *          The index of the metric in MachineMetadata.METRIC_NAMES.
+   * @return The position of the metric in the summary, or -1 if it is not
+   *         summarized or had no sample in the window.
+   */
+  public int indexOf(int metricIndex) {
+    for (int i = 0; i < metrics.length; ++i) {
+      if (metrics[i] == metricIndex) {
+        return counts[i] > 0 ? i : -1;
+      }
+    }
+    return -1;
+  }
+
+  public int getCount(int i) {
+    return counts[i];
+  }
+
+  public double getMin(int i) {
+    return min[i];
+  }
+
+  public double getMax(int i) {
+    return max[i];
+  }
+
+  public double getAvg(int i) {
+    return avg[i];
+  }
+
+  public double getLast(int i) {
+    return last[i];
+  }
+
+  public JsonObject getJson() {
+    JsonObject metadata = new JsonObject();
+    metadata.addProperty("type", type);
+    metadata.addProperty("windowStartMillis", windowStartMillis);
+    metadata.addProperty("windowEndMillis", windowEndMillis);
+    JsonObject metricsJson = new JsonObject();
+    for (int i = 0; i < metrics.length; ++i) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      JsonArray valuesJson = new JsonArray();
+      valuesJson.add(new JsonPrimitive(counts[i]));
+      valuesJson.add(new JsonPrimitive(min[i]));
+      valuesJson.add(new JsonPrimitive(max[i]));
+      valuesJson.add(new JsonPrimitive(avg[i]));
+      valuesJson.add(new JsonPrimitive(last[i]));
+      metricsJson.add(MachineMetadata.METRIC_NAMES[metrics[i]], valuesJson);
+    }
+    metadata.add("metrics", metricsJson); // [count, min, max, avg, last]
+    return metadata;
+  }
+
+  @Override
+  public String toString() {
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(this.getJson());
+  }
+
+}
@@ -0,0 +1,211 @@
+package sysmon.common.sketch;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * LatencyRecorder is a lock-free latency histogram in the manner of
+ * HdrHistogram: the values below 64 have a bucket each, and every power of
+ * two above is split into 32 linear sub-buckets, so a quantile is estimated
+ * within about 1.6% of the exact value. The buckets are a fixed array of
+ * atomic counters, so recording is a few atomic increments, from any number
+ * of threads, and the memory is bounded whatever the values.
+ * 
+ * The unit is up to the caller, e.g. microseconds. Negative values (e.g. the
+ * clock skew between two machines) are recorded as 0. Two recorders can be
+ * merged, e.g. the ones of all the collectors.
+ * 
+ */
+public class LatencyRecorder {
+
+  private static final int SUB_BUCKETS = 32;
+  private static final int LINEAR_VALUES = 2 * SUB_BUCKETS;
+  private static final int LINEAR_BITS = 6; // log2(LINEAR_VALUES)
+  private static final int BUCKET_COUNT = LINEAR_VALUES + (63 - LINEAR_BITS)
+      * SUB_BUCKETS;
+
+  private AtomicLongArray counts;
+  private AtomicLong count;
+  private AtomicLong max;
+
+  public LatencyRecorder() {
+    this.counts = new AtomicLongArray(BUCKET_COUNT);
+    this.count = new AtomicLong();
+    this.max = new AtomicLong();
+  }
+
+  static int bucketOf(long value) {
+    if (value < LINEAR_VALUES) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - (LINEAR_BITS - 1);
+    int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+    return LINEAR_VALUES + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @param bucket
+   * @return The middle of the values of the bucket.
+   */
+  static double valueOf(int bucket) {
+    if (bucket < LINEAR_VALUES) {
+      return bucket;
+    }
+    int exponent = LINEAR_BITS + (bucket - LINEAR_VALUES) / SUB_BUCKETS;
+    int subBucket = SUB_BUCKETS + (bucket - LINEAR_VALUES) % SUB_BUCKETS;
+    int shift = exponent - (LINEAR_BITS - 1);
+    long low = (long) subBucket << shift;
+    return low + ((1L << shift) - 1) / 2.0;
+  }
+
+  /**
+   * Record a value.
+   * 
+   * @param value
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketOf(value));
+    count.incrementAndGet();
+    long currentMax;
+    while (value > (currentMax = max.get())
+        && !max.compareAndSet(currentMax, value)) {
+      // retry
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Estimate the quantile. The recorder may be written meanwhile, the
+   * estimate is then from a mix of before and after.
+   * 
+   * @param q
+   *          In [0, 1].
+   * @return The estimate, NaN if the recorder is empty.
+   */
+  public double getQuantile(double q) {
+    long total = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      total += counts.get(i);
+    }
+    if (total == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) Math.ceil(Math.max(0, Math.min(1, q)) * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      seen += counts.get(i);
+      if (seen >= Math.max(1, rank)) {
+        return Math.min(valueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Add all the values of the other recorder.
+   * 
+   * @param other
+   */
+  public void merge(LatencyRecorder other) {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      long n = other.counts.get(i);
+      if (n > 0) {
+        counts.addAndGet(i, n);
+      }
+    }
+    count.addAndGet(other.count.get());
+    long otherMax = other.max.get();
+    long currentMax;
+    while (otherMax > (currentMax = max.get())
+        && !max.compareAndSet(currentMax, otherMax)) {
+      // retry
+    }
+  }
+
+  /**
+   * Remove all the values.
+   */
+  public void clear() {
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    max.set(0);
+  }
+
+  /**
+   * The count, max and the p50, p99 and p999 estimates.
+   * 
+   * @return
+   */
+  public JsonObject getSummaryJson() {
+    JsonObject summaryJson = new JsonObject();
+    summaryJson.addProperty("count", getCount());
+    if (getCount() > 0) {
+      summaryJson.addProperty("p50", getQuantile(0.5));
+      summaryJson.addProperty("p99", getQuantile(0.99));
+      summaryJson.addProperty("p999", getQuantile(0.999));
+      summaryJson.addProperty("max", getMax());
+    }
+    return summaryJson;
+  }
+
+  /**
+   * Serialize the recorder, so that it can be merged somewhere else; the
+   * non-empty buckets are [bucket, count] pairs.
+   * 
+   * @return
+   */
+  public JsonObject getJson() {
+    JsonObject recorderJson = new JsonObject();
+    recorderJson.addProperty("count", getCount());
+    recorderJson.addProperty("max", getMax());
+    JsonArray bucketsJson = new JsonArray();
+    for (int i = 0; i < BUCKET_COUNT; ++i) {
+      long n = counts.get(i);
+      if (n > 0) {
+        JsonArray bucketJson = new JsonArray();
+        bucketJson.add(new JsonPrimitive(i));
+        bucketJson.add(new JsonPrimitive(n));
+        bucketsJson.add(bucketJson);
+      }
+    }
+    recorderJson.add("buckets", bucketsJson);
+    return recorderJson;
+  }
+
+  /**
+   * Rebuild the recorder from the json generated by getJson().
+   * 
+   * @param recorderJson
+   * @return
+   */
+  public static LatencyRecorder fromJson(JsonObject recorderJson) {
+    LatencyRecorder recorder = new LatencyRecorder();
+    for (JsonElement bucket : recorderJson.get("buckets").getAsJsonArray()) {
+      JsonArray bucketJson = bucket.getAsJsonArray();
+      recorder.counts.set(bucketJson.get(0).getAsInt(), bucketJson.get(1)
+          .getAsLong());
+    }
+    recorder.count.set(recorderJson.get("count").getAsLong());
+    recorder.max.set(recorderJson.get("max").getAsLong());
+    return recorder;
+  }
+
+}
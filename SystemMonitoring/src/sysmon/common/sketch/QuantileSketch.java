@@ -0,0 +1,323 @@
+package sysmon.common.sketch;
+
+import java.util.Arrays;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * QuantileSketch is a mergeable quantile sketch with a relative accuracy
+ * guarantee (DDSketch). A value v goes to the bin ceil(log(v) / log(gamma)),
+ * with gamma = (1 + a) / (1 - a), so every quantile is estimated within a
+ * relative error a. The values below MIN_VALUE (including zero and negative
+ * values) are counted in a separate zero bin.
+ * 
+ * The bins are kept in a dense array; when they would span more than maxBins,
+ * the lowest bins are collapsed into one, so the memory is bounded no matter
+ * how many values are added, and only the lowest quantiles lose accuracy.
+ * 
+ * Two sketches with the same accuracy can be merged, and the result is the
+ * same as if all the values had been added to one sketch.
+ * 
+ */
+public class QuantileSketch {
+
+  public static final double MIN_VALUE = 1e-9;
+  public static final int DEFAULT_MAX_BINS = 2048;
+
+  private double relativeAccuracy;
+  private double gamma;
+  private double logGamma;
+  private int maxBins;
+
+  private long[] bins;
+  private int offset;
+  private int binCount;
+  private long zeroCount;
+  private long count;
+  private double min;
+  private double max;
+  private double sum;
+
+  public QuantileSketch(double relativeAccuracy) {
+    this(relativeAccuracy, DEFAULT_MAX_BINS);
+  }
+
+  public QuantileSketch(double relativeAccuracy, int maxBins) {
+    if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+      throw new IllegalArgumentException("Relative accuracy ["
+          + relativeAccuracy + "] is not in (0, 1).");
+    }
+    this.relativeAccuracy = relativeAccuracy;
+    this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+    this.logGamma = Math.log(gamma);
+    this.maxBins = maxBins;
+    this.bins = new long[16];
+    clear();
+  }
+
+  /**
+   * Remove all the values.
+   */
+  public void clear() {
+    Arrays.fill(bins, 0);
+    offset = 0;
+    binCount = 0;
+    zeroCount = 0;
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+    sum = 0;
+  }
+
+  public void add(double value) {
+    add(value, 1);
+  }
+
+  /**
+   * Add the value n times, e.g. weighted by the time it stands for.
+   * 
+   * @param value
+   * @param n
+   */
+  public void add(double value, long n) {
+    if (value < MIN_VALUE) {
+      zeroCount += n;
+    } else {
+      addToBin((int) Math.ceil(Math.log(value) / logGamma), n);
+    }
+    count += n;
+    sum += value * n;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Add n to the bin, growing the bins or collapsing the lowest ones.
+   * 
+   * @param index
+   * @param n
+   */
+  private void addToBin(int index, long n) {
+    if (binCount == 0) {
+      offset = index;
+      binCount = 1;
+      bins[0] = n;
+      return;
+    }
+    if (index < offset) {
+      int newOffset = Math.max(index, offset + binCount - maxBins);
+      if (newOffset < offset) {
+        shift(newOffset);
+      }
+      index = Math.max(index, offset);
+    } else if (index >= offset + binCount) {
+      int newBinCount = index - offset + 1;
+      if (newBinCount > maxBins) {
+        collapseBelow(index - maxBins + 1);
+        newBinCount = index - offset + 1;
+      }
+      if (newBinCount > bins.length) {
+        bins = Arrays.copyOf(bins, Math.min(maxBins,
+            Math.max(newBinCount, bins.length * 2)));
+      }
+      binCount = newBinCount;
+    }
+    bins[index - offset] += n;
+  }
+
+  /**
+   * Move the bins so that they start at the lower newOffset.
+   * 
+   * @param newOffset
+   */
+  private void shift(int newOffset) {
+    int distance = offset - newOffset;
+    int newBinCount = binCount + distance;
+    long[] newBins = bins;
+    if (newBinCount > bins.length) {
+      newBins = new long[Math.min(maxBins,
+          Math.max(newBinCount, bins.length * 2))];
+    }
+    System.arraycopy(bins, 0, newBins, distance, binCount);
+    Arrays.fill(newBins, 0, distance, 0);
+    bins = newBins;
+    offset = newOffset;
+    binCount = newBinCount;
+  }
+
+  /**
+   * Collapse the bins below newOffset into the bin newOffset.
+   * 
+   * @param newOffset
+   */
+  private void collapseBelow(int newOffset) {
+    int distance = newOffset - offset;
+    if (distance <= 0) {
+      return;
+    }
+    if (distance >= binCount) {
+      long total = 0;
+      for (int i = 0; i < binCount; ++i) {
+        total += bins[i];
+      }
+      Arrays.fill(bins, 0);
+      bins[0] = total;
+      binCount = 1;
+    } else {
+      long collapsed = 0;
+      for (int i = 0; i < distance; ++i) {
+        collapsed += bins[i];
+      }
+      System.arraycopy(bins, distance, bins, 0, binCount - distance);
+      Arrays.fill(bins, binCount - distance, binCount, 0);
+      bins[0] += collapsed;
+      binCount -= distance;
+    }
+    offset = newOffset;
+  }
+
+  /**
+   * Add all the values of the other sketch.
+   * 
+   * @param other
+   *          A sketch with the same relative accuracy.
+   */
+  public void merge(QuantileSketch other) {
+    if (other.relativeAccuracy != relativeAccuracy) {
+      throw new IllegalArgumentException("Cannot merge sketches of accuracy "
+          + relativeAccuracy + " and " + other.relativeAccuracy + ".");
+    }
+    if (other.count == 0) {
+      return;
+    }
+    for (int i = 0; i < other.binCount; ++i) {
+      if (other.bins[i] > 0) {
+        addToBin(other.offset + i, other.bins[i]);
+      }
+    }
+    zeroCount += other.zeroCount;
+    count += other.count;
+    sum += other.sum;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * Estimate the quantile.
+   * 
+   * @param q
+   *          In [0, 1].
+   * @return The estimate, NaN if the sketch is empty.
+   */
+  public double getQuantile(double q) {
+    if (count == 0) {
+      return Double.NaN;
+    }
+    if (q <= 0) {
+      return min;
+    }
+    if (q >= 1) {
+      return max;
+    }
+    long rank = (long) (q * (count - 1));
+    long seen = zeroCount;
+    if (rank < seen) {
+      return Math.max(min, 0);
+    }
+    for (int i = 0; i < binCount; ++i) {
+      seen += bins[i];
+      if (rank < seen) {
+        double estimate = 2 * Math.pow(gamma, offset + i) / (gamma + 1);
+        return Math.max(min, Math.min(max, estimate));
+      }
+    }
+    return max;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return count == 0 ? Double.NaN : min;
+  }
+
+  public double getMax() {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  public double getSum() {
+    return sum;
+  }
+
+  public double getRelativeAccuracy() {
+    return relativeAccuracy;
+  }
+
+  /**
+   * The number of bins in use, for the memory accounting.
+   * 
+   * @return
+   */
+  public int getBinCount() {
+    return binCount;
+  }
+
+  /**
+   * Serialize the sketch, so that it can be merged somewhere else.
+   * 
+   * @return
+   */
+  public JsonObject getJson() {
+    JsonObject sketchJson = new JsonObject();
+    sketchJson.addProperty("relativeAccuracy", relativeAccuracy);
+    sketchJson.addProperty("maxBins", maxBins);
+    sketchJson.addProperty("count", count);
+    sketchJson.addProperty("zeroCount", zeroCount);
+    if (count > 0) {
+      sketchJson.addProperty("min", min);
+      sketchJson.addProperty("max", max);
+    }
+    sketchJson.addProperty("sum", sum);
+    sketchJson.addProperty("offset", offset);
+    JsonArray binsJson = new JsonArray();
+    for (int i = 0; i < binCount; ++i) {
+      binsJson.add(new JsonPrimitive(bins[i]));
+    }
+    sketchJson.add("bins", binsJson);
+    return sketchJson;
+  }
+
+  /**
+   * Rebuild the sketch from the json generated by getJson().
+   * 
+   * @param sketchJson
+   * @return
+   */
+  public static QuantileSketch fromJson(JsonObject sketchJson) {
+    QuantileSketch sketch = new QuantileSketch(sketchJson.get(
+        "relativeAccuracy").getAsDouble(), sketchJson.get("maxBins")
+        .getAsInt());
+    JsonArray binsJson = sketchJson.get("bins").getAsJsonArray();
+    int index = sketchJson.get("offset").getAsInt();
+    for (JsonElement bin : binsJson) {
+      long n = bin.getAsLong();
+      if (n > 0) {
+        sketch.addToBin(index, n);
+      }
+      ++index;
+    }
+    sketch.zeroCount = sketchJson.get("zeroCount").getAsLong();
+    sketch.count = sketchJson.get("count").getAsLong();
+    sketch.sum = sketchJson.get("sum").getAsDouble();
+    if (sketch.count > 0) {
+      sketch.min = sketchJson.get("min").getAsDouble();
+      sketch.max = sketchJson.get("max").getAsDouble();
+    }
+    return sketch;
+  }
+
+}
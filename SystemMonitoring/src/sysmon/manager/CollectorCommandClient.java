@@ -0,0 +1,122 @@
+package sysmon.manager;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.TextMessage;
+
+import sysmon.common.InitiativeCommandHandler;
+
+import com.google.gson.JsonObject;
+
+/**
+ * CollectorCommandClient sends the commands of the manager to a collector.
+ * A request waits for the reply with the same correlation id. The session
+ * is guarded by a lock rather than a monitor, so that a sender on a virtual
+ * thread is not pinned while the message is written.
+ * 
+ */
+public class CollectorCommandClient extends InitiativeCommandHandler {
+
+  private Map<String, BlockingQueue<JsonObject>> pendingRequests;
+  private ReentrantLock sendLock;
+
+  public CollectorCommandClient(String collectorBrokerAddress) {
+    super(collectorBrokerAddress);
+    this.pendingRequests = new ConcurrentHashMap<String, BlockingQueue<JsonObject>>();
+    this.sendLock = new ReentrantLock();
+  }
+
+  /**
+   * Send a command to the collector.
+   * 
+   * @param commandJson
+   * @throws JMSException
+   */
+  public void send(JsonObject commandJson) throws JMSException {
+    sendLock.lock();
+    try {
+      TextMessage commandMessage = commandServiceSession.createTextMessage();
+      commandMessage.setText(commandJson.toString());
+      commandProducer.send(commandMessage);
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  /**
+   * Send a command that expects a reply, see awaitReply().
+   * 
+   * @param commandJson
+   * @return The correlation id of the request.
+   * @throws JMSException
+   */
+  public String sendRequest(JsonObject commandJson) throws JMSException {
+    String correlationID = UUID.randomUUID().toString();
+    pendingRequests.put(correlationID, new ArrayBlockingQueue<JsonObject>(1));
+    sendLock.lock();
+    try {
+      TextMessage commandMessage = commandServiceSession.createTextMessage();
+      commandMessage.setJMSCorrelationID(correlationID);
+      commandMessage.setJMSReplyTo(commandServiceTemporaryQueue);
+      commandMessage.setText(commandJson.toString());
+      commandProducer.send(commandMessage);
+    } catch (JMSException e) {
+      pendingRequests.remove(correlationID);
+      throw e;
+    } finally {
+      sendLock.unlock();
+    }
+    return correlationID;
+  }
+
+  /**
+   * Wait for the reply of a request.
+   * 
+   * @param correlationID
+   * @param timeoutMillis
+   * @return The reply, or null if it does not arrive in time.
+   */
+  public JsonObject awaitReply(String correlationID, long timeoutMillis) {
+    BlockingQueue<JsonObject> reply = pendingRequests.get(correlationID);
+    if (reply == null) {
+      return null;
+    }
+    try {
+      return reply.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      pendingRequests.remove(correlationID);
+    }
+  }
+
+  @Override
+  public void onMessage(Message message) {
+    if (message instanceof TextMessage) {
+      try {
+        String text = ((TextMessage) message).getText();
+        String correlationID = message.getJMSCorrelationID();
+        BlockingQueue<JsonObject> reply = correlationID == null ? null
+            : pendingRequests.get(correlationID);
+        if (reply != null) {
+          reply.offer((JsonObject) jsonParser.parse(text));
+          return;
+        }
+        out.println("Receive from collector [" + remoteBrokerAddress + "]: "
+            + text);
+      } catch (JMSException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+}
@@ -9,6 +9,7 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -100,6 +101,19 @@ public class ConfigReader {
             parameterObj.add(parameterName, parameterJson);
           }
           alertJson.add("parameters", parameterObj);
+          NodeList eplNodes = alertElement.getElementsByTagName("epl");
+          if (eplNodes.getLength() > 0) {
+            alertJson.addProperty("epl", eplNodes.item(0).getTextContent()
+                .trim());
+          }
+          JsonObject actionJson = getAttributesJson(alertElement, "action");
+          if (actionJson != null) {
+            alertJson.add("action", actionJson);
+          }
+          JsonObject ruleJson = getAttributesJson(alertElement, "rule");
+          if (ruleJson != null) {
+            alertJson.add("rule", ruleJson);
+          }
           alertsConfigArray.add(alertJson);
         }
       }
@@ -114,6 +128,172 @@ public class ConfigReader {
     return null;
   }
 
+  /**
+   * Get the configuration about the alert output stage of the collectors: the
+   * attributes of the alertOutput element and its sinks.
+   * 
+   * @return The config, an empty object if there is no alertOutput element,
+   *         or null if the config file cannot be read.
+   */
+  public static JsonObject getAlertOutputConfig() {
+    return getElementConfig("alertOutput", "sink", "sinks");
+  }
+
+  /**
+   * Get the configuration about the quantile sketches on the collectors: the
+   * attributes of the quantileSketch element and its groups.
+   * 
+   * @return The config, an empty object if there is no quantileSketch
+   *         element, or null if the config file cannot be read.
+   */
+  public static JsonObject getQuantileSketchConfig() {
+    return getElementConfig("quantileSketch", "group", "groups");
+  }
+
+  /**
+   * Get the attributes of an element, with the attributes of its child
+   * elements as an array.
+   * 
+   * @param tagName
+   * @param childTagName
+   * @param childrenName
+   *          The name of the array.
+   * @return The config, an empty object if there is no such element, or null
+   *         if the config file cannot be read.
+   */
+  private static JsonObject getElementConfig(String tagName,
+      String childTagName, String childrenName) {
+    try {
+      Document doc = readConfigFile();
+      if (doc == null) {
+        return null;
+      }
+      Element root = doc.getDocumentElement();
+      NodeList nodes = root.getElementsByTagName(tagName);
+      if (nodes.getLength() == 0) {
+        return new JsonObject();
+      }
+      JsonObject configJson = attributesToJson(nodes.item(0));
+      NodeList childNodes = ((Element) nodes.item(0))
+          .getElementsByTagName(childTagName);
+      JsonArray childrenJson = new JsonArray();
+      for (int i = 0; i < childNodes.getLength(); ++i) {
+        childrenJson.add(attributesToJson(childNodes.item(i)));
+      }
+      configJson.add(childrenName, childrenJson);
+      return configJson;
+    } catch (ParserConfigurationException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (SAXException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (IOException e) {
+      out.println("When reading config file. " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Get the configuration about the anomaly detection on the collectors.
+   * 
+   * @return The attributes of the anomalyDetection element, an empty object
+   *         if there is no such element, or null if the config file cannot be
+   *         read.
+   */
+  public static JsonObject getAnomalyDetectionConfig() {
+    try {
+      Document doc = readConfigFile();
+      if (doc == null) {
+        return null;
+      }
+      JsonObject anomalyJson = getAttributesJson(doc.getDocumentElement(),
+          "anomalyDetection");
+      return anomalyJson != null ? anomalyJson : new JsonObject();
+    } catch (ParserConfigurationException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (SAXException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (IOException e) {
+      out.println("When reading config file. " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Get the config of the aggregation on the monitors, see
+   * MetricAggregator.fromJson().
+   * 
+   * @return the config, empty if missing, or null if the file cannot be read.
+   */
+  public static JsonObject getMonitorAggregationConfig() {
+    try {
+      Document doc = readConfigFile();
+      if (doc == null) {
+        return null;
+      }
+      JsonObject aggregationJson = getAttributesJson(
+          doc.getDocumentElement(), "monitorAggregation");
+      return aggregationJson != null ? aggregationJson : new JsonObject();
+    } catch (ParserConfigurationException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (SAXException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (IOException e) {
+      out.println("When reading config file. " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Get the config of the persisted state of the manager, see
+   * ManagerStateStore.fromJson().
+   * 
+   * @return the config, empty if missing, or null if the file cannot be read.
+   */
+  public static JsonObject getManagerStateConfig() {
+    try {
+      Document doc = readConfigFile();
+      if (doc == null) {
+        return null;
+      }
+      JsonObject stateJson = getAttributesJson(doc.getDocumentElement(),
+          "managerState");
+      return stateJson != null ? stateJson : new JsonObject();
+    } catch (ParserConfigurationException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (SAXException e) {
+      out.println("When reading config file. " + e.getMessage());
+    } catch (IOException e) {
+      out.println("When reading config file. " + e.getMessage());
+    }
+    return null;
+  }
+
+  /**
+   * Get the attributes of the first child element with the given tag name.
+   * 
+   * @param parent
+   * @param tagName
+   * @return the attributes as json, or null if there is no such element.
+   */
+  private static JsonObject getAttributesJson(Element parent, String tagName) {
+    NodeList nodes = parent.getElementsByTagName(tagName);
+    if (nodes.getLength() == 0) {
+      return null;
+    }
+    return attributesToJson(nodes.item(0));
+  }
+
+  private static JsonObject attributesToJson(Node node) {
+    JsonObject attributesJson = new JsonObject();
+    NamedNodeMap attributes = node.getAttributes();
+    for (int i = 0; i < attributes.getLength(); ++i) {
+      Node attribute = attributes.item(i);
+      attributesJson.addProperty(attribute.getNodeName(),
+          attribute.getNodeValue());
+    }
+    return attributesJson;
+  }
+
   /**
    * Read the xml file.
    * 
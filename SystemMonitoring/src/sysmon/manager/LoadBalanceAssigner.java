@@ -22,17 +22,22 @@ public class LoadBalanceAssigner extends MonitorAssigner {
     String assignedCollector = null;
     CollectorProfile assignedCollectorProfile = null;
     int leastLoad = Integer.MAX_VALUE;
+    boolean assignedSuspect = true;
 
     synchronized (this.collectorsProfiles) {
       for (Map.Entry<String, CollectorProfile> entry : collectorsProfiles
           .entrySet()) {
         int collectorLoad = entry.getValue().monitorSet.size();
-        if (collectorLoad < leastLoad) {
+        // a suspect collector is only taken if all the collectors are
+        boolean suspect = entry.getValue().isSuspect();
+        if (assignedSuspect && !suspect || assignedSuspect == suspect
+            && collectorLoad < leastLoad) {
           assignedCollector = entry.getKey();
           assignedCollectorProfile = entry.getValue();
           leastLoad = collectorLoad;
+          assignedSuspect = suspect;
         }
-        if (collectorLoad == 0)
+        if (collectorLoad == 0 && !suspect)
           break;
       }
       assignedCollectorProfile.monitorSet.add(monitorName);
@@ -0,0 +1,408 @@
+package sysmon.manager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import sysmon.util.Out;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * ManagerStateStore keeps the topology of the manager on the local disk, so
+ * that a restarted manager knows its collectors and the assignments of the
+ * monitors without them registering again: the collectors with their broker
+ * address, and the collector and id assigned to each monitor.
+ * 
+ * Each change is appended to a log, one json record per line, flushed at
+ * once: {op: "collector", collector: ip, broker: address}, {op: "monitor",
+ * monitor: ip, collector: ip, id: n} or {op: "remove-collector", collector:
+ * ip}, which also unassigns the monitors of the collector; a monitor keeps
+ * its id, which is never given to another monitor. After snapshotEvery
+ * records, the whole state is written to a snapshot (to a temporary file
+ * forced to the disk, then atomically renamed) and the log is truncated. On
+ * startup, load() reads the snapshot and replays the log on top of it; the
+ * records only set the latest value, so a record replayed twice (a crash
+ * between the snapshot and the truncation) is harmless, and a torn last line
+ * (a crash while appending) is skipped.
+ * 
+ * If the disk fails, the state is still kept in memory, as before.
+ * 
+ */
+public class ManagerStateStore {
+
+  public static final String SNAPSHOT_FILE = "snapshot.json";
+  public static final String LOG_FILE = "state.log";
+  public static final int DEFAULT_SNAPSHOT_EVERY = 1000;
+
+  private Out out;
+  private File snapshotFile;
+  private File logFile;
+  private int snapshotEvery;
+  private Map<String, String> collectorBrokers;
+  private Map<String, String> monitorCollectors;
+  private Map<String, Integer> monitorIds;
+  private BufferedWriter logWriter;
+  private int logRecords;
+
+  /**
+   * @param directory
+   *          Where the snapshot and the log are, created if missing.
+   * @param snapshotEvery
+   *          The number of records in the log that triggers a snapshot.
+   */
+  public ManagerStateStore(File directory, int snapshotEvery) {
+    this.out = new Out();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      out.error("Cannot create the state directory [" + directory + "].");
+    }
+    this.snapshotFile = new File(directory, SNAPSHOT_FILE);
+    this.logFile = new File(directory, LOG_FILE);
+    this.snapshotEvery = Math.max(1, snapshotEvery);
+    this.collectorBrokers = new LinkedHashMap<String, String>();
+    this.monitorCollectors = new LinkedHashMap<String, String>();
+    this.monitorIds = new LinkedHashMap<String, Integer>();
+  }
+
+  /**
+   * Create the store from the config, {directory: d, snapshotEvery: n}.
+   * 
+   * @param config
+   *          May be null for the defaults.
+   * @return
+   */
+  public static ManagerStateStore fromJson(JsonObject config) {
+    String directory = config != null && config.has("directory") ? config
+        .get("directory").getAsString() : "manager-state";
+    int snapshotEvery = config != null && config.has("snapshotEvery") ? config
+        .get("snapshotEvery").getAsInt() : DEFAULT_SNAPSHOT_EVERY;
+    return new ManagerStateStore(new File(directory), snapshotEvery);
+  }
+
+  /**
+   * Read the snapshot and replay the log, then open the log for appending.
+   */
+  public synchronized void load() {
+    JsonParser jsonParser = new JsonParser();
+    if (snapshotFile.exists()) {
+      try {
+        BufferedReader reader = new BufferedReader(new FileReader(
+            snapshotFile));
+        try {
+          applySnapshot(jsonParser.parse(reader));
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        out.error("Cannot read the state snapshot: " + e.getMessage());
+      } catch (JsonParseException e) {
+        out.error("Cannot read the state snapshot: " + e.getMessage());
+      }
+    }
+    int skipped = 0;
+    if (logFile.exists()) {
+      try {
+        BufferedReader reader = new BufferedReader(new FileReader(logFile));
+        try {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            try {
+              apply((JsonObject) jsonParser.parse(line));
+              ++logRecords;
+            } catch (RuntimeException e) {
+              ++skipped; // a torn line
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        out.error("Cannot read the state log: " + e.getMessage());
+      }
+    }
+    out.println("State loaded: " + collectorBrokers.size() + " collectors, "
+        + monitorCollectors.size() + " monitors, " + logRecords
+        + " records replayed, " + skipped + " skipped.");
+    if (skipped > 0 || logRecords >= snapshotEvery) {
+      compact();
+    } else {
+      openLog(true);
+    }
+  }
+
+  /**
+   * Apply the snapshot, or nothing if it is not a valid one (e.g. an empty
+   * file, which parses to JsonNull), so that only the log is replayed.
+   * 
+   * @param snapshotElement
+   */
+  private void applySnapshot(JsonElement snapshotElement) {
+    if (!snapshotElement.isJsonObject()
+        || !isJsonObject(snapshotElement.getAsJsonObject(), "collectors")
+        || !isJsonObject(snapshotElement.getAsJsonObject(), "monitors")) {
+      out.error("Invalid state snapshot, replay the log only.");
+      return;
+    }
+    JsonObject snapshotJson = snapshotElement.getAsJsonObject();
+    try {
+      for (Map.Entry<String, JsonElement> entry : snapshotJson
+          .getAsJsonObject("collectors").entrySet()) {
+        collectorBrokers.put(entry.getKey(), entry.getValue().getAsString());
+      }
+      for (Map.Entry<String, JsonElement> entry : snapshotJson
+          .getAsJsonObject("monitors").entrySet()) {
+        JsonObject monitorJson = entry.getValue().getAsJsonObject();
+        if (monitorJson.has("collector")) {
+          monitorCollectors.put(entry.getKey(), monitorJson.get("collector")
+              .getAsString());
+        }
+        monitorIds.put(entry.getKey(), monitorJson.get("id").getAsInt());
+      }
+    } catch (RuntimeException e) {
+      // a member missing or of the wrong type
+      out.error("Invalid state snapshot, replay the log only: " + e);
+      collectorBrokers.clear();
+      monitorCollectors.clear();
+      monitorIds.clear();
+    }
+  }
+
+  private static boolean isJsonObject(JsonObject json, String member) {
+    return json.has(member) && json.get(member).isJsonObject();
+  }
+
+  private void apply(JsonObject recordJson) {
+    String op = recordJson.get("op").getAsString();
+    if (op.equals("collector")) {
+      collectorBrokers.put(recordJson.get("collector").getAsString(),
+          recordJson.get("broker").getAsString());
+    } else if (op.equals("monitor")) {
+      String monitor = recordJson.get("monitor").getAsString();
+      monitorCollectors.put(monitor, recordJson.get("collector")
+          .getAsString());
+      monitorIds.put(monitor, recordJson.get("id").getAsInt());
+    } else if (op.equals("remove-collector")) {
+      String collector = recordJson.get("collector").getAsString();
+      collectorBrokers.remove(collector);
+      monitorCollectors.values().removeAll(Collections.singleton(collector));
+    } else {
+      throw new IllegalArgumentException("Unknown record [" + op + "].");
+    }
+  }
+
+  /**
+   * Record a collector and its broker address.
+   * 
+   * @param collectorIP
+   * @param brokerAddress
+   */
+  public synchronized void putCollector(String collectorIP,
+      String brokerAddress) {
+    if (brokerAddress.equals(collectorBrokers.get(collectorIP))) {
+      return;
+    }
+    JsonObject recordJson = new JsonObject();
+    recordJson.addProperty("op", "collector");
+    recordJson.addProperty("collector", collectorIP);
+    recordJson.addProperty("broker", brokerAddress);
+    apply(recordJson);
+    append(recordJson);
+  }
+
+  /**
+   * Record the collector and the id assigned to a monitor.
+   * 
+   * @param monitorIP
+   * @param collectorIP
+   * @param monitorId
+   */
+  public synchronized void putMonitor(String monitorIP, String collectorIP,
+      int monitorId) {
+    Integer knownId = monitorIds.get(monitorIP);
+    if (collectorIP.equals(monitorCollectors.get(monitorIP))
+        && knownId != null && knownId == monitorId) {
+      return;
+    }
+    JsonObject recordJson = new JsonObject();
+    recordJson.addProperty("op", "monitor");
+    recordJson.addProperty("monitor", monitorIP);
+    recordJson.addProperty("collector", collectorIP);
+    recordJson.addProperty("id", monitorId);
+    apply(recordJson);
+    append(recordJson);
+  }
+
+  /**
+   * Forget a collector, e.g. a decommissioned or dead one, and unassign its
+   * monitors, so that they are assigned again when they register.
+   * 
+   * @param collectorIP
+   */
+  public synchronized void removeCollector(String collectorIP) {
+    if (!collectorBrokers.containsKey(collectorIP)
+        && !monitorCollectors.containsValue(collectorIP)) {
+      return;
+    }
+    JsonObject recordJson = new JsonObject();
+    recordJson.addProperty("op", "remove-collector");
+    recordJson.addProperty("collector", collectorIP);
+    apply(recordJson);
+    append(recordJson);
+  }
+
+  private void append(JsonObject recordJson) {
+    if (logWriter == null) {
+      return; // not loaded, or the disk failed
+    }
+    try {
+      logWriter.write(recordJson.toString());
+      logWriter.newLine();
+      logWriter.flush();
+    } catch (IOException e) {
+      out.error("Cannot append to the state log: " + e.getMessage());
+      closeLog();
+      return;
+    }
+    if (++logRecords >= snapshotEvery) {
+      compact();
+    }
+  }
+
+  /**
+   * Write the whole state to the snapshot and truncate the log.
+   */
+  public synchronized void compact() {
+    JsonObject collectorsJson = new JsonObject();
+    for (Map.Entry<String, String> entry : collectorBrokers.entrySet()) {
+      collectorsJson.addProperty(entry.getKey(), entry.getValue());
+    }
+    JsonObject monitorsJson = new JsonObject();
+    for (Map.Entry<String, Integer> entry : monitorIds.entrySet()) {
+      JsonObject monitorJson = new JsonObject();
+      String collector = monitorCollectors.get(entry.getKey());
+      if (collector != null) { // else unassigned
+        monitorJson.addProperty("collector", collector);
+      }
+      monitorJson.addProperty("id", entry.getValue());
+      monitorsJson.add(entry.getKey(), monitorJson);
+    }
+    JsonObject snapshotJson = new JsonObject();
+    snapshotJson.add("collectors", collectorsJson);
+    snapshotJson.add("monitors", monitorsJson);
+
+    closeLog();
+    File tempFile = new File(snapshotFile.getPath() + ".tmp");
+    try {
+      FileOutputStream output = new FileOutputStream(tempFile);
+      try {
+        output.write(snapshotJson.toString().getBytes("UTF-8"));
+        output.getChannel().force(true);
+      } finally {
+        output.close();
+      }
+      // the log is only truncated once the new snapshot is on the disk
+      Files.move(tempFile.toPath(), snapshotFile.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      forceDirectory();
+    } catch (IOException e) {
+      out.error("Cannot write the state snapshot: " + e.getMessage());
+      openLog(true); // keep appending, the log still has everything
+      return;
+    }
+    logRecords = 0;
+    openLog(false);
+  }
+
+  /**
+   * Flush the rename of the snapshot to the disk. Not every platform can
+   * open a directory (e.g. Windows), the rename is then left to the file
+   * system.
+   */
+  private void forceDirectory() {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(snapshotFile.getAbsoluteFile()
+          .getParentFile().toPath(), StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try {
+      channel.force(true);
+    } catch (IOException e) {
+      // not supported on a directory here
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void openLog(boolean append) {
+    try {
+      logWriter = new BufferedWriter(new FileWriter(logFile, append));
+    } catch (IOException e) {
+      out.error("Cannot open the state log: " + e.getMessage());
+      logWriter = null;
+    }
+  }
+
+  private void closeLog() {
+    if (logWriter != null) {
+      try {
+        logWriter.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      logWriter = null;
+    }
+  }
+
+  public synchronized void close() {
+    closeLog();
+  }
+
+  /**
+   * @return The broker address of each collector.
+   */
+  public synchronized Map<String, String> getCollectors() {
+    return new LinkedHashMap<String, String>(collectorBrokers);
+  }
+
+  /**
+   * @return The collector of each assigned monitor.
+   */
+  public synchronized Map<String, String> getMonitorCollectors() {
+    return new LinkedHashMap<String, String>(monitorCollectors);
+  }
+
+  /**
+   * @return The id of each monitor.
+   */
+  public synchronized Map<String, Integer> getMonitorIds() {
+    return new LinkedHashMap<String, Integer>(monitorIds);
+  }
+
+  /**
+   * @return The number of records appended since the last snapshot.
+   */
+  public synchronized int getLogRecords() {
+    return logRecords;
+  }
+
+}
@@ -1,7 +1,9 @@
 package sysmon.manager;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -13,8 +15,11 @@ import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import sysmon.common.PassiveCommandHandler;
+import sysmon.common.StageLatencies;
+import sysmon.common.sketch.QuantileSketch;
 import sysmon.util.GlobalParameters;
 import sysmon.util.Out;
+import sysmon.util.ThreadFactories;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
@@ -31,30 +36,51 @@ import com.google.gson.JsonPrimitive;
  */
 public class MonitoringManager {
 
+  // how long a collector that answered is taken as alive
+  public static final long LIVENESS_INTERVAL_MILLIS = 60000;
+  public static final long LIVENESS_TIMEOUT_MILLIS = 2000;
+  // how often the collectors not heard of are probed
+  public static final long PROBE_PERIOD_MILLIS = 10000;
+  // consecutive missed probes before a collector is removed
+  public static final int MAX_MISSED_PROBES = 3;
+
   private static MonitoringManager instance;
   private Out out;
 
   private ManagerPassiveCommandHandler passiveCommandHandler;
   private Map<String, CollectorProfile> collectorsProfiles;
   private JsonArray alertJsonConfig;
+  private JsonObject alertOutputJsonConfig;
+  private JsonObject anomalyJsonConfig;
+  private JsonObject quantileJsonConfig;
+  private JsonObject aggregationJsonConfig;
   private MonitorAssigner monitorAssigner;
+  // the dense id of each monitor, kept when it registers again
+  private Map<String, Integer> monitorIds;
+  private int nextMonitorId;
+  private ManagerStateStore stateStore;
 
   /**
    * Get the singleton of monitoring manager.
    * 
    * @return
    */
-  public static MonitoringManager getInstance() {
-    if (instance == null)
-      return new MonitoringManager();
-    else
-      return instance;
+  public static synchronized MonitoringManager getInstance() {
+    if (instance == null) {
+      instance = new MonitoringManager();
+    }
+    return instance;
   }
 
   private MonitoringManager() {
     this.out = new Out();
     this.collectorsProfiles = new HashMap<String, CollectorProfile>();
+    this.monitorIds = new HashMap<String, Integer>();
     this.alertJsonConfig = ConfigReader.getAlertsConfig();
+    this.alertOutputJsonConfig = ConfigReader.getAlertOutputConfig();
+    this.anomalyJsonConfig = ConfigReader.getAnomalyDetectionConfig();
+    this.quantileJsonConfig = ConfigReader.getQuantileSketchConfig();
+    this.aggregationJsonConfig = ConfigReader.getMonitorAggregationConfig();
     JsonObject assignStrategy = ConfigReader.getCollectorAssignConfig();
     String strategy = assignStrategy.get("strategy").getAsString();
 
@@ -68,8 +94,79 @@ public class MonitoringManager {
     } else {
       out.println("Read config file.");
     }
+    this.stateStore = ManagerStateStore.fromJson(ConfigReader
+        .getManagerStateConfig());
+    restoreState();
     this.passiveCommandHandler = new ManagerPassiveCommandHandler(
         GlobalParameters.MANAGER_COMMAND_PORT);
+    ThreadFactories.newThread(ThreadFactories.getDefault(),
+        new CollectorProber(), "collector-prober", true).start();
+  }
+
+  /**
+   * Reload the collectors, the assignments and the ids of the monitors saved
+   * before a restart, so that they do not need to register again.
+   */
+  private void restoreState() {
+    long start = System.currentTimeMillis();
+    stateStore.load();
+    synchronized (collectorsProfiles) {
+      for (Map.Entry<String, String> entry : stateStore.getCollectors()
+          .entrySet()) {
+        collectorsProfiles.put(entry.getKey(), new CollectorProfile(
+            entry.getKey(), entry.getValue()));
+      }
+      for (Map.Entry<String, String> entry : stateStore
+          .getMonitorCollectors().entrySet()) {
+        CollectorProfile profile = collectorsProfiles.get(entry.getValue());
+        if (profile != null) {
+          profile.monitorSet.add(entry.getKey());
+        }
+      }
+    }
+    synchronized (this) {
+      for (Map.Entry<String, Integer> entry : stateStore.getMonitorIds()
+          .entrySet()) {
+        monitorIds.put(entry.getKey(), entry.getValue());
+        nextMonitorId = Math.max(nextMonitorId, entry.getValue() + 1);
+      }
+    }
+    out.println("Restored " + collectorsProfiles.size() + " collectors and "
+        + monitorIds.size() + " monitors in "
+        + (System.currentTimeMillis() - start) + " ms.");
+  }
+
+  /**
+   * Get the collector the monitor is assigned to.
+   * 
+   * @param monitorName
+   * @return null if it is not assigned yet.
+   */
+  private CollectorProfile getAssignedCollector(String monitorName) {
+    synchronized (collectorsProfiles) {
+      for (CollectorProfile profile : collectorsProfiles.values()) {
+        if (profile.monitorSet.contains(monitorName)) {
+          return profile;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Get the id of the monitor, assign the next one, 0, 1, 2..., to a new
+   * monitor. The collectors index their per monitor state by this id.
+   * 
+   * @param monitorName
+   * @return
+   */
+  private synchronized int getMonitorId(String monitorName) {
+    Integer monitorId = monitorIds.get(monitorName);
+    if (monitorId == null) {
+      monitorId = nextMonitorId++;
+      monitorIds.put(monitorName, monitorId);
+    }
+    return monitorId;
   }
 
   /**
@@ -82,6 +179,10 @@ public class MonitoringManager {
     public String collectorBrokerAddress;
     public long secondSinceLastConnected;
     public Set<String> monitorSet;
+    // 0 for a collector restored from the state, not heard of since
+    public volatile long lastAliveMillis;
+    private int missedProbes;
+    private CollectorCommandClient commandClient;
 
     public CollectorProfile(String collectorIPAddress,
         String collectorBrokerAddress) {
@@ -92,6 +193,293 @@ public class MonitoringManager {
       this.monitorSet = new HashSet<String>();
     }
 
+    /**
+     * Get the client to send commands to this collector, connect at the first
+     * time.
+     * 
+     * @return
+     */
+    public synchronized CollectorCommandClient getCommandClient() {
+      if (commandClient == null) {
+        commandClient = new CollectorCommandClient(collectorBrokerAddress);
+      }
+      return commandClient;
+    }
+
+    /**
+     * Record that the collector answered or registered.
+     */
+    public synchronized void markAlive() {
+      lastAliveMillis = System.currentTimeMillis();
+      missedProbes = 0;
+    }
+
+    /**
+     * Record a missed probe.
+     * 
+     * @return The number of consecutive missed probes.
+     */
+    public synchronized int markMissed() {
+      return ++missedProbes;
+    }
+
+    /**
+     * @return Whether the collector missed its last probe.
+     */
+    public synchronized boolean isSuspect() {
+      return missedProbes > 0;
+    }
+
+  }
+
+  /**
+   * Probe the collectors not heard of within LIVENESS_INTERVAL_MILLIS with a
+   * stats request, in parallel and off the command thread. A collector that
+   * misses a probe becomes suspect, it is removed only after
+   * MAX_MISSED_PROBES consecutive missed probes, so that a GC pause or a
+   * slow broker does not drop it.
+   */
+  private class CollectorProber implements Runnable {
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          Thread.sleep(PROBE_PERIOD_MILLIS);
+        } catch (InterruptedException e) {
+          return;
+        }
+        probeCollectors();
+      }
+    }
+
+    private void probeCollectors() {
+      List<CollectorProfile> profiles = new ArrayList<CollectorProfile>();
+      synchronized (collectorsProfiles) {
+        long now = System.currentTimeMillis();
+        for (CollectorProfile profile : collectorsProfiles.values()) {
+          if (now - profile.lastAliveMillis >= LIVENESS_INTERVAL_MILLIS) {
+            profiles.add(profile);
+          }
+        }
+      }
+      JsonObject requestJson = new JsonObject();
+      requestJson.addProperty("type", "stats");
+      List<String> requests = new ArrayList<String>();
+      for (CollectorProfile profile : profiles) {
+        try {
+          CollectorCommandClient client = profile.getCommandClient();
+          requests.add(client.sendRequest(requestJson));
+        } catch (JMSException e) {
+          requests.add(null);
+        } catch (RuntimeException e) {
+          requests.add(null); // the client could not connect
+        }
+      }
+      long deadline = System.currentTimeMillis() + LIVENESS_TIMEOUT_MILLIS;
+      for (int i = 0; i < profiles.size(); ++i) {
+        CollectorProfile profile = profiles.get(i);
+        if (requests.get(i) != null
+            && profile.getCommandClient().awaitReply(requests.get(i),
+                Math.max(0, deadline - System.currentTimeMillis())) != null) {
+          profile.markAlive();
+        } else if (profile.markMissed() >= MAX_MISSED_PROBES) {
+          removeCollector(profile);
+        } else {
+          out.println("Collector [" + profile.collectorIPAddress
+              + "] missed a probe, suspect.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Forget a dead or decommissioned collector and unassign its monitors, so
+   * that they are assigned to another collector when they register again.
+   * 
+   * @param profile
+   */
+  private void removeCollector(CollectorProfile profile) {
+    synchronized (collectorsProfiles) {
+      if (collectorsProfiles.get(profile.collectorIPAddress) != profile) {
+        return; // registered again meanwhile
+      }
+      collectorsProfiles.remove(profile.collectorIPAddress);
+    }
+    stateStore.removeCollector(profile.collectorIPAddress);
+    out.println("Collector [" + profile.collectorIPAddress + "] missed "
+        + MAX_MISSED_PROBES + " probes, removed with its "
+        + profile.monitorSet.size() + " monitors.");
+  }
+
+  /**
+   * Get the collector of the monitor: keep the one it was assigned to unless
+   * it is suspect and a healthy collector can take the monitor, else assign
+   * one. It never waits for a collector to answer.
+   * 
+   * @param monitorName
+   * @return null if there is no collector.
+   */
+  private CollectorProfile assignCollector(String monitorName) {
+    CollectorProfile assignedProfile = getAssignedCollector(monitorName);
+    synchronized (collectorsProfiles) {
+      if (collectorsProfiles.isEmpty()) {
+        return null;
+      }
+      if (assignedProfile != null && assignedProfile.isSuspect()
+          && hasHealthyCollector()) {
+        assignedProfile.monitorSet.remove(monitorName);
+        assignedProfile = null;
+      }
+    }
+    if (assignedProfile == null) {
+      monitorAssigner.assignMonitorToCollector(monitorName);
+      assignedProfile = getAssignedCollector(monitorName);
+    }
+    return assignedProfile;
+  }
+
+  /**
+   * Must be called holding the lock of collectorsProfiles.
+   * 
+   * @return
+   */
+  private boolean hasHealthyCollector() {
+    for (CollectorProfile profile : collectorsProfiles.values()) {
+      if (!profile.isSuspect()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Re-read the alerts, the alert output, the anomaly detection and the
+   * quantile sketches in the config file and push them to all the registered
+   * collectors. The collectors keep the statements of the unchanged alerts.
+   */
+  public void reloadAlertsConfig() {
+    JsonArray newAlertsConfig = ConfigReader.getAlertsConfig();
+    if (newAlertsConfig == null) {
+      out.error("Config file config.xml cannot be read, keep the alerts.");
+      return;
+    }
+    this.alertJsonConfig = newAlertsConfig;
+    this.alertOutputJsonConfig = ConfigReader.getAlertOutputConfig();
+    this.anomalyJsonConfig = ConfigReader.getAnomalyDetectionConfig();
+    this.quantileJsonConfig = ConfigReader.getQuantileSketchConfig();
+    this.aggregationJsonConfig = ConfigReader.getMonitorAggregationConfig();
+    JsonObject commandJson = new JsonObject();
+    commandJson.addProperty("type", "alerts-config-update");
+    commandJson.add("alertsConfig", newAlertsConfig);
+    commandJson.add("alertOutputConfig", alertOutputJsonConfig);
+    commandJson.add("anomalyConfig", anomalyJsonConfig);
+    commandJson.add("quantileConfig", quantileJsonConfig);
+    commandJson.add("aggregationConfig", aggregationJsonConfig);
+    synchronized (collectorsProfiles) {
+      for (CollectorProfile profile : collectorsProfiles.values()) {
+        try {
+          profile.getCommandClient().send(commandJson);
+          out.println("Push alerts config to collector ["
+              + profile.collectorIPAddress + "].");
+        } catch (JMSException e) {
+          out.error("Push alerts config to collector ["
+              + profile.collectorIPAddress + "] failed.");
+        }
+      }
+    }
+  }
+
+  /**
+   * Send the request to all the collectors in parallel, and wait for their
+   * replies; the ones that do not reply within the timeout are left out.
+   * 
+   * @param requestJson
+   * @param timeoutMillis
+   * @return The replies.
+   */
+  private List<JsonObject> requestCollectors(JsonObject requestJson,
+      long timeoutMillis) {
+    List<CollectorProfile> profiles;
+    synchronized (collectorsProfiles) {
+      profiles = new ArrayList<CollectorProfile>(collectorsProfiles.values());
+    }
+    List<String> requests = new ArrayList<String>();
+    List<CollectorCommandClient> clients = new ArrayList<CollectorCommandClient>();
+    for (CollectorProfile profile : profiles) {
+      try {
+        CollectorCommandClient client = profile.getCommandClient();
+        requests.add(client.sendRequest(requestJson));
+        clients.add(client);
+      } catch (JMSException e) {
+        out.error("Send " + requestJson.get("type").getAsString()
+            + " to collector [" + profile.collectorIPAddress + "] failed.");
+      }
+    }
+    List<JsonObject> replies = new ArrayList<JsonObject>();
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    for (int i = 0; i < requests.size(); ++i) {
+      JsonObject reply = clients.get(i).awaitReply(requests.get(i),
+          Math.max(0, deadline - System.currentTimeMillis()));
+      if (reply != null) {
+        replies.add(reply);
+      }
+    }
+    return replies;
+  }
+
+  /**
+   * Query the quantile sketches of all the collectors and merge them. The
+   * collectors are queried in parallel, the ones that do not reply within the
+   * timeout are left out.
+   * 
+   * @param group
+   * @param metric
+   * @param seconds
+   * @param timeoutMillis
+   * @return The merged sketch, null if no collector replied with a sketch.
+   */
+  public QuantileSketch queryFleetQuantiles(String group, String metric,
+      long seconds, long timeoutMillis) {
+    JsonObject queryJson = new JsonObject();
+    queryJson.addProperty("type", "quantile-query");
+    queryJson.addProperty("group", group);
+    queryJson.addProperty("metric", metric);
+    queryJson.addProperty("seconds", seconds);
+    QuantileSketch merged = null;
+    for (JsonObject reply : requestCollectors(queryJson, timeoutMillis)) {
+      if (!reply.has("sketch")) {
+        continue;
+      }
+      QuantileSketch sketch = QuantileSketch.fromJson(reply.get("sketch")
+          .getAsJsonObject());
+      if (merged == null) {
+        merged = sketch;
+      } else {
+        merged.merge(sketch);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Query the stage latencies of all the collectors and merge them, see
+   * StageLatencies.
+   * 
+   * @param timeoutMillis
+   * @return The merged latencies, empty if no collector replied.
+   */
+  public StageLatencies queryFleetStats(long timeoutMillis) {
+    JsonObject queryJson = new JsonObject();
+    queryJson.addProperty("type", "stats");
+    StageLatencies merged = new StageLatencies();
+    for (JsonObject reply : requestCollectors(queryJson, timeoutMillis)) {
+      if (reply.has("recorders")) {
+        merged.merge(StageLatencies.fromJson(reply.get("recorders")
+            .getAsJsonObject()));
+      }
+    }
+    return merged;
   }
 
   // /**
@@ -154,6 +542,12 @@ public class MonitoringManager {
             handleRetrieveMonitors(commandMessage);
           } else if (eventType.equals("retrieve-monitors-by-collector")) {
             handleRetrieveMonitorsByCollector(commandJsonObj, commandMessage);
+          } else if (eventType.equals("reload-alerts-config")) {
+            reloadAlertsConfig();
+          } else if (eventType.equals("fleet-quantile-query")) {
+            handleFleetQuantileQuery(commandJsonObj, commandMessage);
+          } else if (eventType.equals("stats")) {
+            handleStats(commandMessage);
           } else {
             out.println("Receive unidentified command.");
           }
@@ -166,20 +560,30 @@ public class MonitoringManager {
 
     /*
      * If success, return {type: "monitor-registration-response", value:
-     * "success"}
+     * "success", collectorCommandBrokerAddress: address, machineId: id}, else
+     * the value is "failure" and there is no address
      */
     private void handleMonitorRegistration(JsonObject commandJsonObj,
         Message commandMessage) throws JMSException {
       String monitorName = commandJsonObj.get("machineIPAddress").getAsString();
       JsonObject responseJson = new JsonObject();
       responseJson.addProperty("type", "monitor-registration-response");
-      responseJson.addProperty("value", "success");
 
-      // find an available collector
-      String assignedCollectorBrokerAddress = monitorAssigner
-          .assignMonitorToCollector(monitorName);
-      responseJson.addProperty("collectorCommandBrokerAddress",
-          assignedCollectorBrokerAddress);
+      // keep the collector of a monitor registering again unless it is
+      // suspect, else find an available collector
+      CollectorProfile assignedProfile = assignCollector(monitorName);
+      int monitorId = getMonitorId(monitorName);
+      if (assignedProfile != null) {
+        responseJson.addProperty("value", "success");
+        responseJson.addProperty("collectorCommandBrokerAddress",
+            assignedProfile.collectorBrokerAddress);
+        stateStore.putMonitor(monitorName,
+            assignedProfile.collectorIPAddress, monitorId);
+      } else {
+        responseJson.addProperty("value", "failure");
+        out.error("No collector for monitor [" + monitorName + "].");
+      }
+      responseJson.addProperty("machineId", monitorId);
 
       TextMessage responseMessage = this.commandServiceSession
           .createTextMessage();
@@ -202,13 +606,24 @@ public class MonitoringManager {
           "collectorBrokerAddress").getAsString();
       CollectorProfile profile = new CollectorProfile(collectorIPAddress,
           collectorBrokerAddress);
+      profile.markAlive();
       synchronized (collectorsProfiles) {
+        // a collector registering again keeps its monitors
+        CollectorProfile previous = collectorsProfiles.get(collectorIPAddress);
+        if (previous != null) {
+          profile.monitorSet = previous.monitorSet;
+        }
         collectorsProfiles.put(collectorIPAddress, profile);
       }
+      stateStore.putCollector(collectorIPAddress, collectorBrokerAddress);
       JsonObject responseJson = new JsonObject();
       responseJson.addProperty("type", "collector-registration-response");
       responseJson.addProperty("value", "success");
       responseJson.add("alertsConfig", alertJsonConfig);
+      responseJson.add("alertOutputConfig", alertOutputJsonConfig);
+      responseJson.add("anomalyConfig", anomalyJsonConfig);
+      responseJson.add("quantileConfig", quantileJsonConfig);
+      responseJson.add("aggregationConfig", aggregationJsonConfig);
       out.println("Collector [" + collectorIPAddress + "] registered.");
       TextMessage responseMessage = this.commandServiceSession
           .createTextMessage();
@@ -218,6 +633,72 @@ public class MonitoringManager {
           .send(commandMessage.getJMSReplyTo(), responseMessage);
     }
 
+    /**
+     * Answer {type: "fleet-quantile-query", metric: m, group: g, seconds: n,
+     * quantiles: [q1, ..., qn]} with {type: "fleet-quantile-query-response",
+     * count: n, quantiles: {q1: v1, ..., qn: vn}}.
+     * 
+     * @param commandJsonObj
+     * @param commandMessage
+     * @throws JMSException
+     */
+    private void handleFleetQuantileQuery(JsonObject commandJsonObj,
+        Message commandMessage) throws JMSException {
+      String group = commandJsonObj.has("group") ? commandJsonObj.get("group")
+          .getAsString() : "all";
+      QuantileSketch sketch = queryFleetQuantiles(group, commandJsonObj.get(
+          "metric").getAsString(), commandJsonObj.get("seconds").getAsLong(),
+          2000);
+      JsonObject responseJson = new JsonObject();
+      responseJson.addProperty("type", "fleet-quantile-query-response");
+      responseJson.addProperty("count", sketch == null ? 0 : sketch
+          .getCount());
+      JsonObject quantilesJson = new JsonObject();
+      if (sketch != null && sketch.getCount() > 0
+          && commandJsonObj.has("quantiles")) {
+        for (JsonElement quantile : commandJsonObj.get("quantiles")
+            .getAsJsonArray()) {
+          quantilesJson.addProperty(quantile.getAsString(),
+              sketch.getQuantile(quantile.getAsDouble()));
+        }
+      }
+      responseJson.add("quantiles", quantilesJson);
+      if (commandMessage.getJMSReplyTo() == null) {
+        out.println("Fleet quantiles: " + responseJson);
+        return;
+      }
+      TextMessage responseMessage = this.commandServiceSession
+          .createTextMessage();
+      responseMessage.setJMSCorrelationID(commandMessage.getJMSCorrelationID());
+      responseMessage.setText(responseJson.toString());
+      this.commandProducer
+          .send(commandMessage.getJMSReplyTo(), responseMessage);
+    }
+
+    /**
+     * Answer {type: "stats"} with {type: "stats-response", stages: {stage:
+     * {count, p50, p99, p999, max}}}, the stage latencies of all the
+     * collectors merged, in microseconds.
+     * 
+     * @param commandMessage
+     * @throws JMSException
+     */
+    private void handleStats(Message commandMessage) throws JMSException {
+      JsonObject responseJson = new JsonObject();
+      responseJson.addProperty("type", "stats-response");
+      responseJson.add("stages", queryFleetStats(2000).getSummaryJson());
+      if (commandMessage.getJMSReplyTo() == null) {
+        out.println("Fleet stage latencies: " + responseJson);
+        return;
+      }
+      TextMessage responseMessage = this.commandServiceSession
+          .createTextMessage();
+      responseMessage.setJMSCorrelationID(commandMessage.getJMSCorrelationID());
+      responseMessage.setText(responseJson.toString());
+      this.commandProducer
+          .send(commandMessage.getJMSReplyTo(), responseMessage);
+    }
+
     /**
      * If success, return {type: "retrieve-collectors-response", collectors:
      * [collectorIP_1, ..., collectorIP_n]}
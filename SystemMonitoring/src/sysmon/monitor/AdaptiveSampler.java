@@ -0,0 +1,185 @@
+package sysmon.monitor;
+
+import java.util.Arrays;
+
+import sysmon.common.metadata.MachineMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * AdaptiveSampler picks the interval before the next crawl of a crawler from
+ * the metrics of its last sample, between minIntervalMillis and
+ * maxIntervalMillis.
+ * 
+ * Each metric (see MachineMetadata.METRIC_NAMES) keeps its previous value and
+ * an exponentially weighted mean of its absolute changes. A sample is
+ * volatile when a metric changes more than k times its usual change, or when
+ * it is within nearFraction of a threshold pushed by the collector (the
+ * thresholds of its alert rules). A volatile sample drops the interval to the minimum at
+ * once; each stable sample then doubles it, up to the maximum. So a quiet
+ * machine is crawled rarely, and an incident is crawled at full resolution
+ * from its first sample.
+ * 
+ */
+public class AdaptiveSampler {
+
+  public static final double DEFAULT_K = 3;
+  public static final double DEFAULT_NEAR_FRACTION = 0.1;
+
+  private static final double ALPHA = 0.1;
+  private static final int WARM_UP_SAMPLES = 5;
+
+  private long minIntervalMillis;
+  private long maxIntervalMillis;
+  private double k;
+  private double nearFraction;
+  private double[] previous;
+  private double[] meanChange;
+  private int[] count;
+  private volatile double[][] thresholds;
+  private volatile long intervalMillis;
+
+  public AdaptiveSampler(long minIntervalMillis, long maxIntervalMillis) {
+    this(minIntervalMillis, maxIntervalMillis, DEFAULT_K,
+        DEFAULT_NEAR_FRACTION);
+  }
+
+  /**
+   * @param minIntervalMillis
+   *          The interval while the metrics are volatile.
+   * @param maxIntervalMillis
+   *          The interval once the metrics are stable.
+   * @param k
+   *          How many times its usual change a metric must change to be
+   *          volatile.
+   * @param nearFraction
+   *          How close to a threshold, relative to the threshold, is volatile.
+   */
+  public AdaptiveSampler(long minIntervalMillis, long maxIntervalMillis,
+      double k, double nearFraction) {
+    if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis) {
+      throw new IllegalArgumentException("Invalid sampling bounds ["
+          + minIntervalMillis + ", " + maxIntervalMillis + "].");
+    }
+    this.minIntervalMillis = minIntervalMillis;
+    this.maxIntervalMillis = maxIntervalMillis;
+    this.k = k;
+    this.nearFraction = nearFraction;
+    int metricCount = MachineMetadata.METRIC_NAMES.length;
+    this.previous = new double[metricCount];
+    this.meanChange = new double[metricCount];
+    this.count = new int[metricCount];
+    this.thresholds = new double[metricCount][];
+    this.intervalMillis = minIntervalMillis;
+  }
+
+  public long getMinIntervalMillis() {
+    return minIntervalMillis;
+  }
+
+  public long getMaxIntervalMillis() {
+    return maxIntervalMillis;
+  }
+
+  /**
+   * @return The interval picked by the last sample.
+   */
+  public long getIntervalMillis() {
+    return intervalMillis;
+  }
+
+  /**
+   * Replace the thresholds to watch, indexed by metric, null for a metric
+   * without threshold.
+   * 
+   * @param thresholds
+   */
+  public void setThresholds(double[][] thresholds) {
+    this.thresholds = Arrays.copyOf(thresholds,
+        MachineMetadata.METRIC_NAMES.length);
+  }
+
+  /**
+   * Parse the sampling hints of the collector, [{metric: m, threshold: t}],
+   * into thresholds indexed by metric. The unknown metrics are skipped.
+   * 
+   * @param hints
+   * @return
+   */
+  public static double[][] thresholdsFromJson(JsonArray hints) {
+    double[][] thresholds = new double[MachineMetadata.METRIC_NAMES.length][];
+    for (JsonElement hint : hints) {
+      JsonObject hintJson = hint.getAsJsonObject();
+      int metricIndex = MachineMetadata.indexOfMetric(hintJson.get("metric")
+          .getAsString());
+      if (metricIndex < 0) {
+        continue;
+      }
+      double threshold = hintJson.get("threshold").getAsDouble();
+      double[] previous = thresholds[metricIndex];
+      if (previous == null) {
+        thresholds[metricIndex] = new double[] { threshold };
+      } else {
+        thresholds[metricIndex] = Arrays.copyOf(previous, previous.length + 1);
+        thresholds[metricIndex][previous.length] = threshold;
+      }
+    }
+    return thresholds;
+  }
+
+  /**
+   * Update the statistics with the sample and pick the next interval.
+   * 
+   * @param metricValues
+   *          The values of the metrics indexed as METRIC_NAMES, NaN for the
+   *          metrics the crawler does not produce.
+   * @return The interval before the next crawl.
+   */
+  public long onSample(double[] metricValues) {
+    boolean volatileSample = false;
+    double[][] currentThresholds = thresholds;
+    for (int i = 0; i < previous.length; ++i) {
+      double value = metricValues[i];
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      double[] metricThresholds = currentThresholds[i];
+      if (metricThresholds != null) {
+        for (double threshold : metricThresholds) {
+          double margin = Math.max(Math.abs(threshold) * nearFraction, 1e-9);
+          if (Math.abs(value - threshold) <= margin) {
+            volatileSample = true;
+          }
+        }
+      }
+      if (count[i] == 0) {
+        previous[i] = value;
+        count[i] = 1;
+        continue;
+      }
+      double change = Math.abs(value - previous[i]);
+      if (count[i] > WARM_UP_SAMPLES) {
+        // a floor, so that a flat series does not flag every wiggle
+        double floor = Math.max(Math.abs(previous[i]) * 0.01, 1e-6);
+        if (change > k * Math.max(meanChange[i], floor)) {
+          volatileSample = true;
+        }
+      } else {
+        ++count[i];
+      }
+      double weight = Math.max(ALPHA, 1.0 / count[i]);
+      meanChange[i] += weight * (change - meanChange[i]);
+      previous[i] = value;
+    }
+
+    if (volatileSample) {
+      intervalMillis = minIntervalMillis;
+    } else {
+      intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+    }
+    return intervalMillis;
+  }
+
+}
@@ -0,0 +1,210 @@
+package sysmon.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.SummaryMetadata;
+
+import com.google.gson.JsonObject;
+
+/**
+ * MetricAggregator is the aggregation stage of the monitor, between the
+ * crawlers and the sender: the crawlers feed it every sample, and the sender
+ * ships one SummaryMetadata (min, max, time weighted avg and last of each
+ * aggregated metric) per window instead of the samples.
+ * 
+ * A sample in which a metric crosses one of the thresholds pushed by the
+ * collector is flagged, so that the sender also ships it raw at once: the
+ * alerts do not wait for the end of the window.
+ * 
+ */
+public class MetricAggregator {
+
+  private long windowMillis;
+  private int[] metrics;
+  private int[] positions; // the position of each metric in metrics, or -1
+  private volatile double[][] thresholds;
+
+  private long windowStartMillis;
+  private int[] counts;
+  private double[] min;
+  private double[] max;
+  private double[] weightedSum;
+  private double[] weightSum;
+  private double[] last;
+  private long[] lastMillis;
+  private double[] previousValues;
+
+  /**
+   * @param windowMillis
+   * @param metricNames
+   *          The metrics to aggregate, see MachineMetadata.METRIC_NAMES.
+   * @param nowMillis
+   *          The start of the first window.
+   */
+  public MetricAggregator(long windowMillis, String[] metricNames,
+      long nowMillis) {
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("Invalid window [" + windowMillis
+          + "].");
+    }
+    this.windowMillis = windowMillis;
+    int metricCount = MachineMetadata.METRIC_NAMES.length;
+    this.positions = new int[metricCount];
+    Arrays.fill(positions, -1);
+    List<Integer> metricList = new ArrayList<Integer>();
+    for (String metricName : metricNames) {
+      int metricIndex = MachineMetadata.indexOfMetric(metricName);
+      if (metricIndex < 0) {
+        throw new IllegalArgumentException("Unknown metric [" + metricName
+            + "].");
+      }
+      if (positions[metricIndex] < 0) {
+        positions[metricIndex] = metricList.size();
+        metricList.add(metricIndex);
+      }
+    }
+    this.metrics = new int[metricList.size()];
+    for (int i = 0; i < metrics.length; ++i) {
+      metrics[i] = metricList.get(i);
+    }
+    this.thresholds = new double[metricCount][];
+    this.lastMillis = new long[metrics.length];
+    this.previousValues = new double[metricCount];
+    Arrays.fill(previousValues, Double.NaN);
+    reset(nowMillis);
+  }
+
+  /**
+   * Create the aggregator from the config pushed by the collector, {enabled:
+   * "true", windowSeconds: n, metrics: "m1,m2"}. The defaults are 10 seconds
+   * and all the metrics.
+   * 
+   * @param config
+   * @param nowMillis
+   * @return The aggregator, or null if the aggregation is not enabled.
+   */
+  public static MetricAggregator fromJson(JsonObject config, long nowMillis) {
+    if (config == null || !config.has("enabled")
+        || !config.get("enabled").getAsString().equals("true")) {
+      return null;
+    }
+    long windowSeconds = config.has("windowSeconds") ? config.get(
+        "windowSeconds").getAsLong() : 10;
+    String[] metricNames = MachineMetadata.METRIC_NAMES;
+    if (config.has("metrics")) {
+      metricNames = config.get("metrics").getAsString().split("\\s*,\\s*");
+    }
+    return new MetricAggregator(windowSeconds * 1000, metricNames, nowMillis);
+  }
+
+  private void reset(long nowMillis) {
+    windowStartMillis = nowMillis;
+    counts = new int[metrics.length];
+    min = new double[metrics.length];
+    max = new double[metrics.length];
+    weightedSum = new double[metrics.length];
+    weightSum = new double[metrics.length];
+    last = new double[metrics.length];
+  }
+
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+
+  public synchronized long getWindowEndMillis() {
+    return windowStartMillis + windowMillis;
+  }
+
+  /**
+   * @param metricIndex
+   * @return Whether the metric is aggregated.
+   */
+  public boolean isAggregated(int metricIndex) {
+    return positions[metricIndex] >= 0;
+  }
+
+  /**
+   * Replace the thresholds to watch, indexed by metric, null for a metric
+   * without threshold.
+   * 
+   * @param thresholds
+   */
+  public void setThresholds(double[][] thresholds) {
+    this.thresholds = Arrays.copyOf(thresholds,
+        MachineMetadata.METRIC_NAMES.length);
+  }
+
+  /**
+   * Add a sample to the window.
+   * 
+   * @param metricValues
+   *          The values of the metrics indexed as METRIC_NAMES, NaN for the
+   *          metrics the crawler does not produce.
+   * @param nowMillis
+   * @return Whether a metric crossed a threshold since its previous sample.
+   */
+  public synchronized boolean onSample(double[] metricValues, long nowMillis) {
+    boolean crossed = false;
+    double[][] currentThresholds = thresholds;
+    for (int metric = 0; metric < metricValues.length; ++metric) {
+      double value = metricValues[metric];
+      if (Double.isNaN(value)) {
+        continue;
+      }
+      double previous = previousValues[metric];
+      double[] metricThresholds = currentThresholds[metric];
+      if (metricThresholds != null && !Double.isNaN(previous)) {
+        for (double threshold : metricThresholds) {
+          if ((previous > threshold) != (value > threshold)) {
+            crossed = true;
+          }
+        }
+      }
+      previousValues[metric] = value;
+
+      int i = positions[metric];
+      if (i < 0) {
+        continue;
+      }
+      // the sample stands for the time since the previous one, or since the
+      // start of the first window
+      long previousMillis = lastMillis[i] == 0 ? windowStartMillis
+          : lastMillis[i];
+      double weight = Math.max(1, nowMillis - previousMillis);
+      lastMillis[i] = nowMillis;
+      if (counts[i] == 0) {
+        min[i] = value;
+        max[i] = value;
+      } else {
+        min[i] = Math.min(min[i], value);
+        max[i] = Math.max(max[i], value);
+      }
+      weightedSum[i] += value * weight;
+      weightSum[i] += weight;
+      last[i] = value;
+      ++counts[i];
+    }
+    return crossed;
+  }
+
+  /**
+   * Close the window and start the next one.
+   * 
+   * @param nowMillis
+   * @return The summary of the window.
+   */
+  public synchronized SummaryMetadata drain(long nowMillis) {
+    double[] avg = new double[metrics.length];
+    for (int i = 0; i < metrics.length; ++i) {
+      avg[i] = counts[i] == 0 ? Double.NaN : weightedSum[i] / weightSum[i];
+    }
+    SummaryMetadata summary = new SummaryMetadata(windowStartMillis,
+        nowMillis, metrics.clone(), counts, min, max, avg, last);
+    reset(nowMillis);
+    return summary;
+  }
+
+}
@@ -4,32 +4,43 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.jms.Connection;
 import javax.jms.DeliveryMode;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.ObjectMessage;
 import javax.jms.Session;
+import javax.jms.TemporaryQueue;
 import javax.jms.TextMessage;
 import javax.jms.Topic;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 
 import sysmon.common.InitiativeCommandHandler;
-import sysmon.common.metadata.CpuMetadata;
-import sysmon.common.metadata.DiskMetadata;
 import sysmon.common.metadata.MachineMetadata;
-import sysmon.common.metadata.MemoryMetadata;
 import sysmon.monitor.crawler.CPUCrawler;
+import sysmon.monitor.crawler.CgroupCrawler;
 import sysmon.monitor.crawler.Crawler;
 import sysmon.monitor.crawler.DiskCrawler;
+import sysmon.monitor.crawler.DiskIOCrawler;
+import sysmon.monitor.crawler.JvmCrawler;
 import sysmon.monitor.crawler.MemoryCrawler;
+import sysmon.monitor.crawler.NetworkCrawler;
+import sysmon.monitor.crawler.ProcessCrawler;
 import sysmon.util.GlobalParameters;
 import sysmon.util.IPUtil;
 import sysmon.util.Out;
+import sysmon.util.ThreadFactories;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 /**
@@ -49,12 +60,26 @@ public class Monitor {
   private JsonObject assembledStaticMetaData;
   private JsonObject assembledDynamicMetaData;
   private MonitorCommandSender commandSender;
+  private long minSamplingMillis; // 0 for a fixed interval
+  private long maxSamplingMillis;
+  private volatile double[][] samplingThresholds;
+  // a lock rather than a monitor, so a virtual sender is not pinned waiting
+  private final ReentrantLock sendLock = new ReentrantLock();
+  private final Condition sendSignal = sendLock.newCondition();
+  private volatile long crawlCount;
+  private volatile MetricAggregator aggregator;
+  private volatile boolean rawSamplePending;
+  private SelfMonitor selfMonitor;
+  private ThreadFactory threadFactory;
 
   private String collectorCommandBrokerAddress;
+  // assigned by the manager at the registration, -1 until then
+  private volatile int machineId = -1;
   private Boolean collectorCommandBrokerAddressAvailable = false;
 
   public Monitor(String managerBrokerAddress, long monitoringInterval,
       long metaDataSendingInterval) {
+    this.out = new Out();
     this.managerBrokerAddress = managerBrokerAddress;
     this.machinerIPAddress = IPUtil.getFirstAvailableIP();
     this.crawlers = new HashMap<String, CrawlerWorker>();
@@ -63,6 +88,8 @@ public class Monitor {
     setMonitorInterval(monitoringInterval);
     setMetaDataSendingInterval(metaDataSendingInterval);
     this.commandSender = new MonitorCommandSender(this.managerBrokerAddress);
+    this.selfMonitor = new SelfMonitor(0);
+    this.threadFactory = ThreadFactories.getDefault();
   }
 
   public Monitor(String managerBrokerAddress) {
@@ -77,6 +104,151 @@ public class Monitor {
     this.metaDataSendingInterval = second;
   }
 
+  /**
+   * Let each crawler pick its interval between the bounds, see
+   * AdaptiveSampler; the metadata is then sent at the pace of the fastest
+   * crawler, and only when something was crawled. Applies to the crawlers
+   * added afterwards.
+   * 
+   * @param minMillis
+   * @param maxMillis
+   */
+  public void setAdaptiveSampling(long minMillis, long maxMillis) {
+    new AdaptiveSampler(minMillis, maxMillis); // check the bounds
+    this.minSamplingMillis = minMillis;
+    this.maxSamplingMillis = maxMillis;
+  }
+
+  /**
+   * Keep the CPU of the monitor within the budget by backing off or disabling
+   * crawlers, see SelfMonitor. Applies to all the crawlers, at any time.
+   * 
+   * @param cpuBudgetPercent
+   *          In percent of one core, 0 for no budget.
+   */
+  public void setCpuBudget(double cpuBudgetPercent) {
+    selfMonitor.setCpuBudgetPercent(cpuBudgetPercent);
+  }
+
+  /**
+   * Set the factory of the crawler, sender and self-monitor threads, see
+   * ThreadFactories; call before start(). The CPU of a crawler on a virtual
+   * thread is not measured apart, only within the total.
+   * 
+   * @param threadFactory
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  public ThreadFactory getThreadFactory() {
+    return threadFactory;
+  }
+
+  /**
+   * Wake up the sender.
+   */
+  private void signalSender() {
+    sendLock.lock();
+    try {
+      sendSignal.signalAll();
+    } finally {
+      sendLock.unlock();
+    }
+  }
+
+  /**
+   * Apply the sampling hints pushed by the collector to all the crawlers.
+   * 
+   * @param hints
+   *          [{metric: m, threshold: t}]
+   */
+  void applySamplingHints(JsonArray hints) {
+    double[][] thresholds = AdaptiveSampler.thresholdsFromJson(hints);
+    this.samplingThresholds = thresholds;
+    for (CrawlerWorker worker : crawlers.values()) {
+      if (worker.sampler != null) {
+        worker.sampler.setThresholds(thresholds);
+      }
+    }
+    MetricAggregator currentAggregator = aggregator;
+    if (currentAggregator != null) {
+      currentAggregator.setThresholds(thresholds);
+    }
+  }
+
+  /**
+   * Start, replace or stop the aggregation stage with the config pushed by
+   * the collector, see MetricAggregator.fromJson().
+   * 
+   * @param config
+   */
+  void applyAggregationConfig(JsonObject config) {
+    MetricAggregator newAggregator;
+    try {
+      newAggregator = MetricAggregator.fromJson(config,
+          System.currentTimeMillis());
+    } catch (RuntimeException e) {
+      out.error("Skip aggregation " + config + ": "
+          + e.getMessage());
+      return;
+    }
+    if (newAggregator != null && samplingThresholds != null) {
+      newAggregator.setThresholds(samplingThresholds);
+    }
+    this.aggregator = newAggregator;
+    signalSender();
+  }
+
+  /**
+   * Assemble the metadata sent at the end of an aggregation window: the
+   * summary, and the sections of the crawlers whose metrics are not all in
+   * the summary.
+   * 
+   * @param summaryAggregator
+   * @param nowMillis
+   * @return
+   */
+  MachineMetadata assembleSummary(MetricAggregator summaryAggregator,
+      long nowMillis) {
+    MachineMetadata machineMetadata = new MachineMetadata(nowMillis / 1000,
+        this.machinerIPAddress);
+    machineMetadata.setTimestampMillis(nowMillis);
+    machineMetadata.setMachineId(machineId);
+    long crawlMillis = 0;
+    for (CrawlerWorker worker : crawlers.values()) {
+      crawlMillis = Math.max(crawlMillis, worker.lastCrawlMillis);
+      if (!worker.isSummarized(summaryAggregator) && !worker.isDisabled()) {
+        machineMetadata.setSection(worker.getCrawler().getMetadataObject());
+      }
+    }
+    machineMetadata.setCrawlMillis(crawlMillis);
+    machineMetadata.setSelf(selfMonitor.getLatest());
+    machineMetadata.setSummary(summaryAggregator.drain(nowMillis));
+    return machineMetadata;
+  }
+
+  /**
+   * The interval between two sendings: the fixed one, or the current
+   * interval of the fastest adaptive crawler, slowed down as the crawlers by
+   * the CPU budget.
+   * 
+   * @return
+   */
+  long getSendingIntervalMillis() {
+    int backoffFactor = selfMonitor.getBackoffFactor();
+    if (minSamplingMillis <= 0) {
+      return metaDataSendingInterval * 1000 * backoffFactor;
+    }
+    long interval = maxSamplingMillis * backoffFactor;
+    for (CrawlerWorker worker : crawlers.values()) {
+      if (!worker.isDisabled()) {
+        interval = Math.min(interval, worker.getIntervalMillis());
+      }
+    }
+    return interval;
+  }
+
   /**
    * Start the monitor.
    */
@@ -85,7 +257,8 @@ public class Monitor {
     startMonitorWorkers();
     commandSender.registerToManager();
     MetadataMessageSender metadataSender = new MetadataMessageSender();
-    Thread metaDataSenderThread = new Thread(metadataSender);
+    Thread metaDataSenderThread = ThreadFactories.newThread(threadFactory,
+        metadataSender, "metadata-sender", false);
     metaDataSenderThread.start();
   }
 
@@ -97,6 +270,15 @@ public class Monitor {
   public void addCrawler(Crawler crawler) {
     CrawlerWorker crawlerWorker = new CrawlerWorker(crawler,
         this.moniterInterval * 1000);
+    if (minSamplingMillis > 0) {
+      crawlerWorker.sampler = new AdaptiveSampler(minSamplingMillis,
+          maxSamplingMillis);
+      if (samplingThresholds != null) {
+        crawlerWorker.sampler.setThresholds(samplingThresholds);
+      }
+    }
+    crawlerWorker.selfIndex = selfMonitor.addCrawler(crawler
+        .getCrawlerName());
     this.crawlers.put(crawler.getCrawlerName(), crawlerWorker);
   }
 
@@ -105,9 +287,13 @@ public class Monitor {
    */
   private void startMonitorWorkers() {
     for (Map.Entry<String, CrawlerWorker> entry : this.crawlers.entrySet()) {
-      Thread thread = new Thread(entry.getValue());
+      Thread thread = ThreadFactories.newThread(threadFactory,
+          entry.getValue(), "crawler-" + entry.getKey(), false);
       thread.start();
     }
+    Thread selfMonitorThread = ThreadFactories.newThread(threadFactory,
+        selfMonitor, "self-monitor", true);
+    selfMonitorThread.start();
   }
 
   /**
@@ -123,9 +309,7 @@ public class Monitor {
   }
 
   public JsonObject getDynamicMetaData() {
-    synchronized (assembledStaticMetaData) {
-      return assembledDynamicMetaData;
-    }
+    return assembledDynamicMetaData;
   }
 
   // /**
@@ -148,46 +332,129 @@ public class Monitor {
     Date newDate = new Date();
     MachineMetadata machineMetadata = new MachineMetadata(
         newDate.getTime() / 1000, this.machinerIPAddress);
+    machineMetadata.setTimestampMillis(newDate.getTime());
+    machineMetadata.setMachineId(machineId);
 
+    long crawlMillis = 0;
     for (Map.Entry<String, CrawlerWorker> entry : crawlers.entrySet()) {
-      Object metadataObject = entry.getValue().getCrawler().getMetadataObject();
-      if (metadataObject instanceof CpuMetadata) {
-        machineMetadata.setCpu((CpuMetadata) metadataObject);
-      } else if (metadataObject instanceof MemoryMetadata) {
-        machineMetadata.setMemory((MemoryMetadata) metadataObject);
-      } else if (metadataObject instanceof DiskMetadata) {
-        machineMetadata.setDisk((DiskMetadata) metadataObject);
+      if (!entry.getValue().isDisabled()) {
+        machineMetadata.setSection(entry.getValue().getCrawler()
+            .getMetadataObject());
+        crawlMillis = Math.max(crawlMillis, entry.getValue().lastCrawlMillis);
       }
     }
+    machineMetadata.setCrawlMillis(crawlMillis);
+    machineMetadata.setSelf(selfMonitor.getLatest());
 
     return machineMetadata;
   }
 
   /**
    * MonitorWork continuously fetch the dynamic metadata using a specified
-   * Crawler.
+   * Crawler, at a fixed interval, or at the interval picked by its sampler
+   * from the metrics of each sample.
    * 
    */
   public class CrawlerWorker implements Runnable {
 
     private Crawler crawler;
     private long sleepTimeInMillisecond;
+    private AdaptiveSampler sampler;
+    private double[] metricValues;
+    private volatile boolean hasMetrics;
+    private int selfIndex;
+    private volatile long lastCrawlMillis;
 
     public CrawlerWorker(Crawler crawler, long sleepTimeInMillisecond) {
       this.crawler = crawler;
       this.sleepTimeInMillisecond = sleepTimeInMillisecond;
+      this.metricValues = new double[MachineMetadata.METRIC_NAMES.length];
     }
 
     public Crawler getCrawler() {
       return crawler;
     }
 
+    public long getIntervalMillis() {
+      long interval = sampler == null ? sleepTimeInMillisecond : sampler
+          .getIntervalMillis();
+      return interval * selfMonitor.getBackoffFactor();
+    }
+
+    /**
+     * @return Whether the crawler was disabled to keep the CPU budget.
+     */
+    public boolean isDisabled() {
+      return selfMonitor.isDisabled(selfIndex);
+    }
+
+    /**
+     * Whether all the metrics of the crawler are aggregated, so that its
+     * section can be left out of the summaries.
+     * 
+     * @param summaryAggregator
+     * @return
+     */
+    boolean isSummarized(MetricAggregator summaryAggregator) {
+      if (!hasMetrics) {
+        return false;
+      }
+      double[] values = metricValues;
+      for (int i = 0; i < values.length; ++i) {
+        if (!Double.isNaN(values[i]) && !summaryAggregator.isAggregated(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Feed the metrics of the crawler to the aggregation stage, and pick the
+     * next interval from them.
+     * 
+     * @return
+     */
+    private long onCrawled() {
+      MetricAggregator currentAggregator = aggregator;
+      if (sampler == null && currentAggregator == null) {
+        return sleepTimeInMillisecond;
+      }
+      MachineMetadata sample = new MachineMetadata(0, machinerIPAddress);
+      sample.setSection(crawler.getMetadataObject());
+      boolean found = false;
+      for (int i = 0; i < metricValues.length; ++i) {
+        metricValues[i] = sample.getMetricValue(i);
+        found |= !Double.isNaN(metricValues[i]);
+      }
+      hasMetrics = found;
+      if (currentAggregator != null
+          && currentAggregator.onSample(metricValues,
+              System.currentTimeMillis())) {
+        rawSamplePending = true; // ship it at once
+        signalSender();
+      }
+      if (sampler == null) {
+        return sleepTimeInMillisecond;
+      }
+      long previous = sampler.getIntervalMillis();
+      long interval = sampler.onSample(metricValues);
+      if (interval < previous) {
+        signalSender(); // the sender speeds up too
+      }
+      return interval;
+    }
+
     @Override
     public void run() {
-      while (true) {
+      selfMonitor.setCrawlerThread(selfIndex);
+      while (!isDisabled()) {
+        long start = System.nanoTime();
         crawler.updateDynamicMetaData();
+        selfMonitor.recordCrawl(selfIndex, System.nanoTime() - start);
+        lastCrawlMillis = System.currentTimeMillis();
+        ++crawlCount; // a lost increment only delays a sending
         try {
-          Thread.sleep(sleepTimeInMillisecond);
+          Thread.sleep(onCrawled() * selfMonitor.getBackoffFactor());
         } catch (InterruptedException e) {
           e.printStackTrace();
         }
@@ -234,11 +501,13 @@ public class Monitor {
       metaDataProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
     }
 
-    public void sendMonitoredData() throws JMSException {
+    public void sendMonitoredData(MachineMetadata machineMetadata)
+        throws JMSException {
       TextMessage metadataJsonMessage = metaDataSession.createTextMessage();
 
       ObjectMessage metadataObjMessage = metaDataSession.createObjectMessage();
-      metadataObjMessage.setObject(assembleObject());
+      machineMetadata.setSentMillis(System.currentTimeMillis());
+      metadataObjMessage.setObject(machineMetadata);
 
       String correlateionID = UUID.randomUUID().toString();
       metadataJsonMessage.setJMSCorrelationID(correlateionID);
@@ -247,21 +516,52 @@ public class Monitor {
 
     }
 
+    private void send(MachineMetadata machineMetadata) {
+      try {
+        sendMonitoredData(machineMetadata);
+      } catch (JMSException e) {
+        if (e.getMessage().equals("The Session is closed")) {
+          out.println("Cannot connect to collector ["
+              + collectorCommandBrokerAddress + "]");
+        }
+      }
+    }
+
     @Override
     public void run() {
+      long sentCrawlCount = -1;
       while (true) {
-        try {
-          sendMonitoredData();
-        } catch (JMSException e) {
-          if (e.getMessage().equals("The Session is closed")) {
-            out.println("Cannot connect to collector ["
-                + collectorCommandBrokerAddress + "]");
+        long waitMillis;
+        MetricAggregator currentAggregator = aggregator;
+        if (currentAggregator != null) {
+          // a summary per window, and the samples crossing a threshold
+          if (rawSamplePending) {
+            rawSamplePending = false;
+            send(assembleObject());
           }
+          long now = System.currentTimeMillis();
+          if (now >= currentAggregator.getWindowEndMillis()) {
+            send(assembleSummary(currentAggregator, now));
+          }
+          waitMillis = Math.max(1, currentAggregator.getWindowEndMillis()
+              - System.currentTimeMillis());
+        } else {
+          // an adaptive monitor only sends when something was crawled
+          if (minSamplingMillis <= 0 || crawlCount != sentCrawlCount) {
+            sentCrawlCount = crawlCount;
+            send(assembleObject());
+          }
+          waitMillis = getSendingIntervalMillis();
         }
+        sendLock.lock();
         try {
-          Thread.sleep(metaDataSendingInterval * 1000);
+          if (!rawSamplePending) {
+            sendSignal.await(waitMillis, TimeUnit.MILLISECONDS);
+          }
         } catch (InterruptedException e) {
           e.printStackTrace();
+        } finally {
+          sendLock.unlock();
         }
       }
     }
@@ -319,9 +619,38 @@ public class Monitor {
       JsonObject jsonObj = new JsonObject();
       jsonObj.addProperty("type", "monitor-enroll");
       jsonObj.addProperty("machineIPAddress", machinerIPAddress);
+      if (machineId >= 0) {
+        jsonObj.addProperty("machineId", machineId);
+      }
       jsonObj.add("staticMetadata", assembledStaticMetaData);
       TextMessage enrollCommandMessage = session.createTextMessage();
       enrollCommandMessage.setText(jsonObj.toString());
+      // the collector pushes the sampling hints and the aggregation config
+      // to this queue
+      TemporaryQueue hintsQueue = session.createTemporaryQueue();
+      MessageConsumer hintsConsumer = session.createConsumer(hintsQueue);
+      hintsConsumer.setMessageListener(new MessageListener() {
+        @Override
+        public void onMessage(Message message) {
+          if (!(message instanceof TextMessage)) {
+            return;
+          }
+          try {
+            JsonObject hintsJson = (JsonObject) jsonParser
+                .parse(((TextMessage) message).getText());
+            String type = hintsJson.get("type").getAsString();
+            if (type.equals("sampling-hints")) {
+              applySamplingHints(hintsJson.get("hints").getAsJsonArray());
+            } else if (type.equals("aggregation-config")) {
+              applyAggregationConfig(hintsJson.get("config")
+                  .getAsJsonObject());
+            }
+          } catch (JMSException e) {
+            e.printStackTrace();
+          }
+        }
+      });
+      enrollCommandMessage.setJMSReplyTo(hintsQueue);
       producer.send(enrollCommandMessage);
     }
 
@@ -330,7 +659,8 @@ public class Monitor {
       if (commandMessage instanceof TextMessage) {
         /*
          * If success, receive {type: "monitor-registration-response", value:
-         * "success"}
+         * "success", collectorCommandBrokerAddress: address, machineId: id},
+         * the id being missing from an older manager
          */
         try {
           String commandJson = ((TextMessage) commandMessage).getText();
@@ -339,6 +669,9 @@ public class Monitor {
               .equals("monitor-registration-response")
               && jsonObj.get("value").getAsString().equals("success")) {
             out.println(commandJson);
+            if (jsonObj.has("machineId")) {
+              machineId = jsonObj.get("machineId").getAsInt();
+            }
             collectorCommandBrokerAddress = jsonObj.get(
                 "collectorCommandBrokerAddress").getAsString();
             out.println("Intend to enroll to " + collectorCommandBrokerAddress);
@@ -356,20 +689,44 @@ public class Monitor {
 
   public static void main(String[] args) {
     if (args.length < 1) {
-      System.out.println("usage: monitor manager-IP");
+      System.out.println("usage: monitor manager-IP [min-ms max-ms "
+          + "[cpu-budget]]");
       System.out.println("\tmanager-ip\tThe IP address of manager.");
+      System.out.println("\tmin-ms max-ms\tThe bounds of the adaptive "
+          + "sampling interval, e.g. 100 10000.");
+      System.out.println("\tcpu-budget\tThe CPU the monitor may use, in "
+          + "percent of one core, e.g. 5.");
+      System.out.println("\t-D" + ThreadFactories.THREADS_PROPERTY
+          + "=virtual\tRun the workers on virtual threads (JDK 21+).");
       System.exit(1);
     }
     String managerBrokerAddress = "tcp://" + args[0] + ":"
         + GlobalParameters.MANAGER_COMMAND_PORT;
     Monitor m = new Monitor(managerBrokerAddress);
+    if (args.length >= 3) {
+      m.setAdaptiveSampling(Long.parseLong(args[1]), Long.parseLong(args[2]));
+    }
+    if (args.length >= 4) {
+      m.setCpuBudget(Double.parseDouble(args[3]));
+    }
     Crawler cpuCrawler = new CPUCrawler("cpu");
     Crawler memoryCrawler = new MemoryCrawler("memory");
     Crawler diskCrawler = new DiskCrawler("disk");
+    Crawler processCrawler = new ProcessCrawler("process");
+    Crawler networkCrawler = new NetworkCrawler("network");
+    Crawler diskIOCrawler = new DiskIOCrawler("diskio");
+    Crawler cgroupCrawler = new CgroupCrawler("containers");
+    Crawler jvmCrawler = new JvmCrawler("jvm");
     m.addCrawler(cpuCrawler);
     m.addCrawler(memoryCrawler);
     m.addCrawler(diskCrawler);
+    m.addCrawler(processCrawler);
+    m.addCrawler(networkCrawler);
+    m.addCrawler(diskIOCrawler);
+    m.addCrawler(cgroupCrawler);
+    m.addCrawler(jvmCrawler);
     m.start();
+    ThreadFactories.keepAlive(m.getThreadFactory());
   }
 
 }
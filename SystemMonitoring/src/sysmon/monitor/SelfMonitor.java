@@ -0,0 +1,313 @@
+package sysmon.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sysmon.common.metadata.SelfMetadata;
+import sysmon.common.sketch.QuantileSketch;
+
+/**
+ * SelfMonitor measures the overhead of the monitor itself and keeps it within
+ * a CPU budget.
+ * 
+ * Every interval it sums the CPU time of the threads of the monitor (and
+ * their allocated bytes when the JVM tells them) through the ThreadMXBean,
+ * reads the heap, and closes the crawl latency sketch of each crawler, into a
+ * SelfMetadata sent with the other sections.
+ * 
+ * When the CPU of the last interval is over the budget, the crawlers back off:
+ * the backoff factor, by which their intervals are multiplied, doubles up to
+ * maxBackoffFactor. Still over the budget at the maximum backoff, the crawler
+ * that used the most CPU is disabled, as long as another one is left; a
+ * disabled crawler stays disabled. Under half the budget, the backoff factor
+ * halves back towards 1.
+ * 
+ * The CPU of a crawler is unknown (-1) when the ThreadMXBean cannot measure
+ * its thread: a virtual thread (sysmon.threads=virtual), a thread not started
+ * yet, or a JVM without thread CPU time. The costliest crawler cannot be told
+ * then, so no crawler is disabled while one of the enabled crawlers has an
+ * unknown CPU; the backoff still applies.
+ * 
+ */
+public class SelfMonitor implements Runnable {
+
+  public static final int DEFAULT_MAX_BACKOFF_FACTOR = 16;
+  public static final long DEFAULT_INTERVAL_MILLIS = 10000;
+
+  private static final double LATENCY_ACCURACY = 0.02;
+
+  private volatile double cpuBudgetPercent;
+  private int maxBackoffFactor;
+  private long intervalMillis;
+  private ThreadMXBean threadBean;
+  private List<String> crawlerNames;
+  private List<QuantileSketch> latencies;
+  private List<Long> crawlerThreadIds;
+  private List<Long> lastCrawlerCpuNanos;
+  private boolean[] disabled;
+  private volatile int backoffFactor;
+  private volatile SelfMetadata latest;
+
+  private Map<Long, Long> lastCpuNanos;
+  private Map<Long, Long> lastAllocatedBytes;
+  private long lastNanos;
+
+  /**
+   * @param cpuBudgetPercent
+   *          The CPU the monitor may use, in percent of one core, 0 for no
+   *          budget.
+   * @param maxBackoffFactor
+   * @param intervalMillis
+   *          The interval of the measures.
+   */
+  public SelfMonitor(double cpuBudgetPercent, int maxBackoffFactor,
+      long intervalMillis) {
+    if (cpuBudgetPercent < 0 || maxBackoffFactor < 1 || intervalMillis <= 0) {
+      throw new IllegalArgumentException("Invalid budget ["
+          + cpuBudgetPercent + ", " + maxBackoffFactor + ", "
+          + intervalMillis + "].");
+    }
+    this.cpuBudgetPercent = cpuBudgetPercent;
+    this.maxBackoffFactor = maxBackoffFactor;
+    this.intervalMillis = intervalMillis;
+    this.threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean.isThreadCpuTimeSupported()
+        && !threadBean.isThreadCpuTimeEnabled()) {
+      threadBean.setThreadCpuTimeEnabled(true);
+    }
+    this.crawlerNames = new ArrayList<String>();
+    this.latencies = new ArrayList<QuantileSketch>();
+    this.crawlerThreadIds = new ArrayList<Long>();
+    this.lastCrawlerCpuNanos = new ArrayList<Long>();
+    this.disabled = new boolean[0];
+    this.backoffFactor = 1;
+    this.lastCpuNanos = new HashMap<Long, Long>();
+    this.lastAllocatedBytes = new HashMap<Long, Long>();
+    this.lastNanos = System.nanoTime();
+    // the start of the monitor is not charged to the first interval
+    for (long threadId : threadBean.getAllThreadIds()) {
+      long cpu = threadBean.getThreadCpuTime(threadId);
+      if (cpu >= 0) {
+        lastCpuNanos.put(threadId, cpu);
+      }
+    }
+  }
+
+  public SelfMonitor(double cpuBudgetPercent) {
+    this(cpuBudgetPercent, DEFAULT_MAX_BACKOFF_FACTOR, DEFAULT_INTERVAL_MILLIS);
+  }
+
+  public double getCpuBudgetPercent() {
+    return cpuBudgetPercent;
+  }
+
+  /**
+   * Change the budget, the crawlers keep their indexes. Without a budget the
+   * crawlers stop backing off; the disabled ones stay disabled.
+   * 
+   * @param cpuBudgetPercent
+   *          In percent of one core, 0 for no budget.
+   */
+  public synchronized void setCpuBudgetPercent(double cpuBudgetPercent) {
+    if (cpuBudgetPercent < 0) {
+      throw new IllegalArgumentException("Invalid budget ["
+          + cpuBudgetPercent + "].");
+    }
+    this.cpuBudgetPercent = cpuBudgetPercent;
+    if (cpuBudgetPercent == 0) {
+      backoffFactor = 1;
+    }
+  }
+
+  /**
+   * Register a crawler, before the crawlers start.
+   * 
+   * @param crawlerName
+   * @return The index of the crawler, for the other methods.
+   */
+  public synchronized int addCrawler(String crawlerName) {
+    crawlerNames.add(crawlerName);
+    latencies.add(new QuantileSketch(LATENCY_ACCURACY));
+    crawlerThreadIds.add(-1L);
+    lastCrawlerCpuNanos.add(0L);
+    boolean[] newDisabled = new boolean[crawlerNames.size()];
+    System.arraycopy(disabled, 0, newDisabled, 0, disabled.length);
+    disabled = newDisabled;
+    return crawlerNames.size() - 1;
+  }
+
+  /**
+   * Tell the thread of a crawler, called by the thread itself.
+   * 
+   * @param crawlerIndex
+   */
+  public synchronized void setCrawlerThread(int crawlerIndex) {
+    crawlerThreadIds.set(crawlerIndex, Thread.currentThread().getId());
+  }
+
+  /**
+   * Record the latency of a crawl.
+   * 
+   * @param crawlerIndex
+   * @param nanos
+   */
+  public void recordCrawl(int crawlerIndex, long nanos) {
+    QuantileSketch sketch = latencies.get(crawlerIndex);
+    synchronized (sketch) {
+      sketch.add(nanos / 1e6);
+    }
+  }
+
+  public synchronized boolean isDisabled(int crawlerIndex) {
+    return disabled[crawlerIndex];
+  }
+
+  /**
+   * @return How many times slower than configured the crawlers run.
+   */
+  public int getBackoffFactor() {
+    return backoffFactor;
+  }
+
+  /**
+   * @return The last measures, null before the first interval.
+   */
+  public SelfMetadata getLatest() {
+    return latest;
+  }
+
+  /**
+   * Measure the interval since the previous call, and apply the budget.
+   * 
+   * @return
+   */
+  public synchronized SelfMetadata measure() {
+    long now = System.nanoTime();
+    double elapsedNanos = Math.max(1, now - lastNanos);
+    lastNanos = now;
+
+    long cpuNanos = 0;
+    long allocatedBytes = 0;
+    Map<Long, Long> cpuByThread = new HashMap<Long, Long>();
+    Map<Long, Long> allocatedByThread = new HashMap<Long, Long>();
+    com.sun.management.ThreadMXBean allocationBean = null;
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+    }
+    for (long threadId : threadBean.getAllThreadIds()) {
+      long cpu = threadBean.getThreadCpuTime(threadId);
+      if (cpu < 0) {
+        continue; // gone, or not supported
+      }
+      cpuByThread.put(threadId, cpu);
+      Long previous = lastCpuNanos.get(threadId);
+      cpuNanos += cpu - (previous == null ? 0 : previous);
+      if (allocationBean != null) {
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId);
+        if (allocated >= 0) {
+          allocatedByThread.put(threadId, allocated);
+          Long previousAllocated = lastAllocatedBytes.get(threadId);
+          allocatedBytes += allocated
+              - (previousAllocated == null ? 0 : previousAllocated);
+        }
+      }
+    }
+    lastCpuNanos = cpuByThread;
+    lastAllocatedBytes = allocatedByThread;
+    double cpuPercent = 100 * cpuNanos / elapsedNanos;
+
+    int crawlerCount = crawlerNames.size();
+    String[] names = crawlerNames.toArray(new String[crawlerCount]);
+    double[] crawlerCpuPercent = new double[crawlerCount];
+    long[] crawls = new long[crawlerCount];
+    double[] p50Millis = new double[crawlerCount];
+    double[] p99Millis = new double[crawlerCount];
+    double[] maxMillis = new double[crawlerCount];
+    for (int i = 0; i < crawlerCount; ++i) {
+      Long cpu = cpuByThread.get(crawlerThreadIds.get(i));
+      if (cpu != null) {
+        crawlerCpuPercent[i] = 100 * (cpu - lastCrawlerCpuNanos.get(i))
+            / elapsedNanos;
+        lastCrawlerCpuNanos.set(i, cpu);
+      } else {
+        crawlerCpuPercent[i] = -1; // unknown
+      }
+      QuantileSketch sketch = latencies.get(i);
+      synchronized (sketch) {
+        crawls[i] = sketch.getCount();
+        p50Millis[i] = sketch.getQuantile(0.5);
+        p99Millis[i] = sketch.getQuantile(0.99);
+        maxMillis[i] = sketch.getMax();
+        sketch.clear();
+      }
+    }
+    applyBudget(cpuPercent, crawlerCpuPercent);
+
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+        .getHeapMemoryUsage();
+    SelfMetadata selfMetadata = new SelfMetadata(cpuPercent,
+        cpuBudgetPercent, allocatedBytes * 1e9 / elapsedNanos, heap.getUsed(),
+        heap.getMax(), threadBean.getThreadCount(), backoffFactor);
+    selfMetadata.setCrawlers(names, crawlerCpuPercent, crawls, p50Millis,
+        p99Millis, maxMillis, disabled.clone());
+    latest = selfMetadata;
+    return selfMetadata;
+  }
+
+  /**
+   * Back off, disable a crawler or recover, from the CPU of an interval.
+   * 
+   * @param cpuPercent
+   * @param crawlerCpuPercent
+   *          The CPU of each crawler, -1 when unknown.
+   */
+  synchronized void applyBudget(double cpuPercent, double[] crawlerCpuPercent) {
+    if (cpuBudgetPercent <= 0) {
+      return;
+    }
+    if (cpuPercent > cpuBudgetPercent) {
+      if (backoffFactor < maxBackoffFactor) {
+        backoffFactor = Math.min(maxBackoffFactor, backoffFactor * 2);
+        return;
+      }
+      int enabled = 0;
+      int costliest = -1;
+      for (int i = 0; i < disabled.length; ++i) {
+        if (disabled[i]) {
+          continue;
+        }
+        ++enabled;
+        if (crawlerCpuPercent[i] < 0) {
+          return; // cannot tell which crawler costs the most
+        }
+        if (costliest < 0
+            || crawlerCpuPercent[i] > crawlerCpuPercent[costliest]) {
+          costliest = i;
+        }
+      }
+      if (enabled > 1) {
+        disabled[costliest] = true;
+      }
+    } else if (cpuPercent < cpuBudgetPercent / 2 && backoffFactor > 1) {
+      backoffFactor /= 2;
+    }
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        e.printStackTrace();
+      }
+      measure();
+    }
+  }
+
+}
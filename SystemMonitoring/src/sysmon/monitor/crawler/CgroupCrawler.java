@@ -0,0 +1,48 @@
+package sysmon.monitor.crawler;
+
+import sysmon.common.metadata.ContainerMetadata;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Crawl the resource usage of the containers running on the machine from the
+ * cgroup file system. There is no container section if the cgroup file
+ * system is not mounted.
+ * 
+ */
+public class CgroupCrawler extends Crawler<ContainerMetadata> {
+
+  // created on the first crawl, which runs in the super constructor
+  private CgroupReader cgroupReader;
+
+  public CgroupCrawler(String crawlerName) {
+    super(crawlerName);
+  }
+
+  @Override
+  public String getCrawlerType() {
+    return "containers";
+  }
+
+  @Override
+  protected void updateStaticMetaData() {
+    // the containers come and go, everything is dynamic
+  }
+
+  @Override
+  protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
+    if (cgroupReader == null) {
+      cgroupReader = new CgroupReader();
+    }
+    if (!cgroupReader.isAvailable()) {
+      return;
+    }
+    ContainerMetadata containerMetadata = cgroupReader.read(System
+        .currentTimeMillis());
+    this.metadataObject = containerMetadata;
+    newMetaData.addProperty("cgroupVersion", cgroupReader.isUnified() ? 2 : 1);
+    newMetaData.addProperty("containerCount",
+        containerMetadata.getContainerCount());
+  }
+
+}
@@ -0,0 +1,347 @@
+package sysmon.monitor.crawler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import sysmon.common.metadata.ContainerMetadata;
+
+/**
+ * Read the resource usage of the containers from the cgroup file system,
+ * v2 (unified, cpu.stat, memory.current, io.stat) or v1 (cpuacct, memory and
+ * blkio hierarchies).
+ * 
+ * The containers are the cgroup directories whose name has a 64 hex digit
+ * container id (docker, containerd, cri-o, podman), keyed by the first 12
+ * digits. They are discovered by a directory scan every scanIntervalMillis,
+ * and dropped as soon as their files are gone. The stat files are read into
+ * one reused buffer and parsed in place; the counters become rates through a
+ * CounterRates per container. Only the maxContainers containers using the
+ * most CPU are reported.
+ * 
+ */
+public class CgroupReader {
+
+  public static final String DEFAULT_ROOT = "/sys/fs/cgroup";
+  public static final long DEFAULT_SCAN_INTERVAL_MILLIS = 10 * 1000;
+  public static final int DEFAULT_MAX_CONTAINERS = 50;
+
+  private static final Pattern CONTAINER_ID = Pattern
+      .compile("([0-9a-f]{64})");
+  private static final int MAX_DEPTH = 6;
+  private static final long UNLIMITED = 1L << 60;
+
+  private static final int CPU_MICROS = 0;
+  private static final int IO_READ_BYTES = 1;
+  private static final int IO_WRITE_BYTES = 2;
+  private static final int IO_READ_OPS = 3;
+  private static final int IO_WRITE_OPS = 4;
+  private static final int COUNTER_COUNT = 5;
+
+  private File root;
+  private boolean unified;
+  private File cpuacctRoot;
+  private File memoryRoot;
+  private File blkioRoot;
+  private long scanIntervalMillis;
+  private int maxContainers;
+  private Map<String, Container> containers;
+  private long lastScanMillis;
+  private byte[] buffer;
+  private int bufferLength;
+  private long[] counters;
+
+  /**
+   * The state of a container.
+   * 
+   */
+  private static class Container {
+    String id;
+    String path;
+    CounterRates counterRates = new CounterRates(COUNTER_COUNT);
+    double[] values = new double[ContainerMetadata.FIELDS.length];
+  }
+
+  public CgroupReader() {
+    this(DEFAULT_ROOT, DEFAULT_SCAN_INTERVAL_MILLIS, DEFAULT_MAX_CONTAINERS);
+  }
+
+  /**
+   * @param root
+   *          The cgroup mount point.
+   * @param scanIntervalMillis
+   *          The interval between the scans for new containers.
+   * @param maxContainers
+   *          The maximal number of containers reported.
+   */
+  public CgroupReader(String root, long scanIntervalMillis, int maxContainers) {
+    this.root = new File(root);
+    this.unified = new File(root, "cgroup.controllers").exists();
+    this.cpuacctRoot = controllerRoot("cpuacct");
+    this.memoryRoot = controllerRoot("memory");
+    this.blkioRoot = controllerRoot("blkio");
+    this.scanIntervalMillis = scanIntervalMillis;
+    this.maxContainers = maxContainers;
+    this.containers = new LinkedHashMap<String, Container>();
+    this.lastScanMillis = -1;
+    this.buffer = new byte[4096];
+    this.counters = new long[COUNTER_COUNT];
+  }
+
+  public boolean isAvailable() {
+    return root.isDirectory();
+  }
+
+  public boolean isUnified() {
+    return unified;
+  }
+
+  /**
+   * The directory of a v1 controller, e.g. "cpuacct" may be mounted as
+   * "cpu,cpuacct".
+   * 
+   * @param controller
+   * @return
+   */
+  private File controllerRoot(String controller) {
+    if (unified) {
+      return root;
+    }
+    File dir = new File(root, controller);
+    if (dir.isDirectory()) {
+      return dir;
+    }
+    String[] names = root.list();
+    if (names != null) {
+      for (String name : names) {
+        if (Arrays.asList(name.split(",")).contains(controller)) {
+          return new File(root, name);
+        }
+      }
+    }
+    return dir;
+  }
+
+  /**
+   * Find the new containers.
+   */
+  private void scan() {
+    scan(memoryRoot, "", 0);
+  }
+
+  private void scan(File dir, String path, int depth) {
+    if (depth > MAX_DEPTH) {
+      return;
+    }
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      if (!child.isDirectory()) {
+        continue;
+      }
+      String childPath = path + "/" + child.getName();
+      Matcher matcher = CONTAINER_ID.matcher(child.getName());
+      if (matcher.find()) {
+        String id = matcher.group(1).substring(0, 12);
+        if (!containers.containsKey(id)) {
+          Container container = new Container();
+          container.id = id;
+          container.path = childPath;
+          containers.put(id, container);
+        }
+        continue; // the cgroups below belong to the container
+      }
+      scan(child, childPath, depth + 1);
+    }
+  }
+
+  /**
+   * Read the counters of the containers and compute their rates.
+   * 
+   * @param nowMillis
+   * @return
+   */
+  public synchronized ContainerMetadata read(long nowMillis) {
+    if (lastScanMillis < 0 || nowMillis - lastScanMillis >= scanIntervalMillis) {
+      scan();
+      lastScanMillis = nowMillis;
+    }
+    Iterator<Container> itr = containers.values().iterator();
+    while (itr.hasNext()) {
+      Container container = itr.next();
+      if (!readContainer(container)) {
+        itr.remove(); // the container is gone
+        continue;
+      }
+      double[] rates = container.counterRates.update(counters, nowMillis);
+      container.values[ContainerMetadata.CPU_PERCENT] = rates[CPU_MICROS] / 1e4;
+      container.values[ContainerMetadata.IO_READ_BYTES_PER_SEC] = rates[IO_READ_BYTES];
+      container.values[ContainerMetadata.IO_WRITE_BYTES_PER_SEC] = rates[IO_WRITE_BYTES];
+      container.values[ContainerMetadata.IO_READ_OPS_PER_SEC] = rates[IO_READ_OPS];
+      container.values[ContainerMetadata.IO_WRITE_OPS_PER_SEC] = rates[IO_WRITE_OPS];
+    }
+
+    List<Container> kept = new ArrayList<Container>(containers.values());
+    if (kept.size() > maxContainers) {
+      Collections.sort(kept, new Comparator<Container>() {
+        @Override
+        public int compare(Container c1, Container c2) {
+          return Double.compare(c2.values[ContainerMetadata.CPU_PERCENT],
+              c1.values[ContainerMetadata.CPU_PERCENT]);
+        }
+      });
+      kept = kept.subList(0, maxContainers);
+    }
+    int fieldCount = ContainerMetadata.FIELDS.length;
+    String[] ids = new String[kept.size()];
+    double[] values = new double[kept.size() * fieldCount];
+    for (int i = 0; i < ids.length; ++i) {
+      ids[i] = kept.get(i).id;
+      System.arraycopy(kept.get(i).values, 0, values, i * fieldCount,
+          fieldCount);
+    }
+    return new ContainerMetadata(containers.size(), ids, values);
+  }
+
+  /**
+   * Read the counters of the container into counters, and its memory into
+   * its values.
+   * 
+   * @param container
+   * @return false if the container is gone.
+   */
+  private boolean readContainer(Container container) {
+    long memory;
+    long memoryLimit;
+    Arrays.fill(counters, 0);
+    if (unified) {
+      File dir = new File(root, container.path);
+      if (readFile(new File(dir, "cpu.stat")) < 0) {
+        return false;
+      }
+      counters[CPU_MICROS] = sumKey("usage_usec ");
+      memory = readLong(new File(dir, "memory.current"));
+      memoryLimit = readLong(new File(dir, "memory.max"));
+      if (readFile(new File(dir, "io.stat")) >= 0) {
+        counters[IO_READ_BYTES] = sumKey("rbytes=");
+        counters[IO_WRITE_BYTES] = sumKey("wbytes=");
+        counters[IO_READ_OPS] = sumKey("rios=");
+        counters[IO_WRITE_OPS] = sumKey("wios=");
+      }
+    } else {
+      long usageNanos = readLong(new File(cpuacctRoot, container.path
+          + "/cpuacct.usage"));
+      File memoryDir = new File(memoryRoot, container.path);
+      memory = readLong(new File(memoryDir, "memory.usage_in_bytes"));
+      if (usageNanos < 0 && memory < 0) {
+        return false;
+      }
+      counters[CPU_MICROS] = Math.max(0, usageNanos / 1000);
+      memoryLimit = readLong(new File(memoryDir, "memory.limit_in_bytes"));
+      File blkioDir = new File(blkioRoot, container.path);
+      if (readFile(new File(blkioDir, "blkio.throttle.io_service_bytes")) >= 0) {
+        counters[IO_READ_BYTES] = sumKey(" Read ");
+        counters[IO_WRITE_BYTES] = sumKey(" Write ");
+      }
+      if (readFile(new File(blkioDir, "blkio.throttle.io_serviced")) >= 0) {
+        counters[IO_READ_OPS] = sumKey(" Read ");
+        counters[IO_WRITE_OPS] = sumKey(" Write ");
+      }
+    }
+    container.values[ContainerMetadata.MEMORY_BYTES] = Math.max(0, memory);
+    container.values[ContainerMetadata.MEMORY_LIMIT_BYTES] = memoryLimit < 0
+        || memoryLimit >= UNLIMITED ? 0 : memoryLimit;
+    return true;
+  }
+
+  /**
+   * Read the file into the buffer.
+   * 
+   * @param file
+   * @return The number of bytes read, -1 if the file cannot be read.
+   */
+  private int readFile(File file) {
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(file);
+      int length = 0;
+      int n;
+      while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+        length += n;
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+      bufferLength = length;
+      return length;
+    } catch (IOException e) {
+      bufferLength = 0;
+      return -1;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a file holding a number.
+   * 
+   * @param file
+   * @return The number, or -1 if the file cannot be read or is not a number
+   *         (e.g. "max").
+   */
+  private long readLong(File file) {
+    if (readFile(file) <= 0 || buffer[0] < '0' || buffer[0] > '9') {
+      return -1;
+    }
+    return parseLong(0);
+  }
+
+  private long parseLong(int pos) {
+    long value = 0;
+    while (pos < bufferLength && buffer[pos] >= '0' && buffer[pos] <= '9') {
+      value = value * 10 + (buffer[pos++] - '0');
+    }
+    return value;
+  }
+
+  /**
+   * Sum the numbers following every occurrence of the key in the buffer.
+   * 
+   * @param key
+   * @return
+   */
+  private long sumKey(String key) {
+    long sum = 0;
+    int keyLength = key.length();
+    for (int pos = 0; pos + keyLength <= bufferLength; ++pos) {
+      int i = 0;
+      while (i < keyLength && buffer[pos + i] == key.charAt(i)) {
+        ++i;
+      }
+      if (i == keyLength) {
+        sum += parseLong(pos + keyLength);
+        pos += keyLength - 1;
+      }
+    }
+    return sum;
+  }
+
+}
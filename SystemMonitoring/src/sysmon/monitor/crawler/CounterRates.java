@@ -0,0 +1,124 @@
+package sysmon.monitor.crawler;
+
+import java.util.Arrays;
+
+/**
+ * CounterRates turns monotonic counters (bytes, packets, I/Os...) into per
+ * second rates from the deltas between two reads. The previous values and the
+ * rates are kept in arrays allocated once for the number of counters.
+ * 
+ * A counter that goes down has either wrapped around or been reset (e.g. the
+ * interface was reset, the device plugged again or the container restarted).
+ * The width of the counters tells which: a 32 bit counter whose previous
+ * value fits in 32 bits has wrapped, anything else has been reset and the
+ * delta is the new value, the count since the reset. The 64 bit counters
+ * (the default) never wrap in practice.
+ * 
+ * The width of the kernel counters (an unsigned long in /proc/diskstats) is
+ * the one of the kernel, which the JVM cannot tell: a 32 bit JVM may run on a
+ * 64 bit kernel. For counters of UNKNOWN_WIDTH, a decrease is taken as a 32
+ * bit wrap only if it is plausible: the previous value fits in 32 bits and
+ * the wrapped delta is less than half the 32 bit range, i.e. the counter was
+ * close to the top; otherwise it is a reset.
+ * 
+ */
+public class CounterRates {
+
+  public static final long MAX_32_BIT = 0xFFFFFFFFL;
+  public static final int UNKNOWN_WIDTH = 0;
+
+  private int bits;
+  private long[] previous;
+  private double[] rates;
+  private boolean initialized;
+  private long previousMillis;
+
+  /**
+   * Rates of 64 bit counters.
+   * 
+   * @param size
+   */
+  public CounterRates(int size) {
+    this(size, 64);
+  }
+
+  /**
+   * @param size
+   * @param bits
+   *          The width of the counters, 32, 64 or UNKNOWN_WIDTH.
+   */
+  public CounterRates(int size, int bits) {
+    if (bits != 32 && bits != 64 && bits != UNKNOWN_WIDTH) {
+      throw new IllegalArgumentException("Invalid counter width [" + bits
+          + "].");
+    }
+    this.bits = bits;
+    this.previous = new long[size];
+    this.rates = new double[size];
+    this.initialized = false;
+  }
+
+  public int size() {
+    return previous.length;
+  }
+
+  public int getBits() {
+    return bits;
+  }
+
+  /**
+   * The increase of a counter from previous to current.
+   * 
+   * @param previous
+   * @param current
+   * @param bits
+   *          The width of the counter, 32, 64 or UNKNOWN_WIDTH.
+   * @return
+   */
+  public static long delta(long previous, long current, int bits) {
+    if (current >= previous) {
+      return current - previous;
+    }
+    if (bits == 64 || previous > MAX_32_BIT) {
+      return current;
+    }
+    long wrapped = MAX_32_BIT - previous + current + 1;
+    if (bits == 32 || wrapped <= MAX_32_BIT / 2) {
+      return wrapped;
+    }
+    return current;
+  }
+
+  /**
+   * Compute the rates from the new counter values.
+   * 
+   * @param counters
+   *          The counters, in the same order at every update.
+   * @param nowMillis
+   * @return The rates per second, all 0 on the first update. The array is
+   *         reused by the next update.
+   */
+  public double[] update(long[] counters, long nowMillis) {
+    long elapsedMillis = nowMillis - previousMillis;
+    if (!initialized || elapsedMillis <= 0) {
+      Arrays.fill(rates, 0);
+    } else {
+      for (int i = 0; i < previous.length; ++i) {
+        rates[i] = delta(previous[i], counters[i], bits) * 1000.0
+            / elapsedMillis;
+      }
+    }
+    System.arraycopy(counters, 0, previous, 0, previous.length);
+    previousMillis = nowMillis;
+    initialized = true;
+    return rates;
+  }
+
+  /**
+   * Forget the previous values, e.g. when the set of counters changes.
+   */
+  public void reset() {
+    initialized = false;
+  }
+
+}
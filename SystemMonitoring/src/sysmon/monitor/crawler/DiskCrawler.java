@@ -1,5 +1,7 @@
 package sysmon.monitor.crawler;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -18,11 +20,37 @@ import com.google.gson.JsonObject;
 /**
  * Fetch the metadata related to the disk utilization
  * 
+ * The list of the mounted file systems is cached, and only rebuilt when the
+ * mount table changes: on Linux the content of /proc/self/mounts is hashed at
+ * each crawl, which is much cheaper than listing and matching the file
+ * systems, elsewhere the list is rebuilt every MOUNT_CHECK_MILLIS.
+ * 
+ * The static part of the file systems (device, mount point, types) is
+ * captured as FSInfos when the list is rebuilt, and kept in the static
+ * metadata. The crawled DiskMetadata only carries the FSInfos for
+ * STATIC_REPEAT_CRAWLS crawls after they change, and every
+ * STATIC_RESEND_CRAWLS crawls for the receivers that missed them; the usages
+ * refer to them by id.
+ * 
  * @author yexijiang
  * 
  */
 public class DiskCrawler extends Crawler<DiskMetadata> {
 
+  public static final String MOUNTS_PATH = "/proc/self/mounts";
+  public static final long MOUNT_CHECK_MILLIS = 60 * 1000;
+  public static final int STATIC_REPEAT_CRAWLS = 3;
+  public static final int STATIC_RESEND_CRAWLS = 60;
+
+  // set by updateStaticMetaData, which runs in the super constructor
+  private List<FileSystem> mountedFileSystems;
+  private long mountTableHash;
+  private long lastMountCheckMillis;
+  private byte[] mountsBuffer;
+  private DiskMetadata.FSInfo[] fileSystemInfos;
+  private long version;
+  private int crawlsSinceChange;
+
   public DiskCrawler(String crawlerName) {
     super(crawlerName);
   }
@@ -34,32 +62,125 @@ public class DiskCrawler extends Crawler<DiskMetadata> {
 
   @Override
   protected void updateStaticMetaData() {
-    // everything is dynamic
+    try {
+      refreshMountTable();
+    } catch (SigarException e) {
+      e.printStackTrace();
+    }
   }
 
   @Override
   protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
     try {
-      FileSystem[] fsList = sigarProxy.getFileSystemList();
-      FileSystemMap fsMap = new FileSystemMap();
-      fsMap.init(fsList);
-      Set<Map.Entry<String, FileSystem>> entrySet = fsMap.entrySet();
+      if (refreshMountTable()) {
+        crawlsSinceChange = 0;
+      }
       List<DiskMetadata.FS> fsMetadataList = new ArrayList<DiskMetadata.FS>();
-      for (Map.Entry<String, FileSystem> fsEntry : entrySet) {
-        String fsDirName = fsEntry.getKey();
-        FileSystem fs = fsEntry.getValue();
-        if (!fsMap.isMounted(fsDirName))
-          continue;
-        FileSystemUsage fsUsage = sigarProxy.getFileSystemUsage(fsDirName);
-        DiskMetadata.FS fsMetadata = new DiskMetadata.FS(fs.getDevName(),
-            fs.getDirName(), fs.getTypeName(), fs.getSysTypeName(),
+      for (int id = 0; id < mountedFileSystems.size(); ++id) {
+        FileSystemUsage fsUsage = sigarProxy.getFileSystemUsage(mountedFileSystems
+            .get(id).getDirName());
+        DiskMetadata.FS fsMetadata = new DiskMetadata.FS(id,
             fsUsage.getTotal(), fsUsage.getUsed(), fsUsage.getUsePercent());
         fsMetadataList.add(fsMetadata);
       }
-      this.metadataObject = new DiskMetadata(fsMetadataList);
+      boolean sendInfos = crawlsSinceChange < STATIC_REPEAT_CRAWLS
+          || crawlsSinceChange % STATIC_RESEND_CRAWLS == 0;
+      ++crawlsSinceChange;
+      this.metadataObject = new DiskMetadata(version,
+          sendInfos ? fileSystemInfos : null, fsMetadataList);
     } catch (SigarException e) {
       e.printStackTrace();
     }
   }
 
+  /**
+   * Rebuild the list of the mounted file systems if the mount table has
+   * changed.
+   * 
+   * @return true if the file system infos have changed.
+   * @throws SigarException
+   */
+  private boolean refreshMountTable() throws SigarException {
+    long now = System.currentTimeMillis();
+    long hash = hashMountTable();
+    if (mountedFileSystems != null) {
+      if (hash != 0 ? hash == mountTableHash
+          : now - lastMountCheckMillis < MOUNT_CHECK_MILLIS) {
+        return false;
+      }
+    }
+    FileSystem[] fsList = sigarProxy.getFileSystemList();
+    FileSystemMap fsMap = new FileSystemMap();
+    fsMap.init(fsList);
+    List<FileSystem> newMountedFileSystems = new ArrayList<FileSystem>();
+    Set<Map.Entry<String, FileSystem>> entrySet = fsMap.entrySet();
+    for (Map.Entry<String, FileSystem> fsEntry : entrySet) {
+      if (fsMap.isMounted(fsEntry.getKey())) {
+        newMountedFileSystems.add(fsEntry.getValue());
+      }
+    }
+    mountedFileSystems = newMountedFileSystems;
+    mountTableHash = hash;
+    lastMountCheckMillis = now;
+
+    DiskMetadata.FSInfo[] newFileSystemInfos = new DiskMetadata.FSInfo[mountedFileSystems
+        .size()];
+    JsonArray fileSystemsJson = new JsonArray();
+    for (int id = 0; id < newFileSystemInfos.length; ++id) {
+      FileSystem fs = mountedFileSystems.get(id);
+      newFileSystemInfos[id] = new DiskMetadata.FSInfo(id, fs.getDevName(),
+          fs.getDirName(), fs.getTypeName(), fs.getSysTypeName());
+      JsonObject fsJson = new JsonObject();
+      fsJson.addProperty("id", id);
+      fsJson.addProperty("devName", fs.getDevName());
+      fsJson.addProperty("dirName", fs.getDirName());
+      fsJson.addProperty("typeName", fs.getTypeName());
+      fsJson.addProperty("sysTypeName", fs.getSysTypeName());
+      fileSystemsJson.add(fsJson);
+    }
+    long newVersion = DiskMetadata.computeVersion(newFileSystemInfos);
+    if (fileSystemInfos != null && newVersion == version) {
+      return false; // e.g. a remount with the same options
+    }
+    fileSystemInfos = newFileSystemInfos;
+    version = newVersion;
+    this.staticMetaData.addProperty("version", version);
+    this.staticMetaData.add("file-systems", fileSystemsJson);
+    return true;
+  }
+
+  /**
+   * Hash the content of the mount table (FNV-1a).
+   * 
+   * @return The hash, or 0 if the mount table cannot be read.
+   */
+  private long hashMountTable() {
+    if (mountsBuffer == null) {
+      mountsBuffer = new byte[8192];
+    }
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(MOUNTS_PATH);
+      long hash = 0xcbf29ce484222325L;
+      int n;
+      while ((n = in.read(mountsBuffer)) > 0) {
+        for (int i = 0; i < n; ++i) {
+          hash ^= mountsBuffer[i] & 0xff;
+          hash *= 0x100000001b3L;
+        }
+      }
+      return hash == 0 ? 1 : hash;
+    } catch (IOException e) {
+      return 0;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
 }
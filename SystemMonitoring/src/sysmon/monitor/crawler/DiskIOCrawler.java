@@ -0,0 +1,63 @@
+package sysmon.monitor.crawler;
+
+import sysmon.common.metadata.DiskIOMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Crawl the throughput and latency of the block devices from /proc/diskstats.
+ * There is no disk I/O section on the platforms without it.
+ * 
+ */
+public class DiskIOCrawler extends Crawler<DiskIOMetadata> {
+
+  // null during the crawl of the super constructor
+  private DiskStatsReader diskStatsReader;
+
+  public DiskIOCrawler(String crawlerName) {
+    this(crawlerName, new DiskStatsReader());
+  }
+
+  /**
+   * @param crawlerName
+   * @param diskStatsReader
+   *          The reader of the diskstats file, e.g. of a fixture file.
+   */
+  public DiskIOCrawler(String crawlerName, DiskStatsReader diskStatsReader) {
+    super(crawlerName);
+    this.diskStatsReader = diskStatsReader;
+    updateDynamicMetaData(); // the first crawl, with the reader
+  }
+
+  @Override
+  public String getCrawlerType() {
+    return "diskio";
+  }
+
+  @Override
+  protected void updateStaticMetaData() {
+    // the devices are listed in the dynamic metadata
+  }
+
+  @Override
+  protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
+    if (diskStatsReader == null || !diskStatsReader.isAvailable()) {
+      return;
+    }
+    DiskIOMetadata diskIOMetadata = diskStatsReader.read(System
+        .currentTimeMillis());
+    if (diskIOMetadata == null) {
+      return;
+    }
+    this.metadataObject = diskIOMetadata;
+
+    JsonArray devicesJson = new JsonArray();
+    for (String device : diskIOMetadata.getDevices()) {
+      devicesJson.add(new JsonPrimitive(device));
+    }
+    newMetaData.add("devices", devicesJson);
+  }
+
+}
@@ -0,0 +1,177 @@
+package sysmon.monitor.crawler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sysmon.common.metadata.DiskIOMetadata;
+
+/**
+ * Read the block device counters from /proc/diskstats and derive the I/O
+ * rates of each device from the deltas between two reads, like iostat:
+ * IOPS, bytes per second, the average queue depth (the weighted time doing
+ * I/O per second), the utilization (the time doing I/O per second) and the
+ * average wait of the I/Os completed during the interval (iostat's await:
+ * the time in the queue plus the service time, from the read and write
+ * milliseconds, not the io milliseconds).
+ * 
+ * Only the whole disks are kept (the devices found in /sys/block), since the
+ * partitions would be counted twice; the loop and ram devices are skipped.
+ * The counters are kept in arrays that are only reallocated when the device
+ * list changes.
+ * 
+ */
+public class DiskStatsReader {
+
+  public static final String DEFAULT_PATH = "/proc/diskstats";
+  public static final String DEFAULT_SYS_BLOCK_PATH = "/sys/block";
+  public static final int SECTOR_SIZE = 512;
+
+  private static final int READ_OPS = 0;
+  private static final int READ_SECTORS = 1;
+  private static final int READ_MILLIS = 2;
+  private static final int WRITE_OPS = 3;
+  private static final int WRITE_SECTORS = 4;
+  private static final int WRITE_MILLIS = 5;
+  private static final int IO_MILLIS = 6;
+  private static final int WEIGHTED_MILLIS = 7;
+  private static final int COUNTER_COUNT = 8;
+  // the columns of the counters in a line of /proc/diskstats
+  private static final int[] COLUMNS = { 3, 5, 6, 7, 9, 10, 12, 13 };
+  private static final int IN_PROGRESS_COLUMN = 11;
+
+  private String path;
+  private String sysBlockPath;
+  private String[] devices;
+  private long[] counters;
+  private long[] inProgress;
+  private CounterRates counterRates;
+
+  public DiskStatsReader() {
+    this(DEFAULT_PATH, DEFAULT_SYS_BLOCK_PATH);
+  }
+
+  /**
+   * @param path
+   *          The diskstats file.
+   * @param sysBlockPath
+   *          The directory listing the whole disks, all the devices are kept
+   *          if it does not exist.
+   */
+  public DiskStatsReader(String path, String sysBlockPath) {
+    this.path = path;
+    this.sysBlockPath = sysBlockPath;
+    this.devices = new String[0];
+    this.counters = new long[0];
+    this.inProgress = new long[0];
+    this.counterRates = new CounterRates(0);
+  }
+
+  public boolean isAvailable() {
+    return new File(path).canRead();
+  }
+
+  /**
+   * Read the counters and compute the rates since the previous read.
+   * 
+   * @param nowMillis
+   * @return The metadata, with all the rates 0 on the first read or when the
+   *         device list has changed, or null if the file cannot be read.
+   */
+  public synchronized DiskIOMetadata read(long nowMillis) {
+    List<String[]> lines = new ArrayList<String[]>();
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new FileReader(path));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] columns = line.trim().split("\\s+");
+        if (columns.length > COLUMNS[COLUMNS.length - 1]
+            && isWholeDisk(columns[2])) {
+          lines.add(columns);
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return null;
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    if (!sameDevices(lines)) {
+      devices = new String[lines.size()];
+      for (int i = 0; i < devices.length; ++i) {
+        devices[i] = lines.get(i)[2];
+      }
+      counters = new long[devices.length * COUNTER_COUNT];
+      inProgress = new long[devices.length];
+      counterRates = new CounterRates(counters.length,
+          CounterRates.UNKNOWN_WIDTH);
+    }
+    for (int i = 0; i < devices.length; ++i) {
+      String[] columns = lines.get(i);
+      for (int j = 0; j < COUNTER_COUNT; ++j) {
+        counters[i * COUNTER_COUNT + j] = Long.parseLong(columns[COLUMNS[j]]);
+      }
+      inProgress[i] = Long.parseLong(columns[IN_PROGRESS_COLUMN]);
+    }
+    double[] rates = counterRates.update(counters, nowMillis);
+
+    int fieldCount = DiskIOMetadata.FIELDS.length;
+    double[] values = new double[devices.length * fieldCount];
+    for (int i = 0; i < devices.length; ++i) {
+      int c = i * COUNTER_COUNT;
+      int v = i * fieldCount;
+      double ops = rates[c + READ_OPS] + rates[c + WRITE_OPS];
+      values[v + DiskIOMetadata.READ_IOPS] = rates[c + READ_OPS];
+      values[v + DiskIOMetadata.WRITE_IOPS] = rates[c + WRITE_OPS];
+      values[v + DiskIOMetadata.READ_BYTES_PER_SEC] = rates[c + READ_SECTORS]
+          * SECTOR_SIZE;
+      values[v + DiskIOMetadata.WRITE_BYTES_PER_SEC] = rates[c
+          + WRITE_SECTORS]
+          * SECTOR_SIZE;
+      values[v + DiskIOMetadata.QUEUE_DEPTH] = rates[c + WEIGHTED_MILLIS]
+          / 1000;
+      values[v + DiskIOMetadata.UTILIZATION] = Math.min(1,
+          rates[c + IO_MILLIS] / 1000);
+      values[v + DiskIOMetadata.AVG_WAIT_MILLIS] = ops == 0 ? 0
+          : (rates[c + READ_MILLIS] + rates[c + WRITE_MILLIS]) / ops;
+      values[v + DiskIOMetadata.IN_PROGRESS] = inProgress[i];
+    }
+    return new DiskIOMetadata(Arrays.copyOf(devices, devices.length), values);
+  }
+
+  private boolean isWholeDisk(String device) {
+    if (device.startsWith("loop") || device.startsWith("ram")) {
+      return false;
+    }
+    File sysBlock = new File(sysBlockPath);
+    if (!sysBlock.isDirectory()) {
+      return true;
+    }
+    return new File(sysBlock, device.replace('/', '!')).exists();
+  }
+
+  private boolean sameDevices(List<String[]> lines) {
+    if (lines.size() != devices.length) {
+      return false;
+    }
+    for (int i = 0; i < devices.length; ++i) {
+      if (!devices[i].equals(lines.get(i)[2])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
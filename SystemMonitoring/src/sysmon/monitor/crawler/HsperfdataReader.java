@@ -0,0 +1,175 @@
+package sysmon.monitor.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Read the performance counters a HotSpot JVM publishes in its hsperfdata
+ * file (the ones jstat reads), through a read-only memory mapping of the
+ * file. The JVM updates the counters in place, so once the entries have been
+ * indexed by name, reading a counter is a plain memory read: no attach, no
+ * JMX and no safepoint in the target JVM.
+ * 
+ * The file starts with a prologue (magic 0xcafec0c0, always big endian, the
+ * byte order of the rest, version, the offset and number of entries),
+ * followed by the entries: length, name offset, vector length, data type
+ * ('J' for a long, 'B' for a byte vector such as a string), flags, units,
+ * variability and data offset.
+ * 
+ */
+public class HsperfdataReader {
+
+  public static final int MAGIC = 0xcafec0c0;
+
+  private static final int BYTE_ORDER_OFFSET = 4;
+  private static final int ACCESSIBLE_OFFSET = 7;
+  private static final int ENTRY_OFFSET_OFFSET = 24;
+  private static final int NUM_ENTRIES_OFFSET = 28;
+
+  private File file;
+  private MappedByteBuffer buffer;
+  private int indexedEntries;
+  private Map<String, Integer> longOffsets;
+  private Map<String, String> strings;
+
+  /**
+   * Map the file and index its entries.
+   * 
+   * @param file
+   * @throws IOException
+   *           If the file cannot be mapped or is not an hsperfdata file.
+   */
+  public HsperfdataReader(File file) throws IOException {
+    this.file = file;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+          channel.size());
+    } finally {
+      randomAccessFile.close(); // the mapping stays valid
+    }
+    buffer.order(ByteOrder.BIG_ENDIAN);
+    if (buffer.capacity() < 32 || buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not an hsperfdata file.");
+    }
+    buffer.order(buffer.get(BYTE_ORDER_OFFSET) == 0 ? ByteOrder.BIG_ENDIAN
+        : ByteOrder.LITTLE_ENDIAN);
+    this.longOffsets = new HashMap<String, Integer>();
+    this.strings = new HashMap<String, String>();
+    this.indexedEntries = 0;
+    refresh();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Whether the JVM has finished initializing the counters.
+   * 
+   * @return
+   */
+  public boolean isAccessible() {
+    return buffer.get(ACCESSIBLE_OFFSET) != 0;
+  }
+
+  /**
+   * Index the entries added since the last refresh; the JVM only appends
+   * entries, so this is a no-op once it has started.
+   */
+  public synchronized void refresh() {
+    int numEntries = buffer.getInt(NUM_ENTRIES_OFFSET);
+    if (numEntries == indexedEntries) {
+      return;
+    }
+    int entry = buffer.getInt(ENTRY_OFFSET_OFFSET);
+    for (int i = 0; i < numEntries; ++i) {
+      int entryLength = buffer.getInt(entry);
+      if (entryLength <= 0 || entry + entryLength > buffer.capacity()) {
+        break; // being written
+      }
+      if (i >= indexedEntries) {
+        String name = readString(entry + buffer.getInt(entry + 4),
+            entry + entryLength);
+        int vectorLength = buffer.getInt(entry + 8);
+        byte type = buffer.get(entry + 12);
+        int dataOffset = entry + buffer.getInt(entry + 16);
+        if (type == 'J' && vectorLength == 0) {
+          longOffsets.put(name, dataOffset);
+        } else if (type == 'B' && vectorLength > 0) {
+          strings.put(name, readString(dataOffset, dataOffset + vectorLength));
+        }
+      }
+      entry += entryLength;
+    }
+    indexedEntries = numEntries;
+  }
+
+  private String readString(int start, int end) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end && i < buffer.capacity(); ++i) {
+      byte b = buffer.get(i);
+      if (b == 0) {
+        break;
+      }
+      sb.append((char) (b & 0xff));
+    }
+    return sb.toString();
+  }
+
+  public synchronized boolean hasLong(String name) {
+    return longOffsets.containsKey(name);
+  }
+
+  /**
+   * Read the current value of a long counter.
+   * 
+   * @param name
+   *          E.g. "sun.gc.collector.0.invocations".
+   * @return The value, or 0 if there is no such counter.
+   */
+  public long getLong(String name) {
+    Integer offset;
+    synchronized (this) {
+      offset = longOffsets.get(name);
+    }
+    return offset == null ? 0 : buffer.getLong(offset);
+  }
+
+  /**
+   * Get a string, the strings are constant (e.g. "sun.rt.javaCommand").
+   * 
+   * @param name
+   * @return The string, or null if there is no such string.
+   */
+  public synchronized String getString(String name) {
+    return strings.get(name);
+  }
+
+  /**
+   * Sum the long counters whose name starts with prefix and ends with suffix,
+   * e.g. the used bytes of all the spaces of a generation.
+   * 
+   * @param prefix
+   * @param suffix
+   * @return
+   */
+  public synchronized long sumLongs(String prefix, String suffix) {
+    long sum = 0;
+    for (Map.Entry<String, Integer> entry : longOffsets.entrySet()) {
+      String name = entry.getKey();
+      if (name.startsWith(prefix) && name.endsWith(suffix)) {
+        sum += buffer.getLong(entry.getValue());
+      }
+    }
+    return sum;
+  }
+
+}
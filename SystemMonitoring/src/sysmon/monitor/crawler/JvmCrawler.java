@@ -0,0 +1,42 @@
+package sysmon.monitor.crawler;
+
+import sysmon.common.metadata.JvmMetadata;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Crawl the GC, heap and thread counters of the JVMs running on the machine
+ * from their hsperfdata files, without attaching to them. JVMs started with
+ * -XX:-UsePerfData have no hsperfdata file and are not seen.
+ * 
+ */
+public class JvmCrawler extends Crawler<JvmMetadata> {
+
+  // created on the first crawl, which runs in the super constructor
+  private JvmReader jvmReader;
+
+  public JvmCrawler(String crawlerName) {
+    super(crawlerName);
+  }
+
+  @Override
+  public String getCrawlerType() {
+    return "jvm";
+  }
+
+  @Override
+  protected void updateStaticMetaData() {
+    // the JVMs come and go, everything is dynamic
+  }
+
+  @Override
+  protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
+    if (jvmReader == null) {
+      jvmReader = new JvmReader();
+    }
+    JvmMetadata jvmMetadata = jvmReader.read(System.currentTimeMillis());
+    this.metadataObject = jvmMetadata;
+    newMetaData.addProperty("jvmCount", jvmMetadata.getJvmCount());
+  }
+
+}
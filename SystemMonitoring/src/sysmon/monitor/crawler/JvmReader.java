@@ -0,0 +1,233 @@
+package sysmon.monitor.crawler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import sysmon.common.metadata.JvmMetadata;
+
+/**
+ * Read the GC, heap and thread counters of the JVMs running on the machine
+ * from their hsperfdata files (&lt;tmpdir&gt;/hsperfdata_&lt;user&gt;/&lt;pid&gt;).
+ * 
+ * The files are found by a directory scan every scanIntervalMillis and
+ * mapped once by an HsperfdataReader; a JVM is dropped when its file is gone
+ * (it is deleted when the JVM exits) or, where /proc exists, when its
+ * process is gone (a killed JVM leaves its file behind). The GC time becomes
+ * the fraction of time spent in GC through a CounterRates per JVM. Only the
+ * maxJvms JVMs spending the most time in GC are reported.
+ * 
+ */
+public class JvmReader {
+
+  public static final long DEFAULT_SCAN_INTERVAL_MILLIS = 10 * 1000;
+  public static final int DEFAULT_MAX_JVMS = 20;
+
+  private static final String YOUNG_COLLECTOR = "sun.gc.collector.0.";
+  private static final String OLD_COLLECTOR = "sun.gc.collector.1.";
+  private static final String YOUNG_GENERATION = "sun.gc.generation.0.";
+  private static final String OLD_GENERATION = "sun.gc.generation.1.";
+
+  private File tmpDir;
+  private File procDir;
+  private long scanIntervalMillis;
+  private int maxJvms;
+  private Map<Integer, Jvm> jvms;
+  private long lastScanMillis;
+  private long[] counters;
+
+  /**
+   * The state of a JVM.
+   * 
+   */
+  private static class Jvm {
+    int pid;
+    String name;
+    HsperfdataReader reader;
+    double ticksPerSecond;
+    CounterRates counterRates = new CounterRates(1);
+    double[] values = new double[JvmMetadata.FIELDS.length];
+  }
+
+  public JvmReader() {
+    this(System.getProperty("java.io.tmpdir"), "/proc",
+        DEFAULT_SCAN_INTERVAL_MILLIS, DEFAULT_MAX_JVMS);
+  }
+
+  /**
+   * @param tmpDir
+   *          The directory holding the hsperfdata_&lt;user&gt; directories.
+   * @param procDir
+   *          The proc file system, used to check the JVMs are alive if it
+   *          exists.
+   * @param scanIntervalMillis
+   *          The interval between the scans for new JVMs.
+   * @param maxJvms
+   *          The maximal number of JVMs reported.
+   */
+  public JvmReader(String tmpDir, String procDir, long scanIntervalMillis,
+      int maxJvms) {
+    this.tmpDir = new File(tmpDir);
+    this.procDir = new File(procDir);
+    this.scanIntervalMillis = scanIntervalMillis;
+    this.maxJvms = maxJvms;
+    this.jvms = new LinkedHashMap<Integer, Jvm>();
+    this.lastScanMillis = -1;
+    this.counters = new long[1];
+  }
+
+  /**
+   * Find the new JVMs.
+   */
+  private void scan() {
+    File[] userDirs = tmpDir.listFiles();
+    if (userDirs == null) {
+      return;
+    }
+    for (File userDir : userDirs) {
+      if (!userDir.getName().startsWith("hsperfdata_")) {
+        continue;
+      }
+      File[] files = userDir.listFiles();
+      if (files == null) {
+        continue; // not readable
+      }
+      for (File file : files) {
+        int pid;
+        try {
+          pid = Integer.parseInt(file.getName());
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (jvms.containsKey(pid) || !isAlive(pid)) {
+          continue;
+        }
+        try {
+          Jvm jvm = new Jvm();
+          jvm.pid = pid;
+          jvm.reader = new HsperfdataReader(file);
+          jvms.put(pid, jvm);
+        } catch (IOException e) {
+          // not readable by this user, or not initialized yet
+        }
+      }
+    }
+  }
+
+  private boolean isAlive(int pid) {
+    return !procDir.isDirectory()
+        || new File(procDir, Integer.toString(pid)).exists();
+  }
+
+  /**
+   * Read the counters of the JVMs.
+   * 
+   * @param nowMillis
+   * @return
+   */
+  public synchronized JvmMetadata read(long nowMillis) {
+    if (lastScanMillis < 0 || nowMillis - lastScanMillis >= scanIntervalMillis) {
+      scan();
+      lastScanMillis = nowMillis;
+    }
+    List<Jvm> kept = new ArrayList<Jvm>();
+    Iterator<Jvm> itr = jvms.values().iterator();
+    while (itr.hasNext()) {
+      Jvm jvm = itr.next();
+      if (!jvm.reader.getFile().exists() || !isAlive(jvm.pid)) {
+        itr.remove(); // the JVM is gone
+        continue;
+      }
+      if (!jvm.reader.isAccessible()) {
+        continue; // still starting
+      }
+      readJvm(jvm, nowMillis);
+      kept.add(jvm);
+    }
+
+    if (kept.size() > maxJvms) {
+      Collections.sort(kept, new Comparator<Jvm>() {
+        @Override
+        public int compare(Jvm j1, Jvm j2) {
+          return Double.compare(j2.values[JvmMetadata.GC_TIME_RATIO],
+              j1.values[JvmMetadata.GC_TIME_RATIO]);
+        }
+      });
+      kept = kept.subList(0, maxJvms);
+    }
+    int fieldCount = JvmMetadata.FIELDS.length;
+    int[] pids = new int[kept.size()];
+    String[] names = new String[kept.size()];
+    double[] values = new double[kept.size() * fieldCount];
+    for (int i = 0; i < pids.length; ++i) {
+      Jvm jvm = kept.get(i);
+      pids[i] = jvm.pid;
+      names[i] = jvm.name;
+      System.arraycopy(jvm.values, 0, values, i * fieldCount, fieldCount);
+    }
+    return new JvmMetadata(pids, names, values);
+  }
+
+  /**
+   * Read the counters of the JVM into its values.
+   * 
+   * @param jvm
+   * @param nowMillis
+   */
+  private void readJvm(Jvm jvm, long nowMillis) {
+    HsperfdataReader reader = jvm.reader;
+    reader.refresh();
+    if (jvm.name == null) {
+      jvm.name = mainName(reader.getString("sun.rt.javaCommand"));
+      long frequency = reader.getLong("sun.os.hrt.frequency");
+      jvm.ticksPerSecond = frequency > 0 ? frequency : 1e9;
+    }
+    long youngTicks = reader.getLong(YOUNG_COLLECTOR + "time");
+    long oldTicks = reader.getLong(OLD_COLLECTOR + "time");
+    double[] values = jvm.values;
+    values[JvmMetadata.YOUNG_GC_COUNT] = reader.getLong(YOUNG_COLLECTOR
+        + "invocations");
+    values[JvmMetadata.YOUNG_GC_MILLIS] = youngTicks * 1000
+        / jvm.ticksPerSecond;
+    values[JvmMetadata.OLD_GC_COUNT] = reader.getLong(OLD_COLLECTOR
+        + "invocations");
+    values[JvmMetadata.OLD_GC_MILLIS] = oldTicks * 1000 / jvm.ticksPerSecond;
+    counters[0] = youngTicks + oldTicks;
+    values[JvmMetadata.GC_TIME_RATIO] = Math.min(1,
+        jvm.counterRates.update(counters, nowMillis)[0] / jvm.ticksPerSecond);
+    values[JvmMetadata.HEAP_USED_BYTES] = reader.sumLongs(YOUNG_GENERATION
+        + "space.", ".used")
+        + reader.sumLongs(OLD_GENERATION + "space.", ".used");
+    values[JvmMetadata.HEAP_CAPACITY_BYTES] = reader.getLong(YOUNG_GENERATION
+        + "capacity") + reader.getLong(OLD_GENERATION + "capacity");
+    values[JvmMetadata.HEAP_MAX_BYTES] = reader.getLong(YOUNG_GENERATION
+        + "maxCapacity") + reader.getLong(OLD_GENERATION + "maxCapacity");
+    values[JvmMetadata.LIVE_THREADS] = reader.getLong("java.threads.live");
+    values[JvmMetadata.DAEMON_THREADS] = reader.getLong("java.threads.daemon");
+  }
+
+  /**
+   * The main class or jar of the java command line, without its package or
+   * directory.
+   * 
+   * @param javaCommand
+   * @return
+   */
+  static String mainName(String javaCommand) {
+    if (javaCommand == null || javaCommand.trim().isEmpty()) {
+      return "unknown";
+    }
+    String main = javaCommand.trim().split("\\s+")[0];
+    if (main.endsWith(".jar")) {
+      return main.substring(main.lastIndexOf('/') + 1);
+    }
+    return main.substring(main.lastIndexOf('.') + 1);
+  }
+
+}
@@ -0,0 +1,143 @@
+package sysmon.monitor.crawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.hyperic.sigar.NetFlags;
+import org.hyperic.sigar.NetInterfaceStat;
+import org.hyperic.sigar.SigarException;
+
+import sysmon.common.metadata.NetworkMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Crawl the network I/O of each interface. The counters are read into an
+ * array allocated once for the interface list, and turned into per second
+ * rates by CounterRates. The interface list is kept in the static metadata
+ * and the arrays are only rebuilt when it changes.
+ * 
+ * The counters are 64 bit, except on Windows, where Sigar reads the 32 bit
+ * counters of the interface table, and on 32 bit systems.
+ * 
+ */
+public class NetworkCrawler extends Crawler<NetworkMetadata> {
+
+  // set by updateStaticMetaData, which runs in the super constructor
+  private String[] interfaces;
+  private boolean[] loopback;
+  private long[] counters;
+  private CounterRates counterRates;
+
+  public NetworkCrawler(String crawlerName) {
+    super(crawlerName);
+  }
+
+  @Override
+  public String getCrawlerType() {
+    return "network";
+  }
+
+  @Override
+  protected void updateStaticMetaData() {
+    List<String> names = new ArrayList<String>();
+    try {
+      for (String name : sigarProxy.getNetInterfaceList()) {
+        // the aliases (eth0:1) share the counters of their interface
+        if (name.indexOf(':') < 0) {
+          names.add(name);
+        }
+      }
+    } catch (SigarException e) {
+      e.printStackTrace();
+    }
+    interfaces = names.toArray(new String[names.size()]);
+    loopback = new boolean[interfaces.length];
+    JsonArray interfacesJson = new JsonArray();
+    for (int i = 0; i < interfaces.length; ++i) {
+      try {
+        loopback[i] = (sigarProxy.getNetInterfaceConfig(interfaces[i])
+            .getFlags() & NetFlags.IFF_LOOPBACK) != 0;
+      } catch (SigarException e) {
+        loopback[i] = interfaces[i].equals("lo");
+      }
+      interfacesJson.add(new JsonPrimitive(interfaces[i]));
+    }
+    this.staticMetaData.add("interfaces", interfacesJson);
+    counters = new long[interfaces.length * NetworkMetadata.FIELDS.length];
+    counterRates = new CounterRates(counters.length, getCounterBits());
+  }
+
+  @Override
+  protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
+    try {
+      if (interfaceListChanged(sigarProxy.getNetInterfaceList())) {
+        updateStaticMetaData();
+      }
+    } catch (SigarException e) {
+      e.printStackTrace();
+    }
+    int fieldCount = NetworkMetadata.FIELDS.length;
+    for (int i = 0; i < interfaces.length; ++i) {
+      int base = i * fieldCount;
+      try {
+        NetInterfaceStat stat = sigarProxy.getNetInterfaceStat(interfaces[i]);
+        counters[base + NetworkMetadata.RX_BYTES] = stat.getRxBytes();
+        counters[base + NetworkMetadata.TX_BYTES] = stat.getTxBytes();
+        counters[base + NetworkMetadata.RX_PACKETS] = stat.getRxPackets();
+        counters[base + NetworkMetadata.TX_PACKETS] = stat.getTxPackets();
+        counters[base + NetworkMetadata.RX_ERRORS] = stat.getRxErrors();
+        counters[base + NetworkMetadata.TX_ERRORS] = stat.getTxErrors();
+        counters[base + NetworkMetadata.RX_DROPS] = stat.getRxDropped();
+        counters[base + NetworkMetadata.TX_DROPS] = stat.getTxDropped();
+      } catch (SigarException e) {
+        // keep the previous counters, the rates of the interface are 0
+      }
+    }
+    double[] rates = counterRates.update(counters, System.currentTimeMillis());
+    NetworkMetadata networkMetadata = new NetworkMetadata(interfaces,
+        loopback, Arrays.copyOf(rates, rates.length));
+    this.metadataObject = networkMetadata;
+
+    for (int i = 0; i < fieldCount; ++i) {
+      newMetaData.addProperty(NetworkMetadata.FIELDS[i],
+          networkMetadata.getTotalRate(i));
+    }
+  }
+
+  /**
+   * @return The width of the interface counters on this system, 32 on
+   *         Windows, else unknown (the one of the kernel).
+   */
+  static int getCounterBits() {
+    if (System.getProperty("os.name", "").startsWith("Windows")) {
+      return 32;
+    }
+    return CounterRates.UNKNOWN_WIDTH;
+  }
+
+  /**
+   * Check whether the interfaces (without the aliases) differ from the known
+   * ones.
+   * 
+   * @param names
+   * @return
+   */
+  private boolean interfaceListChanged(String[] names) {
+    int count = 0;
+    for (String name : names) {
+      if (name.indexOf(':') >= 0) {
+        continue;
+      }
+      if (count >= interfaces.length || !interfaces[count].equals(name)) {
+        return true;
+      }
+      ++count;
+    }
+    return count != interfaces.length;
+  }
+
+}
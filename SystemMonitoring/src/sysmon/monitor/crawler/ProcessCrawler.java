@@ -1,18 +1,29 @@
 package sysmon.monitor.crawler;
 
-import org.hyperic.sigar.ProcState;
+import java.io.File;
+
 import org.hyperic.sigar.SigarException;
 
-import com.google.gson.JsonArray;
+import sysmon.common.metadata.ProcessMetadata;
+
 import com.google.gson.JsonObject;
 
 /**
- * Crawl the information about running processes.
+ * Crawl the information about running processes. The state of every process
+ * is kept in a ProcessTable, and only the top processes by CPU and memory and
+ * the started/exited processes are reported.
  * 
  * @author yexijiang
  * 
  */
-public class ProcessCrawler extends Crawler {
+public class ProcessCrawler extends Crawler<ProcessMetadata> {
+
+  public static final int DEFAULT_TOP_N = 10;
+  public static final int DEFAULT_MAX_EVENTS = 100;
+
+  // created on the first crawl, which runs in the super constructor
+  private ProcessTable processTable;
+  private ProcessTable.ProcessReader processReader;
 
   public ProcessCrawler(String crawlerName) {
     super(crawlerName);
@@ -30,32 +41,27 @@ public class ProcessCrawler extends Crawler {
 
   @Override
   protected void fetchDynamicMetaDataHelper(JsonObject newMetaData) {
-    JsonArray procsJson = new JsonArray();
-    try {
-      long[] pids = sigarProxy.getProcList();
-      for (int i = 0; i < pids.length; ++i) {
-        procsJson.add(getProcInfo(pids[i]));
+    if (processTable == null) {
+      processTable = new ProcessTable(DEFAULT_TOP_N, DEFAULT_MAX_EVENTS);
+      if (new File("/proc/self/stat").exists()) {
+        processReader = new ProcfsProcessReader();
+      } else {
+        processReader = new SigarProcessReader(sigarProxy);
       }
+    }
+    try {
+      processTable.update(sigarProxy.getProcList(), processReader,
+          System.currentTimeMillis());
     } catch (SigarException e) {
       e.printStackTrace();
+      return;
     }
-    newMetaData.add("process-details", procsJson);
-  }
+    ProcessMetadata processMetadata = processTable.getMetadata();
+    this.metadataObject = processMetadata;
 
-  /**
-   * Get the detailed process info for given pid.
-   * 
-   * @param pid
-   * @throws SigarException
-   */
-  private JsonObject getProcInfo(long pid) throws SigarException {
-    JsonObject procDetailJson = new JsonObject();
-    ProcState procState = sigarProxy.getProcState(pid);
-    procDetailJson.addProperty("pid", pid);
-    procDetailJson.addProperty("name", procState.getName());
-    procDetailJson.addProperty("state", procState.getState());
-    procDetailJson.addProperty("numThreads", procState.getThreads());
-    return procDetailJson;
+    newMetaData.addProperty("processCount", processMetadata.getProcessCount());
+    newMetaData.addProperty("startedCount", processMetadata.getStartedCount());
+    newMetaData.addProperty("exitedCount", processMetadata.getExitedCount());
   }
 
 }
@@ -0,0 +1,334 @@
+package sysmon.monitor.crawler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import sysmon.common.metadata.ProcessMetadata;
+
+/**
+ * ProcessTable keeps the last known state of every process in primitive
+ * arrays, one row per process, found by pid through an open addressing index.
+ * Each update reads the counters of the listed pids, computes the CPU% and
+ * the RSS change of each process from its previous row, and detects the
+ * started and exited processes. The name is only read when a process is first
+ * seen.
+ * 
+ * A snapshot only keeps the top N processes by CPU and by memory and the
+ * start/exit events, so its size does not depend on the number of processes.
+ * 
+ */
+public class ProcessTable {
+
+  /**
+   * Read the counters of a process.
+   * 
+   */
+  public interface ProcessReader {
+    /**
+     * Read the counters of the process into stats: stats[CPU_MILLIS] the
+     * total CPU time in milliseconds, stats[RSS] the resident memory in bytes
+     * and stats[START_TIME] any value identifying the start of the process.
+     * 
+     * @param pid
+     * @param stats
+     * @return false if the process is gone.
+     */
+    boolean read(long pid, long[] stats);
+
+    /**
+     * @param pid
+     * @return The name of the process, or null if it is gone.
+     */
+    String readName(long pid);
+  }
+
+  public static final int CPU_MILLIS = 0;
+  public static final int RSS = 1;
+  public static final int START_TIME = 2;
+
+  private static final int FREE = -1;
+
+  private int topN;
+  private int maxEvents;
+
+  private int capacity;
+  private int rowCount;
+  private long[] pids;
+  private long[] cpuMillis;
+  private long[] rss;
+  private long[] rssDelta;
+  private long[] startTimes;
+  private double[] cpuPercent;
+  private String[] names;
+  private int[] seenEpoch;
+  private int[] freeRows;
+  private int freeRowCount;
+  private int[] index;
+
+  private int epoch;
+  private long lastUpdateMillis;
+  private long[] stats;
+  private List<ProcessMetadata.Process> started;
+  private List<ProcessMetadata.Process> exited;
+  private int startedCount;
+  private int exitedCount;
+
+  /**
+   * @param topN
+   *          The number of processes kept in the top CPU and top memory lists.
+   * @param maxEvents
+   *          The maximal number of start and of exit events kept per update.
+   */
+  public ProcessTable(int topN, int maxEvents) {
+    this.topN = topN;
+    this.maxEvents = maxEvents;
+    this.stats = new long[3];
+    this.started = new ArrayList<ProcessMetadata.Process>();
+    this.exited = new ArrayList<ProcessMetadata.Process>();
+    this.lastUpdateMillis = -1;
+    grow(256);
+  }
+
+  private void grow(int newCapacity) {
+    pids = Arrays.copyOf(pids == null ? new long[0] : pids, newCapacity);
+    cpuMillis = Arrays.copyOf(cpuMillis == null ? new long[0] : cpuMillis,
+        newCapacity);
+    rss = Arrays.copyOf(rss == null ? new long[0] : rss, newCapacity);
+    rssDelta = Arrays.copyOf(rssDelta == null ? new long[0] : rssDelta,
+        newCapacity);
+    startTimes = Arrays.copyOf(startTimes == null ? new long[0] : startTimes,
+        newCapacity);
+    cpuPercent = Arrays.copyOf(cpuPercent == null ? new double[0]
+        : cpuPercent, newCapacity);
+    names = Arrays.copyOf(names == null ? new String[0] : names, newCapacity);
+    seenEpoch = Arrays.copyOf(seenEpoch == null ? new int[0] : seenEpoch,
+        newCapacity);
+    int[] newFreeRows = new int[newCapacity];
+    if (freeRows != null) {
+      System.arraycopy(freeRows, 0, newFreeRows, 0, freeRowCount);
+    }
+    for (int row = newCapacity - 1; row >= capacity; --row) {
+      newFreeRows[freeRowCount++] = row;
+      seenEpoch[row] = FREE;
+    }
+    freeRows = newFreeRows;
+    capacity = newCapacity;
+
+    // the index is kept at most half full
+    index = new int[capacity * 2];
+    Arrays.fill(index, FREE);
+    for (int row = 0; row < capacity; ++row) {
+      if (seenEpoch[row] != FREE) {
+        insertIndex(row);
+      }
+    }
+  }
+
+  private int hash(long pid) {
+    long h = pid * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32) & (index.length - 1);
+  }
+
+  private int findRow(long pid) {
+    for (int i = hash(pid);; i = (i + 1) & (index.length - 1)) {
+      int row = index[i];
+      if (row == FREE) {
+        return FREE;
+      }
+      if (pids[row] == pid) {
+        return row;
+      }
+    }
+  }
+
+  private void insertIndex(int row) {
+    int i = hash(pids[row]);
+    while (index[i] != FREE) {
+      i = (i + 1) & (index.length - 1);
+    }
+    index[i] = row;
+  }
+
+  /**
+   * Remove the row from the index, shifting back the following entries of
+   * its probe sequence so that no lookup is broken.
+   * 
+   * @param row
+   */
+  private void removeIndex(int row) {
+    int mask = index.length - 1;
+    int i = hash(pids[row]);
+    while (index[i] != row) {
+      i = (i + 1) & mask;
+    }
+    int hole = i;
+    for (int j = (hole + 1) & mask; index[j] != FREE; j = (j + 1) & mask) {
+      int home = hash(pids[index[j]]);
+      // move the entry if its home is not between the hole and j
+      if (((j - home) & mask) >= ((j - hole) & mask)) {
+        index[hole] = index[j];
+        hole = j;
+      }
+    }
+    index[hole] = FREE;
+  }
+
+  private int addRow(long pid) {
+    if (freeRowCount == 0) {
+      grow(capacity * 2);
+    }
+    int row = freeRows[--freeRowCount];
+    pids[row] = pid;
+    insertIndex(row);
+    ++rowCount;
+    return row;
+  }
+
+  private void removeRow(int row) {
+    removeIndex(row);
+    seenEpoch[row] = FREE;
+    names[row] = null;
+    freeRows[freeRowCount++] = row;
+    --rowCount;
+  }
+
+  /**
+   * Update the table with the current processes.
+   * 
+   * @param currentPids
+   *          The pids of the running processes.
+   * @param reader
+   * @param nowMillis
+   */
+  public synchronized void update(long[] currentPids, ProcessReader reader,
+      long nowMillis) {
+    ++epoch;
+    if (epoch == FREE || epoch == 0) {
+      epoch = 1;
+    }
+    started.clear();
+    exited.clear();
+    startedCount = 0;
+    exitedCount = 0;
+    boolean first = lastUpdateMillis < 0;
+    long elapsedMillis = first ? 0 : nowMillis - lastUpdateMillis;
+
+    for (long pid : currentPids) {
+      if (!reader.read(pid, stats)) {
+        continue; // exited in between
+      }
+      int row = findRow(pid);
+      if (row != FREE && startTimes[row] != stats[START_TIME]) {
+        // the pid has been reused by a new process
+        exit(row);
+        row = FREE;
+      }
+      if (row == FREE) {
+        String name = reader.readName(pid);
+        row = addRow(pid);
+        names[row] = name == null ? "" : name;
+        cpuMillis[row] = stats[CPU_MILLIS];
+        rss[row] = stats[RSS];
+        startTimes[row] = stats[START_TIME];
+        cpuPercent[row] = 0;
+        rssDelta[row] = 0;
+        seenEpoch[row] = epoch;
+        if (!first) {
+          ++startedCount;
+          if (started.size() < maxEvents) {
+            started.add(toProcess(row));
+          }
+        }
+        continue;
+      }
+      cpuPercent[row] = elapsedMillis <= 0 ? 0 : 100.0
+          * (stats[CPU_MILLIS] - cpuMillis[row]) / elapsedMillis;
+      rssDelta[row] = stats[RSS] - rss[row];
+      cpuMillis[row] = stats[CPU_MILLIS];
+      rss[row] = stats[RSS];
+      seenEpoch[row] = epoch;
+    }
+
+    for (int row = 0; row < capacity; ++row) {
+      if (seenEpoch[row] != FREE && seenEpoch[row] != epoch) {
+        exit(row);
+      }
+    }
+    lastUpdateMillis = nowMillis;
+  }
+
+  private void exit(int row) {
+    ++exitedCount;
+    if (exited.size() < maxEvents) {
+      exited.add(toProcess(row));
+    }
+    removeRow(row);
+  }
+
+  private ProcessMetadata.Process toProcess(int row) {
+    return new ProcessMetadata.Process(pids[row], names[row], cpuPercent[row],
+        rss[row], rssDelta[row]);
+  }
+
+  public synchronized int getProcessCount() {
+    return rowCount;
+  }
+
+  /**
+   * Select the rows with the largest keys, by insertion into a short sorted
+   * array, so only the rows beating the current n-th are moved.
+   * 
+   * @param byCpu
+   * @return The rows, largest first.
+   */
+  private int[] selectTop(boolean byCpu) {
+    int[] top = new int[Math.min(topN, rowCount)];
+    int size = 0;
+    for (int row = 0; row < capacity && top.length > 0; ++row) {
+      if (seenEpoch[row] == FREE) {
+        continue;
+      }
+      double key = byCpu ? cpuPercent[row] : rss[row];
+      if (size == top.length) {
+        int last = top[size - 1];
+        if (key <= (byCpu ? cpuPercent[last] : rss[last])) {
+          continue;
+        }
+        --size;
+      }
+      int i = size;
+      while (i > 0
+          && key > (byCpu ? cpuPercent[top[i - 1]] : rss[top[i - 1]])) {
+        top[i] = top[i - 1];
+        --i;
+      }
+      top[i] = row;
+      ++size;
+    }
+    return top;
+  }
+
+  /**
+   * Take the snapshot of the last update.
+   * 
+   * @return
+   */
+  public synchronized ProcessMetadata getMetadata() {
+    int[] topCpuRows = selectTop(true);
+    int[] topMemoryRows = selectTop(false);
+    ProcessMetadata.Process[] topCpu = new ProcessMetadata.Process[topCpuRows.length];
+    for (int i = 0; i < topCpuRows.length; ++i) {
+      topCpu[i] = toProcess(topCpuRows[i]);
+    }
+    ProcessMetadata.Process[] topMemory = new ProcessMetadata.Process[topMemoryRows.length];
+    for (int i = 0; i < topMemoryRows.length; ++i) {
+      topMemory[i] = toProcess(topMemoryRows[i]);
+    }
+    return new ProcessMetadata(rowCount, topCpu, topMemory,
+        started.toArray(new ProcessMetadata.Process[started.size()]),
+        startedCount, exited.toArray(new ProcessMetadata.Process[exited
+            .size()]), exitedCount);
+  }
+
+}
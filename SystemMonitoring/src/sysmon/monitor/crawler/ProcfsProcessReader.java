@@ -0,0 +1,147 @@
+package sysmon.monitor.crawler;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Read the process counters from /proc/[pid]/stat on Linux, one small file
+ * per process instead of the several native calls of Sigar. The file is
+ * parsed in place from a reused buffer.
+ * 
+ */
+public class ProcfsProcessReader implements ProcessTable.ProcessReader {
+
+  private static final int UTIME_FIELD = 14;
+  private static final int STIME_FIELD = 15;
+  private static final int STARTTIME_FIELD = 22;
+  private static final int RSS_FIELD = 24;
+
+  private String procRoot;
+  private long millisPerTick;
+  private long pageSize;
+  private byte[] buffer;
+
+  /**
+   * Use /proc with the usual 100 clock ticks per second and 4k pages.
+   */
+  public ProcfsProcessReader() {
+    this("/proc", 100, 4096);
+  }
+
+  /**
+   * @param procRoot
+   * @param ticksPerSecond
+   *          The clock ticks per second (USER_HZ).
+   * @param pageSize
+   */
+  public ProcfsProcessReader(String procRoot, long ticksPerSecond,
+      long pageSize) {
+    this.procRoot = procRoot;
+    this.millisPerTick = 1000 / ticksPerSecond;
+    this.pageSize = pageSize;
+    this.buffer = new byte[1024];
+  }
+
+  @Override
+  public boolean read(long pid, long[] stats) {
+    int length = readFile(procRoot + "/" + pid + "/stat");
+    if (length <= 0) {
+      return false;
+    }
+    // the name may contain spaces and parentheses, the fields follow the last
+    // ')'
+    int pos = length - 1;
+    while (pos >= 0 && buffer[pos] != ')') {
+      --pos;
+    }
+    if (pos < 0) {
+      return false;
+    }
+    pos += 2;
+    int field = 3;
+    long utime = 0;
+    long stime = 0;
+    long starttime = 0;
+    long rssPages = 0;
+    while (pos < length && field <= RSS_FIELD) {
+      long value = 0;
+      while (pos < length && buffer[pos] != ' ') {
+        byte b = buffer[pos++];
+        if (b >= '0' && b <= '9') {
+          value = value * 10 + (b - '0');
+        }
+      }
+      ++pos;
+      switch (field) {
+      case UTIME_FIELD:
+        utime = value;
+        break;
+      case STIME_FIELD:
+        stime = value;
+        break;
+      case STARTTIME_FIELD:
+        starttime = value;
+        break;
+      case RSS_FIELD:
+        rssPages = value;
+        break;
+      default:
+        break;
+      }
+      ++field;
+    }
+    if (field <= RSS_FIELD) {
+      return false;
+    }
+    stats[ProcessTable.CPU_MILLIS] = (utime + stime) * millisPerTick;
+    stats[ProcessTable.RSS] = rssPages * pageSize;
+    stats[ProcessTable.START_TIME] = starttime;
+    return true;
+  }
+
+  @Override
+  public String readName(long pid) {
+    int length = readFile(procRoot + "/" + pid + "/comm");
+    if (length <= 0) {
+      return null;
+    }
+    if (buffer[length - 1] == '\n') {
+      --length;
+    }
+    return new String(buffer, 0, length);
+  }
+
+  /**
+   * Read the file into the buffer.
+   * 
+   * @param path
+   * @return The number of bytes read, -1 if the file cannot be read.
+   */
+  private int readFile(String path) {
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(path);
+      int length = 0;
+      int n;
+      while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+        length += n;
+        if (length == buffer.length) {
+          buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+      }
+      return length;
+    } catch (IOException e) {
+      return -1; // the process is gone
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+package sysmon.monitor.crawler;
+
+import org.hyperic.sigar.ProcCpu;
+import org.hyperic.sigar.SigarException;
+import org.hyperic.sigar.SigarProxy;
+
+/**
+ * Read the process counters through Sigar, for the platforms without /proc.
+ * 
+ */
+public class SigarProcessReader implements ProcessTable.ProcessReader {
+
+  private SigarProxy sigarProxy;
+
+  public SigarProcessReader(SigarProxy sigarProxy) {
+    this.sigarProxy = sigarProxy;
+  }
+
+  @Override
+  public boolean read(long pid, long[] stats) {
+    try {
+      ProcCpu procCpu = sigarProxy.getProcCpu(pid);
+      stats[ProcessTable.CPU_MILLIS] = procCpu.getTotal();
+      stats[ProcessTable.START_TIME] = procCpu.getStartTime();
+      stats[ProcessTable.RSS] = sigarProxy.getProcMem(pid).getResident();
+      return true;
+    } catch (SigarException e) {
+      return false; // the process is gone or not readable
+    }
+  }
+
+  @Override
+  public String readName(long pid) {
+    try {
+      return sigarProxy.getProcState(pid).getName();
+    } catch (SigarException e) {
+      return null;
+    }
+  }
+
+}
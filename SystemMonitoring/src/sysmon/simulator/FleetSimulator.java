@@ -0,0 +1,575 @@
+package sysmon.simulator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import sysmon.collector.Collector;
+import sysmon.common.StageLatencies;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.manager.CollectorCommandClient;
+import sysmon.manager.MonitoringManager;
+import sysmon.util.GlobalParameters;
+import sysmon.util.IPUtil;
+import sysmon.util.Out;
+import sysmon.util.ThreadFactories;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * FleetSimulator runs thousands of virtual monitors in one JVM, to size the
+ * collectors.
+ * 
+ * Each virtual monitor is a SimulatedMachine with its own address. It
+ * registers to the manager and enrolls to the assigned collector with the
+ * same commands as a Monitor, then sends its samples as ObjectMessages at
+ * the sending interval, spread over the interval so that the fleet does not
+ * send in bursts. The monitors are split over the sender threads, each
+ * with one JMS session per collector; with virtual threads (see
+ * ThreadFactories) there can be one sender thread per monitor.
+ * 
+ * Every report interval the simulator asks each collector for its stats and
+ * prints, per collector, the enrolled monitors, the ingest rate, the backlog,
+ * the end-to-end and alert latencies, and the CPU and heap of the collector.
+ * 
+ * The manager and one collector can run embedded in the same JVM, on the
+ * fixed ports, so a single collector can be measured on one machine; the
+ * resource use reported is then the one of the whole JVM.
+ * 
+ */
+public class FleetSimulator {
+
+  public static final long REGISTRATION_TIMEOUT_MILLIS = 60000;
+  public static final long STATS_TIMEOUT_MILLIS = 5000;
+  public static final long REGISTRATION_ROUND_MILLIS = 5000;
+
+  private String managerBrokerAddress;
+  private List<SimulatedMachine> machines;
+  private long intervalMillis;
+  private int threads;
+  private Map<SimulatedMachine, String> assignedCollectors;
+  private Map<String, CollectorCommandClient> collectorClients;
+  private AtomicLong sent;
+  private AtomicLong sendErrors;
+  private ThreadFactory threadFactory;
+  private SampleSender sampleSender;
+  private volatile boolean running;
+  private Out out;
+
+  /**
+   * Sends the samples instead of the JMS sessions of the sender threads,
+   * e.g. to run the fleet without a broker. Called by all the sender threads
+   * at once.
+   * 
+   */
+  public interface SampleSender {
+    void send(String collectorBrokerAddress, MachineMetadata machineMetadata)
+        throws JMSException;
+  }
+
+  /**
+   * @param managerBrokerAddress
+   * @param machines
+   * @param intervalMillis
+   *          The sending interval of each monitor.
+   * @param threads
+   *          The number of sender threads.
+   */
+  public FleetSimulator(String managerBrokerAddress,
+      List<SimulatedMachine> machines, long intervalMillis, int threads) {
+    if (intervalMillis <= 0 || threads < 1) {
+      throw new IllegalArgumentException("Invalid simulation ["
+          + intervalMillis + ", " + threads + "].");
+    }
+    this.managerBrokerAddress = managerBrokerAddress;
+    this.machines = machines;
+    this.intervalMillis = intervalMillis;
+    this.threads = Math.min(threads, Math.max(1, machines.size()));
+    this.assignedCollectors = new HashMap<SimulatedMachine, String>();
+    this.collectorClients = new LinkedHashMap<String, CollectorCommandClient>();
+    this.sent = new AtomicLong();
+    this.sendErrors = new AtomicLong();
+    this.threadFactory = ThreadFactories.getDefault();
+    this.out = new Out();
+  }
+
+  /**
+   * Build a fleet. The addresses are 10.x.y.z, the core counts and the
+   * numbers of file systems are picked among the given ones.
+   * 
+   * @param size
+   * @param coreCounts
+   * @param minFileSystems
+   * @param maxFileSystems
+   * @param dayMillis
+   * @param spikeProbability
+   *          The probability that a sample starts a spike.
+   * @param spikeMillis
+   * @param seed
+   * @return
+   */
+  public static List<SimulatedMachine> createFleet(int size,
+      int[] coreCounts, int minFileSystems, int maxFileSystems,
+      long dayMillis, double spikeProbability, long spikeMillis, long seed) {
+    Random random = new Random(seed);
+    List<SimulatedMachine> fleet = new ArrayList<SimulatedMachine>();
+    for (int i = 0; i < size; ++i) {
+      int host = i + 1;
+      String machineIP = "10." + ((host >> 16) & 0xff) + "."
+          + ((host >> 8) & 0xff) + "." + (host & 0xff);
+      int cores = coreCounts[random.nextInt(coreCounts.length)];
+      long ramMB = cores * (2048L << random.nextInt(3));
+      int fileSystems = minFileSystems
+          + random.nextInt(maxFileSystems - minFileSystems + 1);
+      fleet.add(new SimulatedMachine(machineIP, cores, ramMB, fileSystems,
+          dayMillis, spikeProbability, spikeMillis, random.nextLong()));
+    }
+    return fleet;
+  }
+
+  /**
+   * Register all the monitors to the manager and enroll them to their
+   * collectors. The registrations are sent at once and the replies awaited
+   * after; the monitors the manager cannot assign yet (no collector, no
+   * reply within REGISTRATION_ROUND_MILLIS) are registered again until the
+   * timeout.
+   * 
+   * @param timeoutMillis
+   * @return The number of monitors enrolled.
+   * @throws JMSException
+   */
+  public int register(long timeoutMillis) throws JMSException {
+    // the manager answers requests on its command topic as a collector does
+    CollectorCommandClient managerClient = new CollectorCommandClient(
+        managerBrokerAddress);
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    List<SimulatedMachine> pending = new ArrayList<SimulatedMachine>(machines);
+    while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+      Map<SimulatedMachine, String> requests = new LinkedHashMap<SimulatedMachine, String>();
+      for (SimulatedMachine machine : pending) {
+        JsonObject commandJson = new JsonObject();
+        commandJson.addProperty("type", "monitor-registration");
+        commandJson.addProperty("machineIPAddress", machine.getMachineIP());
+        requests.put(machine, managerClient.sendRequest(commandJson));
+      }
+      List<SimulatedMachine> unassigned = new ArrayList<SimulatedMachine>();
+      long roundEnd = Math.min(deadline, System.currentTimeMillis()
+          + REGISTRATION_ROUND_MILLIS);
+      for (Map.Entry<SimulatedMachine, String> request : requests.entrySet()) {
+        JsonObject reply = managerClient.awaitReply(request.getValue(),
+            Math.max(1, roundEnd - System.currentTimeMillis()));
+        JsonElement address = reply == null ? null : reply
+            .get("collectorCommandBrokerAddress");
+        if (address == null || address.isJsonNull()) {
+          unassigned.add(request.getKey());
+        } else {
+          if (reply.has("machineId")) {
+            request.getKey().setMachineId(reply.get("machineId").getAsInt());
+          }
+          enroll(request.getKey(), address.getAsString());
+        }
+      }
+      pending = unassigned;
+      if (!pending.isEmpty()) {
+        out.println(pending.size() + " monitors not assigned yet.");
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return assignedCollectors.size();
+  }
+
+  private void enroll(SimulatedMachine machine, String collectorBrokerAddress)
+      throws JMSException {
+    JsonObject commandJson = new JsonObject();
+    commandJson.addProperty("type", "monitor-enroll");
+    commandJson.addProperty("machineIPAddress", machine.getMachineIP());
+    if (machine.getMachineId() >= 0) {
+      commandJson.addProperty("machineId", machine.getMachineId());
+    }
+    commandJson.add("staticMetadata", machine.getStaticMetadata());
+    getCollectorClient(collectorBrokerAddress).send(commandJson);
+    assignedCollectors.put(machine, collectorBrokerAddress);
+  }
+
+  private synchronized CollectorCommandClient getCollectorClient(
+      String collectorBrokerAddress) {
+    CollectorCommandClient client = collectorClients
+        .get(collectorBrokerAddress);
+    if (client == null) {
+      client = new CollectorCommandClient(collectorBrokerAddress);
+      collectorClients.put(collectorBrokerAddress, client);
+    }
+    return client;
+  }
+
+  /**
+   * Assign a monitor to a collector without registering it, e.g. to a
+   * collector known in advance; call before start().
+   * 
+   * @param machine
+   * @param collectorBrokerAddress
+   */
+  public void assign(SimulatedMachine machine, String collectorBrokerAddress) {
+    assignedCollectors.put(machine, collectorBrokerAddress);
+  }
+
+  /**
+   * Send the samples through the sender rather than JMS; call before
+   * start().
+   * 
+   * @param sampleSender
+   */
+  public void setSampleSender(SampleSender sampleSender) {
+    this.sampleSender = sampleSender;
+  }
+
+  /**
+   * Set the factory of the sender threads; call before start().
+   * 
+   * @param threadFactory
+   */
+  public void setThreadFactory(ThreadFactory threadFactory) {
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Start the sender threads, for the registered monitors.
+   */
+  public void start() {
+    running = true;
+    List<List<SimulatedMachine>> partitions = new ArrayList<List<SimulatedMachine>>();
+    for (int i = 0; i < threads; ++i) {
+      partitions.add(new ArrayList<SimulatedMachine>());
+    }
+    int i = 0;
+    for (SimulatedMachine machine : machines) {
+      if (assignedCollectors.containsKey(machine)) {
+        partitions.get(i++ % threads).add(machine);
+      }
+    }
+    for (int t = 0; t < threads; ++t) {
+      Thread senderThread = ThreadFactories.newThread(threadFactory,
+          new SenderWorker(partitions.get(t), t), "simulator-sender-" + t,
+          true);
+      senderThread.start();
+    }
+  }
+
+  /**
+   * Stop the sender threads, after the sending under way.
+   */
+  public void stop() {
+    running = false;
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getSendErrors() {
+    return sendErrors.get();
+  }
+
+  /**
+   * Ask each collector for its stats.
+   * 
+   * @param timeoutMillis
+   * @return The stats-response of each collector, by broker address; null
+   *         for the collectors that did not answer in time.
+   */
+  public Map<String, JsonObject> queryCollectors(long timeoutMillis) {
+    Map<String, CollectorCommandClient> clients;
+    synchronized (this) {
+      clients = new LinkedHashMap<String, CollectorCommandClient>(
+          collectorClients);
+    }
+    Map<String, String> requests = new LinkedHashMap<String, String>();
+    for (Map.Entry<String, CollectorCommandClient> entry : clients.entrySet()) {
+      JsonObject queryJson = new JsonObject();
+      queryJson.addProperty("type", "stats");
+      try {
+        requests.put(entry.getKey(), entry.getValue().sendRequest(queryJson));
+      } catch (JMSException e) {
+        e.printStackTrace();
+      }
+    }
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    Map<String, JsonObject> replies = new LinkedHashMap<String, JsonObject>();
+    for (Map.Entry<String, String> request : requests.entrySet()) {
+      replies.put(request.getKey(), clients.get(request.getKey()).awaitReply(
+          request.getValue(),
+          Math.max(1, deadline - System.currentTimeMillis())));
+    }
+    return replies;
+  }
+
+  /**
+   * One line per collector: the monitors, the ingest rate, the backlog, the
+   * end-to-end and alert latencies in milliseconds, and the resource use.
+   * 
+   * @param collectorBrokerAddress
+   * @param statsResponse
+   *          The stats-response of the collector, null if none.
+   * @return
+   */
+  public static String formatReport(String collectorBrokerAddress,
+      JsonObject statsResponse) {
+    StringBuilder sb = new StringBuilder(collectorBrokerAddress).append(':');
+    if (statsResponse == null) {
+      return sb.append(" no answer").toString();
+    }
+    JsonObject ingest = statsResponse.get("ingest").getAsJsonObject();
+    JsonObject stages = statsResponse.get("stages").getAsJsonObject();
+    JsonObject endToEnd = stages.get(
+        StageLatencies.STAGES[StageLatencies.END_TO_END]).getAsJsonObject();
+    JsonObject alertEmit = stages.get(
+        StageLatencies.STAGES[StageLatencies.ALERT_EMIT]).getAsJsonObject();
+    sb.append(" monitors=").append(
+        (long) getNumber(ingest, "enrolledMonitors"));
+    sb.append(" msg/s=").append(format(getNumber(ingest, "messagesPerSec")));
+    sb.append(" KB/s=").append(
+        format(getNumber(ingest, "bytesPerSec") / 1024));
+    sb.append(" decodeErrors=").append(
+        (long) getNumber(ingest, "decodeErrors"));
+    sb.append(" cepBusy=").append(format(getNumber(ingest, "cepBusyPercent")))
+        .append('%');
+    sb.append(" alertQueue=").append(
+        (long) getNumber(ingest, "alertQueueSize"));
+    sb.append(" e2e p50/p99=").append(format(getNumber(endToEnd, "p50") / 1000))
+        .append('/').append(format(getNumber(endToEnd, "p99") / 1000))
+        .append("ms");
+    sb.append(" alerts=").append((long) getNumber(alertEmit, "count"));
+    sb.append(" alert p99=")
+        .append(format(getNumber(alertEmit, "p99") / 1000)).append("ms");
+    sb.append(" cpu=").append(format(getNumber(ingest, "processCpuPercent")))
+        .append('%');
+    sb.append(" heap=")
+        .append(format(getNumber(ingest, "heapUsedBytes") / (1024 * 1024)))
+        .append("MB");
+    return sb.toString();
+  }
+
+  private static double getNumber(JsonObject json, String name) {
+    JsonElement value = json.get(name);
+    return value == null || value.isJsonNull() ? Double.NaN : value
+        .getAsDouble();
+  }
+
+  private static String format(double value) {
+    return Double.isNaN(value) ? "-" : String.format("%.1f", value);
+  }
+
+  /**
+   * SenderWorker sends the samples of a part of the fleet. Monitor i of n is
+   * due at i / n of each interval.
+   * 
+   */
+  class SenderWorker implements Runnable {
+
+    private List<SimulatedMachine> partition;
+    private int index;
+    private Map<String, Session> sessions;
+    private Map<String, MessageProducer> producers;
+
+    public SenderWorker(List<SimulatedMachine> partition, int index) {
+      this.partition = partition;
+      this.index = index;
+      this.sessions = new HashMap<String, Session>();
+      this.producers = new HashMap<String, MessageProducer>();
+    }
+
+    private void connect(String collectorBrokerAddress) throws JMSException {
+      ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
+          collectorBrokerAddress);
+      Connection connection = connectionFactory.createConnection();
+      connection.start();
+      Session session = connection.createSession(false,
+          Session.AUTO_ACKNOWLEDGE);
+      MessageProducer producer = session.createProducer(session
+          .createTopic("command"));
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      sessions.put(collectorBrokerAddress, session);
+      producers.put(collectorBrokerAddress, producer);
+    }
+
+    private void send(SimulatedMachine machine) {
+      String collectorBrokerAddress = assignedCollectors.get(machine);
+      try {
+        if (sampleSender == null
+            && !sessions.containsKey(collectorBrokerAddress)) {
+          connect(collectorBrokerAddress);
+        }
+        long now = System.currentTimeMillis();
+        MachineMetadata machineMetadata = machine.sample(now);
+        machineMetadata.setSentMillis(System.currentTimeMillis());
+        if (sampleSender != null) {
+          sampleSender.send(collectorBrokerAddress, machineMetadata);
+        } else {
+          ObjectMessage metadataObjMessage = sessions.get(
+              collectorBrokerAddress).createObjectMessage();
+          metadataObjMessage.setObject(machineMetadata);
+          producers.get(collectorBrokerAddress).send(metadataObjMessage);
+        }
+        sent.incrementAndGet();
+      } catch (JMSException e) {
+        if (sendErrors.incrementAndGet() == 1) {
+          e.printStackTrace();
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      int size = partition.size();
+      if (size == 0) {
+        return;
+      }
+      // the threads are offset too, so the fleet is spread evenly
+      long cycleStart = System.currentTimeMillis() + index * intervalMillis
+          / (size * threads);
+      while (running) {
+        for (int i = 0; i < size && running; ++i) {
+          long due = cycleStart + i * intervalMillis / size;
+          long wait = due - System.currentTimeMillis();
+          if (wait > 0) {
+            try {
+              Thread.sleep(wait);
+            } catch (InterruptedException e) {
+              e.printStackTrace();
+            }
+          }
+          send(partition.get(i));
+        }
+        cycleStart += intervalMillis;
+        if (cycleStart < System.currentTimeMillis() - intervalMillis) {
+          // too slow to keep up: skip the lost cycles rather than burst
+          cycleStart = System.currentTimeMillis();
+        }
+      }
+    }
+  }
+
+  private static int[] parseCoreCounts(String value) {
+    String[] parts = value.split(",");
+    int[] coreCounts = new int[parts.length];
+    for (int i = 0; i < parts.length; ++i) {
+      coreCounts[i] = Integer.parseInt(parts[i].trim());
+    }
+    return coreCounts;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("usage: simulator manager-ip|embedded monitors "
+          + "[interval-ms [threads [report-seconds]]] [name=value ...]");
+      System.out.println("\tmanager-ip\tThe IP address of manager, or "
+          + "embedded to run the manager and a collector in this JVM.");
+      System.out.println("\tmonitors\tThe number of virtual monitors.");
+      System.out.println("\tinterval-ms\tThe sending interval of each "
+          + "monitor, 5000 by default.");
+      System.out.println("\tthreads\tThe sender threads, 4 by default, up "
+          + "to one per monitor with -D" + ThreadFactories.THREADS_PROPERTY
+          + "=virtual (JDK 21+).");
+      System.out.println("\treport-seconds\tThe report interval, 10 by "
+          + "default.");
+      System.out.println("\tcores=2,4,8\tThe core counts to pick from.");
+      System.out.println("\tfilesystems=1-4\tThe range of file systems.");
+      System.out.println("\tday-seconds=86400\tThe length of a simulated "
+          + "day.");
+      System.out.println("\tspike=0.001\tThe probability that a sample "
+          + "starts a spike.");
+      System.out.println("\tspike-seconds=60\tThe length of a spike.");
+      System.out.println("\tseed=1\tThe seed of the fleet.");
+      System.exit(1);
+    }
+    List<String> positional = new ArrayList<String>();
+    Map<String, String> options = new HashMap<String, String>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (equals > 0) {
+        options.put(arg.substring(0, equals), arg.substring(equals + 1));
+      } else {
+        positional.add(arg);
+      }
+    }
+    int monitors = Integer.parseInt(positional.get(1));
+    long intervalMillis = positional.size() > 2 ? Long.parseLong(positional
+        .get(2)) : 5000;
+    int threads = positional.size() > 3 ? Integer.parseInt(positional.get(3))
+        : 4;
+    long reportMillis = positional.size() > 4 ? Long.parseLong(positional
+        .get(4)) * 1000 : 10000;
+    int[] coreCounts = parseCoreCounts(options.containsKey("cores") ? options
+        .get("cores") : "2,4,8");
+    String[] fileSystems = (options.containsKey("filesystems") ? options
+        .get("filesystems") : "1-4").split("-");
+    int minFileSystems = Integer.parseInt(fileSystems[0]);
+    int maxFileSystems = Integer.parseInt(fileSystems[fileSystems.length - 1]);
+    long dayMillis = options.containsKey("day-seconds") ? Long
+        .parseLong(options.get("day-seconds")) * 1000
+        : SimulatedMachine.DAY_MILLIS;
+    double spikeProbability = options.containsKey("spike") ? Double
+        .parseDouble(options.get("spike")) : 0.001;
+    long spikeMillis = options.containsKey("spike-seconds") ? Long
+        .parseLong(options.get("spike-seconds")) * 1000 : 60000;
+    long seed = options.containsKey("seed") ? Long.parseLong(options
+        .get("seed")) : 1;
+
+    String managerIP = positional.get(0);
+    if (managerIP.equals("embedded")) {
+      managerIP = IPUtil.getFirstAvailableIP();
+      MonitoringManager.getInstance();
+      new Collector("tcp://" + managerIP + ":"
+          + GlobalParameters.MANAGER_COMMAND_PORT, 0).start();
+    }
+    String managerBrokerAddress = "tcp://" + managerIP + ":"
+        + GlobalParameters.MANAGER_COMMAND_PORT;
+
+    List<SimulatedMachine> fleet = createFleet(monitors, coreCounts,
+        minFileSystems, maxFileSystems, dayMillis, spikeProbability,
+        spikeMillis, seed);
+    FleetSimulator simulator = new FleetSimulator(managerBrokerAddress,
+        fleet, intervalMillis, threads);
+    long start = System.currentTimeMillis();
+    int enrolled = simulator.register(REGISTRATION_TIMEOUT_MILLIS);
+    System.out.println(enrolled + " of " + monitors + " monitors enrolled in "
+        + (System.currentTimeMillis() - start) + " ms.");
+    simulator.start();
+    long lastSent = 0;
+    long lastReport = System.currentTimeMillis();
+    while (true) {
+      Thread.sleep(reportMillis);
+      long now = System.currentTimeMillis();
+      long currentSent = simulator.getSent();
+      System.out.println(String.format("sent %d (%.1f msg/s), errors %d",
+          currentSent, (currentSent - lastSent) * 1000.0
+              / Math.max(1, now - lastReport), simulator.getSendErrors()));
+      lastSent = currentSent;
+      lastReport = now;
+      for (Map.Entry<String, JsonObject> entry : simulator.queryCollectors(
+          STATS_TIMEOUT_MILLIS).entrySet()) {
+        System.out.println(formatReport(entry.getKey(), entry.getValue()));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package sysmon.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.DiskMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+import sysmon.common.metadata.NetworkMetadata;
+import sysmon.monitor.crawler.DiskCrawler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * SimulatedMachine produces the metadata a monitor would crawl on a machine,
+ * without the machine: the CPU, memory, disk and network sections, in the
+ * units of the crawlers.
+ * 
+ * The load follows a day: it rises from baseLoad at night to peakLoad in the
+ * afternoon, shifted by a random phase per machine so that a fleet does not
+ * peak at the same second, with some noise per core. A sample starts a spike
+ * with probability spikeProbability, which holds the load above 90% for
+ * spikeMillis. The memory follows the load, the file systems fill slowly and
+ * are cleaned up when nearly full, and the file system infos are sent as the
+ * DiskCrawler sends them.
+ * 
+ * All the randomness comes from the seed, so a fleet can be replayed.
+ * 
+ */
+public class SimulatedMachine {
+
+  public static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+  private static final double SPIKE_LOAD = 0.9;
+  private static final long MB = 1024 * 1024;
+
+  private String machineIP;
+  private int machineId;
+  private int cores;
+  private long ramMB;
+  private long[] fsTotalMB;
+  private double[] fsUsedMB;
+  private double[] fsGrowthMB; // per sample
+  private DiskMetadata.FSInfo[] fsInfos;
+  private long fsVersion;
+  private double baseLoad;
+  private double peakLoad;
+  private double phase;
+  private double[] coreSkew;
+  private long dayMillis;
+  private double spikeProbability;
+  private long spikeMillis;
+  private long spikeEndMillis;
+  private int samples;
+  private Random random;
+
+  /**
+   * @param machineIP
+   *          The address the machine registers with.
+   * @param cores
+   * @param ramMB
+   * @param fileSystems
+   *          The number of file systems, at least 1.
+   * @param dayMillis
+   *          The length of a simulated day, DAY_MILLIS for real time, less to
+   *          go through a day in a short run.
+   * @param spikeProbability
+   *          The probability that a sample starts a spike.
+   * @param spikeMillis
+   *          The length of a spike.
+   * @param seed
+   */
+  public SimulatedMachine(String machineIP, int cores, long ramMB,
+      int fileSystems, long dayMillis, double spikeProbability,
+      long spikeMillis, long seed) {
+    if (cores < 1 || ramMB < 1 || fileSystems < 1 || dayMillis <= 0
+        || spikeProbability < 0 || spikeProbability > 1 || spikeMillis < 0) {
+      throw new IllegalArgumentException("Invalid machine [" + cores + ", "
+          + ramMB + ", " + fileSystems + ", " + dayMillis + ", "
+          + spikeProbability + ", " + spikeMillis + "].");
+    }
+    this.machineIP = machineIP;
+    this.machineId = -1;
+    this.cores = cores;
+    this.ramMB = ramMB;
+    this.dayMillis = dayMillis;
+    this.spikeProbability = spikeProbability;
+    this.spikeMillis = spikeMillis;
+    this.random = new Random(seed);
+    this.baseLoad = 0.05 + 0.15 * random.nextDouble();
+    this.peakLoad = baseLoad + 0.2 + 0.4 * random.nextDouble();
+    this.phase = random.nextDouble() * 0.1 - 0.05;
+    this.coreSkew = new double[cores];
+    for (int i = 0; i < cores; ++i) {
+      coreSkew[i] = random.nextGaussian() * 0.05;
+    }
+    this.fsTotalMB = new long[fileSystems];
+    this.fsUsedMB = new double[fileSystems];
+    this.fsGrowthMB = new double[fileSystems];
+    this.fsInfos = new DiskMetadata.FSInfo[fileSystems];
+    for (int id = 0; id < fileSystems; ++id) {
+      fsTotalMB[id] = (1L << (5 + random.nextInt(6))) * 1024;
+      fsUsedMB[id] = fsTotalMB[id] * (0.1 + 0.6 * random.nextDouble());
+      fsGrowthMB[id] = fsTotalMB[id] * 1e-5 * random.nextDouble();
+      fsInfos[id] = id == 0 ? new DiskMetadata.FSInfo(id, "/dev/sda1", "/",
+          "local", "ext4") : new DiskMetadata.FSInfo(id, "/dev/sd"
+          + (char) ('a' + id) + "1", "/data" + id, "local", "xfs");
+    }
+    this.fsVersion = DiskMetadata.computeVersion(fsInfos);
+  }
+
+  public String getMachineIP() {
+    return machineIP;
+  }
+
+  /**
+   * @return The id assigned by the manager, -1 until registered.
+   */
+  public int getMachineId() {
+    return machineId;
+  }
+
+  public void setMachineId(int machineId) {
+    this.machineId = machineId;
+  }
+
+  public int getCores() {
+    return cores;
+  }
+
+  /**
+   * The static metadata sent at the enrollment, as the crawlers build it.
+   * 
+   * @return
+   */
+  public JsonObject getStaticMetadata() {
+    JsonObject cpuJson = new JsonObject();
+    cpuJson.addProperty("totalCores", cores);
+    cpuJson.addProperty("vendor", "Simulated");
+    cpuJson.addProperty("model", "Simulated CPU");
+    cpuJson.addProperty("Mhz", 2400);
+    JsonObject memoryJson = new JsonObject();
+    memoryJson.addProperty("totalMemory", ramMB * MB);
+    JsonArray fileSystemsJson = new JsonArray();
+    for (DiskMetadata.FSInfo info : fsInfos) {
+      JsonObject fsJson = new JsonObject();
+      fsJson.addProperty("id", info.getId());
+      fsJson.addProperty("devName", info.getDevName());
+      fsJson.addProperty("dirName", info.getDirName());
+      fsJson.addProperty("typeName", info.getTypeName());
+      fsJson.addProperty("sysTypeName", info.getSysTypeName());
+      fileSystemsJson.add(fsJson);
+    }
+    JsonObject diskJson = new JsonObject();
+    diskJson.addProperty("version", fsVersion);
+    diskJson.add("file-systems", fileSystemsJson);
+    JsonObject staticJson = new JsonObject();
+    staticJson.add("cpu", cpuJson);
+    staticJson.add("memory", memoryJson);
+    staticJson.add("disk", diskJson);
+    return staticJson;
+  }
+
+  /**
+   * The load of the day at that time, without the spikes and the noise.
+   * 
+   * @param nowMillis
+   * @return In [0, 1].
+   */
+  public double getDiurnalLoad(long nowMillis) {
+    double dayFraction = (double) (nowMillis % dayMillis) / dayMillis + phase;
+    // lowest at 3 a.m., highest at 3 p.m.
+    double level = 0.5 - 0.5 * Math.cos(2 * Math.PI * (dayFraction - 0.125));
+    return Math.min(1, baseLoad + (peakLoad - baseLoad) * level);
+  }
+
+  /**
+   * Whether a spike is running at that time.
+   * 
+   * @param nowMillis
+   * @return
+   */
+  public boolean isSpiking(long nowMillis) {
+    return nowMillis < spikeEndMillis;
+  }
+
+  /**
+   * Sample the machine.
+   * 
+   * @param nowMillis
+   * @return
+   */
+  public MachineMetadata sample(long nowMillis) {
+    if (!isSpiking(nowMillis) && random.nextDouble() < spikeProbability) {
+      spikeEndMillis = nowMillis + spikeMillis;
+    }
+    double load = getDiurnalLoad(nowMillis);
+    if (isSpiking(nowMillis)) {
+      load = SPIKE_LOAD + (1 - SPIKE_LOAD) * random.nextDouble();
+    }
+
+    CpuMetadata.Core[] coreSamples = new CpuMetadata.Core[cores];
+    for (int i = 0; i < cores; ++i) {
+      double combined = clamp(load + coreSkew[i] + random.nextGaussian()
+          * 0.03, 0, 1);
+      double user = combined * (0.7 + 0.1 * random.nextDouble());
+      coreSamples[i] = new CpuMetadata.Core(user, combined - user, combined,
+          1 - combined);
+    }
+
+    MemoryMetadata memory = new MemoryMetadata();
+    double usedPercent = clamp(30 + 55 * load + random.nextGaussian(), 5, 99);
+    long total = ramMB * MB;
+    long used = (long) (total * usedPercent / 100);
+    memory.setRam(ramMB);
+    memory.setTotal(total);
+    memory.setUsed(used);
+    memory.setActualUsed(used);
+    memory.setFree(total - used);
+    memory.setActualFree(total - used);
+    memory.setUsedPercent(usedPercent);
+    memory.setFreePercent(100 - usedPercent);
+
+    List<DiskMetadata.FS> fileSystems = new ArrayList<DiskMetadata.FS>();
+    for (int id = 0; id < fsTotalMB.length; ++id) {
+      fsUsedMB[id] += fsGrowthMB[id] * (0.5 + load);
+      if (fsUsedMB[id] > 0.95 * fsTotalMB[id]) {
+        fsUsedMB[id] = 0.6 * fsTotalMB[id]; // cleaned up
+      }
+      fileSystems.add(new DiskMetadata.FS(id, fsTotalMB[id],
+          (long) fsUsedMB[id], fsUsedMB[id] / fsTotalMB[id]));
+    }
+    boolean sendInfos = samples < DiskCrawler.STATIC_REPEAT_CRAWLS
+        || samples % DiskCrawler.STATIC_RESEND_CRAWLS == 0;
+    DiskMetadata disk = new DiskMetadata(fsVersion, sendInfos ? fsInfos
+        : null, fileSystems);
+
+    double[] rates = new double[2 * NetworkMetadata.FIELDS.length];
+    double rxBytes = 5e6 * load * (0.8 + 0.4 * random.nextDouble());
+    double txBytes = 0.6 * rxBytes;
+    rates[NetworkMetadata.RX_BYTES] = rxBytes;
+    rates[NetworkMetadata.TX_BYTES] = txBytes;
+    rates[NetworkMetadata.RX_PACKETS] = rxBytes / 900;
+    rates[NetworkMetadata.TX_PACKETS] = txBytes / 900;
+    NetworkMetadata network = new NetworkMetadata(new String[] { "eth0",
+        "lo" }, new boolean[] { false, true }, rates);
+
+    MachineMetadata machineMetadata = new MachineMetadata(nowMillis / 1000,
+        machineIP);
+    machineMetadata.setTimestampMillis(nowMillis);
+    machineMetadata.setCrawlMillis(nowMillis);
+    machineMetadata.setMachineId(machineId);
+    machineMetadata.setCpu(new CpuMetadata(coreSamples));
+    machineMetadata.setMemory(memory);
+    machineMetadata.setDisk(disk);
+    machineMetadata.setNetwork(network);
+    ++samples;
+    return machineMetadata;
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+}
@@ -0,0 +1,114 @@
+package sysmon.subscriber;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConflatingBuffer keeps at most one pending element per key. Offering an
+ * element whose key is already pending replaces the older element in place,
+ * so the memory is bounded by the number of distinct keys and a slow reader
+ * always sees the latest value.
+ * 
+ * It waits on a lock rather than a monitor, so that a reader on a virtual
+ * thread releases its carrier while the buffer is empty.
+ * 
+ * @param <K>
+ * @param <V>
+ */
+public class ConflatingBuffer<K, V> {
+
+  private LinkedHashMap<K, V> pending;
+  private long offeredCount;
+  private long conflatedCount;
+  private ReentrantLock lock;
+  private Condition notEmpty;
+
+  public ConflatingBuffer() {
+    this.pending = new LinkedHashMap<K, V>();
+    this.lock = new ReentrantLock();
+    this.notEmpty = lock.newCondition();
+  }
+
+  /**
+   * Put the element into the buffer, replacing the pending one with the same
+   * key.
+   * 
+   * @param key
+   * @param value
+   * @return true if an older pending element was replaced.
+   */
+  public boolean offer(K key, V value) {
+    lock.lock();
+    try {
+      ++offeredCount;
+      boolean replaced = pending.put(key, value) != null;
+      if (replaced) {
+        ++conflatedCount;
+      } else {
+        notEmpty.signalAll();
+      }
+      return replaced;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Remove and return the oldest pending element, waiting if the buffer is
+   * empty.
+   * 
+   * @return
+   * @throws InterruptedException
+   */
+  public V take() throws InterruptedException {
+    lock.lock();
+    try {
+      while (pending.isEmpty()) {
+        notEmpty.await();
+      }
+      Iterator<Map.Entry<K, V>> itr = pending.entrySet().iterator();
+      V value = itr.next().getValue();
+      itr.remove();
+      return value;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int size() {
+    lock.lock();
+    try {
+      return pending.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The number of elements dropped because a newer one with the same key
+   * arrived before delivery.
+   * 
+   * @return
+   */
+  public long getConflatedCount() {
+    lock.lock();
+    try {
+      return conflatedCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getOfferedCount() {
+    lock.lock();
+    try {
+      return offeredCount;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
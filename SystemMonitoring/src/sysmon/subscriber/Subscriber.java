@@ -1,7 +1,10 @@
 package sysmon.subscriber;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadFactory;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -11,36 +14,121 @@ import javax.jms.Message;
 import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
 import javax.jms.Session;
+import javax.jms.TextMessage;
 import javax.jms.Topic;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.network.NetworkConnector;
 
+import sysmon.common.SubscriptionFilter;
+import sysmon.common.metadata.MachineMetadata;
 import sysmon.util.GlobalParameters;
 import sysmon.util.IPUtil;
+import sysmon.util.ThreadFactories;
+
+import com.google.gson.JsonObject;
 
 /**
  * Subscriber is used to subscribe the metadata sent to multiple collectors.
  * 
+ * If a SubscriptionFilter is given, the filter is registered on each collector
+ * and only the matching, projected metadata is relayed. Otherwise every message
+ * sent to the collectors is relayed.
+ * 
+ * In conflation mode, the metadata is not relayed directly. Only the latest
+ * pending metadata per machine (or per machine and section) is kept and a
+ * delivery thread relays it at no more than the configured rate. As long as the
+ * delivery keeps up, every metadata is relayed; when it does not, older
+ * undelivered metadata is replaced so the memory stays bounded.
+ * 
+ * Plain relaying forwards the consumed messages untouched: the body is never
+ * unmarshalled and the producer does not copy the message on send. For an
+ * unfiltered, unconflated subscription the relay can also be delegated to
+ * broker network bridges, so the marshalled messages are forwarded between
+ * brokers without going through the JMS client at all.
+ * 
  * @author Yexi Jiang (http://users.cs.fiu.edu/~yjian004)
  * 
  */
 public class Subscriber {
 
+  public static final int CONFLATION_NONE = 0;
+  public static final int CONFLATION_BY_MACHINE = 1;
+  public static final int CONFLATION_BY_MACHINE_SECTION = 2;
+
   final private String brokerUrl;
   final private String destination;
   private BrokerService broker;
   private List<String> inputBrokerAddresses;
   private List<SubscribeWorker> workerList;
+  private SubscriptionFilter filter;
+  private int conflationMode;
+  private double maxDeliveryRate;
+  private ConflatingBuffer<String, MachineMetadata> conflatingBuffer;
+  private ConflatedDeliveryWorker deliveryWorker;
+  private boolean useNetworkBridge;
 
   public Subscriber(List<String> inputBrokerAddresses) {
+    this(inputBrokerAddresses, null);
+  }
+
+  /**
+   * Relay all the metadata of the collectors.
+   * 
+   * @param inputBrokerAddresses
+   * @param useNetworkBridge
+   *          Whether to relay through broker network bridges instead of
+   *          subscribe workers.
+   */
+  public Subscriber(List<String> inputBrokerAddresses, boolean useNetworkBridge) {
+    this(inputBrokerAddresses, null, CONFLATION_NONE, 0, useNetworkBridge);
+  }
+
+  public Subscriber(List<String> inputBrokerAddresses, SubscriptionFilter filter) {
+    this(inputBrokerAddresses, filter, CONFLATION_NONE, 0);
+  }
+
+  /**
+   * @param inputBrokerAddresses
+   * @param filter
+   *          The filter evaluated on the collectors, null to receive all.
+   * @param conflationMode
+   *          One of CONFLATION_NONE, CONFLATION_BY_MACHINE and
+   *          CONFLATION_BY_MACHINE_SECTION.
+   * @param maxDeliveryRate
+   *          The max number of messages per second relayed in conflation
+   *          mode, 0 for unlimited.
+   */
+  public Subscriber(List<String> inputBrokerAddresses,
+      SubscriptionFilter filter, int conflationMode, double maxDeliveryRate) {
+    this(inputBrokerAddresses, filter, conflationMode, maxDeliveryRate, false);
+  }
+
+  private Subscriber(List<String> inputBrokerAddresses,
+      SubscriptionFilter filter, int conflationMode, double maxDeliveryRate,
+      boolean useNetworkBridge) {
     this.brokerUrl = "tcp://" + IPUtil.getFirstAvailableIP() + ":"
         + GlobalParameters.SUBSCRIBE_COMMAND_PORT;
     this.destination = "command";
     this.inputBrokerAddresses = inputBrokerAddresses;
+    this.filter = filter;
+    this.conflationMode = conflationMode;
+    this.maxDeliveryRate = maxDeliveryRate;
+    this.useNetworkBridge = useNetworkBridge;
     this.workerList = new ArrayList<SubscribeWorker>();
     createBroker();
+    if (useNetworkBridge) {
+      return;
+    }
+    if (conflationMode != CONFLATION_NONE) {
+      this.conflatingBuffer = new ConflatingBuffer<String, MachineMetadata>();
+      startDeliveryWorker();
+    }
     startWorkers();
   }
 
@@ -51,6 +139,9 @@ public class Subscriber {
       broker.setPersistent(false);
       broker.setUseJmx(false);
       broker.addConnector(brokerUrl);
+      if (useNetworkBridge) {
+        addNetworkBridges();
+      }
       broker.start();
       System.out.println("Create gather broker:" + brokerUrl);
     } catch (Exception e) {
@@ -58,6 +149,99 @@ public class Subscriber {
     }
   }
 
+  /**
+   * Bridge the "command" topic of each collector broker to the local broker.
+   * The bridges are duplex so that the demand of the local consumers pulls the
+   * messages, and the network TTL of 1 keeps the messages of one collector from
+   * being forwarded to another.
+   * 
+   * @throws Exception
+   */
+  private void addNetworkBridges() throws Exception {
+    List<ActiveMQDestination> destinations = new ArrayList<ActiveMQDestination>();
+    destinations.add(new ActiveMQTopic(destination));
+    for (int i = 0; i < inputBrokerAddresses.size(); ++i) {
+      NetworkConnector connector = broker.addNetworkConnector("static:("
+          + inputBrokerAddresses.get(i) + ")");
+      connector.setName("relay-" + i);
+      connector.setDuplex(true);
+      connector.setNetworkTTL(1);
+      connector.setDynamicallyIncludedDestinations(destinations);
+    }
+  }
+
+  private void startDeliveryWorker() {
+    try {
+      deliveryWorker = new ConflatedDeliveryWorker(brokerUrl, destination);
+      deliveryWorker.start(ThreadFactories.getDefault());
+    } catch (JMSException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Put the metadata into the conflating buffer.
+   * 
+   * @param metadata
+   */
+  private void conflate(MachineMetadata metadata) {
+    if (conflationMode == CONFLATION_BY_MACHINE) {
+      conflatingBuffer.offer(metadata.getMachineIP(), metadata);
+      return;
+    }
+    String machineIP = metadata.getMachineIP();
+    if (metadata.getCpu() != null) {
+      conflatingBuffer.offer(machineIP + "/cpu",
+          metadata.project(Collections.singleton("cpu")));
+    }
+    if (metadata.getMemory() != null) {
+      conflatingBuffer.offer(machineIP + "/memory",
+          metadata.project(Collections.singleton("memory")));
+    }
+    if (metadata.getDisk() != null) {
+      conflatingBuffer.offer(machineIP + "/disk",
+          metadata.project(Collections.singleton("disk")));
+    }
+    if (metadata.getProcess() != null) {
+      conflatingBuffer.offer(machineIP + "/process",
+          metadata.project(Collections.singleton("process")));
+    }
+    if (metadata.getNetwork() != null) {
+      conflatingBuffer.offer(machineIP + "/network",
+          metadata.project(Collections.singleton("network")));
+    }
+    if (metadata.getDiskIO() != null) {
+      conflatingBuffer.offer(machineIP + "/diskio",
+          metadata.project(Collections.singleton("diskio")));
+    }
+    if (metadata.getContainers() != null) {
+      conflatingBuffer.offer(machineIP + "/containers",
+          metadata.project(Collections.singleton("containers")));
+    }
+    if (metadata.getJvm() != null) {
+      conflatingBuffer.offer(machineIP + "/jvm",
+          metadata.project(Collections.singleton("jvm")));
+    }
+    if (metadata.getSummary() != null) {
+      conflatingBuffer.offer(machineIP + "/summary",
+          metadata.project(Collections.singleton("summary")));
+    }
+    if (metadata.getSelf() != null) {
+      conflatingBuffer.offer(machineIP + "/self",
+          metadata.project(Collections.singleton("self")));
+    }
+  }
+
+  /**
+   * The number of metadata replaced before being delivered, 0 if conflation is
+   * off.
+   * 
+   * @return
+   */
+  public long getConflatedCount() {
+    return conflatingBuffer == null ? 0 : conflatingBuffer.getConflatedCount();
+  }
+
   private void startWorkers() {
     for (final String brokerAddress : inputBrokerAddresses) {
       this.workerList.add(new SubscribeWorker(brokerAddress, brokerUrl,
@@ -73,6 +257,13 @@ public class Subscriber {
         e.printStackTrace();
       }
     }
+    if (deliveryWorker != null) {
+      try {
+        deliveryWorker.stop();
+      } catch (JMSException e) {
+        e.printStackTrace();
+      }
+    }
     try {
       broker.stop();
     } catch (Exception e) {
@@ -91,6 +282,7 @@ public class Subscriber {
     private String inputBrokerAddress;
     private String outputBrokerAddress;
     private String outputDestination;
+    private String subscriptionId;
 
     private MessageConsumer consumer;
     private MessageProducer producer;
@@ -112,6 +304,19 @@ public class Subscriber {
     }
 
     private void init() throws JMSException {
+      // the consumed messages are sent as they are, no need to copy them
+      ActiveMQConnectionFactory outputConnectionFactory = new ActiveMQConnectionFactory(
+          outputBrokerAddress);
+      outputConnectionFactory.setCopyMessageOnSend(false);
+      outputConnection = outputConnectionFactory.createConnection();
+      outputConnection.start();
+
+      outputSession = outputConnection.createSession(false,
+          Session.AUTO_ACKNOWLEDGE);
+      Topic outputTopic = outputSession.createTopic(outputDestination);
+      producer = outputSession.createProducer(outputTopic);
+      producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+
       ConnectionFactory inputConnectionFactory = new ActiveMQConnectionFactory(
           inputBrokerAddress);
       inputConnection = inputConnectionFactory.createConnection();
@@ -119,37 +324,145 @@ public class Subscriber {
 
       inputSession = inputConnection.createSession(false,
           Session.AUTO_ACKNOWLEDGE);
-      Topic inputTopic = inputSession.createTopic("command");
-      consumer = inputSession.createConsumer(inputTopic);
-      consumer.setMessageListener(this);
+      Topic commandTopic = inputSession.createTopic("command");
+      if (filter == null) {
+        consumer = inputSession.createConsumer(commandTopic);
+        consumer.setMessageListener(this);
+      } else {
+        // listen to the subscription topic before registering the filter
+        subscriptionId = UUID.randomUUID().toString();
+        Topic subscriptionTopic = inputSession.createTopic("subscription."
+            + subscriptionId);
+        consumer = inputSession.createConsumer(subscriptionTopic);
+        consumer.setMessageListener(this);
+        JsonObject subscribeJson = new JsonObject();
+        subscribeJson.addProperty("type", "subscribe");
+        subscribeJson.addProperty("subscriptionId", subscriptionId);
+        subscribeJson.add("filter", filter.getJson());
+        sendCommand(commandTopic, subscribeJson);
+      }
+    }
+
+    /**
+     * Send a command to the collector.
+     * 
+     * @param commandTopic
+     * @param commandJson
+     * @throws JMSException
+     */
+    private void sendCommand(Topic commandTopic, JsonObject commandJson)
+        throws JMSException {
+      MessageProducer commandProducer = inputSession
+          .createProducer(commandTopic);
+      commandProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      TextMessage commandMessage = inputSession.createTextMessage();
+      commandMessage.setText(commandJson.toString());
+      commandProducer.send(commandMessage);
+      commandProducer.close();
+    }
+
+    public void stop() throws JMSException {
+      if (subscriptionId != null) {
+        JsonObject unsubscribeJson = new JsonObject();
+        unsubscribeJson.addProperty("type", "unsubscribe");
+        unsubscribeJson.addProperty("subscriptionId", subscriptionId);
+        sendCommand(inputSession.createTopic("command"), unsubscribeJson);
+      }
+      producer.close();
+      consumer.close();
+      outputSession.close();
+      outputConnection.close();
+      inputSession.close();
+      inputConnection.close();
+    }
 
+    @Override
+    public void onMessage(Message message) {
+      try {
+        if (conflatingBuffer != null && message instanceof ObjectMessage) {
+          conflate((MachineMetadata) ((ObjectMessage) message).getObject());
+        } else {
+          producer.send(message); // redistribute the messages
+        }
+      } catch (JMSException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * ConflatedDeliveryWorker relays the conflated metadata to the local broker
+   * at no more than maxDeliveryRate messages per second.
+   * 
+   */
+  class ConflatedDeliveryWorker implements Runnable {
+
+    private Connection outputConnection;
+    private Session outputSession;
+    private MessageProducer producer;
+    private volatile boolean running;
+    private Thread thread;
+
+    public ConflatedDeliveryWorker(String outputBrokerAddress,
+        String outputDestination) throws JMSException {
       ConnectionFactory outputConnectionFactory = new ActiveMQConnectionFactory(
           outputBrokerAddress);
       outputConnection = outputConnectionFactory.createConnection();
       outputConnection.start();
-
       outputSession = outputConnection.createSession(false,
           Session.AUTO_ACKNOWLEDGE);
       Topic outputTopic = outputSession.createTopic(outputDestination);
       producer = outputSession.createProducer(outputTopic);
       producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+      running = true;
     }
 
+    public void start(ThreadFactory threadFactory) {
+      thread = ThreadFactories.newThread(threadFactory, this,
+          "conflated-delivery", true);
+      thread.start();
+    }
+
+    /**
+     * Stop the worker, waking it up if it is waiting for metadata.
+     * 
+     * @throws JMSException
+     */
     public void stop() throws JMSException {
+      running = false;
+      if (thread != null) {
+        thread.interrupt();
+      }
       producer.close();
-      consumer.close();
       outputSession.close();
       outputConnection.close();
-      inputSession.close();
-      inputConnection.close();
     }
 
     @Override
-    public void onMessage(Message message) {
-      try {
-        producer.send(message); // redistribute the messages
-      } catch (JMSException e) {
-        e.printStackTrace();
+    public void run() {
+      long intervalInNano = maxDeliveryRate > 0 ? (long) (1000000000L / maxDeliveryRate)
+          : 0;
+      long nextDeliveryTime = System.nanoTime();
+      while (running) {
+        try {
+          // wait before taking so that the latest metadata is delivered
+          long waitTime = nextDeliveryTime - System.nanoTime();
+          if (waitTime > 0) {
+            Thread.sleep(waitTime / 1000000, (int) (waitTime % 1000000));
+          }
+          MachineMetadata metadata = conflatingBuffer.take();
+          ObjectMessage message = outputSession.createObjectMessage();
+          message.setObject(metadata);
+          producer.send(message);
+          nextDeliveryTime = Math.max(nextDeliveryTime, System.nanoTime())
+              + intervalInNano;
+        } catch (InterruptedException e) {
+          return;
+        } catch (JMSException e) {
+          if (running) {
+            e.printStackTrace();
+          }
+        }
       }
     }
   }
@@ -13,6 +13,7 @@ public class GlobalParameters {
   public final static String MONITOR_COMMAND_PORT = "32099";
 
   public final static String SUBSCRIBE_COMMAND_PORT = "32100";
+  public final static String COLLECTOR_STATS_HTTP_PORT = "32101";
 
   public final static String EMBEDDED_DB_USERNAME = "admin";
   public final static String EMBEDDED_DB_PASSWORD = "admin";
@@ -0,0 +1,169 @@
+package sysmon.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ThreadFactories creates the runtime threads of the monitor, the collector,
+ * the subscriber and the simulator, so that they can run on virtual threads
+ * where the JDK has them (21+), e.g. to run thousands of simulated monitors
+ * in one JVM.
+ * 
+ * The default factory is picked by the system property sysmon.threads:
+ * "virtual" for virtual threads, anything else (or a JDK without them) for
+ * platform threads. The virtual threads are looked up by reflection, so the
+ * code still builds and runs on the older JDKs.
+ * 
+ * A virtual thread is always a daemon: a main that leaves its work to
+ * virtual threads has to call keepAlive() with the factory it used.
+ * 
+ */
+public class ThreadFactories {
+
+  public static final String THREADS_PROPERTY = "sysmon.threads";
+
+  private static final ThreadFactory PLATFORM = new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable);
+    }
+  };
+  private static final ThreadFactory VIRTUAL = createVirtualFactory();
+  private static final Method IS_VIRTUAL = findIsVirtual();
+
+  private static ThreadFactory defaultFactory;
+
+  private static ThreadFactory createVirtualFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+          .getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      return null; // before JDK 21, or a preview not enabled
+    }
+  }
+
+  private static Method findIsVirtual() {
+    try {
+      return Thread.class.getMethod("isVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  public static boolean isVirtualSupported() {
+    return VIRTUAL != null;
+  }
+
+  public static ThreadFactory platform() {
+    return PLATFORM;
+  }
+
+  /**
+   * @return The factory of virtual threads.
+   * @throws UnsupportedOperationException
+   *           If the JDK has no virtual threads.
+   */
+  public static ThreadFactory virtual() {
+    if (VIRTUAL == null) {
+      throw new UnsupportedOperationException(
+          "Virtual threads need JDK 21 or later.");
+    }
+    return VIRTUAL;
+  }
+
+  /**
+   * @return The factory set by setDefault(), or picked by the system
+   *         property.
+   */
+  public static synchronized ThreadFactory getDefault() {
+    if (defaultFactory == null) {
+      if ("virtual".equals(System.getProperty(THREADS_PROPERTY))) {
+        if (VIRTUAL != null) {
+          defaultFactory = VIRTUAL;
+        } else {
+          new Out().error("Virtual threads need JDK 21 or later, "
+              + "use platform threads.");
+          defaultFactory = PLATFORM;
+        }
+      } else {
+        defaultFactory = PLATFORM;
+      }
+    }
+    return defaultFactory;
+  }
+
+  /**
+   * Replace the default factory, before the threads are created.
+   * 
+   * @param threadFactory
+   */
+  public static synchronized void setDefault(ThreadFactory threadFactory) {
+    defaultFactory = threadFactory;
+  }
+
+  public static boolean isVirtual(Thread thread) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * @param threadFactory
+   * @return Whether the factory makes virtual threads, told from a thread it
+   *         creates and that is never started.
+   */
+  public static boolean makesVirtual(ThreadFactory threadFactory) {
+    if (IS_VIRTUAL == null) {
+      return false;
+    }
+    return isVirtual(threadFactory.newThread(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }));
+  }
+
+  /**
+   * Create a thread, not started. The daemon flag only applies to the
+   * platform threads.
+   * 
+   * @param threadFactory
+   * @param runnable
+   * @param name
+   * @param daemon
+   * @return
+   */
+  public static Thread newThread(ThreadFactory threadFactory,
+      Runnable runnable, String name, boolean daemon) {
+    Thread thread = threadFactory.newThread(runnable);
+    thread.setName(name);
+    if (!isVirtual(thread)) {
+      thread.setDaemon(daemon);
+    }
+    return thread;
+  }
+
+  /**
+   * Block the calling thread for good if the factory makes virtual threads,
+   * which do not keep the JVM alive.
+   * 
+   * @param threadFactory
+   *          The factory the runtime threads were created with, not only the
+   *          default one.
+   */
+  public static void keepAlive(ThreadFactory threadFactory) {
+    if (makesVirtual(threadFactory)) {
+      while (true) {
+        LockSupport.park();
+      }
+    }
+  }
+
+}
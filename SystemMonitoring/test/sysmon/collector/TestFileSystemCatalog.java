@@ -0,0 +1,98 @@
+package sysmon.collector;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.DiskMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestFileSystemCatalog {
+
+	private DiskMetadata.FSInfo[] infos(int count) {
+		DiskMetadata.FSInfo[] infos = new DiskMetadata.FSInfo[count];
+		for(int i = 0; i < count; ++i) {
+			infos[i] = new DiskMetadata.FSInfo(i, "/dev/mapper/docker-253:0-" + i, "/var/lib/docker/containers/" + i + "/rootfs", "local", "xfs");
+		}
+		return infos;
+	}
+
+	private MachineMetadata sample(long version, DiskMetadata.FSInfo[] infos, int count) {
+		List<DiskMetadata.FS> usages = new ArrayList<DiskMetadata.FS>();
+		for(int i = 0; i < count; ++i) {
+			usages.add(new DiskMetadata.FS(i, 1000000, 500000, 0.5));
+		}
+		MachineMetadata metadata = new MachineMetadata(0, "10.0.0.1");
+		metadata.setDisk(new DiskMetadata(version, infos, usages));
+		return metadata;
+	}
+
+	private int size(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return bytes.size();
+	}
+
+	@Test
+	public void testResolve() {
+		DiskMetadata.FSInfo[] infos = infos(3);
+		long version = DiskMetadata.computeVersion(infos);
+		FileSystemCatalog catalog = new FileSystemCatalog();
+
+		/*	the infos are not known yet	*/
+		assertFalse(catalog.resolve(sample(version, null, 3)));
+
+		assertTrue(catalog.resolve(sample(version, infos, 3)));
+		MachineMetadata metadata = sample(version, null, 3);
+		assertTrue(catalog.resolve(metadata));
+		assertEquals("/var/lib/docker/containers/2/rootfs", metadata.getDisk().getFileSystemInfo(2).getDirName());
+		assertEquals(0.5, metadata.getMetricValue("diskMaxUsedPct"), 0);
+
+		/*	a new mount table	*/
+		DiskMetadata.FSInfo[] newInfos = infos(4);
+		long newVersion = DiskMetadata.computeVersion(newInfos);
+		assertTrue(newVersion != version);
+		assertFalse(catalog.resolve(sample(newVersion, null, 4)));
+
+		/*	a machine that gets an id keeps its slot	*/
+		metadata = sample(version, null, 3);
+		metadata.setMachineId(3);
+		assertTrue(catalog.resolve(metadata));
+		assertEquals(1, catalog.getMachineCount());
+
+		/*	another machine is another slot	*/
+		metadata = sample(version, null, 3);
+		metadata.setMachineIP("10.0.0.2");
+		metadata.setMachineId(4);
+		assertFalse(catalog.resolve(metadata));
+		metadata = sample(version, infos, 3);
+		metadata.setMachineIP("10.0.0.2");
+		metadata.setMachineId(4);
+		assertTrue(catalog.resolve(metadata));
+		assertEquals(2, catalog.getMachineCount());
+	}
+
+	@Test
+	public void testPayload() throws IOException {
+		DiskMetadata.FSInfo[] infos = infos(200);
+		long version = DiskMetadata.computeVersion(infos);
+		int withInfos = size(sample(version, infos, 200));
+		int withoutInfos = size(sample(version, null, 200));
+		/*	the usages alone are less than a third of the sample	*/
+		assertTrue(withoutInfos * 3 < withInfos);
+		/*	the infos are resolved again from the catalog	*/
+		FileSystemCatalog catalog = new FileSystemCatalog();
+		assertTrue(catalog.resolve(sample(version, infos, 200)));
+		MachineMetadata metadata = sample(version, null, 200);
+		assertTrue(catalog.resolve(metadata));
+		assertEquals(size(sample(version, infos, 200)), size(metadata));
+	}
+}
@@ -0,0 +1,130 @@
+package sysmon.collector;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestIngestStats {
+
+	@Test
+	public void testCounters() {
+		IngestStats stats = new IngestStats(0);
+		stats.onMessage(100);
+		stats.onMessage(300);
+		stats.onDecodeError();
+		stats.onCepEvent(1000000000);
+		stats.onMonitorSeen("10.0.0.1", 1000);
+		stats.onMonitorSeen("10.0.0.2", 2000);
+		stats.onMonitorSeen("10.0.0.1", 3000);
+		assertEquals(2, stats.getMessages());
+		assertEquals(400, stats.getBytes());
+		assertEquals(3000, stats.getLastSeenMillis("10.0.0.1"));
+		assertEquals(0, stats.getLastSeenMillis("10.0.0.3"));
+
+		/*	the rates wait for a full interval	*/
+		JsonObject statsJson = stats.getJson(5000);
+		assertEquals(0, statsJson.get("messagesPerSec").getAsDouble(), 0);
+		statsJson = stats.getJson(10000);
+		assertEquals(0.2, statsJson.get("messagesPerSec").getAsDouble(), 1e-9);
+		assertEquals(40, statsJson.get("bytesPerSec").getAsDouble(), 1e-9);
+		assertEquals(1, statsJson.get("decodeErrors").getAsLong());
+		/*	1 s of the 10 s spent in the CEP engine	*/
+		assertEquals(1000, statsJson.get("cepMillis").getAsLong());
+		assertEquals(10, statsJson.get("cepBusyPercent").getAsDouble(), 1e-9);
+		JsonObject monitorJson = statsJson.get("monitors").getAsJsonObject().get("10.0.0.2").getAsJsonObject();
+		assertEquals(8, monitorJson.get("secondsSinceLastSeen").getAsDouble(), 1e-9);
+
+		stats.removeMonitor("10.0.0.2");
+		assertFalse(stats.getJson(10000).get("monitors").getAsJsonObject().has("10.0.0.2"));
+	}
+
+	@Test
+	public void testMonitorIds() {
+		IngestStats stats = new IngestStats(0);
+		stats.onMonitorSeen("10.0.0.1", 1000);
+		/*	the monitor got an id, it moves out of the map	*/
+		stats.onMonitorSeen(0, "10.0.0.1", 2000);
+		stats.onMonitorSeen(100, "10.0.0.2", 3000);
+		assertEquals(2000, stats.getLastSeenMillis("10.0.0.1"));
+		assertEquals(3000, stats.getLastSeenMillis("10.0.0.2"));
+		assertEquals(2, stats.getJson(5000).get("monitors").getAsJsonObject().entrySet().size());
+
+		/*	a restarted manager gave the id 0 to another monitor	*/
+		stats.onMonitorSeen(0, "10.0.0.3", 4000);
+		assertEquals(2000, stats.getLastSeenMillis("10.0.0.1"));
+		assertEquals(4000, stats.getLastSeenMillis("10.0.0.3"));
+
+		stats.removeMonitor("10.0.0.2");
+		assertEquals(0, stats.getLastSeenMillis("10.0.0.2"));
+		assertEquals(2, stats.getJson(5000).get("monitors").getAsJsonObject().entrySet().size());
+	}
+
+	@Test
+	public void testConcurrentMonitors() throws InterruptedException {
+		final IngestStats stats = new IngestStats(0);
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for(int i = 0; i < 10000; ++i) {
+						stats.onMessage(1);
+						stats.onMonitorSeen("10.0.0." + (i % 100), i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(40000, stats.getMessages());
+		assertEquals(100, stats.getJson(0).get("monitors").getAsJsonObject().entrySet().size());
+	}
+
+	@Test
+	public void testText() {
+		IngestStats stats = new IngestStats(0);
+		stats.onMessage(10);
+		stats.onMonitorSeen("10.0.0.1", 0);
+		JsonObject statsJson = stats.getJson(2000);
+		statsJson.addProperty("alertQueueSize", 3);
+		JsonObject stagesJson = (JsonObject) new JsonParser().parse("{decode: {count: 1, p99: 12.5}}");
+		String text = IngestStats.toText(statsJson, stagesJson);
+		assertTrue(text, text.contains("sysmon_collector_messages 1\n"));
+		assertTrue(text, text.contains("sysmon_collector_decode_errors 0\n"));
+		assertTrue(text, text.contains("sysmon_collector_alert_queue_size 3\n"));
+		assertTrue(text, text.contains("sysmon_collector_monitor_seconds_since_last_seen{monitor=\"10.0.0.1\"} 2.0\n"));
+		assertTrue(text, text.contains("sysmon_collector_stage_micros{stage=\"decode\",stat=\"p99\"} 12.5\n"));
+	}
+
+	@Test
+	public void testHttpServer() throws IOException {
+		StatsHttpServer server = new StatsHttpServer(0, new Callable<String>() {
+			public String call() {
+				return "sysmon_collector_messages 7\n";
+			}
+		});
+		server.start();
+		try {
+			URL url = new URL("http://127.0.0.1:" + server.getPort() + "/metrics");
+			HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+			assertEquals(200, connection.getResponseCode());
+			assertTrue(connection.getContentType().startsWith("text/plain"));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+			assertEquals("sysmon_collector_messages 7", reader.readLine());
+			reader.close();
+		} finally {
+			server.stop();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package sysmon.collector;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+public class TestMachineSample {
+	
+	private int indexOf(String[] names, String name) {
+		for(int i = 0; i < names.length; ++i) {
+			if(names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	@Test
+	public void testFlatten() {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[2];
+		cores[0] = new CpuMetadata.Core(0.1, 0.1, 0.2, 0.8);
+		cores[1] = new CpuMetadata.Core(0.3, 0.1, 0.4, 0.6);
+		MachineMetadata metadata = new MachineMetadata(42, "10.0.0.1");
+		metadata.setCpu(new CpuMetadata(cores));
+		
+		Object[] sample = MachineSample.flatten(metadata);
+		String[] names = MachineSample.getPropertyNames();
+		assertEquals(names.length, sample.length);
+		assertEquals(42L, sample[MachineSample.TIMESTAMP]);
+		assertEquals("10.0.0.1", sample[MachineSample.MACHINE_IP]);
+		assertEquals(-1, sample[MachineSample.MACHINE_ID]);
+		for(int i = 0; i < names.length; ++i) {
+			if(names[i].equals("cpuIdle")) {
+				assertEquals(0.7, (Double)sample[i], 1e-9);
+			} else if(names[i].equals("memUsedPct")) {
+				assertTrue(Double.isNaN((Double)sample[i]));
+			}
+		}
+		assertEquals(0.6, ((double[])sample[MachineSample.CORE_IDLE])[1], 1e-9);
+		
+		MemoryMetadata memory = new MemoryMetadata();
+		memory.setTotal(100);
+		memory.setActualFree(25);
+		metadata.setMemory(memory);
+		sample = MachineSample.flatten(metadata);
+		assertEquals(0.25, (Double)sample[indexOf(names, "memFreeRatio")], 1e-9);
+	}
+}
@@ -0,0 +1,96 @@
+package sysmon.collector;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.sketch.QuantileSketch;
+
+public class TestQuantileStore {
+	
+	private MachineMetadata sample(String machineIP, long timestamp, double idle) {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[1];
+		cores[0] = new CpuMetadata.Core(0, 0, 1 - idle, idle);
+		MachineMetadata metadata = new MachineMetadata(timestamp, machineIP);
+		metadata.setCpu(new CpuMetadata(cores));
+		return metadata;
+	}
+	
+	@Test
+	public void testWindowsAndGroups() {
+		List<String[]> groups = new ArrayList<String[]>();
+		groups.add(new String[] { "rack1", "10.0.1." });
+		QuantileStore store = new QuantileStore(60, 5, 0.01, new String[] { "cpuIdle" }, groups);
+		/*	10 minutes of 10 machines, rack1 is busy	*/
+		for(long t = 0; t < 600; t += 10) {
+			for(int i = 0; i < 10; ++i) {
+				String machineIP = (i < 5 ? "10.0.1." : "10.0.2.") + i;
+				store.onSample(sample(machineIP, t, i < 5 ? 0.1 : 0.5 + t / 1200.0));
+			}
+		}
+		QuantileSketch all = store.query(QuantileStore.ALL, "cpuIdle", 300);
+		assertEquals(5 * 6 * 10, all.getCount());
+		/*	the last 5 minutes only	*/
+		assertEquals(0.5 + 300 / 1200.0, all.getQuantile(0.51), 0.01);
+		assertEquals(0.1, all.getQuantile(0.1), 0.001);
+		
+		QuantileSketch rack = store.query("rack1", "cpuIdle", 60);
+		assertEquals(5 * 6, rack.getCount());
+		assertEquals(0.1, rack.getQuantile(0.99), 0.001);
+		
+		/*	older than the ring	*/
+		assertEquals(5 * 6 * 10, store.query(QuantileStore.ALL, "cpuIdle", 3600).getCount());
+		assertEquals(0, store.query("rack2", "cpuIdle", 60).getCount());
+		assertEquals(0, store.query(QuantileStore.ALL, "memUsedPct", 60).getCount());
+	}
+
+	@Test
+	public void testVariableRateWeights() {
+		QuantileStore store = new QuantileStore(600, 2, 0.01, new String[] { "cpuIdle" }, new ArrayList<String[]>());
+		/*	60 s of samples every 10 s at 0.5, then 20 s of samples every 100 ms at 0.1	*/
+		for(long t = 0; t <= 60000; t += 10000) {
+			MachineMetadata metadata = sample("10.0.0.1", 0, 0.5);
+			metadata.setTimestampMillis(t);
+			store.onSample(metadata);
+		}
+		for(long t = 60100; t <= 80000; t += 100) {
+			MachineMetadata metadata = sample("10.0.0.1", 0, 0.1);
+			metadata.setTimestampMillis(t);
+			store.onSample(metadata);
+		}
+		QuantileSketch sketch = store.query(QuantileStore.ALL, "cpuIdle", 600);
+		/*	the 200 fast samples weigh as much as 2 slow ones	*/
+		assertEquals(7 + 2, sketch.getCount());
+		assertEquals(0.5, sketch.getQuantile(0.5), 0.01);
+		assertEquals(0.1, sketch.getQuantile(0), 0.001);
+	}
+
+	@Test
+	public void testGapAndDuplicates() {
+		QuantileStore store = new QuantileStore(3600, 2, 0.01, new String[] { "cpuIdle" }, new ArrayList<String[]>());
+		/*	10 minutes every 10 s, one 60 s gap, 10 more minutes every 10 s	*/
+		long t = 0;
+		for(int i = 0; i <= 60; ++i, t += 10000) {
+			MachineMetadata metadata = sample("10.0.0.1", 0, 0.5);
+			metadata.setTimestampMillis(t);
+			store.onSample(metadata);
+			/*	resent, not counted	*/
+			store.onSample(metadata);
+		}
+		assertEquals(61, store.query(QuantileStore.ALL, "cpuIdle", 3600).getCount());
+		t += 50000;
+		for(int i = 0; i < 60; ++i, t += 10000) {
+			MachineMetadata metadata = sample("10.0.0.1", 0, 0.1);
+			metadata.setTimestampMillis(t);
+			store.onSample(metadata);
+		}
+		/*	the samples after the gap still weigh about 1 each, not 1/6	*/
+		long count = store.query(QuantileStore.ALL, "cpuIdle", 3600).getCount();
+		assertTrue("" + count, count >= 61 + 55 && count <= 61 + 66);
+	}
+}
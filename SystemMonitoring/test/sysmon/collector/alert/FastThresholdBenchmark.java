@@ -0,0 +1,111 @@
+package sysmon.collector.alert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import sysmon.collector.MachineSample;
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+import com.espertech.esper.client.Configuration;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.UpdateListener;
+import com.espertech.esper.client.time.CurrentTimeEvent;
+
+/**
+ * Compare the evaluation throughput of the FastThresholdEngine and the CEP
+ * engine for the same CPU and memory threshold alerts. The timestamps advance
+ * one second per round of machines, so the time windows keep evicting.
+ * 
+ * usage: FastThresholdBenchmark [machines] [events]
+ */
+public class FastThresholdBenchmark {
+	
+	static class CountingListener implements UpdateListener {
+		long count;
+		
+		@Override
+		public void update(EventBean[] newEvents, EventBean[] oldEvents) {
+			count += newEvents.length;
+		}
+	}
+	
+	private static MachineMetadata[] createMetadata(int machines, int variants) {
+		Random rnd = new Random(0);
+		MachineMetadata[] metadata = new MachineMetadata[machines * variants];
+		for(int i = 0; i < metadata.length; ++i) {
+			int machine = i % machines;
+			CpuMetadata.Core[] cores = new CpuMetadata.Core[4];
+			for(int j = 0; j < cores.length; ++j) {
+				double idle = rnd.nextDouble();
+				cores[j] = new CpuMetadata.Core(0.1, 0.1, 1 - idle, idle);
+			}
+			metadata[i] = new MachineMetadata(0, "10.0." + (machine / 250) + "." + (machine % 250));
+			metadata[i].setCpu(new CpuMetadata(cores));
+			MemoryMetadata memory = new MemoryMetadata();
+			memory.setTotal(1024);
+			memory.setActualFree(rnd.nextInt(1024));
+			metadata[i].setMemory(memory);
+		}
+		return metadata;
+	}
+	
+	public static void main(String[] args) {
+		int machines = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int events = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		MachineMetadata[] metadata = createMetadata(machines, 10);
+		
+		FastThresholdEngine fastEngine = new FastThresholdEngine();
+		final long[] fastChanges = new long[1];
+		fastEngine.setStateChangeHandler(new FastThresholdEngine.StateChangeHandler() {
+			@Override
+			public void onStateChange(ThresholdRule rule, String machineIP, boolean alerting, double value, long timestampMillis) {
+				++fastChanges[0];
+			}
+		});
+		List<ThresholdRule> rules = new ArrayList<ThresholdRule>();
+		rules.add(new ThresholdRule("CpuUsageAlert", "cpuIdle", "avg", 10, "lt", 0.2, 0.05));
+		rules.add(new ThresholdRule("MemoryUsageAlert", "memFreeRatio", "avg", 10, "lt", 0.05, 0));
+		fastEngine.setRules(rules);
+		
+		Configuration config = new Configuration();
+		config.addEventType(MachineSample.EVENT_TYPE, MachineSample.getPropertyNames(), MachineSample.getPropertyTypes());
+		config.getEngineDefaults().getThreading().setInternalTimerEnabled(false);
+		EPServiceProvider cepEngine = EPServiceProviderManager.getProvider("threshold-benchmark", config);
+		CountingListener cepListener = new CountingListener();
+		cepEngine.getEPAdministrator().createEPL("select machineIP, avg(cpuIdle) as avg from MachineSample.std:groupwin(machineIP).win:time(10 sec) "
+				+ "group by machineIP having avg(cpuIdle) < 0.2").addListener(cepListener);
+		cepEngine.getEPAdministrator().createEPL("select machineIP, avg(memFreeRatio) as avg from MachineSample.std:groupwin(machineIP).win:time(10 sec) "
+				+ "group by machineIP having avg(memFreeRatio) < 0.05").addListener(cepListener);
+		
+		for(int round = 0; round < 3; ++round) {
+			long start = System.nanoTime();
+			for(int i = 0; i < events; ++i) {
+				MachineMetadata sample = metadata[i % metadata.length];
+				sample.setTimestamp(round * (long)events + i / machines);
+				fastEngine.onSample(sample);
+			}
+			long fastTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for(int i = 0; i < events; ++i) {
+				MachineMetadata sample = metadata[i % metadata.length];
+				long timestamp = round * (long)events + i / machines;
+				if(i % machines == 0) {
+					cepEngine.getEPRuntime().sendEvent(new CurrentTimeEvent(timestamp * 1000));
+				}
+				sample.setTimestamp(timestamp);
+				cepEngine.getEPRuntime().sendEvent(MachineSample.flatten(sample), MachineSample.EVENT_TYPE);
+			}
+			long cepTime = System.nanoTime() - start;
+			
+			System.out.printf("round %d: native %.0f samples/s, CEP %.0f samples/s, gain %.2fx\n", round,
+					events * 1e9 / fastTime, events * 1e9 / cepTime, (double)cepTime / fastTime);
+		}
+		System.out.println("native state changes: " + fastChanges[0] + ", CEP updates: " + cepListener.count);
+	}
+}
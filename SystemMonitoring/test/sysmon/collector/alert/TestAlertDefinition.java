@@ -0,0 +1,48 @@
+package sysmon.collector.alert;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestAlertDefinition {
+	
+	private JsonObject createAlertJson(String threshold, String message) {
+		String json = "{type: 'CpuUsageAlert', "
+				+ "parameters: {timeWindow: {name: 'timeWindow', value: '10'}, threshold: {name: 'threshold', value: '" + threshold + "'}}, "
+				+ "epl: 'select machineIP, avg(cpuIdle) as avg from MachineSample.win:length(${timeWindow}) group by machineIP having avg(cpuIdle) < ${threshold}', "
+				+ "action: {type: 'log', message: '" + message + "'}}";
+		return new JsonParser().parse(json).getAsJsonObject();
+	}
+	
+	@Test
+	public void testExpand() {
+		AlertDefinition definition = AlertDefinition.fromJson(createAlertJson("0.2", "busy"));
+		assertEquals("select machineIP, avg(cpuIdle) as avg from MachineSample.win:length(10) group by machineIP having avg(cpuIdle) < 0.2",
+				definition.getEpl());
+		assertEquals("log", definition.getAction().get("type"));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingParameter() {
+		Map<String, String> values = new HashMap<String, String>();
+		AlertDefinition.expand("select * from MachineSample.win:length(${timeWindow})", values);
+	}
+	
+	@Test
+	public void testSharedKeys() {
+		AlertDefinition first = AlertDefinition.fromJson(createAlertJson("0.2", "busy"));
+		AlertDefinition same = AlertDefinition.fromJson(createAlertJson("0.2", "busy"));
+		AlertDefinition otherAction = AlertDefinition.fromJson(createAlertJson("0.2", "very busy"));
+		AlertDefinition otherThreshold = AlertDefinition.fromJson(createAlertJson("0.3", "busy"));
+		assertEquals(first.getListenerKey(), same.getListenerKey());
+		assertEquals(first.getEpl(), otherAction.getEpl());
+		assertFalse(first.getListenerKey().equals(otherAction.getListenerKey()));
+		assertFalse(first.getEpl().equals(otherThreshold.getEpl()));
+	}
+}
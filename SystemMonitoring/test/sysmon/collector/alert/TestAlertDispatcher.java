@@ -0,0 +1,150 @@
+package sysmon.collector.alert;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import sysmon.collector.alert.sink.AlertSink;
+import sysmon.util.ThreadFactories;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestAlertDispatcher {
+	
+	private AlertEvent raise(String machineIP) {
+		return new AlertEvent("CpuUsageAlert", machineIP, true, "busy " + machineIP, 0.1, 0);
+	}
+	
+	private AlertEvent clear(String machineIP) {
+		return new AlertEvent("CpuUsageAlert", machineIP, false, "ok " + machineIP, 0.5, 0);
+	}
+	
+	private AlertDispatcher createDispatcher() {
+		AlertDispatcher dispatcher = new AlertDispatcher(4, null);
+		JsonObject config = new JsonParser().parse("{suppressSeconds: 60, flapWindowSeconds: 100, flapThreshold: 4, sinks: []}")
+				.getAsJsonObject();
+		dispatcher.configure(config);
+		return dispatcher;
+	}
+	
+	private String kinds(List<AlertNotification> notifications) {
+		List<String> kinds = new ArrayList<String>();
+		for(AlertNotification notification : notifications) {
+			kinds.add(notification.getKind() + notification.getEvents().size());
+		}
+		return kinds.toString();
+	}
+	
+	@Test
+	public void testDedupAndSuppression() {
+		AlertDispatcher dispatcher = createDispatcher();
+		assertEquals("[]", kinds(dispatcher.process(Arrays.asList(clear("a")), 0)));
+		assertEquals("[raised1]", kinds(dispatcher.process(Arrays.asList(raise("a"), raise("a")), 0)));
+		assertEquals("[]", kinds(dispatcher.process(Arrays.asList(raise("a")), 30 * 1000)));
+		/*	reminder after the suppression window	*/
+		assertEquals("[raised1]", kinds(dispatcher.process(Arrays.asList(raise("a")), 61 * 1000)));
+		assertEquals("[cleared1]", kinds(dispatcher.process(Arrays.asList(clear("a"), clear("a")), 62 * 1000)));
+		assertEquals(4, dispatcher.getSuppressedCount());
+	}
+	
+	@Test
+	public void testGrouping() {
+		AlertDispatcher dispatcher = createDispatcher();
+		List<AlertNotification> notifications = dispatcher.process(Arrays.asList(raise("a"), raise("b"), raise("c")), 0);
+		assertEquals("[raised3]", kinds(notifications));
+		assertTrue(notifications.get(0).toString().startsWith("[CpuUsageAlert] raised on 3 machine(s)"));
+		assertEquals(3, notifications.get(0).getJson().get("events").getAsJsonArray().size());
+		
+		notifications = dispatcher.process(Arrays.asList(clear("a"), raise("d"), clear("b")), 1000);
+		assertEquals("[cleared2, raised1]", kinds(notifications));
+		assertEquals("busy d", notifications.get(1).toString());
+	}
+	
+	@Test
+	public void testFlapping() {
+		AlertDispatcher dispatcher = createDispatcher();
+		long now = 0;
+		assertEquals("[raised1]", kinds(dispatcher.process(Arrays.asList(raise("a")), now += 1000)));
+		assertEquals("[cleared1]", kinds(dispatcher.process(Arrays.asList(clear("a")), now += 1000)));
+		assertEquals("[raised1]", kinds(dispatcher.process(Arrays.asList(raise("a")), now += 1000)));
+		/*	the 4th change within the window	*/
+		assertEquals("[flapping1]", kinds(dispatcher.process(Arrays.asList(clear("a")), now += 1000)));
+		assertEquals("[]", kinds(dispatcher.process(Arrays.asList(raise("a"), clear("a"), raise("a")), now += 1000)));
+		/*	other machines are not affected	*/
+		assertEquals("[raised1]", kinds(dispatcher.process(Arrays.asList(raise("b")), now)));
+		/*	quiet for a whole window, the next change is delivered	*/
+		assertEquals("[cleared1]", kinds(dispatcher.process(Arrays.asList(clear("a")), now += 100 * 1000)));
+	}
+	
+	@Test
+	public void testBoundedQueue() {
+		AlertDispatcher dispatcher = createDispatcher();
+		for(int i = 0; i < 6; ++i) {
+			assertEquals(i < 4, dispatcher.publish(raise("m" + i)));
+		}
+		assertEquals(2, dispatcher.getDroppedCount());
+	}
+	
+	/**
+	 * Record where the sink is used and closed.
+	 */
+	static class RecordingSink implements AlertSink {
+		List<String> deliveredOn = new ArrayList<String>();
+		volatile String closedOn;
+		
+		@Override
+		public synchronized void deliver(AlertNotification notification) {
+			assertNull(closedOn);
+			deliveredOn.add(Thread.currentThread().getName());
+			notifyAll();
+		}
+		
+		@Override
+		public void close() {
+			closedOn = Thread.currentThread().getName();
+		}
+		
+		synchronized void awaitDelivery() throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 5000;
+			while(deliveredOn.isEmpty() && System.currentTimeMillis() < deadline) {
+				wait(100);
+			}
+		}
+	}
+	
+	@Test
+	public void testSinksClosedByDeliveryThread() throws InterruptedException {
+		AlertDispatcher dispatcher = new AlertDispatcher(4, null);
+		dispatcher.configure(new JsonParser().parse("{groupWindowMillis: 0}").getAsJsonObject());
+		RecordingSink first = new RecordingSink();
+		dispatcher.setSinks(new ArrayList<AlertSink>(Arrays.asList((AlertSink) first)));
+		dispatcher.start(ThreadFactories.platform());
+		dispatcher.publish(raise("a"));
+		first.awaitDelivery();
+		assertEquals("[alert-dispatcher]", first.deliveredOn.toString());
+		
+		RecordingSink second = new RecordingSink();
+		dispatcher.setSinks(new ArrayList<AlertSink>(Arrays.asList((AlertSink) second)));
+		/*	not closed by the configuring thread	*/
+		assertNull(first.closedOn);
+		dispatcher.publish(raise("b"));
+		second.awaitDelivery();
+		assertEquals("alert-dispatcher", first.closedOn);
+		assertEquals(1, first.deliveredOn.size());
+		assertNull(second.closedOn);
+		
+		/*	an idle dispatcher swaps within SINK_SWAP_MILLIS	*/
+		RecordingSink third = new RecordingSink();
+		dispatcher.setSinks(new ArrayList<AlertSink>(Arrays.asList((AlertSink) third)));
+		long deadline = System.currentTimeMillis() + 5000;
+		while(second.closedOn == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals("alert-dispatcher", second.closedOn);
+	}
+}
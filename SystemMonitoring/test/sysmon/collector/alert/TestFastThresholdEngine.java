@@ -0,0 +1,208 @@
+package sysmon.collector.alert;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestFastThresholdEngine {
+	
+	static class RecordingHandler implements FastThresholdEngine.StateChangeHandler {
+		List<String> changes = new ArrayList<String>();
+		List<Double> values = new ArrayList<Double>();
+		
+		@Override
+		public void onStateChange(ThresholdRule rule, String machineIP, boolean alerting, double value, long timestampMillis) {
+			changes.add(machineIP + (alerting ? " raise" : " clear"));
+			values.add(value);
+		}
+	}
+	
+	private MachineMetadata sample(String machineIP, long timestamp, double idle) {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[1];
+		cores[0] = new CpuMetadata.Core(0, 0, 1 - idle, idle);
+		MachineMetadata metadata = new MachineMetadata(timestamp, machineIP);
+		metadata.setCpu(new CpuMetadata(cores));
+		return metadata;
+	}
+	
+	private FastThresholdEngine createEngine(RecordingHandler handler, ThresholdRule... rules) {
+		FastThresholdEngine engine = new FastThresholdEngine(8);
+		engine.setStateChangeHandler(handler);
+		engine.setRules(Arrays.asList(rules));
+		return engine;
+	}
+	
+	@Test
+	public void testAvgWithHysteresis() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("CpuUsageAlert", "cpuIdle", "avg", 3, "lt", 0.2, 0.1));
+		engine.onSample(sample("a", 1, 0.4));
+		engine.onSample(sample("a", 2, 0.1));
+		assertTrue(handler.changes.isEmpty());	// avg 0.25
+		engine.onSample(sample("a", 3, 0.0));
+		assertEquals(Arrays.asList("a raise"), handler.changes);	// avg 0.167
+		engine.onSample(sample("a", 4, 0.35));	// window (1, 4]: avg 0.15
+		engine.onSample(sample("a", 5, 0.35));	// window (2, 5]: avg 0.233, within the hysteresis
+		assertEquals(1, handler.changes.size());
+		engine.onSample(sample("a", 6, 0.35));	// window (3, 6]: avg 0.35
+		assertEquals(Arrays.asList("a raise", "a clear"), handler.changes);
+		assertEquals(0.35, handler.values.get(1), 1e-9);
+	}
+	
+	@Test
+	public void testTimeWeightedAvg() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("CpuUsageAlert", "cpuIdle", "avg", 10, "lt", 0.3, 0));
+		MachineMetadata metadata = sample("a", 0, 0.5);
+		metadata.setTimestampMillis(1000);
+		engine.onSample(metadata);
+		metadata = sample("a", 0, 0.5);
+		metadata.setTimestampMillis(9000);
+		engine.onSample(metadata);
+		/*	a burst of 4 fast samples, 100 ms apart	*/
+		for(int i = 1; i <= 4; ++i) {
+			metadata = sample("a", 0, 0.0);
+			metadata.setTimestampMillis(9000 + i * 100);
+			engine.onSample(metadata);
+		}
+		/*	the plain mean would be 1 / 6, the time weighted one is 4.5 / 9.4	*/
+		assertTrue(handler.changes.isEmpty());
+	}
+	
+	@Test
+	public void testMinMaxEviction() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("IdleFloor", "cpuIdle", "max", 2, "lt", 0.3, 0),
+				new ThresholdRule("IdleSpike", "cpuIdle", "min", 2, "gt", 0.6, 0));
+		engine.onSample(sample("a", 1, 0.5));
+		engine.onSample(sample("a", 2, 0.1));	// max 0.5, min 0.1
+		assertTrue(handler.changes.isEmpty());
+		engine.onSample(sample("a", 3, 0.2));	// 0.5 expired: max 0.2
+		assertEquals(Arrays.asList("a raise"), handler.changes);
+		assertEquals(0.2, handler.values.get(0), 1e-9);
+		engine.onSample(sample("a", 4, 0.7));	// max 0.7, min 0.2
+		engine.onSample(sample("a", 5, 0.8));	// max 0.8, min 0.7
+		assertEquals(Arrays.asList("a raise", "a clear", "a raise"), handler.changes);
+		assertEquals(0.7, handler.values.get(2), 1e-9);
+	}
+	
+	@Test
+	public void testRingCapacity() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = new FastThresholdEngine(8, 8);
+		engine.setStateChangeHandler(handler);
+		engine.setRules(Arrays.asList(
+				new ThresholdRule("CpuUsageAlert", "cpuIdle", "max", 1000, "lt", 0.5, 0)));
+		engine.onSample(sample("a", 0, 0.9));
+		for(int i = 1; i < 8; ++i) {
+			engine.onSample(sample("a", i, 0.1));
+		}
+		assertTrue(handler.changes.isEmpty());
+		/*	the ring holds at most 8 samples, so 0.9 is evicted	*/
+		engine.onSample(sample("a", 8, 0.1));
+		assertEquals(Arrays.asList("a raise"), handler.changes);
+	}
+	
+	@Test
+	public void testRingGrowsToTheWindow() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("IdleFloor", "cpuIdle", "max", 30, "lt", 0.5, 0));
+		/*	a 30 s window sampled every 100 ms: 300 samples in rings of 8	*/
+		for(int i = 0; i < 300; ++i) {
+			for(String machineIP : new String[] {"a", "b"}) {
+				MachineMetadata metadata = sample(machineIP, 0, i == 0 ? 0.9 : 0.1);
+				metadata.setTimestampMillis(i * 100);
+				engine.onSample(metadata);
+			}
+		}
+		/*	0.9 is still in the window	*/
+		assertTrue(handler.changes.isEmpty());
+		for(String machineIP : new String[] {"a", "b"}) {
+			MachineMetadata metadata = sample(machineIP, 0, 0.1);
+			metadata.setTimestampMillis(30000);
+			engine.onSample(metadata);
+		}
+		assertEquals(Arrays.asList("a raise", "b raise"), handler.changes);
+		assertEquals(0.1, handler.values.get(0), 1e-9);
+	}
+	
+	@Test
+	public void testRingsGrowPerMachine() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("IdleFloor", "cpuIdle", "max", 30, "lt", 0.5, 0));
+		/*	one machine every 100 ms, ten every 10 s, over 30 s	*/
+		for(int i = 0; i < 300; ++i) {
+			MachineMetadata metadata = sample("fast", 0, 0.9);
+			metadata.setTimestampMillis(i * 100);
+			engine.onSample(metadata);
+			if (i % 100 == 0) {
+				for(int m = 0; m < 10; ++m) {
+					metadata = sample("slow" + m, 0, 0.9);
+					metadata.setTimestampMillis(i * 100);
+					engine.onSample(metadata);
+				}
+			}
+		}
+		assertTrue(engine.getWindowCapacity(0, -1, "fast") >= 300);
+		for(int m = 0; m < 10; ++m) {
+			assertEquals(8, engine.getWindowCapacity(0, -1, "slow" + m));
+		}
+		assertEquals(0, engine.getWindowCapacity(0, -1, "unknown"));
+	}
+
+	@Test
+	public void testMachinesAreIndependent() {
+		RecordingHandler handler = new RecordingHandler();
+		FastThresholdEngine engine = createEngine(handler,
+				new ThresholdRule("CpuUsageAlert", "cpuIdle", "last", 10, "lt", 0.2, 0));
+		/*	more machines than the initial slots	*/
+		for(int i = 0; i < 40; ++i) {
+			engine.onSample(sample("m" + i, 1, i == 33 ? 0.1 : 0.9));
+		}
+		assertEquals(Arrays.asList("m33 raise"), handler.changes);
+		engine.onSample(sample("m33", 2, 0.9));
+		engine.onSample(sample("m0", 2, 0.1));
+		assertEquals(Arrays.asList("m33 raise", "m33 clear", "m0 raise"), handler.changes);
+	}
+	
+	@Test
+	public void testStateKeptOnSetRules() {
+		RecordingHandler handler = new RecordingHandler();
+		ThresholdRule rule = new ThresholdRule("CpuUsageAlert", "cpuIdle", "avg", 10, "lt", 0.2, 0);
+		FastThresholdEngine engine = createEngine(handler, rule);
+		engine.onSample(sample("a", 1, 0.1));
+		assertEquals(1, handler.changes.size());
+		
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("metric", "cpuIdle");
+		attributes.put("window", "10");
+		attributes.put("comparator", "lt");
+		attributes.put("threshold", "0.2");
+		ThresholdRule same = ThresholdRule.fromDefinition("CpuUsageAlert", attributes);
+		engine.setRules(Arrays.asList(same,
+				new ThresholdRule("Other", "cpuIdle", "avg", 10, "lt", 0.2, 0)));
+		assertEquals(2, engine.getRuleCount());
+		/*	the unchanged rule is still alerting, the new one raises	*/
+		engine.onSample(sample("a", 2, 0.1));
+		assertEquals(2, handler.changes.size());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownMetric() {
+		new ThresholdRule("CpuUsageAlert", "cpuIdl", "avg", 10, "lt", 0.2, 0);
+	}
+}
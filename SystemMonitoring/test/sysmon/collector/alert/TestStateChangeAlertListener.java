@@ -0,0 +1,86 @@
+package sysmon.collector.alert;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.EventType;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestStateChangeAlertListener {
+	
+	/**
+	 * Record the messages instead of logging them.
+	 */
+	static class RecordingListener extends StateChangeAlertListener {
+		List<String> messages = new ArrayList<String>();
+		
+		RecordingListener(AlertDefinition definition) {
+			super(definition);
+		}
+		
+		@Override
+		protected String format(EventBean event, String template) {
+			String message = super.format(event, template);
+			messages.add(message);
+			return message;
+		}
+	}
+	
+	private EventBean[] event(final String ip, final double avg) {
+		final Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("machineIP", ip);
+		properties.put("avg", avg);
+		return new EventBean[] { new EventBean() {
+			@Override
+			public EventType getEventType() {
+				return null;
+			}
+			
+			@Override
+			public Object get(String property) {
+				return properties.get(property);
+			}
+			
+			@Override
+			public Object getUnderlying() {
+				return properties;
+			}
+			
+			@Override
+			public Object getFragment(String property) {
+				return null;
+			}
+		} };
+	}
+	
+	@Test
+	public void testOnlyStateChangesAreReported() {
+		JsonObject alertJson = new JsonParser().parse("{type: 'CpuUsageAlert', parameters: {threshold: {name: 'threshold', value: '0.2'}}, "
+				+ "epl: 'select machineIP, avg(cpuIdle) as avg from MachineSample', "
+				+ "action: {type: 'state-change', comparator: 'lt', threshold: '${threshold}', message: 'busy ${machineIP}', clearMessage: 'ok ${machineIP}'}}")
+				.getAsJsonObject();
+		AlertListener created = AlertListener.create(AlertDefinition.fromJson(alertJson), null);
+		assertTrue(created instanceof StateChangeAlertListener);
+		
+		RecordingListener listener = new RecordingListener(AlertDefinition.fromJson(alertJson));
+		listener.update(event("a", 0.5), null);
+		listener.update(event("a", 0.1), null);
+		listener.update(event("a", 0.1), null);
+		listener.update(event("b", 0.1), null);
+		listener.update(event("a", 0.15), null);
+		listener.update(event("a", 0.3), null);
+		listener.update(event("a", 0.4), null);
+		assertEquals(3, listener.messages.size());
+		assertEquals("[CpuUsageAlert] busy a", listener.messages.get(0));
+		assertEquals("[CpuUsageAlert] busy b", listener.messages.get(1));
+		assertEquals("[CpuUsageAlert] ok a", listener.messages.get(2));
+	}
+}
@@ -0,0 +1,65 @@
+package sysmon.collector.anomaly;
+
+import java.util.Random;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+/**
+ * Measure the anomaly detection cost on the ingest path: every machine sends
+ * one sample per second, and all the scalar metrics are watched with a daily
+ * seasonal baseline.
+ * 
+ * usage: AnomalyBenchmark [machines] [seconds]
+ * 
+ * The detector logs through Out, so log4j (not shipped in lib/) has to be on
+ * the classpath along with lib/*.
+ */
+public class AnomalyBenchmark {
+	
+	public static void main(String[] args) {
+		int machines = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+		Random rnd = new Random(0);
+		MachineMetadata[] metadata = new MachineMetadata[machines];
+		for(int i = 0; i < machines; ++i) {
+			CpuMetadata.Core[] cores = new CpuMetadata.Core[4];
+			for(int j = 0; j < cores.length; ++j) {
+				double idle = rnd.nextDouble();
+				cores[j] = new CpuMetadata.Core(0.1, 0.1, 1 - idle, idle);
+			}
+			metadata[i] = new MachineMetadata(0, "10.0." + (i / 250) + "." + (i % 250));
+			metadata[i].setCpu(new CpuMetadata(cores));
+			MemoryMetadata memory = new MemoryMetadata();
+			memory.setTotal(1024);
+			memory.setActualFree(rnd.nextInt(1024));
+			metadata[i].setMemory(memory);
+		}
+		AnomalyDetector detector = new AnomalyDetector(0.05, 4, 30, 24, 86400, MachineMetadata.METRIC_NAMES);
+		final long[] anomalies = new long[1];
+		detector.setAnomalyHandler(new AnomalyDetector.AnomalyHandler() {
+			@Override
+			public void onAnomaly(String machineIP, String metric, boolean anomalous, double value, double baseline, double sigma,
+					long timestampMillis) {
+				++anomalies[0];
+			}
+		});
+		
+		long start = System.nanoTime();
+		for(int t = 0; t < seconds; ++t) {
+			if(t == 60) {
+				System.out.printf("warm-up: %.0f samples/s\n", 60.0 * machines * 1e9 / (System.nanoTime() - start));
+				start = System.nanoTime();
+			}
+			for(int i = 0; i < machines; ++i) {
+				metadata[i].setTimestamp(t);
+				detector.onSample(metadata[i]);
+			}
+		}
+		long time = System.nanoTime() - start;
+		double samplesPerSecond = (seconds - 60.0) * machines * 1e9 / time;
+		System.out.printf("%d machines x %d metrics: %.0f samples/s, %.1f%% of a core at 1 Hz, %d anomaly changes\n", machines,
+				MachineMetadata.METRIC_NAMES.length, samplesPerSecond, 100.0 * machines / samplesPerSecond, anomalies[0]);
+	}
+}
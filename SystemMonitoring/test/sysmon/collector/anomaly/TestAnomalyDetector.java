@@ -0,0 +1,112 @@
+package sysmon.collector.anomaly;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+import com.google.gson.JsonParser;
+
+public class TestAnomalyDetector {
+	
+	static class RecordingHandler implements AnomalyDetector.AnomalyHandler {
+		List<String> anomalies = new ArrayList<String>();
+		
+		@Override
+		public void onAnomaly(String machineIP, String metric, boolean anomalous, double value, double baseline, double sigma,
+				long timestampMillis) {
+			anomalies.add(machineIP + " " + metric + (anomalous ? " anomalous" : " normal") + " at " + timestampMillis / 1000);
+		}
+	}
+	
+	private MachineMetadata sample(String machineIP, long timestamp, double idle) {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[1];
+		cores[0] = new CpuMetadata.Core(0, 0, 1 - idle, idle);
+		MachineMetadata metadata = new MachineMetadata(timestamp, machineIP);
+		metadata.setCpu(new CpuMetadata(cores));
+		return metadata;
+	}
+	
+	/**
+	 * Bounded noise, so that the normal samples never cross 4 sigma.
+	 */
+	private double noise(Random rnd) {
+		return (rnd.nextDouble() - 0.5) * 0.02;
+	}
+	
+	@Test
+	public void testSpikeOnHeterogeneousHosts() {
+		AnomalyDetector detector = new AnomalyDetector(0.05, 4, 30, 0, 86400, new String[] { "cpuIdle" });
+		RecordingHandler handler = new RecordingHandler();
+		detector.setAnomalyHandler(handler);
+		Random rnd = new Random(0);
+		/*	an idle host and a busy host, both normal for themselves	*/
+		for(int t = 0; t < 200; ++t) {
+			detector.onSample(sample("idle", t, 0.9 + noise(rnd)));
+			detector.onSample(sample("busy", t, 0.1 + noise(rnd)));
+		}
+		assertTrue(handler.anomalies.toString(), handler.anomalies.isEmpty());
+		detector.onSample(sample("idle", 200, 0.1));
+		detector.onSample(sample("busy", 200, 0.1));
+		detector.onSample(sample("idle", 201, 0.9));
+		assertEquals("[idle cpuIdle anomalous at 200, idle cpuIdle normal at 201]", handler.anomalies.toString());
+		assertEquals(2, detector.getMachineCount());
+	}
+	
+	@Test
+	public void testNothingBeforeWarmUp() {
+		AnomalyDetector detector = new AnomalyDetector(0.05, 4, 30, 0, 86400, new String[] { "cpuIdle" });
+		RecordingHandler handler = new RecordingHandler();
+		detector.setAnomalyHandler(handler);
+		for(int t = 0; t < 29; ++t) {
+			detector.onSample(sample("a", t, t % 2 == 0 ? 0.9 : 0.1 * t / 29));
+		}
+		assertTrue(handler.anomalies.isEmpty());
+	}
+	
+	@Test
+	public void testSeasonalBaseline() {
+		/*	a "day" of 100 seconds in 2 buckets: busy in the first half, idle in the second	*/
+		AnomalyDetector seasonal = new AnomalyDetector(0.05, 4, 30, 2, 100, new String[] { "cpuIdle" });
+		AnomalyDetector flat = new AnomalyDetector(0.2, 4, 30, 0, 100, new String[] { "cpuIdle" });
+		RecordingHandler seasonalHandler = new RecordingHandler();
+		RecordingHandler flatHandler = new RecordingHandler();
+		seasonal.setAnomalyHandler(seasonalHandler);
+		flat.setAnomalyHandler(flatHandler);
+		Random rnd = new Random(1);
+		for(int t = 0; t < 1000; ++t) {
+			double idle = (t % 100 < 50 ? 0.1 : 0.9) + noise(rnd);
+			seasonal.onSample(sample("a", t, idle));
+			flat.onSample(sample("a", t, idle));
+		}
+		/*	the flat baseline follows the recent half and flags the switch, the seasonal one knows it	*/
+		assertFalse(flatHandler.anomalies.isEmpty());
+		int warmUp = seasonalHandler.anomalies.size();
+		for(int t = 1000; t < 1200; ++t) {
+			seasonal.onSample(sample("a", t, (t % 100 < 50 ? 0.1 : 0.9) + noise(rnd)));
+		}
+		assertEquals(seasonalHandler.anomalies.toString(), warmUp, seasonalHandler.anomalies.size());
+		/*	idle at the busy time of the day is anomalous	*/
+		seasonal.onSample(sample("a", 1210, 0.9));
+		assertEquals("a cpuIdle anomalous at 1210", seasonalHandler.anomalies.get(seasonalHandler.anomalies.size() - 1));
+	}
+	
+	@Test
+	public void testFromJson() {
+		AnomalyDetector detector = AnomalyDetector.fromJson(new JsonParser().parse("{enabled: 'true', k: '3', metrics: 'cpuIdle, memFreeRatio'}")
+				.getAsJsonObject());
+		detector.onSample(sample("a", 0, 0.5));
+		assertEquals(1, detector.getMachineCount());
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownMetric() {
+		new AnomalyDetector(0.05, 4, 30, 0, 86400, new String[] { "cpuIdl" });
+	}
+}
@@ -0,0 +1,62 @@
+package sysmon.common;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestMachineSlots {
+
+	@Test
+	public void testSlots() {
+		MachineSlots slots = new MachineSlots();
+		assertEquals(-1, slots.find(0, "10.0.0.1"));
+		assertEquals(0, slots.slotOf(0, "10.0.0.1"));
+		/*	the ids need not be allocated in order	*/
+		assertEquals(1, slots.slotOf(1000, "10.0.0.2"));
+		assertEquals(0, slots.slotOf(0, "10.0.0.1"));
+		assertEquals(1, slots.find(1000, "10.0.0.2"));
+		assertEquals("10.0.0.2", slots.getMachineIP(1));
+
+		/*	a machine without an id	*/
+		MachineMetadata machineMetadata = new MachineMetadata(0, "10.0.0.3");
+		assertEquals(-1, machineMetadata.getMachineId());
+		assertEquals(2, slots.slotOf(machineMetadata));
+		assertEquals(2, slots.find(machineMetadata));
+		/*	it got an id since, it keeps its slot	*/
+		machineMetadata.setMachineId(5);
+		assertEquals(2, slots.find(machineMetadata));
+		assertEquals(2, slots.slotOf(machineMetadata));
+		assertEquals(2, slots.find(5, "10.0.0.3"));
+		assertEquals(3, slots.size());
+	}
+
+	@Test
+	public void testReassignedId() {
+		MachineSlots slots = new MachineSlots();
+		assertEquals(0, slots.slotOf(7, "10.0.0.1"));
+		/*	a manager that lost its state gave the id to another machine	*/
+		assertEquals(-1, slots.find(7, "10.0.0.2"));
+		assertEquals(1, slots.slotOf(7, "10.0.0.2"));
+		assertEquals(1, slots.find(7, "10.0.0.2"));
+		/*	the previous machine, still sending with the id, keeps its slot	*/
+		assertEquals(0, slots.find(7, "10.0.0.1"));
+		assertEquals(0, slots.slotOf(7, "10.0.0.1"));
+		assertEquals(1, slots.find(7, "10.0.0.2"));
+		assertEquals(2, slots.size());
+	}
+
+	@Test
+	public void testGrow() {
+		MachineSlots slots = new MachineSlots();
+		for (int id = 0; id < 10000; ++id) {
+			assertEquals(id, slots.slotOf(id, "10.0." + (id / 256) + "." + (id % 256)));
+		}
+		for (int id = 0; id < 10000; ++id) {
+			assertEquals(id, slots.find(id, "10.0." + (id / 256) + "." + (id % 256)));
+		}
+		assertEquals(10000, slots.size());
+	}
+
+}
@@ -0,0 +1,48 @@
+package sysmon.common;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestStageLatencies {
+
+	@Test
+	public void testMonitorStages() {
+		StageLatencies stages = new StageLatencies();
+		MachineMetadata machineMetadata = new MachineMetadata(0, "10.0.0.1");
+		/*	not stamped	*/
+		stages.recordMonitorStages(machineMetadata, 1000);
+		assertEquals(0, stages.getRecorder(StageLatencies.SEND_TO_RECEIVE).getCount());
+
+		machineMetadata.setCrawlMillis(1000);
+		machineMetadata.setSentMillis(1003);
+		stages.recordMonitorStages(machineMetadata, 1010);
+		assertEquals(3000, stages.getRecorder(StageLatencies.CRAWL_TO_SEND).getMax());
+		assertEquals(7000, stages.getRecorder(StageLatencies.SEND_TO_RECEIVE).getMax());
+		/*	the projections keep the stamps	*/
+		assertEquals(1003, machineMetadata.project(Collections.singleton("cpu")).getSentMillis());
+	}
+
+	@Test
+	public void testMerge() {
+		StageLatencies collector1 = new StageLatencies();
+		StageLatencies collector2 = new StageLatencies();
+		for(int i = 1; i <= 100; ++i) {
+			collector1.record(StageLatencies.DECODE, i);
+			collector2.record(StageLatencies.DECODE, 1000 * i);
+		}
+		collector2.record(StageLatencies.CEP, 5);
+		StageLatencies merged = new StageLatencies();
+		merged.merge(StageLatencies.fromJson(collector1.getJson()));
+		merged.merge(StageLatencies.fromJson(collector2.getJson()));
+		assertEquals(200, merged.getRecorder(StageLatencies.DECODE).getCount());
+		assertEquals(100000, merged.getRecorder(StageLatencies.DECODE).getMax());
+		assertEquals(1, merged.getRecorder(StageLatencies.CEP).getCount());
+		assertEquals(0, merged.getSummaryJson().get("alert-emit").getAsJsonObject().get("count").getAsLong());
+		assertTrue(merged.getSummaryJson().get("decode").getAsJsonObject().has("p999"));
+	}
+}
@@ -0,0 +1,99 @@
+package sysmon.common;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+import com.google.gson.JsonParser;
+
+public class TestSubscriptionFilter {
+	
+	private MachineMetadata createMetadata(long timestamp, String ip, double idle) {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[8];
+		for(int i = 0; i < cores.length; ++i) {
+			cores[i] = new CpuMetadata.Core(0.1, 0.1, 1 - idle, idle);
+		}
+		MachineMetadata metadata = new MachineMetadata(timestamp, ip);
+		metadata.setCpu(new CpuMetadata(cores));
+		MemoryMetadata memory = new MemoryMetadata();
+		memory.setTotal(1024);
+		memory.setActualFree(512);
+		metadata.setMemory(memory);
+		return metadata;
+	}
+	
+	private long serializedSize(Serializable obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(obj);
+		oos.close();
+		return bytes.size();
+	}
+	
+	@Test
+	public void testMachineAndPredicate() {
+		SubscriptionFilter filter = new SubscriptionFilter().addMachine("10.0.0.1").addPredicate("cpuIdle", "<", 0.2);
+		assertNull(filter.apply(createMetadata(1, "10.0.0.2", 0.1)));
+		assertNull(filter.apply(createMetadata(1, "10.0.0.1", 0.5)));
+		assertNotNull(filter.apply(createMetadata(1, "10.0.0.1", 0.1)));
+	}
+	
+	@Test
+	public void testSamplingAndProjection() {
+		SubscriptionFilter filter = new SubscriptionFilter().addSection("memory").setMinIntervalSeconds(5);
+		MachineMetadata projected = filter.apply(createMetadata(100, "10.0.0.1", 0.5));
+		assertNotNull(projected);
+		assertNull(projected.getCpu());
+		assertNotNull(projected.getMemory());
+		assertNull(filter.apply(createMetadata(103, "10.0.0.1", 0.5)));
+		assertNotNull(filter.apply(createMetadata(103, "10.0.0.2", 0.5)));
+		assertNotNull(filter.apply(createMetadata(105, "10.0.0.1", 0.5)));
+	}
+	
+	@Test
+	public void testJsonRoundTrip() {
+		SubscriptionFilter filter = new SubscriptionFilter().addMachine("10.0.0.1").addSection("cpu")
+				.setMinIntervalSeconds(10).addPredicate("memFreeRatio", ">=", 0.5);
+		String json = filter.getJson().toString();
+		SubscriptionFilter parsed = SubscriptionFilter.fromJson(new JsonParser().parse(json).getAsJsonObject());
+		assertEquals(json, parsed.getJson().toString());
+	}
+	
+	@Test
+	public void testBandwidthReduction() throws IOException {
+		/*	1000 machines for 60 seconds, subscribe 5 of them, only cpu, every 5 seconds	*/
+		SubscriptionFilter filter = new SubscriptionFilter().addSection("cpu").setMinIntervalSeconds(5);
+		for(int i = 0; i < 5; ++i) {
+			filter.addMachine("10.0.0." + i);
+		}
+		long fullBytes = 0;
+		long filteredBytes = 0;
+		int delivered = 0;
+		for(int t = 0; t < 60; ++t) {
+			for(int i = 0; i < 1000; ++i) {
+				MachineMetadata metadata = createMetadata(t, "10.0." + (i / 250) + "." + (i % 250), 0.5);
+				long size = serializedSize(metadata);
+				fullBytes += size;
+				MachineMetadata projected = filter.apply(metadata);
+				if(projected != null) {
+					assertNotNull(projected.getCpu());
+					assertNull(projected.getMemory());
+					filteredBytes += serializedSize(projected);
+					++delivered;
+				}
+			}
+		}
+		/*	5 machines, one sample every 5 seconds	*/
+		assertEquals(5 * 12, delivered);
+		assertTrue(filteredBytes * 1000 < fullBytes);
+	}
+}
@@ -0,0 +1,95 @@
+package sysmon.common.sketch;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestLatencyRecorder {
+	
+	@Test
+	public void testBuckets() {
+		/*	the buckets are contiguous and in order	*/
+		int previous = -1;
+		for(long value = 0; value < 100000; ++value) {
+			int bucket = LatencyRecorder.bucketOf(value);
+			assertTrue(bucket == previous || bucket == previous + 1);
+			previous = bucket;
+			assertEquals(value, LatencyRecorder.valueOf(bucket), Math.max(0.5, value * 0.016));
+		}
+		assertTrue(LatencyRecorder.bucketOf(Long.MAX_VALUE) > previous);
+		new LatencyRecorder().record(Long.MAX_VALUE);
+	}
+	
+	@Test
+	public void testQuantiles() {
+		Random rnd = new Random(0);
+		long[] values = new long[100000];
+		LatencyRecorder recorder = new LatencyRecorder();
+		for(int i = 0; i < values.length; ++i) {
+			/*	heavy tailed, from microseconds to seconds	*/
+			values[i] = (long)Math.exp(rnd.nextGaussian() * 3 + 5);
+			recorder.record(values[i]);
+		}
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		assertEquals(values.length, recorder.getCount());
+		assertEquals(sorted[sorted.length - 1], recorder.getMax());
+		for(double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+			double exact = sorted[(int)Math.ceil(q * sorted.length) - 1];
+			assertEquals("q" + q, exact, recorder.getQuantile(q), exact * 0.016 + 0.5);
+		}
+		assertTrue(Double.isNaN(new LatencyRecorder().getQuantile(0.5)));
+	}
+	
+	@Test
+	public void testConcurrentRecord() throws InterruptedException {
+		final LatencyRecorder recorder = new LatencyRecorder();
+		Thread[] threads = new Thread[4];
+		for(int t = 0; t < threads.length; ++t) {
+			threads[t] = new Thread() {
+				public void run() {
+					for(int i = 0; i < 100000; ++i) {
+						recorder.record(i % 1000);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, recorder.getCount());
+		assertEquals(999, recorder.getMax());
+		assertEquals(500, recorder.getQuantile(0.5), 500 * 0.016);
+	}
+	
+	@Test
+	public void testMergeAndJson() {
+		LatencyRecorder recorder1 = new LatencyRecorder();
+		LatencyRecorder recorder2 = new LatencyRecorder();
+		LatencyRecorder all = new LatencyRecorder();
+		for(int i = 0; i < 1000; ++i) {
+			recorder1.record(i);
+			recorder2.record(i * 1000);
+			all.record(i);
+			all.record(i * 1000);
+		}
+		/*	a clock skew	*/
+		recorder1.record(-5);
+		all.record(0);
+		LatencyRecorder merged = LatencyRecorder.fromJson(recorder1.getJson());
+		merged.merge(LatencyRecorder.fromJson(recorder2.getJson()));
+		assertEquals(all.getCount(), merged.getCount());
+		assertEquals(999000, merged.getMax());
+		for(double q : new double[] { 0, 0.5, 0.99, 1 }) {
+			assertEquals(all.getQuantile(q), merged.getQuantile(q), 0);
+		}
+		assertEquals(merged.getQuantile(0.99), merged.getSummaryJson().get("p99").getAsDouble(), 0);
+		merged.clear();
+		assertEquals(0, merged.getCount());
+		assertFalse(merged.getSummaryJson().has("p99"));
+	}
+}
@@ -0,0 +1,94 @@
+package sysmon.common.sketch;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestQuantileSketch {
+	
+	private static final double[] QUANTILES = { 0.01, 0.1, 0.5, 0.9, 0.99, 0.999 };
+	
+	private void assertAccurate(double[] values, QuantileSketch sketch, double accuracy) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		assertEquals(values.length, sketch.getCount());
+		for(double q : QUANTILES) {
+			double exact = sorted[(int)(q * (sorted.length - 1))];
+			assertEquals("q" + q, exact, sketch.getQuantile(q), exact * accuracy + 1e-12);
+		}
+		assertEquals(sorted[0], sketch.getQuantile(0), 0);
+		assertEquals(sorted[sorted.length - 1], sketch.getQuantile(1), 0);
+	}
+	
+	@Test
+	public void testRelativeAccuracy() {
+		Random rnd = new Random(0);
+		double[] values = new double[100000];
+		QuantileSketch sketch = new QuantileSketch(0.01);
+		for(int i = 0; i < values.length; ++i) {
+			/*	heavy tailed, over several orders of magnitude	*/
+			values[i] = Math.exp(rnd.nextGaussian() * 3);
+			sketch.add(values[i]);
+		}
+		assertAccurate(values, sketch, 0.01);
+	}
+	
+	@Test
+	public void testMergeAndJson() {
+		Random rnd = new Random(1);
+		double[] values = new double[30000];
+		QuantileSketch[] parts = { new QuantileSketch(0.02), new QuantileSketch(0.02), new QuantileSketch(0.02) };
+		for(int i = 0; i < values.length; ++i) {
+			/*	each part sees a different range, as collectors with different machines	*/
+			values[i] = (i % 3 + 1) * rnd.nextDouble();
+			parts[i % 3].add(values[i]);
+		}
+		QuantileSketch merged = QuantileSketch.fromJson(parts[0].getJson());
+		merged.merge(QuantileSketch.fromJson(parts[1].getJson()));
+		merged.merge(parts[2]);
+		assertAccurate(values, merged, 0.02);
+	}
+	
+	@Test
+	public void testZeroAndEmpty() {
+		QuantileSketch sketch = new QuantileSketch(0.01);
+		assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+		for(int i = 0; i < 90; ++i) {
+			sketch.add(0);
+		}
+		for(int i = 0; i < 10; ++i) {
+			sketch.add(0.5);
+		}
+		assertEquals(0, sketch.getQuantile(0.5), 0);
+		assertEquals(0.5, sketch.getQuantile(0.95), 0.005);
+		QuantileSketch copy = QuantileSketch.fromJson(sketch.getJson());
+		assertEquals(100, copy.getCount());
+		assertEquals(0, copy.getQuantile(0.5), 0);
+	}
+	
+	@Test
+	public void testBoundedBins() {
+		QuantileSketch sketch = new QuantileSketch(0.01, 64);
+		for(double v = 1e-6; v < 1e6; v *= 1.001) {
+			sketch.add(v);
+		}
+		assertEquals(64, sketch.getBinCount());
+		/*	the lowest bins are collapsed, the high quantiles are still accurate	*/
+		double exact = Math.pow(10, -6 + 12 * 0.999);
+		assertEquals(exact, sketch.getQuantile(0.999), exact * 0.01);
+		QuantileSketch low = new QuantileSketch(0.01, 64);
+		for(double v = 1e6; v > 1e-6; v /= 1.001) {
+			low.add(v);
+		}
+		assertEquals(64, low.getBinCount());
+		assertEquals(exact, low.getQuantile(0.999), exact * 0.01);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeDifferentAccuracy() {
+		new QuantileSketch(0.01).merge(new QuantileSketch(0.02));
+	}
+}
@@ -0,0 +1,92 @@
+package sysmon.esper;
+
+import java.util.Random;
+
+import sysmon.collector.MachineSample;
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+import com.espertech.esper.client.Configuration;
+import com.espertech.esper.client.EPServiceProvider;
+import com.espertech.esper.client.EPServiceProviderManager;
+import com.espertech.esper.client.EventBean;
+import com.espertech.esper.client.UpdateListener;
+
+/**
+ * Compare the engine throughput of the POJO MachineMetadata events and the
+ * flattened MachineSample events for the same CPU usage statement.
+ * 
+ * usage: FlatEventBenchmark [events]
+ */
+public class FlatEventBenchmark {
+	
+	static class CountingListener implements UpdateListener {
+		long count;
+		
+		@Override
+		public void update(EventBean[] newEvents, EventBean[] oldEvents) {
+			count += newEvents.length;
+		}
+	}
+	
+	private static MachineMetadata[] createMetadata(int machines) {
+		Random rnd = new Random(0);
+		MachineMetadata[] metadata = new MachineMetadata[machines];
+		for(int i = 0; i < machines; ++i) {
+			CpuMetadata.Core[] cores = new CpuMetadata.Core[8];
+			for(int j = 0; j < cores.length; ++j) {
+				double idle = rnd.nextDouble();
+				cores[j] = new CpuMetadata.Core(0.1, 0.1, 1 - idle, idle);
+			}
+			metadata[i] = new MachineMetadata(i, "10.0." + (i / 250) + "." + (i % 250));
+			metadata[i].setCpu(new CpuMetadata(cores));
+			MemoryMetadata memory = new MemoryMetadata();
+			memory.setTotal(1024);
+			memory.setActualFree(rnd.nextInt(1024));
+			metadata[i].setMemory(memory);
+		}
+		return metadata;
+	}
+	
+	private static EPServiceProvider createEngine(String uri) {
+		Configuration config = new Configuration();
+		config.addEventTypeAutoName("sysmon.common.metadata");
+		config.addEventType(MachineSample.EVENT_TYPE, MachineSample.getPropertyNames(), MachineSample.getPropertyTypes());
+		return EPServiceProviderManager.getProvider(uri, config);
+	}
+	
+	public static void main(String[] args) {
+		int events = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		MachineMetadata[] metadata = createMetadata(1000);
+		
+		EPServiceProvider pojoEngine = createEngine("pojo");
+		CountingListener pojoListener = new CountingListener();
+		pojoEngine.getEPAdministrator().createEPL("select machineIP, avg(cpu.idleTime) as avg, avg(cpu.cores[0].idleTime) as core0 "
+				+ "from MachineMetadata.win:length(10) group by machineIP").addListener(pojoListener);
+		
+		EPServiceProvider flatEngine = createEngine("flat");
+		CountingListener flatListener = new CountingListener();
+		flatEngine.getEPAdministrator().createEPL("select machineIP, avg(cpuIdle) as avg, avg(coreIdle[0]) as core0 "
+				+ "from MachineSample.win:length(10) group by machineIP").addListener(flatListener);
+		
+		for(int round = 0; round < 3; ++round) {
+			long start = System.nanoTime();
+			for(int i = 0; i < events; ++i) {
+				pojoEngine.getEPRuntime().sendEvent(metadata[i % metadata.length]);
+			}
+			long pojoTime = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			for(int i = 0; i < events; ++i) {
+				/*	flattening is part of the decoder, so it is measured as well	*/
+				flatEngine.getEPRuntime().sendEvent(MachineSample.flatten(metadata[i % metadata.length]), MachineSample.EVENT_TYPE);
+			}
+			long flatTime = System.nanoTime() - start;
+			
+			System.out.printf("round %d: POJO %.0f events/s, flat %.0f events/s, gain %.2fx\n", round,
+					events * 1e9 / pojoTime, events * 1e9 / flatTime, (double)pojoTime / flatTime);
+		}
+		System.out.println("listener updates: " + pojoListener.count + " / " + flatListener.count);
+	}
+}
@@ -46,11 +46,19 @@ public class TestConfigReader {
 		JsonObject idleTimeAlertThresholdObj = firstParameters.get("idleTimeAlertThreshold").getAsJsonObject();
 		assertEquals("idleTimeAlertThreshold", idleTimeAlertThresholdObj.get("name").getAsString());
 		assertEquals(0.2, idleTimeAlertThresholdObj.get("value").getAsFloat(), 0.01);
+		
+		assertTrue("rule", first.has("rule"));
+		JsonObject rule = first.get("rule").getAsJsonObject();
+		assertEquals("cpuIdle", rule.get("metric").getAsString());
+		assertEquals("${idleTimeAlertThreshold}", rule.get("threshold").getAsString());
 
 		/*	Test the second alert	*/
 		JsonObject second = arr.get(1).getAsJsonObject();
 		assertEquals("MemoryUsageAlert", second.get("type").getAsString());
 		
+		assertTrue(second.get("epl").getAsString().contains("MachineSample"));
+		assertEquals("state-change", second.get("action").getAsJsonObject().get("type").getAsString());
+
 		JsonObject secondParameters = second.get("parameters").getAsJsonObject();
 		assertTrue("timeWindow", secondParameters.has("timeWindow"));
 		
@@ -74,4 +82,48 @@ public class TestConfigReader {
 		assertEquals("load-balance", obj.get("strategy").getAsString());
 	}
 	
+	@Test
+	public void testGetAlertOutputConfig() {
+		JsonObject obj = ConfigReader.getAlertOutputConfig();
+		if(obj == null) {
+			return;
+		}
+		assertEquals(300, obj.get("suppressSeconds").getAsInt());
+		JsonArray sinks = obj.get("sinks").getAsJsonArray();
+		assertEquals(3, sinks.size());
+		assertEquals("log", sinks.get(0).getAsJsonObject().get("type").getAsString());
+		assertEquals("alerts.log", sinks.get(1).getAsJsonObject().get("path").getAsString());
+	}
+	
+	@Test
+	public void testGetQuantileSketchConfig() {
+		JsonObject obj = ConfigReader.getQuantileSketchConfig();
+		if(obj == null) {
+			return;
+		}
+		assertEquals("true", obj.get("enabled").getAsString());
+		assertEquals(60, obj.get("windowSeconds").getAsInt());
+		assertEquals(0, obj.get("groups").getAsJsonArray().size());
+	}
+	
+	@Test
+	public void testGetMonitorAggregationConfig() {
+		JsonObject obj = ConfigReader.getMonitorAggregationConfig();
+		if(obj == null) {
+			return;
+		}
+		assertEquals("false", obj.get("enabled").getAsString());
+		assertEquals(10, obj.get("windowSeconds").getAsInt());
+	}
+	
+	@Test
+	public void testGetManagerStateConfig() {
+		JsonObject obj = ConfigReader.getManagerStateConfig();
+		if(obj == null) {
+			return;
+		}
+		assertEquals("manager-state", obj.get("directory").getAsString());
+		assertEquals(1000, obj.get("snapshotEvery").getAsInt());
+	}
+	
 }
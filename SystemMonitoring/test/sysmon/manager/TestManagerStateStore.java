@@ -0,0 +1,192 @@
+package sysmon.manager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestManagerStateStore {
+
+	private static File newDirectory() throws IOException {
+		File directory = File.createTempFile("manager-state", "");
+		directory.delete();
+		return directory;
+	}
+
+	private static void delete(File directory) {
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		File directory = newDirectory();
+		ManagerStateStore store = new ManagerStateStore(directory, 1000);
+		store.load();
+		store.putCollector("10.1.0.1", "tcp://10.1.0.1:32100");
+		store.putMonitor("10.0.0.1", "10.1.0.1", 0);
+		store.putMonitor("10.0.0.2", "10.1.0.1", 1);
+		/*	unchanged, not appended	*/
+		store.putMonitor("10.0.0.1", "10.1.0.1", 0);
+		assertEquals(3, store.getLogRecords());
+		store.close();
+
+		ManagerStateStore restarted = new ManagerStateStore(directory, 1000);
+		restarted.load();
+		assertEquals("tcp://10.1.0.1:32100", restarted.getCollectors().get("10.1.0.1"));
+		assertEquals("10.1.0.1", restarted.getMonitorCollectors().get("10.0.0.2"));
+		assertEquals(Integer.valueOf(1), restarted.getMonitorIds().get("10.0.0.2"));
+		/*	the log goes on after the replayed records	*/
+		restarted.putMonitor("10.0.0.3", "10.1.0.1", 2);
+		restarted.close();
+		restarted = new ManagerStateStore(directory, 1000);
+		restarted.load();
+		assertEquals(3, restarted.getMonitorIds().size());
+		assertEquals(4, restarted.getLogRecords());
+		restarted.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+		File directory = newDirectory();
+		ManagerStateStore store = new ManagerStateStore(directory, 10);
+		store.load();
+		store.putCollector("10.1.0.1", "tcp://10.1.0.1:32100");
+		for (int i = 0; i < 25; ++i) {
+			store.putMonitor("10.0.0." + i, "10.1.0.1", i);
+		}
+		/*	26 records, compacted twice	*/
+		assertEquals(6, store.getLogRecords());
+		assertTrue(new File(directory, ManagerStateStore.SNAPSHOT_FILE).exists());
+		/*	moved over the previous snapshot	*/
+		assertFalse(new File(directory, ManagerStateStore.SNAPSHOT_FILE + ".tmp").exists());
+		/*	a monitor moved to another collector	*/
+		store.putCollector("10.1.0.2", "tcp://10.1.0.2:32100");
+		store.putMonitor("10.0.0.0", "10.1.0.2", 0);
+		store.close();
+
+		ManagerStateStore restarted = new ManagerStateStore(directory, 10);
+		restarted.load();
+		assertEquals(2, restarted.getCollectors().size());
+		assertEquals(25, restarted.getMonitorCollectors().size());
+		assertEquals("10.1.0.2", restarted.getMonitorCollectors().get("10.0.0.0"));
+		assertEquals(Integer.valueOf(24), restarted.getMonitorIds().get("10.0.0.24"));
+		restarted.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testTornRecord() throws IOException {
+		File directory = newDirectory();
+		ManagerStateStore store = new ManagerStateStore(directory, 1000);
+		store.load();
+		store.putCollector("10.1.0.1", "tcp://10.1.0.1:32100");
+		store.putMonitor("10.0.0.1", "10.1.0.1", 0);
+		store.close();
+		/*	a crash while appending	*/
+		FileWriter writer = new FileWriter(new File(directory, ManagerStateStore.LOG_FILE), true);
+		writer.write("{\"op\":\"monitor\",\"monitor\":\"10.0");
+		writer.close();
+
+		ManagerStateStore restarted = new ManagerStateStore(directory, 1000);
+		restarted.load();
+		assertEquals(1, restarted.getMonitorIds().size());
+		/*	compacted at once, so the torn record is gone	*/
+		assertEquals(0, restarted.getLogRecords());
+		restarted.putMonitor("10.0.0.2", "10.1.0.1", 1);
+		restarted.close();
+		restarted = new ManagerStateStore(directory, 1000);
+		restarted.load();
+		assertEquals(2, restarted.getMonitorIds().size());
+		restarted.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testRemoveCollector() throws IOException {
+		File directory = newDirectory();
+		ManagerStateStore store = new ManagerStateStore(directory, 5);
+		store.load();
+		store.putCollector("10.1.0.1", "tcp://10.1.0.1:32100");
+		store.putCollector("10.1.0.2", "tcp://10.1.0.2:32100");
+		store.putMonitor("10.0.0.1", "10.1.0.1", 0);
+		store.putMonitor("10.0.0.2", "10.1.0.2", 1);
+		store.removeCollector("10.1.0.1");
+		/*	the monitor is unassigned, but keeps its id	*/
+		assertNull(store.getMonitorCollectors().get("10.0.0.1"));
+		assertEquals(Integer.valueOf(0), store.getMonitorIds().get("10.0.0.1"));
+		assertEquals(1, store.getCollectors().size());
+		/*	compacted, the unassigned monitor is in the snapshot	*/
+		assertEquals(0, store.getLogRecords());
+		store.removeCollector("10.1.0.2");
+		/*	unknown, not appended	*/
+		store.removeCollector("10.1.0.3");
+		assertEquals(1, store.getLogRecords());
+		store.close();
+
+		ManagerStateStore restarted = new ManagerStateStore(directory, 5);
+		restarted.load();
+		assertTrue(restarted.getCollectors().isEmpty());
+		assertTrue(restarted.getMonitorCollectors().isEmpty());
+		assertEquals(2, restarted.getMonitorIds().size());
+		assertEquals(Integer.valueOf(1), restarted.getMonitorIds().get("10.0.0.2"));
+		restarted.close();
+		delete(directory);
+	}
+
+	@Test
+	public void testInvalidSnapshot() throws IOException {
+		String[] snapshots = { "", "null", "[]", "{}", "{\"collectors\":{}}",
+				"{\"collectors\":{},\"monitors\":{\"10.0.0.9\":{\"collector\":\"10.1.0.9\"}}}" };
+		for (String snapshot : snapshots) {
+			File directory = newDirectory();
+			ManagerStateStore store = new ManagerStateStore(directory, 1000);
+			store.load();
+			store.putCollector("10.1.0.1", "tcp://10.1.0.1:32100");
+			store.putMonitor("10.0.0.1", "10.1.0.1", 0);
+			store.close();
+			FileWriter writer = new FileWriter(new File(directory, ManagerStateStore.SNAPSHOT_FILE));
+			writer.write(snapshot);
+			writer.close();
+
+			/*	the snapshot is ignored, the log is still replayed	*/
+			ManagerStateStore restarted = new ManagerStateStore(directory, 1000);
+			restarted.load();
+			assertEquals(snapshot, 1, restarted.getCollectors().size());
+			assertEquals(snapshot, 1, restarted.getMonitorIds().size());
+			assertEquals(snapshot, "10.1.0.1", restarted.getMonitorCollectors().get("10.0.0.1"));
+			restarted.close();
+			delete(directory);
+		}
+	}
+
+	@Test
+	public void testFastRestart() throws IOException {
+		File directory = newDirectory();
+		ManagerStateStore store = new ManagerStateStore(directory, 50000);
+		store.load();
+		for (int c = 0; c < 10; ++c) {
+			store.putCollector("10.1.0." + c, "tcp://10.1.0." + c + ":32100");
+		}
+		for (int i = 0; i < 100000; ++i) {
+			store.putMonitor("10." + (i / 65536) + "." + (i / 256 % 256) + "." + (i % 256), "10.1.0." + (i % 10), i);
+		}
+		store.close();
+
+		ManagerStateStore restarted = new ManagerStateStore(directory, 50000);
+		restarted.load();
+		assertEquals(100000, restarted.getMonitorIds().size());
+		assertEquals(10, restarted.getCollectors().size());
+		/*	100010 records, compacted twice: most come from the snapshot	*/
+		assertEquals(10, restarted.getLogRecords());
+		restarted.close();
+		delete(directory);
+	}
+
+}
@@ -0,0 +1,71 @@
+package sysmon.monitor;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+public class TestAdaptiveSampler {
+
+	private double[] values(String metric, double value) {
+		double[] values = new double[MachineMetadata.METRIC_NAMES.length];
+		Arrays.fill(values, Double.NaN);
+		values[MachineMetadata.indexOfMetric(metric)] = value;
+		return values;
+	}
+
+	@Test
+	public void testSlowDownWhenStable() {
+		AdaptiveSampler sampler = new AdaptiveSampler(100, 10000);
+		long interval = 0;
+		for(int i = 0; i < 20; ++i) {
+			interval = sampler.onSample(values("cpuCombined", 0.2 + (i % 2) * 0.001));
+		}
+		assertEquals(10000, interval);
+	}
+
+	@Test
+	public void testSpeedUpOnChange() {
+		AdaptiveSampler sampler = new AdaptiveSampler(100, 10000);
+		for(int i = 0; i < 20; ++i) {
+			sampler.onSample(values("cpuCombined", 0.2));
+		}
+		assertEquals(10000, sampler.getIntervalMillis());
+		assertEquals(100, sampler.onSample(values("cpuCombined", 0.9)));
+		/*	back to stable: doubles each sample	*/
+		assertEquals(200, sampler.onSample(values("cpuCombined", 0.9)));
+	}
+
+	@Test
+	public void testSpeedUpNearThreshold() {
+		AdaptiveSampler sampler = new AdaptiveSampler(100, 10000);
+		JsonArray hints = new JsonParser().parse("[{metric: 'memUsedPct', threshold: 90}, {metric: 'unknown', threshold: 1}]").getAsJsonArray();
+		double[][] thresholds = AdaptiveSampler.thresholdsFromJson(hints);
+		assertEquals(90, thresholds[MachineMetadata.indexOfMetric("memUsedPct")][0], 0);
+		sampler.setThresholds(thresholds);
+		for(int i = 0; i < 20; ++i) {
+			sampler.onSample(values("memUsedPct", 50));
+		}
+		assertEquals(10000, sampler.getIntervalMillis());
+		/*	creeping up slowly, but within 10% of the threshold	*/
+		double value = 50;
+		long interval = 0;
+		while(value < 85) {
+			value += 0.5;
+			interval = sampler.onSample(values("memUsedPct", value));
+		}
+		assertEquals(100, interval);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBounds() {
+		new AdaptiveSampler(1000, 100);
+	}
+
+}
@@ -0,0 +1,84 @@
+package sysmon.monitor;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.SummaryMetadata;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestMetricAggregator {
+
+	private double[] values(String metric, double value) {
+		double[] values = new double[MachineMetadata.METRIC_NAMES.length];
+		Arrays.fill(values, Double.NaN);
+		values[MachineMetadata.indexOfMetric(metric)] = value;
+		return values;
+	}
+
+	@Test
+	public void testSummary() {
+		MetricAggregator aggregator = new MetricAggregator(10000, new String[] { "cpuCombined" }, 0);
+		assertEquals(10000, aggregator.getWindowEndMillis());
+		assertTrue(aggregator.isAggregated(MachineMetadata.indexOfMetric("cpuCombined")));
+		assertFalse(aggregator.isAggregated(MachineMetadata.indexOfMetric("cpuIdle")));
+
+		/*	each sample stands for the time since the previous one	*/
+		aggregator.onSample(values("cpuCombined", 0.5), 1000);
+		aggregator.onSample(values("cpuCombined", 0.9), 4000);
+		aggregator.onSample(values("cpuCombined", 0.1), 5000);
+		aggregator.onSample(values("cpuIdle", 0.3), 5000);
+		SummaryMetadata summary = aggregator.drain(10000);
+		int i = summary.indexOf(MachineMetadata.indexOfMetric("cpuCombined"));
+		assertEquals(3, summary.getCount(i));
+		assertEquals(0.1, summary.getMin(i), 1e-9);
+		assertEquals(0.9, summary.getMax(i), 1e-9);
+		assertEquals((0.5 + 0.9 * 3 + 0.1) / 5, summary.getAvg(i), 1e-9);
+		assertEquals(0.1, summary.getLast(i), 1e-9);
+		assertEquals(-1, summary.indexOf(MachineMetadata.indexOfMetric("cpuIdle")));
+		assertEquals(20000, aggregator.getWindowEndMillis());
+
+		/*	an empty window	*/
+		assertEquals(-1, aggregator.drain(20000).indexOf(MachineMetadata.indexOfMetric("cpuCombined")));
+
+		MachineMetadata machineMetadata = new MachineMetadata(10, "10.0.0.1");
+		machineMetadata.setSummary(summary);
+		assertEquals(summary.getAvg(i), machineMetadata.getMetricValue("cpuCombined"), 1e-9);
+	}
+
+	@Test
+	public void testThresholdCrossing() {
+		MetricAggregator aggregator = new MetricAggregator(10000, new String[] { "cpuCombined" }, 0);
+		JsonArray hints = (JsonArray) new JsonParser().parse("[{metric: \"cpuIdle\", threshold: 0.2}]");
+		aggregator.setThresholds(AdaptiveSampler.thresholdsFromJson(hints));
+		assertFalse(aggregator.onSample(values("cpuIdle", 0.5), 1000));
+		assertFalse(aggregator.onSample(values("cpuIdle", 0.4), 2000));
+		/*	not aggregated, but still watched	*/
+		assertTrue(aggregator.onSample(values("cpuIdle", 0.1), 3000));
+		assertFalse(aggregator.onSample(values("cpuIdle", 0.1), 4000));
+		assertTrue(aggregator.onSample(values("cpuIdle", 0.3), 5000));
+	}
+
+	@Test
+	public void testFromJson() {
+		assertNull(MetricAggregator.fromJson(null, 0));
+		assertNull(MetricAggregator.fromJson(new JsonObject(), 0));
+		JsonObject config = (JsonObject) new JsonParser().parse("{enabled: \"true\", windowSeconds: \"5\", metrics: \"cpuIdle, memUsedPct\"}");
+		MetricAggregator aggregator = MetricAggregator.fromJson(config, 1000);
+		assertEquals(5000, aggregator.getWindowMillis());
+		assertEquals(6000, aggregator.getWindowEndMillis());
+		assertTrue(aggregator.isAggregated(MachineMetadata.indexOfMetric("memUsedPct")));
+		assertFalse(aggregator.isAggregated(MachineMetadata.indexOfMetric("cpuCombined")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownMetric() {
+		new MetricAggregator(10000, new String[] { "noSuchMetric" }, 0);
+	}
+}
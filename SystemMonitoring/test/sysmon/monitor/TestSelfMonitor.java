@@ -0,0 +1,137 @@
+package sysmon.monitor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.SelfMetadata;
+
+public class TestSelfMonitor {
+
+	@Test
+	public void testMeasure() {
+		SelfMonitor selfMonitor = new SelfMonitor(0);
+		assertNull(selfMonitor.getLatest());
+		int cpu = selfMonitor.addCrawler("cpu");
+		int memory = selfMonitor.addCrawler("memory");
+		selfMonitor.setCrawlerThread(cpu);
+		selfMonitor.recordCrawl(cpu, 1000000);
+		selfMonitor.recordCrawl(cpu, 2000000);
+		selfMonitor.recordCrawl(cpu, 30000000);
+		/*	burn some CPU in the crawler thread	*/
+		long sum = 0;
+		long end = System.nanoTime() + 50000000;
+		while(System.nanoTime() < end) {
+			sum += System.nanoTime() % 7;
+		}
+		assertTrue(sum >= 0);
+
+		SelfMetadata selfMetadata = selfMonitor.measure();
+		assertSame(selfMetadata, selfMonitor.getLatest());
+		assertTrue(selfMetadata.getCpuPercent() > 0);
+		assertTrue(selfMetadata.getHeapUsedBytes() > 0);
+		assertTrue(selfMetadata.getThreadCount() > 0);
+		assertEquals(1, selfMetadata.getBackoffFactor());
+		assertEquals(3, selfMetadata.getCrawls(cpu));
+		assertEquals(2, selfMetadata.getP50Millis(cpu), 2 * 0.02);
+		assertEquals(30, selfMetadata.getMaxMillis(cpu), 1e-9);
+		assertTrue(selfMetadata.getCrawlerCpuPercent(cpu) > 0);
+		assertEquals(0, selfMetadata.getCrawls(memory));
+		assertEquals(memory, selfMetadata.indexOf("memory"));
+
+		/*	the latencies are per interval	*/
+		assertEquals(0, selfMonitor.measure().getCrawls(cpu));
+
+		MachineMetadata machineMetadata = new MachineMetadata(0, "10.0.0.1");
+		machineMetadata.setSelf(selfMetadata);
+		assertEquals(selfMetadata.getCpuPercent(), machineMetadata.getMetricValue("monitorCpuPercent"), 1e-9);
+	}
+
+	@Test
+	public void testBudget() {
+		SelfMonitor selfMonitor = new SelfMonitor(5, 4, 10000);
+		int cpu = selfMonitor.addCrawler("cpu");
+		int process = selfMonitor.addCrawler("process");
+		double[] crawlerCpu = { 1, 8 };
+
+		/*	back off first	*/
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertEquals(2, selfMonitor.getBackoffFactor());
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertEquals(4, selfMonitor.getBackoffFactor());
+		assertFalse(selfMonitor.isDisabled(process));
+
+		/*	then disable the most expensive crawler, but never the last one	*/
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertTrue(selfMonitor.isDisabled(process));
+		assertFalse(selfMonitor.isDisabled(cpu));
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertFalse(selfMonitor.isDisabled(cpu));
+
+		/*	within the budget, but not under half of it	*/
+		selfMonitor.applyBudget(4, crawlerCpu);
+		assertEquals(4, selfMonitor.getBackoffFactor());
+		selfMonitor.applyBudget(1, crawlerCpu);
+		assertEquals(2, selfMonitor.getBackoffFactor());
+		selfMonitor.applyBudget(1, crawlerCpu);
+		selfMonitor.applyBudget(1, crawlerCpu);
+		assertEquals(1, selfMonitor.getBackoffFactor());
+		assertTrue(selfMonitor.isDisabled(process));
+	}
+
+	@Test
+	public void testSetBudget() {
+		SelfMonitor selfMonitor = new SelfMonitor(0, 4, 10000);
+		int cpu = selfMonitor.addCrawler("cpu");
+		int process = selfMonitor.addCrawler("process");
+		double[] crawlerCpu = { 1, 8 };
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertEquals(1, selfMonitor.getBackoffFactor());
+
+		/*	the crawlers registered before keep their indexes	*/
+		selfMonitor.setCpuBudgetPercent(5);
+		assertEquals(5, selfMonitor.getCpuBudgetPercent(), 0);
+		selfMonitor.applyBudget(9, crawlerCpu);
+		selfMonitor.applyBudget(9, crawlerCpu);
+		selfMonitor.applyBudget(9, crawlerCpu);
+		assertTrue(selfMonitor.isDisabled(process));
+		assertFalse(selfMonitor.isDisabled(cpu));
+		assertEquals(4, selfMonitor.getBackoffFactor());
+
+		/*	no budget, no backoff	*/
+		selfMonitor.setCpuBudgetPercent(0);
+		assertEquals(1, selfMonitor.getBackoffFactor());
+		assertTrue(selfMonitor.isDisabled(process));
+	}
+
+	@Test
+	public void testUnknownCrawlerCpu() {
+		SelfMonitor selfMonitor = new SelfMonitor(5, 2, 10000);
+		int cpu = selfMonitor.addCrawler("cpu");
+		int process = selfMonitor.addCrawler("process");
+		/*	virtual crawler threads: the CPU of the crawlers is unknown	*/
+		double[] crawlerCpu = { -1, -1 };
+		for (int i = 0; i < 5; ++i) {
+			selfMonitor.applyBudget(9, crawlerCpu);
+		}
+		assertEquals(2, selfMonitor.getBackoffFactor());
+		assertFalse(selfMonitor.isDisabled(cpu));
+		assertFalse(selfMonitor.isDisabled(process));
+
+		/*	a single unknown enabled crawler is enough to keep them all	*/
+		selfMonitor.applyBudget(9, new double[] { 1, -1 });
+		assertFalse(selfMonitor.isDisabled(cpu));
+		assertFalse(selfMonitor.isDisabled(process));
+		selfMonitor.applyBudget(9, new double[] { 1, 8 });
+		assertTrue(selfMonitor.isDisabled(process));
+	}
+
+	@Test
+	public void testNoBudget() {
+		SelfMonitor selfMonitor = new SelfMonitor(0);
+		selfMonitor.addCrawler("cpu");
+		selfMonitor.applyBudget(100, new double[] { 100 });
+		assertEquals(1, selfMonitor.getBackoffFactor());
+	}
+}
@@ -0,0 +1,152 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sysmon.common.metadata.ContainerMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestCgroupReader {
+
+	private static final String ID1 = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+	private static final String ID2 = "fedcba9876543210fedcba9876543210fedcba9876543210fedcba9876543210";
+
+	private File root;
+
+	@Before
+	public void setup() {
+		root = new File(System.getProperty("java.io.tmpdir"), "cgroup-test-" + System.nanoTime());
+		assertTrue(root.mkdirs());
+	}
+
+	@After
+	public void cleanup() {
+		delete(root);
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private void write(String path, String content) throws IOException {
+		File file = new File(root, path);
+		file.getParentFile().mkdirs();
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+
+	private void writeV2(String dir, long usageUsec, long memory, String memoryMax, long rbytes, long wios) throws IOException {
+		write(dir + "/cpu.stat", "usage_usec " + usageUsec + "\nuser_usec 0\nsystem_usec 0\n");
+		write(dir + "/memory.current", memory + "\n");
+		write(dir + "/memory.max", memoryMax + "\n");
+		write(dir + "/io.stat", "8:0 rbytes=" + rbytes + " wbytes=0 rios=0 wios=" + wios + " dbytes=0 dios=0\n"
+				+ "8:16 rbytes=" + rbytes + " wbytes=0 rios=0 wios=0 dbytes=0 dios=0\n");
+	}
+
+	@Test
+	public void testUnified() throws IOException {
+		write("cgroup.controllers", "cpu io memory\n");
+		String container1 = "system.slice/docker-" + ID1 + ".scope";
+		writeV2(container1, 0, 1000, "max", 0, 0);
+		/*	not a container	*/
+		writeV2("system.slice/sshd.service", 0, 1000, "max", 0, 0);
+
+		CgroupReader reader = new CgroupReader(root.getPath(), 10000, 10);
+		assertTrue(reader.isUnified());
+		ContainerMetadata metadata = reader.read(0);
+		assertEquals(1, metadata.getContainerCount());
+		assertEquals(ID1.substring(0, 12), metadata.getIds()[0]);
+
+		/*	half a core, 1MB/s read on each of the 2 devices	*/
+		writeV2(container1, 500000, 2000, "4096", 2000000, 10);
+		metadata = reader.read(1000);
+		int index = metadata.indexOf(ID1.substring(0, 12));
+		assertEquals(50.0, metadata.getValue(index, ContainerMetadata.CPU_PERCENT), 1e-9);
+		assertEquals(2000, metadata.getValue(index, ContainerMetadata.MEMORY_BYTES), 0);
+		assertEquals(4096, metadata.getValue(index, ContainerMetadata.MEMORY_LIMIT_BYTES), 0);
+		assertEquals(4000000, metadata.getValue(index, ContainerMetadata.IO_READ_BYTES_PER_SEC), 1e-9);
+		assertEquals(10, metadata.getValue(index, ContainerMetadata.IO_WRITE_OPS_PER_SEC), 1e-9);
+
+		/*	a new container is only found by the next scan	*/
+		String container2 = "kubepods.slice/kubepods-pod1.slice/cri-containerd-" + ID2 + ".scope";
+		writeV2(container2, 0, 1000, "max", 0, 0);
+		assertEquals(1, reader.read(2000).getContainerCount());
+		assertEquals(2, reader.read(10000).getContainerCount());
+
+		/*	a removed container is dropped at once	*/
+		delete(new File(root, container1));
+		metadata = reader.read(11000);
+		assertEquals(1, metadata.getContainerCount());
+		assertEquals(ID2.substring(0, 12), metadata.getIds()[0]);
+		assertEquals(0, metadata.getValue(0, ContainerMetadata.MEMORY_LIMIT_BYTES), 0);
+
+		MachineMetadata machineMetadata = new MachineMetadata(0, "10.0.0.1");
+		machineMetadata.setContainers(metadata);
+		assertEquals(1, machineMetadata.getMetricValue("containerCount"), 0);
+	}
+
+	@Test
+	public void testV1() throws IOException {
+		String path = "/docker/" + ID1;
+		write("memory" + path + "/memory.usage_in_bytes", "1000\n");
+		write("memory" + path + "/memory.limit_in_bytes", "9223372036854771712\n");
+		write("cpu,cpuacct" + path + "/cpuacct.usage", "0\n");
+		write("blkio" + path + "/blkio.throttle.io_service_bytes", "8:0 Read 0\n8:0 Write 0\nTotal 0\n");
+		write("blkio" + path + "/blkio.throttle.io_serviced", "8:0 Read 0\n8:0 Write 0\nTotal 0\n");
+
+		CgroupReader reader = new CgroupReader(root.getPath(), 10000, 10);
+		assertFalse(reader.isUnified());
+		assertEquals(1, reader.read(0).getContainerCount());
+
+		write("cpu,cpuacct" + path + "/cpuacct.usage", "2000000000\n");
+		write("blkio" + path + "/blkio.throttle.io_service_bytes", "8:0 Read 4096\n8:0 Write 8192\nTotal 12288\n");
+		write("blkio" + path + "/blkio.throttle.io_serviced", "8:0 Read 1\n8:0 Write 2\nTotal 3\n");
+		ContainerMetadata metadata = reader.read(2000);
+		/*	2s of CPU in 2s	*/
+		assertEquals(100.0, metadata.getValue(0, ContainerMetadata.CPU_PERCENT), 1e-9);
+		/*	no limit	*/
+		assertEquals(0, metadata.getValue(0, ContainerMetadata.MEMORY_LIMIT_BYTES), 0);
+		assertEquals(2048, metadata.getValue(0, ContainerMetadata.IO_READ_BYTES_PER_SEC), 1e-9);
+		assertEquals(4096, metadata.getValue(0, ContainerMetadata.IO_WRITE_BYTES_PER_SEC), 1e-9);
+		assertEquals(1, metadata.getValue(0, ContainerMetadata.IO_WRITE_OPS_PER_SEC), 1e-9);
+	}
+
+	private String id(int n) {
+		return String.format("%012x%052x", n, 0);
+	}
+
+	@Test
+	public void testCardinalityCap() throws IOException {
+		write("cgroup.controllers", "cpu io memory\n");
+		for(int i = 0; i < 20; ++i) {
+			String id = id(i + 1);
+			writeV2("system.slice/docker-" + id + ".scope", 0, 0, "max", 0, 0);
+		}
+		CgroupReader reader = new CgroupReader(root.getPath(), 10000, 5);
+		reader.read(0);
+		for(int i = 0; i < 20; ++i) {
+			String id = id(i + 1);
+			writeV2("system.slice/docker-" + id + ".scope", i * 10000, 0, "max", 0, 0);
+		}
+		ContainerMetadata metadata = reader.read(1000);
+		assertEquals(20, metadata.getContainerCount());
+		assertEquals(5, metadata.getIds().length);
+		/*	the busiest ones are kept	*/
+		assertEquals(id(20).substring(0, 12), metadata.getIds()[0]);
+		assertEquals(19.0, metadata.getValue(0, ContainerMetadata.CPU_PERCENT), 1e-9);
+	}
+}
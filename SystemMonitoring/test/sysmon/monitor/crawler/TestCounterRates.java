@@ -0,0 +1,90 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.NetworkMetadata;
+
+public class TestCounterRates {
+
+	@Test
+	public void testDelta() {
+		assertEquals(10, CounterRates.delta(100, 110, 64));
+		/*	a 32 bit counter wraps around	*/
+		assertEquals(20, CounterRates.delta(CounterRates.MAX_32_BIT - 9, 10, 32));
+		/*	a 64 bit counter going down has been reset, even from a small value	*/
+		assertEquals(5, CounterRates.delta(10000000000L, 5, 64));
+		assertEquals(5, CounterRates.delta(1000000, 5, 64));
+		/*	a 32 bit counter above 32 bits cannot have wrapped	*/
+		assertEquals(5, CounterRates.delta(10000000000L, 5, 32));
+	}
+
+	@Test
+	public void testUnknownWidth() {
+		int unknown = CounterRates.UNKNOWN_WIDTH;
+		assertEquals(10, CounterRates.delta(100, 110, unknown));
+		/*	close to the top of 32 bits: a wrap	*/
+		assertEquals(20, CounterRates.delta(CounterRates.MAX_32_BIT - 9, 10, unknown));
+		/*	a wrap from low in the 32 bit range is implausible: a reset	*/
+		assertEquals(5, CounterRates.delta(1000000, 5, unknown));
+		assertEquals(5, CounterRates.delta(CounterRates.MAX_32_BIT / 2, 5, unknown));
+		/*	above 32 bits, the counter is 64 bit: a reset	*/
+		assertEquals(5, CounterRates.delta(10000000000L, 5, unknown));
+
+		CounterRates rates = new CounterRates(2, unknown);
+		rates.update(new long[] {CounterRates.MAX_32_BIT - 999, 3000000}, 0);
+		double[] result = rates.update(new long[] {1000, 1000}, 1000);
+		assertEquals(2000, result[0], 1e-9);
+		assertEquals(1000, result[1], 1e-9);
+	}
+
+	@Test
+	public void testResetIsNotASpike() {
+		CounterRates rates = new CounterRates(1);
+		assertEquals(64, rates.getBits());
+		rates.update(new long[] {3000000}, 0);
+		/*	the interface was reset	*/
+		double[] result = rates.update(new long[] {1000}, 1000);
+		assertEquals(1000, result[0], 1e-9);
+
+		CounterRates rates32 = new CounterRates(1, 32);
+		rates32.update(new long[] {CounterRates.MAX_32_BIT - 999}, 0);
+		result = rates32.update(new long[] {1000}, 1000);
+		assertEquals(2000, result[0], 1e-9);
+	}
+
+	@Test
+	public void testRates() {
+		CounterRates rates = new CounterRates(2);
+		double[] result = rates.update(new long[] {1000, 5}, 0);
+		assertEquals(0, result[0], 0);
+		assertEquals(0, result[1], 0);
+		result = rates.update(new long[] {3000, 5}, 2000);
+		assertEquals(1000, result[0], 1e-9);
+		assertEquals(0, result[1], 1e-9);
+		result = rates.update(new long[] {4000, CounterRates.MAX_32_BIT}, 2500);
+		assertEquals(2000, result[0], 1e-9);
+		rates.reset();
+		result = rates.update(new long[] {0, 0}, 3000);
+		assertEquals(0, result[0], 0);
+	}
+
+	@Test
+	public void testNetworkMetrics() {
+		double[] rates = new double[2 * NetworkMetadata.FIELDS.length];
+		rates[NetworkMetadata.RX_BYTES] = 1e6;
+		rates[NetworkMetadata.RX_ERRORS] = 1;
+		rates[NetworkMetadata.TX_ERRORS] = 2;
+		/*	the loopback is left out of the totals	*/
+		rates[NetworkMetadata.FIELDS.length + NetworkMetadata.RX_BYTES] = 5e6;
+		NetworkMetadata network = new NetworkMetadata(new String[] {"eth0", "lo"}, new boolean[] {false, true}, rates);
+		MachineMetadata metadata = new MachineMetadata(0, "10.0.0.1");
+		metadata.setNetwork(network);
+		assertEquals(1e6, metadata.getMetricValue("netRxBytesRate"), 0);
+		assertEquals(3, metadata.getMetricValue("netErrorsRate"), 0);
+		assertEquals(5e6, network.getRate(1, NetworkMetadata.RX_BYTES), 0);
+		assertTrue(Double.isNaN(new MachineMetadata(0, "10.0.0.1").getMetricValue("netTxBytesRate")));
+	}
+}
@@ -0,0 +1,66 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import sysmon.common.metadata.DiskIOMetadata;
+
+import com.google.gson.GsonBuilder;
+
+public class TestDiskIOCrawler extends TestCrawler {
+	@Before
+	public void setup() {
+		gson = new GsonBuilder().setPrettyPrinting().create();
+		c = new DiskIOCrawler("diskio");
+	}
+
+	private void write(File file, String... lines) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		for(String line : lines) {
+			writer.write(line + "\n");
+		}
+		writer.close();
+	}
+
+	@Test
+	public void testFixtureFile() throws IOException, InterruptedException {
+		File diskstats = File.createTempFile("diskstats", ".txt");
+		File sysBlock = new File(System.getProperty("java.io.tmpdir"), "sys-block-" + System.nanoTime());
+		try {
+			write(diskstats, "   8       0 sda 1000 0 8000 500 2000 0 16000 4000 0 3000 4500",
+					"   8       1 sda1 1000 0 8000 500 2000 0 16000 4000 0 3000 4500");
+			/*	no sys block directory: all the devices are kept	*/
+			DiskIOCrawler crawler = new DiskIOCrawler("diskio",
+					new DiskStatsReader(diskstats.getPath(), sysBlock.getPath()));
+			DiskIOMetadata first = (DiskIOMetadata) crawler.getMetadataObject();
+			assertNotNull(first);
+			assertEquals(Arrays.asList("sda", "sda1"), Arrays.asList(first.getDevices()));
+			assertEquals(0, first.getValue(0, DiskIOMetadata.READ_IOPS), 0);
+
+			Thread.sleep(20);
+			write(diskstats, "   8       0 sda 1200 0 9600 900 2100 0 16800 4800 3 4000 6500",
+					"   8       1 sda1 1000 0 8000 500 2000 0 16000 4000 0 3000 4500");
+			crawler.updateDynamicMetaData();
+			DiskIOMetadata second = (DiskIOMetadata) crawler.getMetadataObject();
+			assertTrue(second.getValue(0, DiskIOMetadata.READ_IOPS) > 0);
+			assertEquals(3, second.getValue(0, DiskIOMetadata.IN_PROGRESS), 0);
+			assertEquals(0, second.getValue(1, DiskIOMetadata.READ_IOPS), 0);
+		} finally {
+			diskstats.delete();
+		}
+	}
+
+	@Test
+	public void testMissingFixtureFile() {
+		DiskIOCrawler crawler = new DiskIOCrawler("diskio",
+				new DiskStatsReader("/nonexistent/diskstats", "/nonexistent/block"));
+		assertNull(crawler.getMetadataObject());
+	}
+}
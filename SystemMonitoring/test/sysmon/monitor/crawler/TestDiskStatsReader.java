@@ -0,0 +1,101 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sysmon.common.metadata.DiskIOMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestDiskStatsReader {
+
+	private File diskstats;
+	private File sysBlock;
+
+	@Before
+	public void setup() throws IOException {
+		diskstats = File.createTempFile("diskstats", ".txt");
+		sysBlock = new File(System.getProperty("java.io.tmpdir"), "sys-block-" + System.nanoTime());
+		assertTrue(new File(sysBlock, "sda").mkdirs());
+		assertTrue(new File(sysBlock, "nvme0n1").mkdirs());
+	}
+
+	@After
+	public void cleanup() {
+		diskstats.delete();
+		new File(sysBlock, "sda").delete();
+		new File(sysBlock, "nvme0n1").delete();
+		sysBlock.delete();
+	}
+
+	/*	major minor name reads merged sectors ms writes merged sectors ms inProgress ioMs weightedMs	*/
+	private void write(String... lines) throws IOException {
+		FileWriter writer = new FileWriter(diskstats);
+		for(String line : lines) {
+			writer.write(line + "\n");
+		}
+		writer.close();
+	}
+
+	@Test
+	public void testRates() throws IOException {
+		DiskStatsReader reader = new DiskStatsReader(diskstats.getPath(), sysBlock.getPath());
+		write("   8       0 sda 1000 0 8000 500 2000 0 16000 4000 0 3000 4500",
+				"   8       1 sda1 1000 0 8000 500 2000 0 16000 4000 0 3000 4500",
+				"   7       0 loop0 0 0 0 0 0 0 0 0 0 0 0",
+				" 259       0 nvme0n1 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0");
+		DiskIOMetadata first = reader.read(0);
+		/*	the partitions and loop devices are skipped	*/
+		assertEquals(Arrays.asList("sda", "nvme0n1"), Arrays.asList(first.getDevices()));
+		assertEquals(0, first.getValue(0, DiskIOMetadata.READ_IOPS), 0);
+
+		/*	in 2 seconds: 200 reads of 4k taking 400ms, 100 writes taking 800ms	*/
+		write("   8       0 sda 1200 0 9600 900 2100 0 16800 4800 3 4000 6500",
+				"   8       1 sda1 1200 0 9600 900 2100 0 16800 4800 3 4000 6500",
+				" 259       0 nvme0n1 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0");
+		DiskIOMetadata second = reader.read(2000);
+		assertEquals(100, second.getValue(0, DiskIOMetadata.READ_IOPS), 1e-9);
+		assertEquals(50, second.getValue(0, DiskIOMetadata.WRITE_IOPS), 1e-9);
+		assertEquals(200 * 4096 / 2, second.getValue(0, DiskIOMetadata.READ_BYTES_PER_SEC), 1e-9);
+		assertEquals(1.0, second.getValue(0, DiskIOMetadata.QUEUE_DEPTH), 1e-9);
+		assertEquals(0.5, second.getValue(0, DiskIOMetadata.UTILIZATION), 1e-9);
+		assertEquals(4.0, second.getValue(0, DiskIOMetadata.AVG_WAIT_MILLIS), 1e-9);
+		assertEquals(3, second.getValue(0, DiskIOMetadata.IN_PROGRESS), 0);
+		assertEquals(0, second.getValue(1, DiskIOMetadata.AVG_WAIT_MILLIS), 0);
+
+		MachineMetadata metadata = new MachineMetadata(0, "10.0.0.1");
+		metadata.setDiskIO(second);
+		assertEquals(150, metadata.getMetricValue("diskReadIops") + metadata.getMetricValue("diskWriteIops"), 1e-9);
+		assertEquals(0.5, metadata.getMetricValue("diskMaxUtilization"), 1e-9);
+	}
+
+	@Test
+	public void testDeviceListChange() throws IOException {
+		DiskStatsReader reader = new DiskStatsReader(diskstats.getPath(), sysBlock.getPath());
+		write("   8       0 sda 1000 0 8000 500 2000 0 16000 4000 0 3000 4500");
+		reader.read(0);
+		write("   8       0 sda 1100 0 8000 500 2000 0 16000 4000 0 3000 4500",
+				" 259       0 nvme0n1 5 0 0 0 0 0 0 0 0 0 0");
+		/*	the rates start over with the new device list	*/
+		DiskIOMetadata metadata = reader.read(1000);
+		assertEquals(2, metadata.getDevices().length);
+		assertEquals(0, metadata.getValue(0, DiskIOMetadata.READ_IOPS), 0);
+		write("   8       0 sda 1200 0 8000 500 2000 0 16000 4000 0 3000 4500",
+				" 259       0 nvme0n1 5 0 0 0 0 0 0 0 0 0 0");
+		metadata = reader.read(2000);
+		assertEquals(100, metadata.getValue(0, DiskIOMetadata.READ_IOPS), 1e-9);
+	}
+
+	@Test
+	public void testMissingFile() {
+		DiskStatsReader reader = new DiskStatsReader("/nonexistent/diskstats", sysBlock.getPath());
+		assertFalse(reader.isAvailable());
+	}
+}
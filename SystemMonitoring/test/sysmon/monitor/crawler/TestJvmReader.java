@@ -0,0 +1,208 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sysmon.common.metadata.JvmMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+public class TestJvmReader {
+
+	private static final long FREQUENCY = 1000000000L;
+
+	private File root;
+	private File tmpDir;
+	private File procDir;
+
+	@Before
+	public void setup() {
+		root = new File(System.getProperty("java.io.tmpdir"), "jvm-test-" + System.nanoTime());
+		tmpDir = new File(root, "tmp");
+		procDir = new File(root, "proc");
+		assertTrue(new File(tmpDir, "hsperfdata_test").mkdirs());
+		assertTrue(procDir.mkdirs());
+	}
+
+	@After
+	public void cleanup() {
+		delete(root);
+	}
+
+	private void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	private Map<String, Object> counters(long youngGcs, long youngGcTicks, long threads) {
+		Map<String, Object> counters = new LinkedHashMap<String, Object>();
+		counters.put("sun.os.hrt.frequency", FREQUENCY);
+		counters.put("sun.rt.javaCommand", "org.example.OrderService --port 8080");
+		counters.put("sun.gc.collector.0.invocations", youngGcs);
+		counters.put("sun.gc.collector.0.time", youngGcTicks);
+		counters.put("sun.gc.collector.1.invocations", 1L);
+		counters.put("sun.gc.collector.1.time", 50000000L);
+		counters.put("sun.gc.generation.0.capacity", 64L << 20);
+		counters.put("sun.gc.generation.0.maxCapacity", 256L << 20);
+		counters.put("sun.gc.generation.0.space.0.used", 10L << 20);
+		counters.put("sun.gc.generation.0.space.1.used", 1L << 20);
+		counters.put("sun.gc.generation.1.capacity", 128L << 20);
+		counters.put("sun.gc.generation.1.maxCapacity", 768L << 20);
+		counters.put("sun.gc.generation.1.space.0.used", 100L << 20);
+		counters.put("sun.gc.metaspace.used", 30L << 20);
+		counters.put("java.threads.live", threads);
+		counters.put("java.threads.daemon", 7L);
+		return counters;
+	}
+
+	/**
+	 * Write an hsperfdata file in the layout of the JVM, little endian.
+	 */
+	private File writeHsperfdata(int pid, Map<String, Object> counters) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(Integer.reverseBytes(HsperfdataReader.MAGIC)); // always big endian
+		buffer.put((byte) 1); // little endian
+		buffer.put((byte) 2); // major version
+		buffer.put((byte) 0); // minor version
+		buffer.put((byte) 1); // accessible
+		buffer.putInt(0); // used, set below
+		buffer.putInt(0); // overflow
+		buffer.putLong(0); // mod time stamp
+		buffer.putInt(32); // entry offset
+		buffer.putInt(counters.size());
+		for(Map.Entry<String, Object> counter : counters.entrySet()) {
+			int entry = buffer.position();
+			byte[] name = counter.getKey().getBytes("US-ASCII");
+			int nameOffset = 20;
+			int dataOffset = align(nameOffset + name.length + 1);
+			byte[] data;
+			if(counter.getValue() instanceof Long) {
+				data = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong((Long) counter.getValue()).array();
+			} else {
+				byte[] string = ((String) counter.getValue()).getBytes("US-ASCII");
+				data = new byte[string.length + 1];
+				System.arraycopy(string, 0, data, 0, string.length);
+			}
+			int entryLength = align(dataOffset + data.length);
+			buffer.putInt(entryLength);
+			buffer.putInt(nameOffset);
+			buffer.putInt(counter.getValue() instanceof Long ? 0 : data.length);
+			buffer.put((byte) (counter.getValue() instanceof Long ? 'J' : 'B'));
+			buffer.put((byte) 0); // flags
+			buffer.put((byte) 0); // units
+			buffer.put((byte) 0); // variability
+			buffer.putInt(dataOffset);
+			buffer.put(name);
+			buffer.position(entry + dataOffset);
+			buffer.put(data);
+			buffer.position(entry + entryLength);
+		}
+		buffer.putInt(8, buffer.position());
+		File file = new File(tmpDir, "hsperfdata_test/" + pid);
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.setLength(0);
+		out.write(buffer.array(), 0, buffer.capacity());
+		out.close();
+		new File(procDir, Integer.toString(pid)).mkdirs();
+		return file;
+	}
+
+	private int align(int offset) {
+		return (offset + 7) & ~7;
+	}
+
+	@Test
+	public void testHsperfdataReader() throws IOException {
+		File file = writeHsperfdata(100, counters(5, 20000000L, 42));
+		HsperfdataReader reader = new HsperfdataReader(file);
+		assertTrue(reader.isAccessible());
+		assertEquals(5, reader.getLong("sun.gc.collector.0.invocations"));
+		assertEquals(42, reader.getLong("java.threads.live"));
+		assertEquals(0, reader.getLong("no.such.counter"));
+		assertEquals("org.example.OrderService --port 8080", reader.getString("sun.rt.javaCommand"));
+		assertEquals(11L << 20, reader.sumLongs("sun.gc.generation.0.space.", ".used"));
+
+		// the JVM updates the counters in place, the mapping sees them
+		writeHsperfdata(100, counters(6, 30000000L, 43));
+		assertEquals(6, reader.getLong("sun.gc.collector.0.invocations"));
+		assertEquals(43, reader.getLong("java.threads.live"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotHsperfdata() throws IOException {
+		File file = new File(tmpDir, "hsperfdata_test/200");
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		out.write(new byte[64]);
+		out.close();
+		new HsperfdataReader(file);
+	}
+
+	@Test
+	public void testRead() throws IOException {
+		writeHsperfdata(100, counters(5, 20000000L, 42));
+		JvmReader reader = new JvmReader(tmpDir.getPath(), procDir.getPath(), 0, 10);
+		JvmMetadata metadata = reader.read(0);
+		assertEquals(1, metadata.getJvmCount());
+		assertEquals(100, metadata.getPids()[0]);
+		assertEquals("OrderService", metadata.getNames()[0]);
+		assertEquals(5, metadata.getValue(0, JvmMetadata.YOUNG_GC_COUNT), 0);
+		assertEquals(20, metadata.getValue(0, JvmMetadata.YOUNG_GC_MILLIS), 1e-9);
+		assertEquals(50, metadata.getValue(0, JvmMetadata.OLD_GC_MILLIS), 1e-9);
+		assertEquals(0, metadata.getValue(0, JvmMetadata.GC_TIME_RATIO), 0);
+		assertEquals(111L << 20, metadata.getValue(0, JvmMetadata.HEAP_USED_BYTES), 0);
+		assertEquals(192L << 20, metadata.getValue(0, JvmMetadata.HEAP_CAPACITY_BYTES), 0);
+		assertEquals(1L << 30, metadata.getValue(0, JvmMetadata.HEAP_MAX_BYTES), 0);
+		assertEquals(42, metadata.getValue(0, JvmMetadata.LIVE_THREADS), 0);
+		assertEquals(7, metadata.getValue(0, JvmMetadata.DAEMON_THREADS), 0);
+
+		// 100 ms of young GC in 1 s
+		writeHsperfdata(100, counters(8, 120000000L, 42));
+		metadata = reader.read(1000);
+		assertEquals(0.1, metadata.getValue(0, JvmMetadata.GC_TIME_RATIO), 1e-9);
+
+		MachineMetadata machineMetadata = new MachineMetadata(1000, "127.0.0.1");
+		machineMetadata.setJvm(metadata);
+		assertEquals(1, machineMetadata.getMetricValue(MachineMetadata.indexOfMetric("jvmCount")), 0);
+		assertEquals(0.1, machineMetadata.getMetricValue(MachineMetadata.indexOfMetric("jvmMaxGcTimeRatio")), 1e-9);
+	}
+
+	@Test
+	public void testJvmExits() throws IOException {
+		File file = writeHsperfdata(100, counters(5, 20000000L, 42));
+		writeHsperfdata(101, counters(5, 20000000L, 42));
+		JvmReader reader = new JvmReader(tmpDir.getPath(), procDir.getPath(), 0, 10);
+		assertEquals(2, reader.read(0).getJvmCount());
+
+		// a killed JVM leaves its file behind
+		delete(new File(procDir, "101"));
+		JvmMetadata metadata = reader.read(1000);
+		assertEquals(1, metadata.getJvmCount());
+		assertEquals(100, metadata.getPids()[0]);
+
+		assertTrue(file.delete());
+		assertEquals(0, reader.read(2000).getJvmCount());
+	}
+
+	@Test
+	public void testMainName() {
+		assertEquals("Main", JvmReader.mainName("com.example.Main arg"));
+		assertEquals("app.jar", JvmReader.mainName("/opt/app/app.jar -Dx=y"));
+		assertEquals("unknown", JvmReader.mainName(null));
+	}
+
+}
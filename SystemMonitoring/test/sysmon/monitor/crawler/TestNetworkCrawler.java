@@ -0,0 +1,13 @@
+package sysmon.monitor.crawler;
+
+import org.junit.Before;
+
+import com.google.gson.GsonBuilder;
+
+public class TestNetworkCrawler extends TestCrawler {
+	@Before
+	public void setup() {
+		gson = new GsonBuilder().setPrettyPrinting().create();
+		c = new NetworkCrawler("network");
+	}
+}
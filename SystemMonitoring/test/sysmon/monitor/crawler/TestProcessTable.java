@@ -0,0 +1,161 @@
+package sysmon.monitor.crawler;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.ProcessMetadata;
+
+public class TestProcessTable {
+
+	/*	pid -> {cpuMillis, rss, startTime}	*/
+	private static class FakeReader implements ProcessTable.ProcessReader {
+		Map<Long, long[]> processes = new HashMap<Long, long[]>();
+		int nameReads;
+
+		@Override
+		public boolean read(long pid, long[] stats) {
+			long[] process = processes.get(pid);
+			if(process == null) {
+				return false;
+			}
+			System.arraycopy(process, 0, stats, 0, 3);
+			return true;
+		}
+
+		@Override
+		public String readName(long pid) {
+			++nameReads;
+			return "proc" + pid;
+		}
+
+		long[] pids() {
+			long[] pids = new long[processes.size()];
+			int i = 0;
+			for(long pid : processes.keySet()) {
+				pids[i++] = pid;
+			}
+			return pids;
+		}
+	}
+
+	@Test
+	public void testDeltasAndTopN() {
+		FakeReader reader = new FakeReader();
+		for(long pid = 1; pid <= 1000; ++pid) {
+			reader.processes.put(pid, new long[] {0, pid * 1000, 7});
+		}
+		ProcessTable table = new ProcessTable(3, 10);
+		table.update(reader.pids(), reader, 0);
+		assertEquals(1000, table.getProcessCount());
+		assertEquals(1000, reader.nameReads);
+		assertEquals(0, table.getMetadata().getStartedCount());
+
+		/*	pid 10 uses a full core, pid 20 half a core, pid 30 grows	*/
+		reader.processes.get(10L)[0] = 1000;
+		reader.processes.get(20L)[0] = 500;
+		reader.processes.get(30L)[1] = 5000000;
+		table.update(reader.pids(), reader, 1000);
+		/*	the names are only read once	*/
+		assertEquals(1000, reader.nameReads);
+
+		ProcessMetadata metadata = table.getMetadata();
+		assertEquals(3, metadata.getTopCpu().length);
+		assertEquals(10, metadata.getTopCpu()[0].getPid());
+		assertEquals(100.0, metadata.getTopCpu()[0].getCpuPercent(), 1e-9);
+		assertEquals(20, metadata.getTopCpu()[1].getPid());
+		assertEquals(50.0, metadata.getTopCpu()[1].getCpuPercent(), 1e-9);
+		assertEquals("proc10", metadata.getTopCpu()[0].getName());
+
+		assertEquals(30, metadata.getTopMemory()[0].getPid());
+		assertEquals(5000000 - 30000, metadata.getTopMemory()[0].getRssDelta());
+		assertEquals(1000, metadata.getTopMemory()[1].getPid());
+		assertEquals(999, metadata.getTopMemory()[2].getPid());
+	}
+
+	@Test
+	public void testStartAndExit() {
+		FakeReader reader = new FakeReader();
+		for(long pid = 1; pid <= 100; ++pid) {
+			reader.processes.put(pid, new long[] {0, 0, 7});
+		}
+		ProcessTable table = new ProcessTable(5, 10);
+		table.update(reader.pids(), reader, 0);
+
+		/*	50 processes exit, 20 start, and pid 1 is reused	*/
+		for(long pid = 51; pid <= 100; ++pid) {
+			reader.processes.remove(pid);
+		}
+		for(long pid = 1000; pid < 1020; ++pid) {
+			reader.processes.put(pid, new long[] {0, 0, 8});
+		}
+		reader.processes.get(1L)[2] = 9;
+		table.update(reader.pids(), reader, 1000);
+
+		ProcessMetadata metadata = table.getMetadata();
+		assertEquals(70, metadata.getProcessCount());
+		assertEquals(21, metadata.getStartedCount());
+		assertEquals(10, metadata.getStarted().length);
+		assertEquals(51, metadata.getExitedCount());
+		assertEquals(10, metadata.getExited().length);
+
+		/*	the events are per update	*/
+		table.update(reader.pids(), reader, 2000);
+		metadata = table.getMetadata();
+		assertEquals(0, metadata.getStartedCount());
+		assertEquals(0, metadata.getExitedCount());
+		assertEquals(70, metadata.getProcessCount());
+	}
+
+	@Test
+	public void testManyProcessesChurn() {
+		/*	rows and index entries are reused as the processes come and go	*/
+		FakeReader reader = new FakeReader();
+		ProcessTable table = new ProcessTable(10, 100);
+		long nextPid = 1;
+		for(int round = 0; round < 50; ++round) {
+			for(int i = 0; i < 400; ++i) {
+				reader.processes.put(nextPid++, new long[] {round, 1, 1});
+			}
+			for(long pid = nextPid - 800; pid < nextPid - 600; ++pid) {
+				reader.processes.remove(pid);
+			}
+			table.update(reader.pids(), reader, round * 1000);
+			assertEquals(reader.processes.size(), table.getProcessCount());
+		}
+	}
+
+	@Test
+	public void testProcfsReader() throws IOException {
+		File root = new File(System.getProperty("java.io.tmpdir"), "proc-test-" + System.nanoTime());
+		File pidDir = new File(root, "42");
+		assertTrue(pidDir.mkdirs());
+		/*	the name contains a space and a parenthesis	*/
+		FileWriter writer = new FileWriter(new File(pidDir, "stat"));
+		writer.write("42 (my (app) x) S 1 42 42 0 -1 4194304 79 0 0 0 150 50 0 0 20 0 1 0 123456 2703360 300 18446744073709551615 1 2 3\n");
+		writer.close();
+		writer = new FileWriter(new File(pidDir, "comm"));
+		writer.write("my (app) x\n");
+		writer.close();
+
+		ProcfsProcessReader reader = new ProcfsProcessReader(root.getPath(), 100, 4096);
+		long[] stats = new long[3];
+		assertTrue(reader.read(42, stats));
+		assertEquals(2000, stats[ProcessTable.CPU_MILLIS]);
+		assertEquals(300 * 4096, stats[ProcessTable.RSS]);
+		assertEquals(123456, stats[ProcessTable.START_TIME]);
+		assertEquals("my (app) x", reader.readName(42));
+		assertFalse(reader.read(43, stats));
+
+		new File(pidDir, "stat").delete();
+		new File(pidDir, "comm").delete();
+		pidDir.delete();
+		root.delete();
+	}
+}
@@ -0,0 +1,125 @@
+package sysmon.simulator;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.DiskMetadata;
+import sysmon.common.metadata.MachineMetadata;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class TestSimulatedMachine {
+
+	private static final long DAY = SimulatedMachine.DAY_MILLIS;
+
+	@Test
+	public void testSample() {
+		SimulatedMachine machine = new SimulatedMachine("10.0.0.1", 8, 16384, 3, DAY, 0, 0, 42);
+		MachineMetadata machineMetadata = machine.sample(DAY / 2);
+		assertEquals("10.0.0.1", machineMetadata.getMachineIP());
+		assertEquals(DAY / 2, machineMetadata.getCrawlMillis());
+		CpuMetadata cpu = machineMetadata.getCpu();
+		assertEquals(8, cpu.getCores().length);
+		for (CpuMetadata.Core core : cpu.getCores()) {
+			assertTrue(core.getCombinedTime() >= 0 && core.getCombinedTime() <= 1);
+			assertEquals(1, core.getCombinedTime() + core.getIdleTime(), 1e-9);
+			assertEquals(core.getCombinedTime(), core.getUserTime() + core.getSysTime(), 1e-9);
+		}
+		assertEquals(16384, machineMetadata.getMemory().getRam());
+		double usedPercent = machineMetadata.getMemory().getUsedPercent();
+		assertTrue(usedPercent > 0 && usedPercent < 100);
+
+		DiskMetadata disk = machineMetadata.getDisk();
+		assertEquals(3, disk.getFileSystems().length);
+		assertEquals(3, disk.getFileSystemInfos().length);
+		for (DiskMetadata.FS fs : disk.getFileSystems()) {
+			assertTrue(fs.getUsedMB() <= fs.getTotalMB());
+		}
+		assertEquals(2, machineMetadata.getNetwork().getInterfaces().length);
+
+		/*	the file system infos are sent for the first samples only	*/
+		for (int i = 1; i < 5; ++i) {
+			disk = machine.sample(DAY / 2 + i * 1000).getDisk();
+		}
+		assertNull(disk.getFileSystemInfos());
+	}
+
+	@Test
+	public void testDiurnal() {
+		SimulatedMachine machine = new SimulatedMachine("10.0.0.1", 4, 8192, 1, DAY, 0, 0, 7);
+		double night = machine.getDiurnalLoad(3 * DAY / 24);
+		double afternoon = machine.getDiurnalLoad(15 * DAY / 24);
+		assertTrue(afternoon > night + 0.15);
+		/*	the pattern repeats every day	*/
+		assertEquals(night, machine.getDiurnalLoad(DAY + 3 * DAY / 24), 1e-9);
+		assertEquals(afternoon, machine.sample(15 * DAY / 24).getCpu().getCombinedTime(), 0.1);
+		assertEquals(night, machine.sample(3 * DAY / 24).getCpu().getCombinedTime(), 0.1);
+
+		/*	a short day	*/
+		SimulatedMachine fast = new SimulatedMachine("10.0.0.2", 4, 8192, 1, 60000, 0, 0, 7);
+		assertEquals(afternoon, fast.getDiurnalLoad(15 * 60000 / 24), 1e-9);
+	}
+
+	@Test
+	public void testSpike() {
+		SimulatedMachine machine = new SimulatedMachine("10.0.0.1", 4, 8192, 1, DAY, 1, 60000, 1);
+		long night = 3 * DAY / 24;
+		MachineMetadata machineMetadata = machine.sample(night);
+		assertTrue(machine.isSpiking(night));
+		assertTrue(machineMetadata.getCpu().getCombinedTime() > 0.8);
+		assertTrue(machine.isSpiking(night + 59999));
+		assertFalse(machine.isSpiking(night + 60000));
+
+		SimulatedMachine quiet = new SimulatedMachine("10.0.0.1", 4, 8192, 1, DAY, 0, 60000, 1);
+		for (int i = 0; i < 100; ++i) {
+			quiet.sample(night + i * 1000);
+			assertFalse(quiet.isSpiking(night + i * 1000));
+		}
+	}
+
+	@Test
+	public void testFleet() {
+		List<SimulatedMachine> fleet = FleetSimulator.createFleet(1000, new int[] { 2, 16 }, 1, 2, DAY, 0, 0, 3);
+		assertEquals(1000, fleet.size());
+		Set<String> addresses = new HashSet<String>();
+		for (SimulatedMachine machine : fleet) {
+			addresses.add(machine.getMachineIP());
+			assertTrue(machine.getCores() == 2 || machine.getCores() == 16);
+			JsonObject staticJson = machine.getStaticMetadata();
+			assertEquals(machine.getCores(), staticJson.getAsJsonObject("cpu").get("totalCores").getAsInt());
+			int fileSystems = staticJson.getAsJsonObject("disk").getAsJsonArray("file-systems").size();
+			assertTrue(fileSystems == 1 || fileSystems == 2);
+		}
+		assertEquals(1000, addresses.size());
+		/*	the same seed gives the same fleet	*/
+		SimulatedMachine replay = FleetSimulator.createFleet(1, new int[] { 2, 16 }, 1, 2, DAY, 0, 0, 3).get(0);
+		assertEquals(fleet.get(0).getStaticMetadata(), replay.getStaticMetadata());
+		assertEquals(fleet.get(0).sample(1000).getCpu().getCombinedTime(), replay.sample(1000).getCpu().getCombinedTime(), 1e-12);
+	}
+
+	@Test
+	public void testFormatReport() {
+		JsonObject statsResponse = (JsonObject) new JsonParser().parse("{type: 'stats-response', "
+				+ "ingest: {enrolledMonitors: 1000, messagesPerSec: 200, bytesPerSec: 2048, decodeErrors: 0, "
+				+ "cepBusyPercent: 3.5, alertQueueSize: 0, processCpuPercent: 12.5, heapUsedBytes: 104857600}, "
+				+ "stages: {'end-to-end': {count: 10, p50: 1500, p99: 20000}, 'alert-emit': {count: 0}}}");
+		String report = FleetSimulator.formatReport("tcp://10.1.1.1:32098", statsResponse);
+		assertTrue(report, report.startsWith("tcp://10.1.1.1:32098: monitors=1000 "));
+		assertTrue(report, report.contains("msg/s=200.0"));
+		assertTrue(report, report.contains("KB/s=2.0"));
+		assertTrue(report, report.contains("cepBusy=3.5%"));
+		assertTrue(report, report.contains("e2e p50/p99=1.5/20.0ms"));
+		assertTrue(report, report.contains("alerts=0 alert p99=-ms"));
+		assertTrue(report, report.contains("cpu=12.5%"));
+		assertTrue(report, report.contains("heap=100.0MB"));
+		assertTrue(FleetSimulator.formatReport("tcp://10.1.1.1:32098", null).endsWith("no answer"));
+	}
+
+}
@@ -0,0 +1,160 @@
+package sysmon.subscriber;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQDestination;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.activemq.network.NetworkConnector;
+
+import sysmon.common.metadata.CpuMetadata;
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.common.metadata.MemoryMetadata;
+
+/**
+ * Compare the relay cost per message of the three relay paths between two
+ * local brokers:
+ * copy: consume and send with copy on send (the previous SubscribeWorker),
+ * passthrough: consume and send without copying (the current SubscribeWorker),
+ * bridge: broker network bridge (Subscriber with useNetworkBridge).
+ * 
+ * usage: RelayBenchmark [messages]
+ */
+public class RelayBenchmark {
+	
+	private static final String SOURCE_URL = "tcp://localhost:61700";
+	private static final String RELAY_URL = "tcp://localhost:61701";
+	
+	private static BrokerService startBroker(String name, String url, String bridgeTo) throws Exception {
+		BrokerService broker = new BrokerService();
+		broker.setBrokerName(name);
+		broker.setPersistent(false);
+		broker.setUseJmx(false);
+		broker.addConnector(url);
+		if(bridgeTo != null) {
+			List<ActiveMQDestination> destinations = new ArrayList<ActiveMQDestination>();
+			destinations.add(new ActiveMQTopic("command"));
+			NetworkConnector connector = broker.addNetworkConnector("static:(" + bridgeTo + ")");
+			connector.setDuplex(true);
+			connector.setNetworkTTL(1);
+			connector.setDynamicallyIncludedDestinations(destinations);
+		}
+		broker.start();
+		broker.waitUntilStarted();
+		return broker;
+	}
+	
+	private static Session createSession(String url, boolean copyMessageOnSend) throws JMSException {
+		ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(url);
+		factory.setCopyMessageOnSend(copyMessageOnSend);
+		Connection connection = factory.createConnection();
+		connection.start();
+		return connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+	}
+	
+	private static MachineMetadata createMetadata(int i) {
+		CpuMetadata.Core[] cores = new CpuMetadata.Core[16];
+		for(int j = 0; j < cores.length; ++j) {
+			cores[j] = new CpuMetadata.Core(0.1, 0.1, 0.2, 0.8);
+		}
+		MachineMetadata metadata = new MachineMetadata(i, "10.0.0." + (i % 200));
+		metadata.setCpu(new CpuMetadata(cores));
+		metadata.setMemory(new MemoryMetadata());
+		return metadata;
+	}
+	
+	/**
+	 * Run one mode and print the CPU time per relayed message.
+	 */
+	private static void run(String mode, int messages) throws Exception {
+		boolean bridge = mode.equals("bridge");
+		BrokerService source = startBroker("source-" + mode, SOURCE_URL, null);
+		BrokerService relay = startBroker("relay-" + mode, RELAY_URL, bridge ? SOURCE_URL : null);
+		
+		final CountDownLatch received = new CountDownLatch(messages);
+		Session sinkSession = createSession(RELAY_URL, true);
+		sinkSession.createConsumer(sinkSession.createTopic("command")).setMessageListener(new MessageListener() {
+			@Override
+			public void onMessage(Message message) {
+				received.countDown();
+			}
+		});
+		
+		final AtomicLong relayThreadCpu = new AtomicLong();
+		if(!bridge) {
+			final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			Session outputSession = createSession(RELAY_URL, mode.equals("copy"));
+			final MessageProducer relayProducer = outputSession.createProducer(outputSession.createTopic("command"));
+			relayProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+			Session inputSession = createSession(SOURCE_URL, true);
+			MessageConsumer relayConsumer = inputSession.createConsumer(inputSession.createTopic("command"));
+			relayConsumer.setMessageListener(new MessageListener() {
+				@Override
+				public void onMessage(Message message) {
+					long start = threadBean.getCurrentThreadCpuTime();
+					try {
+						relayProducer.send(message);
+					} catch (JMSException e) {
+						e.printStackTrace();
+					}
+					relayThreadCpu.addAndGet(threadBean.getCurrentThreadCpuTime() - start);
+				}
+			});
+		}
+		Thread.sleep(2000); // let the consumers and bridges settle
+		
+		Session producerSession = createSession(SOURCE_URL, true);
+		MessageProducer producer = producerSession.createProducer(producerSession.createTopic("command"));
+		producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+		ObjectMessage[] payloads = new ObjectMessage[100];
+		for(int i = 0; i < payloads.length; ++i) {
+			payloads[i] = producerSession.createObjectMessage();
+			payloads[i].setObject(createMetadata(i));
+		}
+		
+		OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+		long cpuStart = ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime();
+		long wallStart = System.nanoTime();
+		for(int i = 0; i < messages; ++i) {
+			producer.send(payloads[i % payloads.length]);
+		}
+		boolean complete = received.await(120, TimeUnit.SECONDS);
+		long wall = System.nanoTime() - wallStart;
+		long cpu = ((com.sun.management.OperatingSystemMXBean)osBean).getProcessCpuTime() - cpuStart;
+		
+		System.out.printf("%-12s relayed %d/%d, process CPU %.2f us/msg, relay thread CPU %.2f us/msg, %.0f msg/s\n",
+				mode, messages - received.getCount(), messages, cpu / 1000.0 / messages,
+				relayThreadCpu.get() / 1000.0 / messages, messages * 1e9 / wall);
+		if(!complete) {
+			System.out.println("Some messages were lost (non-persistent topic).");
+		}
+		relay.stop();
+		source.stop();
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		run("copy", messages);
+		run("passthrough", messages);
+		run("bridge", messages);
+		System.exit(0);
+	}
+}
@@ -0,0 +1,44 @@
+package sysmon.subscriber;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestConflatingBuffer {
+	
+	@Test
+	public void testKeepsLatestPerKey() throws InterruptedException {
+		ConflatingBuffer<String, Integer> buffer = new ConflatingBuffer<String, Integer>();
+		assertFalse(buffer.offer("a", 1));
+		assertFalse(buffer.offer("b", 1));
+		assertTrue(buffer.offer("a", 2));
+		assertTrue(buffer.offer("a", 3));
+		assertEquals(2, buffer.size());
+		assertEquals(2, buffer.getConflatedCount());
+		/*	"a" keeps its position but carries the latest value	*/
+		assertEquals(Integer.valueOf(3), buffer.take());
+		assertEquals(Integer.valueOf(1), buffer.take());
+		assertEquals(0, buffer.size());
+	}
+	
+	@Test
+	public void testBoundedBySlowReader() throws InterruptedException {
+		ConflatingBuffer<String, Integer> buffer = new ConflatingBuffer<String, Integer>();
+		for(int i = 0; i < 100000; ++i) {
+			buffer.offer("machine-" + (i % 100), i);
+		}
+		assertEquals(100, buffer.size());
+		assertEquals(100000 - 100, buffer.getConflatedCount());
+		assertEquals(Integer.valueOf(99900), buffer.take());
+	}
+	
+	@Test
+	public void testFastReaderGetsEverySample() throws InterruptedException {
+		ConflatingBuffer<String, Integer> buffer = new ConflatingBuffer<String, Integer>();
+		for(int i = 0; i < 1000; ++i) {
+			buffer.offer("machine", i);
+			assertEquals(Integer.valueOf(i), buffer.take());
+		}
+		assertEquals(0, buffer.getConflatedCount());
+	}
+}
@@ -0,0 +1,99 @@
+package sysmon.subscriber;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+
+import sysmon.common.SubscriptionFilter;
+import sysmon.util.GlobalParameters;
+
+/**
+ * Measure the bandwidth used by a firehose subscription and a filtered
+ * subscription against the same running collectors.
+ * 
+ * usage: TestFilteredSubscriber collector-ip-1 [collector-ip-2 ...] subscribed-machine-ip
+ */
+public class TestFilteredSubscriber {
+	
+	/**
+	 * Count the messages and bytes received from the collectors directly.
+	 */
+	static class CountingListener implements MessageListener {
+		AtomicLong messages = new AtomicLong();
+		AtomicLong bytes = new AtomicLong();
+		
+		@Override
+		public void onMessage(Message message) {
+			if(message instanceof ObjectMessage) {
+				try {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					ObjectOutputStream oos = new ObjectOutputStream(out);
+					oos.writeObject(((ObjectMessage)message).getObject());
+					oos.close();
+					messages.incrementAndGet();
+					bytes.addAndGet(out.size());
+				} catch (JMSException e) {
+					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	private static CountingListener listen(String brokerAddress, String topicName) throws JMSException {
+		Connection connection = new ActiveMQConnectionFactory(brokerAddress).createConnection();
+		connection.start();
+		Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+		MessageConsumer consumer = session.createConsumer(session.createTopic(topicName));
+		CountingListener listener = new CountingListener();
+		consumer.setMessageListener(listener);
+		return listener;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		if(args.length < 2) {
+			System.out.println("usage: TestFilteredSubscriber collector-ip-1 [collector-ip-2 ...] subscribed-machine-ip");
+			System.exit(1);
+		}
+		List<String> collectors = new ArrayList<String>();
+		List<CountingListener> firehoseListeners = new ArrayList<CountingListener>();
+		for(int i = 0; i < args.length - 1; ++i) {
+			String address = "tcp://" + args[i] + ":" + GlobalParameters.COLLECTOR_COMMAND_PORT;
+			collectors.add(address);
+			firehoseListeners.add(listen(address, "command"));
+		}
+		
+		SubscriptionFilter filter = new SubscriptionFilter().addMachine(args[args.length - 1]).addSection("cpu");
+		Subscriber subscriber = new Subscriber(collectors, filter);
+		String gatherAddress = "tcp://localhost:" + GlobalParameters.SUBSCRIBE_COMMAND_PORT;
+		CountingListener filteredListener = listen(gatherAddress, "command");
+		
+		Thread.sleep(60 * 1000);
+		long firehoseMessages = 0, firehoseBytes = 0;
+		for(CountingListener listener : firehoseListeners) {
+			firehoseMessages += listener.messages.get();
+			firehoseBytes += listener.bytes.get();
+		}
+		System.out.printf("Firehose: %d messages, %d bytes\n", firehoseMessages, firehoseBytes);
+		System.out.printf("Filtered: %d messages, %d bytes\n", filteredListener.messages.get(), filteredListener.bytes.get());
+		if(firehoseBytes > 0) {
+			System.out.printf("Bandwidth reduction: %.2f%%\n", 100.0 * (firehoseBytes - filteredListener.bytes.get()) / firehoseBytes);
+		}
+		subscriber.stop();
+		System.exit(0);
+	}
+}
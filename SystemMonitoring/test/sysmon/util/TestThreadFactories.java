@@ -0,0 +1,176 @@
+package sysmon.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import sysmon.common.metadata.MachineMetadata;
+import sysmon.simulator.FleetSimulator;
+import sysmon.simulator.SimulatedMachine;
+
+public class TestThreadFactories {
+
+	@Test
+	public void testPlatform() throws InterruptedException {
+		final AtomicLong ran = new AtomicLong();
+		Thread thread = ThreadFactories.newThread(ThreadFactories.platform(), new Runnable() {
+			@Override
+			public void run() {
+				ran.incrementAndGet();
+			}
+		}, "worker", true);
+		assertEquals("worker", thread.getName());
+		assertTrue(thread.isDaemon());
+		assertFalse(ThreadFactories.isVirtual(thread));
+		thread.start();
+		thread.join();
+		assertEquals(1, ran.get());
+		assertNotNull(ThreadFactories.getDefault());
+	}
+
+	@Test
+	public void testVirtualUnsupported() {
+		Assume.assumeTrue(!ThreadFactories.isVirtualSupported());
+		try {
+			ThreadFactories.virtual();
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	/**
+	 * Records the threads a factory creates, and counts down when each has run.
+	 */
+	static class RecordingFactory implements ThreadFactory {
+		ThreadFactory delegate;
+		List<Thread> threads = new ArrayList<Thread>();
+		CountDownLatch ran;
+
+		RecordingFactory(ThreadFactory delegate, int expected) {
+			this.delegate = delegate;
+			this.ran = new CountDownLatch(expected);
+		}
+
+		@Override
+		public synchronized Thread newThread(final Runnable runnable) {
+			Thread thread = delegate.newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runnable.run();
+					} finally {
+						ran.countDown();
+					}
+				}
+			});
+			threads.add(thread);
+			return thread;
+		}
+	}
+
+	@Test
+	public void testMakesVirtual() {
+		assertFalse(ThreadFactories.makesVirtual(ThreadFactories.platform()));
+		assertFalse(ThreadFactories.makesVirtual(new RecordingFactory(ThreadFactories.platform(), 0)));
+		if (ThreadFactories.isVirtualSupported()) {
+			/*	not only the virtual factory itself	*/
+			assertTrue(ThreadFactories.makesVirtual(new RecordingFactory(ThreadFactories.virtual(), 0)));
+		}
+	}
+
+	private void checkSimulatorThreads(ThreadFactory delegate, boolean virtual) throws InterruptedException {
+		final int monitors = 1000;
+		List<SimulatedMachine> fleet = FleetSimulator.createFleet(monitors, new int[] { 2, 4, 8 }, 1, 3,
+				SimulatedMachine.DAY_MILLIS, 0.01, 1000, 5);
+		FleetSimulator simulator = new FleetSimulator("tcp://127.0.0.1:1", fleet, 1000, monitors);
+		RecordingFactory factory = new RecordingFactory(delegate, monitors);
+		simulator.setThreadFactory(factory);
+		simulator.start();
+		/*	one sender per monitor, all from the factory	*/
+		assertEquals(monitors, factory.threads.size());
+		for (Thread thread : factory.threads) {
+			assertTrue(thread.getName().startsWith("simulator-sender-"));
+			assertEquals(virtual, ThreadFactories.isVirtual(thread));
+		}
+		/*	no monitor is registered, so each sender ends at once	*/
+		assertTrue(factory.ran.await(10, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * 10k simulated monitors in one JVM, each sampling and sending on its own
+	 * virtual thread, through a stub sender instead of a broker.
+	 */
+	@Test
+	public void testTenThousandMonitors() throws InterruptedException {
+		Assume.assumeTrue(ThreadFactories.isVirtualSupported());
+		checkTenThousandMonitors(ThreadFactories.virtual(), true);
+	}
+
+	void checkTenThousandMonitors(ThreadFactory delegate, boolean virtual) throws InterruptedException {
+		final int monitors = 10000;
+		final int samples = 5;
+		List<SimulatedMachine> fleet = FleetSimulator.createFleet(monitors, new int[] { 2, 4, 8 }, 1, 3,
+				SimulatedMachine.DAY_MILLIS, 0.01, 1000, 5);
+		final Map<String, AtomicLong> sentByMonitor = new HashMap<String, AtomicLong>();
+		final AtomicLong wrongThread = new AtomicLong();
+		final boolean expectVirtual = virtual;
+		FleetSimulator simulator = new FleetSimulator("tcp://127.0.0.1:1", fleet, 200, monitors);
+		for (SimulatedMachine machine : fleet) {
+			sentByMonitor.put(machine.getMachineIP(), new AtomicLong());
+			simulator.assign(machine, "tcp://127.0.0.1:2");
+		}
+		simulator.setSampleSender(new FleetSimulator.SampleSender() {
+			@Override
+			public void send(String collectorBrokerAddress, MachineMetadata machineMetadata) {
+				if (ThreadFactories.isVirtual(Thread.currentThread()) != expectVirtual) {
+					wrongThread.incrementAndGet();
+				}
+				sentByMonitor.get(machineMetadata.getMachineIP()).incrementAndGet();
+			}
+		});
+		RecordingFactory factory = new RecordingFactory(delegate, monitors);
+		simulator.setThreadFactory(factory);
+		simulator.start();
+		try {
+			assertEquals(monitors, factory.threads.size());
+			long deadline = System.currentTimeMillis() + 60000;
+			long slowest = 0;
+			while (System.currentTimeMillis() < deadline) {
+				slowest = Long.MAX_VALUE;
+				for (AtomicLong sent : sentByMonitor.values()) {
+					slowest = Math.min(slowest, sent.get());
+				}
+				if (slowest >= samples) {
+					break;
+				}
+				Thread.sleep(100);
+			}
+			/*	every monitor sampled and sent, from its own thread of the factory	*/
+			assertTrue("" + slowest, slowest >= samples);
+			assertEquals(0, wrongThread.get());
+			assertEquals(0, simulator.getSendErrors());
+		} finally {
+			simulator.stop();
+		}
+		assertTrue(factory.ran.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSimulatorUsesTheFactory() throws InterruptedException {
+		checkSimulatorThreads(ThreadFactories.platform(), false);
+		if (ThreadFactories.isVirtualSupported()) {
+			checkSimulatorThreads(ThreadFactories.virtual(), true);
+		}
+	}
+
+}